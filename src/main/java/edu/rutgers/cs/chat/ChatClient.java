@@ -19,16 +19,26 @@
 
 package edu.rutgers.cs.chat;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
@@ -36,15 +46,37 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 
+import edu.rutgers.cs.chat.history.HistoryRecord;
+import edu.rutgers.cs.chat.history.HistoryStore;
+import edu.rutgers.cs.chat.history.Outbox;
+import edu.rutgers.cs.chat.history.SearchQuery;
+import edu.rutgers.cs.chat.messaging.AbstractMessage;
 import edu.rutgers.cs.chat.messaging.ChatMessage;
 import edu.rutgers.cs.chat.messaging.ClientExchangeMessage;
+import edu.rutgers.cs.chat.messaging.FileOfferMessage;
+import edu.rutgers.cs.chat.messaging.FrameLimits;
+import edu.rutgers.cs.chat.messaging.HistoryBatchMessage;
+import edu.rutgers.cs.chat.messaging.HistoryRequestMessage;
+import edu.rutgers.cs.chat.messaging.MessageIds;
 import edu.rutgers.cs.chat.messaging.MessageListener;
 import edu.rutgers.cs.chat.messaging.PrivateChatMessage;
+import edu.rutgers.cs.chat.messaging.Reassembler;
+import edu.rutgers.cs.chat.messaging.RoomChatMessage;
+import edu.rutgers.cs.chat.messaging.RoutedPrivateMessage;
+import edu.rutgers.cs.chat.messaging.SubscriptionMessage;
+import edu.rutgers.cs.chat.net.EventLoop;
 import edu.rutgers.cs.chat.ui.ConsoleUI;
 import edu.rutgers.cs.chat.ui.GraphicalUI;
 import edu.rutgers.cs.chat.ui.UIAdapter;
 import edu.rutgers.cs.chat.ui.UIAdapter.UIType;
 import edu.rutgers.cs.chat.ui.UserInputListener;
+import edu.rutgers.cs.chat.util.BufferedPublisher;
+import edu.rutgers.cs.chat.util.CircuitBreaker;
+import edu.rutgers.cs.chat.util.MemoryBudget;
+import edu.rutgers.cs.chat.util.Publisher;
+import edu.rutgers.cs.chat.util.SeenMessageCache;
+import edu.rutgers.cs.chat.util.Stage;
+import edu.rutgers.cs.chat.util.Threads;
 
 /**
  * Main class of the chat client. It handles incoming connections and exchanged
@@ -64,16 +96,6 @@ public class ChatClient extends Thread implements MessageListener,
 
 	static {
 		log.setLevel(Level.ALL);
-		Logger root = Logger.getLogger("");
-		ChatClient.replaceConsoleHandler(root, Level.WARNING);
-		try {
-			Handler fileHandler = new FileHandler("cs352-chat.log");
-			fileHandler.setLevel(Level.ALL);
-			fileHandler.setFormatter(new SimpleFormatter());
-			root.addHandler(fileHandler);
-		} catch (Exception e) {
-			System.err.println("Unable to create log file: " + e.getMessage());
-		}
 	}
 
 	/**
@@ -96,14 +118,30 @@ public class ChatClient extends Thread implements MessageListener,
 	protected final String username;
 
 	/**
-	 * Socket for accepting incoming connections.
+	 * Channel for accepting incoming connections.
+	 */
+	protected ServerSocketChannel listenChannel;
+
+	/**
+	 * The stages, limits and event loop this client shares with others.
+	 */
+	protected final ChatRuntime runtime;
+
+	/**
+	 * True if the runtime was created for this client alone, and is shut down
+	 * with it.
 	 */
-	protected ServerSocket listenSocket;
+	protected final boolean ownsRuntime;
 
 	/**
 	 * Flag to shutdown the client.
 	 */
-	protected boolean keepRunning = true;
+	protected volatile boolean keepRunning = true;
+
+	/**
+	 * Released when the client shuts down, ending {@link #run()}.
+	 */
+	protected final CountDownLatch stopped = new CountDownLatch(1);
 
 	/**
 	 * List of currently-connected clients.
@@ -111,15 +149,316 @@ public class ChatClient extends Thread implements MessageListener,
 	protected final Collection<Client> clients = new ConcurrentLinkedQueue<Client>();
 
 	/**
-	 * Thread pool for handling incoming connections and new client information.
+	 * Handshakes with newly-accepted connections. Shared with the other
+	 * clients of the runtime.
+	 */
+	protected final Stage acceptStage;
+
+	/**
+	 * Connects to clients learned from exchange messages.
+	 */
+	protected final Stage connectStage;
+
+	/**
+	 * Forwards routed messages and removes disconnected clients.
+	 */
+	protected final Stage dispatchStage;
+
+	/**
+	 * Passes received messages and events to the user interface.
+	 */
+	protected final Stage renderStage;
+
+	/**
+	 * Sends the messages entered by the local user.
+	 */
+	protected final Stage sendStage;
+
+	/**
+	 * Publishes received messages and membership changes to programs
+	 * embedding the client. Messages are published by the thread reading the
+	 * peer's socket, so a subscriber that falls behind stops reads from the
+	 * peers sending to it. The buffer per subscriber can be set with the
+	 * system property {@code edu.rutgers.cs.chat.eventBuffer}.
+	 */
+	protected final BufferedPublisher<ChatEvent> events = new BufferedPublisher<ChatEvent>(
+			Integer.getInteger("edu.rutgers.cs.chat.eventBuffer",
+					BufferedPublisher.DEFAULT_BUFFER_SIZE).intValue());
+
+	/**
+	 * Every chat, room and private message sent or received, or null if the
+	 * history is disabled or could not be opened. Kept in
+	 * "history/USERNAME" unless the system property
+	 * {@code edu.rutgers.cs.chat.history.dir} names another directory, and
+	 * disabled with {@code edu.rutgers.cs.chat.history.enabled=false}.
+	 */
+	protected final HistoryStore history;
+
+	/**
+	 * Private messages waiting for their recipients to connect. Kept in the
+	 * "outbox" directory of the history, or only in memory if the history is
+	 * disabled.
+	 */
+	protected final Outbox outbox;
+
+	/**
+	 * Usernames of the clients currently being sent their waiting messages.
+	 */
+	protected final Set<String> delivering = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Results of messages sent with {@link #sendPrivate(String, String)}
+	 * that are waiting in the outbox, by message identifier.
+	 */
+	protected final ConcurrentHashMap<Long, SendResult> waitingResults = new ConcurrentHashMap<Long, SendResult>();
+
+	/**
+	 * How often old history segments are deleted, in milliseconds.
+	 */
+	public static final long HISTORY_EXPIRE_INTERVAL = 60 * 60 * 1000;
+
+	/**
+	 * How often the peer cache is saved if it changed, in milliseconds.
+	 */
+	public static final long PEER_CACHE_SAVE_INTERVAL = 60 * 1000;
+
+	/**
+	 * Default time to wait for a connection to another client, in
+	 * milliseconds.
+	 */
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * Time to wait for a connection to another client, in milliseconds. Set
+	 * with the system property {@code edu.rutgers.cs.chat.connectTimeout}.
+	 */
+	protected final int connectTimeout = Integer.getInteger(
+			"edu.rutgers.cs.chat.connectTimeout", DEFAULT_CONNECT_TIMEOUT)
+			.intValue();
+
+	/**
+	 * The clients this client has been connected to, saved in the history's
+	 * directory so a restarted client can connect to them again. Kept only in
+	 * memory if the history is disabled.
+	 */
+	protected final PeerCache peerCache;
+
+	/**
+	 * Circuit breakers for the address and port of each client, which stop
+	 * connection attempts to clients that keep failing.
+	 */
+	protected final CircuitBreaker breaker = Reconnector
+			.breakerFromProperties();
+
+	/**
+	 * Connects again to clients whose connections failed.
+	 */
+	protected final Reconnector reconnector;
+
+	/**
+	 * Numbered chat messages exchanged with each client, kept so that a lost
+	 * connection can be resumed without losing messages.
+	 */
+	protected final SessionTable sessions;
+
+	/**
+	 * Addresses and ports being connected to, so that one client is never
+	 * connected to twice at once.
+	 */
+	protected final Set<String> dialing = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Default number of earlier messages asked for when joining a
+	 * conversation. Can be changed with the
+	 * {@code edu.rutgers.cs.chat.history.catchUpLimit} system property, and 0
+	 * turns catching up off.
+	 */
+	public static final int DEFAULT_CATCH_UP_LIMIT = 1000;
+
+	/**
+	 * Most earlier messages sent to a client that asks for them.
+	 */
+	public static final int MAX_CATCH_UP_LIMIT = 10000;
+
+	/**
+	 * Default number of minutes of earlier messages asked for when the local
+	 * history is empty. Can be changed with the
+	 * {@code edu.rutgers.cs.chat.history.catchUpMinutes} system property.
+	 */
+	public static final int DEFAULT_CATCH_UP_MINUTES = 60;
+
+	/**
+	 * How long to wait for the next batch of earlier messages before asking
+	 * another client, in milliseconds.
+	 */
+	public static final long CATCH_UP_TIMEOUT = 10000;
+
+	/**
+	 * Number of earlier messages asked for when joining a conversation.
+	 */
+	protected final int catchUpLimit = Integer.getInteger(
+			HistoryStore.PROPERTY_PREFIX + "catchUpLimit",
+			DEFAULT_CATCH_UP_LIMIT).intValue();
+
+	/**
+	 * Storage time of the earliest message asked for: the newest message in
+	 * the local history, or a while ago if the history is empty.
+	 */
+	protected final long catchUpSince;
+
+	/**
+	 * The client the local client is catching up from, or null if it isn't.
+	 */
+	protected final AtomicReference<Client> catchUpPeer = new AtomicReference<Client>();
+
+	/**
+	 * Set once a client has sent all the earlier messages asked for.
+	 */
+	protected volatile boolean caughtUp;
+
+	/**
+	 * When the last batch of earlier messages arrived, or when they were
+	 * asked for.
+	 */
+	protected volatile long catchUpProgress;
+
+	/**
+	 * Serializes adding clients, so duplicate checks see every earlier
+	 * connection. A lock rather than synchronized methods, since connecting
+	 * and handshaking block and would otherwise pin a virtual thread's carrier.
+	 */
+	protected final ReentrantLock connectLock = new ReentrantLock();
+
+	/**
+	 * Number of message identifiers remembered per generation of the seen
+	 * cache.
+	 */
+	public static final int SEEN_CACHE_CAPACITY = 8192;
+
+	/**
+	 * Maximum age of a generation of the seen cache, in milliseconds.
+	 */
+	public static final long SEEN_CACHE_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * Identifiers of recently-seen chat messages, used to drop duplicates that
+	 * arrive over more than one path.
+	 */
+	protected final SeenMessageCache seenMessages = new SeenMessageCache(
+			SEEN_CACHE_CAPACITY, SEEN_CACHE_MILLIS);
+
+	/**
+	 * Default number of bytes of received messages that may be held in memory
+	 * across all clients. Can be changed with the
+	 * {@code edu.rutgers.cs.chat.inboundBytes} system property.
+	 */
+	public static final long DEFAULT_INBOUND_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Default number of bytes of received messages that may be held in memory
+	 * for a single client: enough to rebuild one message of the largest size.
+	 * Can be changed with the {@code edu.rutgers.cs.chat.peerInboundBytes}
+	 * system property.
+	 */
+	public static final long DEFAULT_PEER_INBOUND_BYTES = Reassembler.MAX_MESSAGE_SIZE
+			+ FrameLimits.DEFAULT_MAX_SKIP;
+
+	/**
+	 * Memory available for messages received from all clients, shared with
+	 * the other clients of the runtime.
+	 */
+	protected final MemoryBudget inboundBudget;
+
+	/**
+	 * Memory available for messages received from each client.
+	 */
+	protected final long peerInboundBytes = Long.getLong(
+			"edu.rutgers.cs.chat.peerInboundBytes", DEFAULT_PEER_INBOUND_BYTES)
+			.longValue();
+
+	/**
+	 * Accepted lengths of each type of message received from clients.
+	 */
+	protected final FrameLimits frameLimits;
+
+	/**
+	 * Default number of messages per second read from each client. Can be
+	 * changed with the {@code edu.rutgers.cs.chat.peerFrameRate} system
+	 * property; 0 disables the limit.
+	 */
+	public static final long DEFAULT_PEER_FRAME_RATE = 1000;
+
+	/**
+	 * Default number of bytes per second read from each client, not counting
+	 * file data. Can be changed with the
+	 * {@code edu.rutgers.cs.chat.peerByteRate} system property; 0 disables
+	 * the limit.
+	 */
+	public static final long DEFAULT_PEER_BYTE_RATE = 8L * 1024 * 1024;
+
+	/**
+	 * Most messages per second read from each client.
+	 */
+	protected final long peerFrameRate = Long.getLong(
+			"edu.rutgers.cs.chat.peerFrameRate", DEFAULT_PEER_FRAME_RATE)
+			.longValue();
+
+	/**
+	 * Most bytes per second read from each client.
+	 */
+	protected final long peerByteRate = Long.getLong(
+			"edu.rutgers.cs.chat.peerByteRate", DEFAULT_PEER_BYTE_RATE)
+			.longValue();
+
+	/**
+	 * Routes to clients that are reachable only through other clients.
+	 */
+	protected final RoutingTable routingTable = new RoutingTable();
+
+	/**
+	 * Default number of rooms the client keeps track of, across the local
+	 * user and every peer. Can be changed with the
+	 * {@code edu.rutgers.cs.chat.maxRooms} system property.
+	 */
+	public static final int DEFAULT_MAX_ROOMS = 4096;
+
+	/**
+	 * Default number of rooms each peer may be subscribed to. Can be changed
+	 * with the {@code edu.rutgers.cs.chat.peerMaxRooms} system property.
+	 */
+	public static final int DEFAULT_PEER_MAX_ROOMS = 256;
+
+	/**
+	 * Most rooms each peer may be subscribed to.
+	 */
+	protected final int peerMaxRooms = Integer.getInteger(
+			"edu.rutgers.cs.chat.peerMaxRooms", DEFAULT_PEER_MAX_ROOMS)
+			.intValue();
+
+	/**
+	 * Interned room names shared by the local and remote subscription sets.
+	 */
+	protected final RoomRegistry roomRegistry = new RoomRegistry(
+			Integer.getInteger("edu.rutgers.cs.chat.maxRooms",
+					DEFAULT_MAX_ROOMS).intValue());
+
+	/**
+	 * Rooms the local user has joined.
 	 */
-	protected final ExecutorService workers = Executors.newCachedThreadPool();
+	protected final BitSet localRooms = new BitSet();
 
 	/**
 	 * Basic console-based user interface.
 	 */
 	protected UIAdapter userInterface;
 
+	/**
+	 * Directory that accepted files are saved in.
+	 */
+	protected File downloadDirectory = new File(".");
+
 	/**
 	 * Parse command-line arguments and start a single instance of the
 	 * ChatClient class.
@@ -129,6 +468,7 @@ public class ChatClient extends Thread implements MessageListener,
 	 *            (optional)
 	 */
 	public static void main(String[] args) {
+		ChatClient.configureLogging();
 
 		// Empty line for formatting
 		System.out.println();
@@ -179,6 +519,13 @@ public class ChatClient extends Thread implements MessageListener,
 					++i;
 					continue;
 				}
+				if ("--virtual".equalsIgnoreCase(args[i])) {
+					if (Threads.setVirtual(true)) {
+						log.config("Using virtual threads for clients.");
+					}
+					++i;
+					continue;
+				}
 				String host = args[i++];
 				// Parse the port, pass args[2] in as the remote hostname.
 				int remotePort = Integer.MIN_VALUE;
@@ -220,23 +567,81 @@ public class ChatClient extends Thread implements MessageListener,
 	 *            the port number for incoming client connections.
 	 * @param username
 	 *            the username to send to other clients.
+	 * @param uiType
+	 *            the kind of user interface to show.
 	 */
 	public ChatClient(final int listenPort, final String username,
 			final UIType uiType) {
+		this(listenPort, username, ChatClient.createUI(uiType, username));
+	}
+
+	/**
+	 * Creates a new chat client that reports to the provided user interface.
+	 * Programs embedding the client can pass a
+	 * {@link edu.rutgers.cs.chat.ui.HeadlessUI}, or a subclass of it that
+	 * handles the events they need, and send messages with
+	 * {@link #send(String)} and the related methods. The client starts
+	 * accepting connections once {@link #start()} is called.
+	 * 
+	 * @param listenPort
+	 *            the port number for incoming client connections.
+	 * @param username
+	 *            the username to send to other clients.
+	 * @param userInterface
+	 *            the user interface to report events to.
+	 */
+	public ChatClient(final int listenPort, final String username,
+			final UIAdapter userInterface) {
+		this(listenPort, username, userInterface, null);
+	}
+
+	/**
+	 * Creates a new chat client that shares a runtime with other clients in
+	 * the same JVM. Such a client needs no thread of its own: it starts
+	 * accepting connections once {@link #listen()} is called, and stops when
+	 * {@link #shutdown()} is called. The runtime is not shut down with it.
+	 * 
+	 * @param listenPort
+	 *            the port number for incoming client connections.
+	 * @param username
+	 *            the username to send to other clients.
+	 * @param userInterface
+	 *            the user interface to report events to.
+	 * @param runtime
+	 *            the shared runtime, or null to create one for this client
+	 *            alone.
+	 */
+	public ChatClient(final int listenPort, final String username,
+			final UIAdapter userInterface, final ChatRuntime runtime) {
+		super("ChatClient-" + username + "@" + listenPort);
 		this.listenPort = listenPort;
 		this.username = username;
+		this.userInterface = userInterface;
+		this.ownsRuntime = runtime == null;
+		this.runtime = this.ownsRuntime ? new ChatRuntime(username + "@"
+				+ listenPort) : runtime;
+		this.runtime.attach();
+		this.acceptStage = this.runtime.acceptStage;
+		this.connectStage = this.runtime.connectStage;
+		this.dispatchStage = this.runtime.dispatchStage;
+		this.renderStage = this.runtime.renderStage;
+		this.sendStage = this.runtime.sendStage;
+		this.inboundBudget = this.runtime.inboundBudget;
+		this.frameLimits = this.runtime.frameLimits;
+		this.sessions = new SessionTable(this.runtime);
+		this.history = this.openHistory();
+		this.outbox = this.openOutbox();
+		this.reconnector = new Reconnector(this);
+		this.peerCache = PeerCache.fromProperties(this.history == null ? null
+				: new File(this.history.getDirectory(), "peers"));
+		long last = this.history == null ? 0 : this.history.getLastStoredAt();
+		this.catchUpSince = last > 0 ? last : System.currentTimeMillis()
+				- Integer.getInteger(
+						HistoryStore.PROPERTY_PREFIX + "catchUpMinutes",
+						DEFAULT_CATCH_UP_MINUTES).intValue() * 60000L;
+		this.caughtUp = this.catchUpLimit <= 0;
 		log.finer("Created new chat client on port " + this.listenPort
 				+ " for user " + this.username);
-		if (uiType == uiType.CONSOLE) {
-			this.userInterface = new ConsoleUI();
-			log.finer("Created console UI.");
-		} else if (uiType == uiType.GRAPHICS) {
-			this.userInterface = new GraphicalUI(this.username);
-			log.finer("Created graphical UI.");
-		}else{
-			log.severe("Unknown UI type requested: " + uiType);
-			throw new IllegalArgumentException("Unknown UI type " + uiType);
-		}
 
 		this.userInterface.addUserInputListener(this);
 		log.finer("Registering for UI events from " + this.userInterface);
@@ -247,345 +652,1766 @@ public class ChatClient extends Thread implements MessageListener,
 	}
 
 	/**
-	 * Called when remote clients exchange information about other clients with
-	 * this client. Will check for a duplicate connection first, test it with a
-	 * keep-alive, and ignore this client if the connection is viable. If the
-	 * client is not matched or the old connection is closed, then it will
-	 * connect to the client.
+	 * Opens the local user's chat history, written by the runtime's history
+	 * stage.
 	 * 
-	 * @param remoteHost
-	 *            the hostname/IP address of the new client
-	 * @param port
-	 *            the listen port number for the new client.
-	 * @param username
-	 *            the username expected from the remote client.
+	 * @return the history, or null if it is disabled or cannot be opened.
 	 */
-	protected synchronized void addClient(final String remoteHost,
-			final int port, final String username) {
-		// Build a new client object
-		Client newClient = this.makeClient(remoteHost, port, username);
-
-		// If null, then an exception was thrown, probably couldn't resolve the
-		// hostname.
-		if (newClient == null) {
-			return;
+	protected HistoryStore openHistory() {
+		if (!Boolean.valueOf(
+				System.getProperty(HistoryStore.PROPERTY_PREFIX + "enabled",
+						"true")).booleanValue()) {
+			return null;
+		}
+		File directory = new File(System.getProperty(
+				HistoryStore.PROPERTY_PREFIX + "dir", "history"),
+				HistoryStore.directoryName(this.username));
+		try {
+			return HistoryStore.fromProperties(directory,
+					this.runtime.historyStage);
+		} catch (IOException ioe) {
+			log.warning("Chat history disabled, unable to open " + directory
+					+ ": " + ioe.getMessage());
+			return null;
+		} catch (IllegalArgumentException iae) {
+			log.warning("Chat history disabled: " + iae.getMessage());
+			return null;
 		}
+	}
 
-		// Check to see if this client is already known
-		Client oldClient = this.findDuplicate(newClient);
+	/**
+	 * Opens the outbox of private messages waiting for their recipients, in
+	 * the history's directory so that it is locked with it.
+	 * 
+	 * @return the outbox, kept only in memory if the history is disabled or
+	 *         the outbox cannot be opened.
+	 */
+	protected Outbox openOutbox() {
+		File directory = this.history == null ? null : new File(this.history
+				.getDirectory(), "outbox");
+		try {
+			return Outbox.fromProperties(directory);
+		} catch (IOException ioe) {
+			log.warning("Keeping waiting messages in memory, unable to open "
+					+ directory + ": " + ioe.getMessage());
+		} catch (IllegalArgumentException iae) {
+			log.warning("Using the default outbox limits: "
+					+ iae.getMessage());
+		}
+		try {
+			return new Outbox(null, Outbox.DEFAULT_MAX_MESSAGES,
+					Outbox.DEFAULT_MAX_AGE_MILLIS);
+		} catch (IOException ioe) {
+			// Nothing is read without a directory
+			throw new IllegalStateException(ioe);
+		}
+	}
 
-		// If we already have this client in our list, then check to make sure
-		// it's still live
-		if (oldClient != null) {
-			if (this.testClient(oldClient)) {
-				// Old client is fine, so discard the new one
-				return;
-			}
+	/**
+	 * Keeps a private message in the outbox until its recipient connects.
+	 * 
+	 * @param recipient
+	 *            the recipient's username.
+	 * @param sentAt
+	 *            when the message was sent.
+	 * @param messageId
+	 *            the message identifier, kept when it is delivered.
+	 * @param text
+	 *            the text of the message.
+	 * @param result
+	 *            completed once the message is delivered, or null.
+	 * @return true if the message was kept, false if too many messages are
+	 *         already waiting for the recipient.
+	 */
+	protected boolean keepForLater(final String recipient,
+			final long sentAt, final long messageId, final String text,
+			final SendResult result) {
+		HistoryRecord record = new HistoryRecord(HistoryRecord.Kind.PRIVATE,
+				true, sentAt, messageId, recipient, null, text);
+		if (result != null) {
+			this.waitingResults.put(Long.valueOf(messageId), result);
 		}
-		// Connect the socket to the remote client, discard the client on errors
 		try {
-			newClient.connect();
+			if (!this.outbox.add(record)) {
+				this.waitingResults.remove(Long.valueOf(messageId));
+				log.warning("Too many messages waiting for " + recipient
+						+ ", dropped one.");
+				return false;
+			}
 		} catch (IOException ioe) {
-			log.severe("Unable to connect to " + newClient + ": "
+			log.warning("Message for " + recipient
+					+ " will be lost if the client stops: "
 					+ ioe.getMessage());
-			return;
-		}
-		// Try to handshake, if it succeeds then notify the UI
-		if (newClient.performHandshake()) {
-			this.registerClient(newClient);
-			this.clients.add(newClient);
 		}
-
+		log.fine("Keeping a message for " + recipient + " until they connect.");
+		return true;
 	}
 
 	/**
-	 * Registers a new client with the local client. Notifies the UI.
+	 * Keeps a private message that could not be sent to a client, and tells
+	 * the user.
 	 * 
 	 * @param client
-	 *            the client to register.
+	 *            the recipient.
+	 * @param message
+	 *            the message that was not sent.
 	 */
-	protected void registerClient(Client client) {
-		log.fine("Registering " + client);
-		client.addMessageListener(this);
-		client.start();
-		this.userInterface.clientConnected(client);
-		log.finer("Notified user interface" + this.userInterface);
+	protected void keepUnsent(final Client client,
+			final PrivateChatMessage message) {
+		boolean kept = this.keepForLater(client.getUsername(), message
+				.getTimestamp(), message.getMessageId(), message.getMessage(),
+				null);
+		this.userInterface.messageNotSent(message.getMessage(),
+				kept ? "Saved to send when " + client.getUsername()
+						+ " connects again." : "Too many messages waiting for "
+						+ client.getUsername() + ".", client);
 	}
 
 	/**
-	 * Tests a client for liveness by sending a Keep-Alive message. If the send
-	 * fails, then the client is disconnected, removed from the list of clients,
-	 * and the UI is notified.
+	 * Starts sending a client the private messages waiting for it, unless
+	 * there are none or they are already being sent.
 	 * 
 	 * @param client
-	 *            the client to test
-	 * @return true if the test succeeds, else false
+	 *            the client that connected.
 	 */
-	protected boolean testClient(Client client) {
-		try {
-			client.sendKeepAliveMessage();
-			return true;
-		} catch (IOException ioe) {
-			this.clients.remove(client);
-			client.removeMessageListener(this);
-			client.disconnect();
-			this.userInterface.clientDisconnected(ioe.getMessage(), client);
+	protected void deliverWaiting(final Client client) {
+		String recipient = client.getUsername();
+		if (!this.outbox.hasWaiting(recipient)
+				|| !this.delivering.add(recipient)) {
+			return;
+		}
+		if (!this.sendStage.execute(new OutboxDelivery(this, client))) {
+			this.delivering.remove(recipient);
+			log.warning("Unable to deliver waiting messages to " + client
+					+ ", send stage is full.");
 		}
-		return false;
 	}
 
 	/**
-	 * Creates a new client from the supplied arguments. If an IOException is
-	 * thrown, then null is returned.
+	 * Called by a delivery when it stops, so the next connection can start
+	 * one.
 	 * 
-	 * @param remoteHost
-	 *            the hostname/IP address of the client.
-	 * @param port
-	 *            the listen port of the client.
+	 * @param delivery
+	 *            the delivery that stopped.
+	 */
+	void deliveryFinished(final OutboxDelivery delivery) {
+		this.delivering.remove(delivery.peer.getUsername());
+	}
+
+	/**
+	 * Completes the results of messages from
+	 * {@link #sendPrivate(String, String)} that were delivered from the
+	 * outbox.
+	 * 
+	 * @param client
+	 *            the client they were delivered to.
+	 * @param messageIds
+	 *            the delivered messages.
+	 */
+	void waitingDelivered(final Client client, final List<Long> messageIds) {
+		for (Long id : messageIds) {
+			SendResult result = this.waitingResults.remove(id);
+			if (result != null) {
+				result.written(client);
+			}
+		}
+	}
+
+	/**
+	 * Adds a message to the chat history without waiting. Does nothing if
+	 * the history is disabled.
+	 * 
+	 * @param kind
+	 *            what kind of message it is.
+	 * @param sent
+	 *            true if the local user sent it.
+	 * @param sentAt
+	 *            when the message was sent.
+	 * @param messageId
+	 *            the message identifier.
+	 * @param peer
+	 *            the sender of a received message or recipient of a private
+	 *            one, or null.
+	 * @param room
+	 *            the room, or null.
+	 * @param text
+	 *            the text of the message.
+	 */
+	protected void remember(final HistoryRecord.Kind kind,
+			final boolean sent, final long sentAt, final long messageId,
+			final String peer, final String room, final String text) {
+		if (this.history != null) {
+			this.history.append(new HistoryRecord(kind, sent, sentAt,
+					messageId, peer, room, text));
+		}
+	}
+
+	/**
+	 * Deletes old history segments now, and again every
+	 * {@link #HISTORY_EXPIRE_INTERVAL} until the client is shut down. The
+	 * runtime's timer only queues the work on the history stage.
+	 */
+	protected void scheduleHistoryExpiry() {
+		if (this.history == null || !this.keepRunning) {
+			return;
+		}
+		this.runtime.historyStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				ChatClient.this.history.expire();
+			}
+		});
+		try {
+			this.runtime.schedule(new Runnable() {
+				@Override
+				public void run() {
+					ChatClient.this.scheduleHistoryExpiry();
+				}
+			}, HISTORY_EXPIRE_INTERVAL);
+		} catch (IOException ioe) {
+			log.warning("Unable to schedule history expiry: "
+					+ ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the local user's chat history.
+	 * 
+	 * @return the history, or null if it is disabled or could not be opened.
+	 */
+	public HistoryStore getHistory() {
+		return this.history;
+	}
+
+	/**
+	 * Creates the user interface of the requested type.
+	 * 
+	 * @param uiType
+	 *            the kind of user interface.
+	 * @param username
+	 *            the local username, shown by the graphical interface.
+	 * @return the new user interface.
+	 */
+	protected static UIAdapter createUI(final UIType uiType,
+			final String username) {
+		if (uiType == UIType.CONSOLE) {
+			log.finer("Created console UI.");
+			return new ConsoleUI();
+		} else if (uiType == UIType.GRAPHICS) {
+			log.finer("Created graphical UI.");
+			return new GraphicalUI(username);
+		}
+		log.severe("Unknown UI type requested: " + uiType);
+		throw new IllegalArgumentException("Unknown UI type " + uiType);
+	}
+
+	/**
+	 * Called when remote clients exchange information about other clients with
+	 * this client. Will check for a duplicate connection first, test it with a
+	 * keep-alive, and ignore this client if the connection is viable. If the
+	 * client is not matched or the old connection is closed, then it will
+	 * connect to the client.
+	 * 
+	 * @param remoteHost
+	 *            the hostname/IP address of the new client
+	 * @param port
+	 *            the listen port number for the new client.
+	 * @param username
+	 *            the username expected from the remote client.
+	 * @return true if the client is connected, false if connecting failed or
+	 *         was not tried because the client's circuit breaker is open.
+	 */
+	protected boolean addClient(final String remoteHost,
+			final int port, final String username) {
+		// Build a new client object
+		Client newClient = this.makeClient(remoteHost, port, username);
+
+		// If null, then an exception was thrown, probably couldn't resolve the
+		// hostname.
+		if (newClient == null) {
+			return false;
+		}
+
+		this.connectLock.lock();
+		try {
+			// Check to see if this client is already known
+			Client oldClient = this.findDuplicate(newClient);
+
+			// If we already have this client in our list, then check to make sure
+			// it's still live
+			if (oldClient != null) {
+				if (this.testClient(oldClient)) {
+					// Old client is fine, so discard the new one
+					return true;
+				}
+			}
+		} finally {
+			this.connectLock.unlock();
+		}
+
+		/*
+		 * Connect and handshake without the lock, so several clients can be
+		 * connected to at once, but only one connection to each. The
+		 * duplicate check is repeated afterwards in case the client connected
+		 * to us in the meantime.
+		 */
+		String address = hostAddress(remoteHost);
+		String dialKey = Reconnector.key(address, port);
+		if (!this.dialing.add(dialKey)) {
+			log.fine("Already connecting to " + newClient);
+			// Never connected, but closed so nothing it holds is left open
+			newClient.disconnect();
+			return false;
+		}
+		try {
+			if (!this.breaker.allow(dialKey)) {
+				log.fine("Not connecting to " + newClient
+						+ ", it failed too many times.");
+				newClient.disconnect();
+				return false;
+			}
+			long start = System.nanoTime();
+			try {
+				newClient.connect(this.connectTimeout);
+			} catch (IOException ioe) {
+				log.severe("Unable to connect to " + newClient + ": "
+						+ ioe.getMessage());
+				closeQuietly(newClient.getSocket());
+				this.breaker.failed(dialKey);
+				this.peerCache.failed(address, port);
+				return false;
+			}
+			long rttMicros = (System.nanoTime() - start) / 1000;
+			// Try to handshake, if it succeeds then notify the UI
+			if (!newClient.performHandshake()) {
+				newClient.disconnect();
+				this.breaker.failed(dialKey);
+				this.peerCache.failed(address, port);
+				return false;
+			}
+			this.breaker.succeeded(dialKey);
+
+			this.connectLock.lock();
+			try {
+				Client oldClient = this.findDuplicate(newClient);
+				if (oldClient != null && this.testClient(oldClient)) {
+					if (!this.replaces(newClient, oldClient)) {
+						newClient.disconnect();
+						return true;
+					}
+					this.removeClient(oldClient,
+							"Replaced by a new connection.", false);
+				}
+				this.registerClient(newClient);
+				this.clients.add(newClient);
+			} finally {
+				this.connectLock.unlock();
+			}
+			this.peerCache.connected(address, port, newClient.getUsername(),
+					rttMicros);
+			this.savePeerCacheSoon();
+			return true;
+		} finally {
+			this.dialing.remove(dialKey);
+		}
+	}
+
+	/**
+	 * Decides which of two open connections to the same client to keep. When
+	 * two clients connect to each other at the same time, both keep the
+	 * connection started by the client whose username sorts first, so they
+	 * agree without having to ask each other. A client that connects to us
+	 * again has given up on its old connection, so the new one is kept.
+	 * 
+	 * @param newClient
+	 *            the connection that just completed its handshake.
+	 * @param oldClient
+	 *            the connection already registered.
+	 * @return true if the new connection should replace the old one.
+	 */
+	protected boolean replaces(final Client newClient, final Client oldClient) {
+		if (newClient.isAccepted() == oldClient.isAccepted()) {
+			return newClient.isAccepted();
+		}
+		boolean localFirst = this.username.compareTo(newClient.getUsername()) < 0;
+		// Keep the new connection if it was started by the first client
+		return newClient.isAccepted() != localFirst;
+	}
+
+	/**
+	 * Returns the IP address of a host, or the host itself if it can't be
+	 * resolved, so that the peer cache has one entry per client.
+	 * 
+	 * @param host
+	 *            the hostname or IP address.
+	 * @return the IP address.
+	 */
+	protected static String hostAddress(final String host) {
+		try {
+			return InetAddress.getByName(host).getHostAddress();
+		} catch (IOException ioe) {
+			return host;
+		}
+	}
+
+	/**
+	 * Returns the IP address a client is connected from.
+	 * 
+	 * @param client
+	 *            the client.
+	 * @return the IP address.
+	 */
+	protected static String addressOf(final Client client) {
+		Socket socket = client.getSocket();
+		if (socket != null && socket.getInetAddress() != null) {
+			return socket.getInetAddress().getHostAddress();
+		}
+		return hostAddress(client.getIpAddress());
+	}
+
+	/**
+	 * Connects in the background to the clients in the peer cache most likely
+	 * to accept a connection, as many at once as the connect stage has
+	 * threads. A restarted client is connected to the clients it knew without
+	 * waiting to be told about them. The number of clients is set with the
+	 * system property {@code edu.rutgers.cs.chat.peers.dial}.
+	 * 
+	 * @return the number of connections queued.
+	 */
+	public int rejoin() {
+		int dialed = 0;
+		for (PeerCache.Peer peer : this.peerCache.ranked(Integer.getInteger(
+				PeerCache.PROPERTY_PREFIX + "dial", PeerCache.DEFAULT_DIAL)
+				.intValue())) {
+			if (this.username.equals(peer.getUsername())
+					|| (peer.getUsername() != null && this.findClient(peer
+							.getUsername()) != null)) {
+				continue;
+			}
+			final PeerCache.Peer toDial = peer;
+			boolean queued = this.connectStage.execute(new Runnable() {
+				@Override
+				public void run() {
+					ChatClient.this.addClient(toDial.getHost(), toDial
+							.getPort(), toDial.getUsername());
+				}
+			});
+			if (queued) {
+				log.fine("Reconnecting to " + peer);
+				++dialed;
+			}
+		}
+		return dialed;
+	}
+
+	/**
+	 * Saves the peer cache every {@link #PEER_CACHE_SAVE_INTERVAL} if it
+	 * changed. The file is written by the history stage.
+	 */
+	protected void schedulePeerCacheSave() {
+		if (!this.keepRunning) {
+			return;
+		}
+		this.savePeerCacheSoon();
+		try {
+			this.runtime.schedule(new Runnable() {
+				@Override
+				public void run() {
+					ChatClient.this.schedulePeerCacheSave();
+				}
+			}, PEER_CACHE_SAVE_INTERVAL);
+		} catch (IOException ioe) {
+			log.warning("Unable to schedule saving the peer cache: "
+					+ ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Queues the peer cache to be saved by the history stage, so that a new
+	 * client is remembered even if this one doesn't stop cleanly.
+	 */
+	protected void savePeerCacheSoon() {
+		this.runtime.historyStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				ChatClient.this.savePeerCache();
+			}
+		});
+	}
+
+	/**
+	 * Saves the peer cache, logging if it fails.
+	 */
+	protected void savePeerCache() {
+		try {
+			this.peerCache.save();
+		} catch (IOException ioe) {
+			log.warning("Unable to save " + this.peerCache + ": "
+					+ ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the event loop the next registered client should stay on.
+	 * 
+	 * @return one of the runtime's loops, or null if clients run on virtual
+	 *         threads or the loops cannot be started.
+	 */
+	protected EventLoop peerLoop() {
+		if (Threads.isVirtual()) {
+			return null;
+		}
+		try {
+			return this.runtime.nextLoop();
+		} catch (IOException ioe) {
+			log.warning("Unable to start event loops, using threads: "
+					+ ioe.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Registers a new client with the local client. Notifies the UI.
+	 * 
+	 * @param client
+	 *            the client to register.
+	 */
+	protected void registerClient(Client client) {
+		log.fine("Registering " + client);
+		client.addMessageListener(this);
+		client.setInboundLimits(this.frameLimits, this.inboundBudget
+				.newAccount(client.toString(), this.peerInboundBytes));
+		client.setRateLimits(this.peerFrameRate, this.peerByteRate);
+		try {
+			// Before anything else is queued, so missed messages go first
+			client.resumeSession();
+		} catch (IOException ioe) {
+			log.warning("Unable to resume session with " + client + ": "
+					+ ioe.getMessage());
+		}
+		client.start(this.peerLoop());
+		// Tell the new client which rooms we're in
+		List<String> rooms;
+		synchronized (this.localRooms) {
+			rooms = this.roomRegistry.getNames(this.localRooms);
+		}
+		try {
+			for (String room : rooms) {
+				client.sendSubscription(new SubscriptionMessage(true, room));
+			}
+		} catch (IOException ioe) {
+			log.warning("Unable to send room subscriptions to " + client + ": "
+					+ ioe.getMessage());
+		}
+		// A direct connection replaces any route through another client
+		RemoteClient route = this.routingTable.removeRoute(client.getUsername());
+		if (route != null) {
+			this.userInterface.clientUnreachable(route);
+		}
+		this.userInterface.clientConnected(client);
+		this.publish(ChatEvent.Kind.CONNECTED, System.currentTimeMillis(),
+				client, null, null);
+		log.finer("Notified user interface" + this.userInterface);
+		// After the subscriptions, so room messages can be sent back
+		this.catchUp(client);
+		this.deliverWaiting(client);
+		this.reconnector.connected(client);
+	}
+
+	/**
+	 * Asks a client for the messages sent before the local client joined,
+	 * unless the local client already caught up or is catching up from
+	 * another client. If no batch arrives for {@link #CATCH_UP_TIMEOUT}, the
+	 * next client is asked instead.
+	 * 
+	 * @param client
+	 *            the client to ask.
+	 */
+	protected void catchUp(final Client client) {
+		if (this.caughtUp || !this.catchUpPeer.compareAndSet(null, client)) {
+			return;
+		}
+		this.catchUpProgress = System.currentTimeMillis();
+		try {
+			client.sendHistoryRequest(new HistoryRequestMessage(
+					this.catchUpSince, this.catchUpLimit));
+			log.fine("Asked " + client + " for messages since "
+					+ this.catchUpSince);
+		} catch (IOException ioe) {
+			this.catchUpPeer.compareAndSet(client, null);
+			log.warning("Unable to ask " + client + " for earlier messages: "
+					+ ioe.getMessage());
+			return;
+		}
+		this.checkCatchUpLater(client);
+	}
+
+	/**
+	 * Checks on catching up from a client after {@link #CATCH_UP_TIMEOUT}.
+	 * 
+	 * @param client
+	 *            the client being caught up from.
+	 */
+	protected void checkCatchUpLater(final Client client) {
+		try {
+			this.runtime.schedule(new Runnable() {
+				@Override
+				public void run() {
+					ChatClient.this.checkCatchUp(client);
+				}
+			}, CATCH_UP_TIMEOUT);
+		} catch (IOException ioe) {
+			log.warning("Unable to schedule catch-up check: "
+					+ ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Asks another client for earlier messages if the client being caught up
+	 * from has gone quiet.
+	 * 
+	 * @param client
+	 *            the client being caught up from.
+	 */
+	protected void checkCatchUp(final Client client) {
+		if (this.caughtUp || this.catchUpPeer.get() != client
+				|| !this.keepRunning) {
+			return;
+		}
+		if (System.currentTimeMillis() - this.catchUpProgress < CATCH_UP_TIMEOUT) {
+			this.checkCatchUpLater(client);
+			return;
+		}
+		log.fine("No earlier messages from " + client
+				+ ", asking another client.");
+		this.catchUpFromAnother(client);
+	}
+
+	/**
+	 * Stops catching up from a client and asks another connected client, if
+	 * there is one.
+	 * 
+	 * @param client
+	 *            the client that stopped sending earlier messages.
+	 */
+	protected void catchUpFromAnother(final Client client) {
+		if (!this.catchUpPeer.compareAndSet(client, null)) {
+			return;
+		}
+		for (Client other : this.clients) {
+			if (other != client) {
+				this.catchUp(other);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Removes a client from the list of connected clients, disconnects it, and
+	 * notifies the UI. Any routes that went through the client are dropped.
+	 * Unless the client said it was leaving, it is connected to again later.
+	 * 
+	 * @param client
+	 *            the client to remove.
+	 * @param reason
+	 *            the reason for the disconnect, passed to the UI.
+	 */
+	protected void removeClient(final Client client, final String reason) {
+		this.removeClient(client, reason, true);
+	}
+
+	/**
+	 * Removes a client from the list of connected clients, disconnects it, and
+	 * notifies the UI. Any routes that went through the client are dropped.
+	 * 
+	 * @param client
+	 *            the client to remove.
+	 * @param reason
+	 *            the reason for the disconnect, passed to the UI.
+	 * @param reconnect
+	 *            true to connect to the client again later if it didn't say
+	 *            it was leaving.
+	 */
+	protected void removeClient(final Client client, final String reason,
+			final boolean reconnect) {
+		boolean wasConnected = this.clients.remove(client);
+		client.removeMessageListener(this);
+		client.disconnect();
+		client.detachSession();
+		this.peerCache.seen(addressOf(client), client.getPort());
+		if (reconnect && wasConnected && this.keepRunning && !client.hasQuit()) {
+			this.reconnector.lost(client);
+		}
+		if (client.hasQuit()) {
+			// It won't be resuming anything
+			this.sessions.remove(client.getUsername());
+		}
+		this.catchUpFromAnother(client);
+		this.userInterface.clientDisconnected(reason, client);
+		this.publish(ChatEvent.Kind.DISCONNECTED, System.currentTimeMillis(),
+				client, null, reason);
+		for (RemoteClient lost : this.routingTable.removeRoutesVia(client)) {
+			log.fine("Lost route to " + lost);
+			this.userInterface.clientUnreachable(lost);
+		}
+	}
+
+	/**
+	 * Returns the directly-connected client with the specified username, or
+	 * null if there is none.
+	 * 
+	 * @param username
+	 *            the username to search for.
+	 * @return the connected client, or null if none has the username.
+	 */
+	protected Client findClient(final String username) {
+		for (Client client : this.clients) {
+			if (username.equals(client.getUsername())) {
+				return client;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Tests a client for liveness by sending a Keep-Alive message. If the send
+	 * fails, then the client is disconnected, removed from the list of clients,
+	 * and the UI is notified. Since sends are queued, this only detects a
+	 * connection that has already failed; a write error on the queued
+	 * Keep-Alive is reported later as a disconnect.
+	 * 
+	 * @param client
+	 *            the client to test
+	 * @return true if the test succeeds, else false
+	 */
+	protected boolean testClient(Client client) {
+		try {
+			client.sendKeepAliveMessage();
+			return true;
+		} catch (IOException ioe) {
+			this.removeClient(client, ioe.getMessage());
+		}
+		return false;
+	}
+
+	/**
+	 * Creates a new client from the supplied arguments. If an IOException is
+	 * thrown, then null is returned.
+	 * 
+	 * @param remoteHost
+	 *            the hostname/IP address of the client.
+	 * @param port
+	 *            the listen port of the client.
+	 * @param username
+	 *            the username expected from the client
+	 * @return the newly-created Client, or null if an exception was thrown.
+	 */
+	protected Client makeClient(String remoteHost, int port, String username) {
+		Client newClient = new Client(remoteHost, port, username,
+				this.username, this.listenPort);
+		newClient.setSessions(this.sessions);
+		newClient.setHandshakeLimits(this.frameLimits);
+		return newClient;
+	}
+
+	/**
+	 * Called when a remote client connects to the local client on the listen
+	 * socket. Will check for duplicates (just in case the remote peer made a
+	 * mistake), test it with a keep-alive, and close the new connection if the
+	 * old one is still viable. If the new client is not matched or the old
+	 * connection is closed, then it will register the new client.
+	 * 
+	 * @param socket
+	 *            the socket of the newly-connected client
+	 */
+	protected void addClient(final Socket socket) {
+		Client newClient = new Client(socket, this.username, this.listenPort);
+		newClient.setSessions(this.sessions);
+		newClient.setHandshakeLimits(this.frameLimits);
+		try {
+			/*
+			 * Need to handshake first since we need to get the remote port info
+			 * before checking for duplicates. Done before taking the lock, since
+			 * a client connecting to us may be holding its own lock while it
+			 * waits for our reply.
+			 */
+			if (!newClient.performHandshake()) {
+				newClient.disconnect();
+				return;
+			}
+
+			this.connectLock.lock();
+			try {
+				// Try to find an old version of this client (same IP/port)
+				Client oldClient = findDuplicate(newClient);
+
+				// If we already have this client in our list, then check to make
+				// sure it's still live
+				if (oldClient != null && this.testClient(oldClient)) {
+					if (!this.replaces(newClient, oldClient)) {
+						// Closed so the remote client stops using it too
+						newClient.disconnect();
+						return;
+					}
+					this.removeClient(oldClient,
+							"Replaced by a new connection.", false);
+				}
+
+				// Register the new client
+				this.registerClient(newClient);
+
+				// Notify other clients of the new client
+				this.notifyClients(newClient);
+
+				// Add the client to the list of known clients
+				this.clients.add(newClient);
+			} finally {
+				this.connectLock.unlock();
+			}
+			this.peerCache.connected(addressOf(newClient), newClient.getPort(),
+					newClient.getUsername(), -1);
+			this.savePeerCacheSoon();
+		} catch (RuntimeException re) {
+			// Never leave a connection open that nothing is reading
+			closeQuietly(socket);
+			throw re;
+		} catch (Error err) {
+			closeQuietly(socket);
+			throw err;
+		}
+	}
+
+	/**
+	 * Sends client exchange messages to currently-connected clients.
+	 * 
+	 * @param newClient
+	 *            the newly-added client.
+	 */
+	protected void notifyClients(Client newClient) {
+		// Go through each remote client and send a ClientMessage.
+		for (Iterator<Client> clientIter = this.clients.iterator(); clientIter
+				.hasNext();) {
+			Client client = clientIter.next();
+			try {
+				// Exchange the client information
+				client.sendClient(newClient);
+			} catch (IOException e) {
+				// Disconnect the client and notify the UI
+				this.removeClient(client, e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Checks to see if client is a duplicate of an already-connected client. If
+	 * it is, returns the client that matches, else returns null.
+	 * 
+	 * @param client
+	 *            the client to search for.
+	 * @return the currently-connected duplicate client, or null if no match is
+	 *         found.
+	 */
+	protected Client findDuplicate(Client client) {
+		for (Client otherClient : this.clients) {
+			if (client.equals(otherClient)) {
+				return otherClient;
+			}
+
+		}
+		return null;
+	}
+
+	/**
+	 * Prints out the basic usage string to System error.
+	 */
+	protected static final void printUsage() {
+		StringBuffer usageString = new StringBuffer();
+		usageString
+				.append("Usage: <Listen Port> <Username> [<Remote IP> <Remote Port>] [--gui] [--virtual]");
+		System.err.println(usageString.toString());
+	}
+
+	/**
+	 * Passes the received chat message to the user interface and the event
+	 * subscribers.
+	 */
+	@Override
+	public void chatMessageArrived(final Client client,
+			final ChatMessage message) {
+		if (!this.seenMessages.markSeen(message.getMessageId())) {
+			log.finest("Dropping duplicate " + message);
+			return;
+		}
+		final Client sender = this.senderOf(client, message.getUsername());
+		this.remember(HistoryRecord.Kind.CHAT, false, message.getTimestamp(),
+				message.getMessageId(), message.getUsername(), null, message
+						.getMessage());
+		this.publish(ChatEvent.Kind.BROADCAST, message.getTimestamp(), sender,
+				null, message.getMessage());
+		this.renderStage.execute(new Runnable() {
+			@Override
+			public void run() {
+
+				ChatClient.this.userInterface.broadcastMessageReceived(
+						message.getTimestamp(), message.getMessage(), sender);
+			}
+		});
+
+	}
+
+	/**
+	 * Passes the received private chat message to the user interface and the
+	 * event subscribers.
+	 */
+	@Override
+	public void privateChatMessageArrived(final Client client,
+			final PrivateChatMessage message) {
+		if (!this.seenMessages.markSeen(message.getMessageId())) {
+			log.finest("Dropping duplicate " + message);
+			return;
+		}
+		this.remember(HistoryRecord.Kind.PRIVATE, false, message
+				.getTimestamp(), message.getMessageId(), message.getUsername(),
+				null, message.getMessage());
+		this.publish(ChatEvent.Kind.PRIVATE, message.getTimestamp(), client,
+				null, message.getMessage());
+		this.renderStage.execute(new Runnable() {
+			@Override
+			public void run() {
+
+				ChatClient.this.userInterface.privateMessageReceived(
+						message.getTimestamp(), message.getMessage(), client);
+			}
+		});
+	}
+
+	/**
+	 * Passes the received room message to the user interface and the event
+	 * subscribers if the local user has joined the room.
+	 */
+	@Override
+	public void roomMessageArrived(final Client client,
+			final RoomChatMessage message) {
+		if (!this.seenMessages.markSeen(message.getMessageId())) {
+			log.finest("Dropping duplicate " + message);
+			return;
+		}
+		int roomId = this.roomRegistry.lookup(message.getRoom());
+		synchronized (this.localRooms) {
+			if (roomId < 0 || !this.localRooms.get(roomId)) {
+				log.finest("Not subscribed to " + message);
+				return;
+			}
+		}
+		final Client sender = this.senderOf(client, message.getUsername());
+		this.remember(HistoryRecord.Kind.ROOM, false, message.getTimestamp(),
+				message.getMessageId(), message.getUsername(), message
+						.getRoom(), message.getMessage());
+		this.publish(ChatEvent.Kind.ROOM, message.getTimestamp(), sender,
+				message.getRoom(), message.getMessage());
+		this.renderStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				ChatClient.this.userInterface.roomMessageReceived(
+						message.getTimestamp(), message.getRoom(),
+						message.getMessage(), sender);
+			}
+		});
+	}
+
+	/**
+	 * Records that the remote client joined or left a room. A join is
+	 * dropped if the client is already subscribed to as many rooms as it may
+	 * be, or if no more rooms can be interned.
+	 */
+	@Override
+	public void subscriptionMessageArrived(final Client client,
+			final SubscriptionMessage message) {
+		log.finer(client + " " + message);
+		if (!message.isJoined()) {
+			int roomId = this.roomRegistry.lookup(message.getRoom());
+			if (roomId >= 0) {
+				client.setSubscribed(roomId, false);
+			}
+			return;
+		}
+		int roomId = this.roomRegistry.lookup(message.getRoom());
+		if (roomId >= 0 && client.isSubscribed(roomId)) {
+			return;
+		}
+		if (client.getSubscriptionCount() >= this.peerMaxRooms) {
+			log.warning(client + " is subscribed to too many rooms, dropping "
+					+ message);
+			return;
+		}
+		if (roomId < 0) {
+			roomId = this.roomRegistry.intern(message.getRoom());
+		}
+		if (roomId < 0) {
+			log.warning("Too many rooms, dropping " + message + " from "
+					+ client);
+			return;
+		}
+		client.setSubscribed(roomId, true);
+	}
+
+	/**
+	 * Delivers a routed private message to the user interface if it is
+	 * addressed to the local client, otherwise forwards it toward its
+	 * destination. Forwarded messages are never shown to the local user.
+	 */
+	@Override
+	public void routedPrivateMessageArrived(final Client client,
+			final RoutedPrivateMessage message) {
+		// Also prevents forwarding loops
+		if (!this.seenMessages.markSeen(message.getMessageId())) {
+			log.finest("Dropping duplicate " + message);
+			return;
+		}
+
+		// The previous hop can reach the source, so replies can be routed back
+		final Client sender = this.senderOf(client,
+				message.getSourceUsername());
+
+		if (this.username.equals(message.getDestinationUsername())) {
+			this.remember(HistoryRecord.Kind.PRIVATE, false, message
+					.getTimestamp(), message.getMessageId(), message
+					.getSourceUsername(), null, message.getMessage());
+			this.publish(ChatEvent.Kind.PRIVATE, message.getTimestamp(),
+					sender, null, message.getMessage());
+			this.renderStage.execute(new Runnable() {
+				@Override
+				public void run() {
+					ChatClient.this.userInterface.privateMessageReceived(
+							message.getTimestamp(), message.getMessage(), sender);
+				}
+			});
+			return;
+		}
+
+		if (message.getTtl() <= 1) {
+			log.fine("TTL expired for " + message);
+			return;
+		}
+		this.dispatchStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				Client nextHop = ChatClient.this.nextHopFor(message
+						.getDestinationUsername());
+				if (nextHop == null || nextHop == client) {
+					log.fine("No route for " + message);
+					return;
+				}
+				try {
+					nextHop.sendRoutedPrivateMessage(message.nextHop());
+				} catch (IOException e) {
+					ChatClient.this.removeClient(nextHop,
+							"Failed to forward private chat message/"
+									+ e.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns the client that created a message delivered by another client.
+	 * Messages forwarded by a relay or routed through other clients arrive
+	 * from a client other than their creator. If the creator is neither
+	 * directly connected nor known through a route, a route through the
+	 * delivering client is learned.
+	 * 
+	 * @param via
+	 *            the client that delivered the message.
 	 * @param username
-	 *            the username expected from the client
-	 * @return the newly-created Client, or null if an exception was thrown.
+	 *            the username of the client that created the message.
+	 * @return the client that created the message.
 	 */
-	protected Client makeClient(String remoteHost, int port, String username) {
-		Client newClient = new Client(remoteHost, port, username,
+	protected Client senderOf(final Client via, final String username) {
+		if (username.equals(via.getUsername())) {
+			return via;
+		}
+		Client direct = this.findClient(username);
+		if (direct != null) {
+			return direct;
+		}
+		RemoteClient remote = this.routingTable.getRoute(username);
+		if (remote != null) {
+			return remote;
+		}
+		remote = new RemoteClient(via.getIpAddress(), -1, username, via,
 				this.username, this.listenPort);
-		return newClient;
+		if (this.routingTable.addRoute(remote)) {
+			this.userInterface.clientReachable(remote);
+			return remote;
+		}
+		return this.routingTable.getRoute(username);
 	}
 
 	/**
-	 * Called when a remote client connects to the local client on the listen
-	 * socket. Will check for duplicates (just in case the remote peer made a
-	 * mistake), test it with a keep-alive, and close the new connection if the
-	 * old one is still viable. If the new client is not matched or the old
-	 * connection is closed, then it will register the new client.
+	 * Returns the directly-connected client that should receive messages for
+	 * the username, or null if the username cannot be reached.
 	 * 
-	 * @param socket
-	 *            the socket of the newly-connected client
+	 * @param username
+	 *            the destination username.
+	 * @return the next hop for the username, or null if there is no route.
 	 */
-	protected synchronized void addClient(final Socket socket) {
-		Client newClient = new Client(socket, this.username, this.listenPort);
+	protected Client nextHopFor(final String username) {
+		Client direct = this.findClient(username);
+		if (direct != null) {
+			return direct;
+		}
+		RemoteClient remote = this.routingTable.getRoute(username);
+		return remote == null ? null : remote.getNextHop();
+	}
 
-		// Need to handshake first since we need to get the remote port info
-		// before checking for duplicates
-		if (!newClient.performHandshake()) {
-			newClient.disconnect();
+	/**
+	 * Sends a private message to a client that is not directly connected by
+	 * routing it through the client's next hop.
+	 * 
+	 * @param client
+	 *            the remote client.
+	 * @param message
+	 *            the message to send.
+	 */
+	protected void routePrivateMessage(final RemoteClient client,
+			final String message) {
+		this.sendStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				Client nextHop = ChatClient.this.nextHopFor(client
+						.getUsername());
+				if (nextHop == null) {
+					try {
+						PrivateChatMessage kept = new PrivateChatMessage(
+								System.currentTimeMillis(),
+								ChatClient.this.username, message);
+						ChatClient.this.remember(HistoryRecord.Kind.PRIVATE,
+								true, kept.getTimestamp(), kept.getMessageId(),
+								client.getUsername(), null, message);
+						ChatClient.this.keepUnsent(client, kept);
+					} catch (UnsupportedEncodingException uee) {
+						ChatClient.this.userInterface.messageNotSent(message,
+								"No route to user.", client);
+					}
+					return;
+				}
+				try {
+					RoutedPrivateMessage routed = new RoutedPrivateMessage(
+							System.currentTimeMillis(), MessageIds.next(),
+							RoutedPrivateMessage.DEFAULT_TTL,
+							ChatClient.this.username, client.getUsername(),
+							message);
+					ChatClient.this.seenMessages.markSeen(routed
+							.getMessageId());
+					nextHop.sendRoutedPrivateMessage(routed);
+					ChatClient.this.remember(HistoryRecord.Kind.PRIVATE, true,
+							routed.getTimestamp(), routed.getMessageId(), client
+									.getUsername(), null, message);
+				} catch (IOException e) {
+					ChatClient.this.removeClient(nextHop,
+							"Failed to send private chat message/"
+									+ e.getMessage());
+					ChatClient.this.userInterface.messageNotSent(message,
+							e.getMessage(), client);
+					return;
+				}
+				ChatClient.this.userInterface.privateMessageSent(
+						System.currentTimeMillis(), message, client);
+			}
+		});
+	}
+
+	/**
+	 * Adds the exchange chat client if it is not already connected to the local
+	 * client. If a direct connection cannot be made, the client is remembered
+	 * as reachable through the client that sent the exchange message.
+	 */
+	@Override
+	public void clientMessageArrived(final Client client,
+			final ClientExchangeMessage message) {
+		this.connectStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				ChatClient.this.addClient(message.getIpAddress(),
+						message.getPort(), message.getUsername());
+				if (ChatClient.this.username.equals(message.getUsername())
+						|| ChatClient.this.findClient(message.getUsername()) != null) {
+					return;
+				}
+				RemoteClient remote = new RemoteClient(message.getIpAddress(),
+						message.getPort(), message.getUsername(), client,
+						ChatClient.this.username, ChatClient.this.listenPort);
+				if (ChatClient.this.routingTable.addRoute(remote)) {
+					ChatClient.this.userInterface.clientReachable(remote);
+				}
+			}
+		});
+
+	}
+
+	/**
+	 * Passes the file offer to the user interface, which may accept it.
+	 */
+	@Override
+	public void fileOfferArrived(final Client client,
+			final FileOfferMessage message) {
+		this.renderStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				ChatClient.this.userInterface.fileOffered(message
+						.getTransferId(), message.getName(), message.getSize(),
+						client);
+			}
+		});
+	}
+
+	/**
+	 * Tells the user interface that a file was sent or received.
+	 */
+	@Override
+	public void fileTransferFinished(final Client client,
+			final FileTransfer transfer) {
+		this.renderStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				ChatClient.this.userInterface.fileTransferred(transfer
+						.getFile().getPath(), transfer.isIncoming(), client);
+			}
+		});
+	}
+
+	/**
+	 * Starts sending the messages stored since the requested time, or
+	 * replies that there are none if the history is disabled.
+	 */
+	@Override
+	public void historyRequestArrived(final Client client,
+			final HistoryRequestMessage message) {
+		int limit = Math.min(message.getLimit(), MAX_CATCH_UP_LIMIT);
+		if (this.history == null || limit <= 0) {
+			HistoryBatchMessage none = new HistoryBatchMessage(true,
+					new byte[0]);
+			this.sendTo(client, Collections.singletonList(none), Collections
+					.singletonList(new SendResult(none, 1)));
+			return;
+		}
+		log.fine(client + " asked for messages since " + message.getSince());
+		new HistoryStream(this, client, message.getSince(), limit).schedule();
+	}
+
+	/**
+	 * Shows and keeps earlier messages sent by another client, skipping any
+	 * already seen.
+	 */
+	@Override
+	public void historyBatchArrived(final Client client,
+			final HistoryBatchMessage message) {
+		for (final HistoryRecord record : message.getRecords()) {
+			if (record.getKind() == HistoryRecord.Kind.PRIVATE
+					|| this.username.equals(record.getPeer())
+					|| !this.seenMessages.markSeen(record.getMessageId())) {
+				continue;
+			}
+			this.remember(record.getKind(), false, record.getSentAt(), record
+					.getMessageId(), record.getPeer(), record.getRoom(), record
+					.getText());
+			this.renderStage.execute(new Runnable() {
+				@Override
+				public void run() {
+					ChatClient.this.userInterface.historyMessageReceived(record
+							.getSentAt(), record.getRoom(), record.getPeer(),
+							record.getText());
+				}
+			});
+		}
+		if (this.catchUpPeer.get() == client) {
+			this.catchUpProgress = System.currentTimeMillis();
+			if (message.isLast()) {
+				this.caughtUp = true;
+				log.fine("Caught up from " + client);
+			}
+		}
+	}
+
+	/**
+	 * Deregisters the client from the local client, disconnects it, and
+	 * notifies the user interface.
+	 */
+	@Override
+	public void disconnectMessageArrived(final Client client) {
+		try {
+		this.dispatchStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				ChatClient.this.removeClient(client,
+						client.hasQuit() ? "User quit." : "Connection lost.");
+			}
+		});
+		}catch(Exception e){
+			log.fine("Couldn't handle disconnect: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Listens for incoming connections until the client is shut down. The
+	 * connections are accepted by the runtime's event loop and handled by
+	 * the accept stage; this thread only waits, so that a client started as
+	 * a thread behaves as it always has.
+	 */
+	@Override
+	public void run() {
+		try {
+			this.listen();
+		} catch (IOException e) {
+			// An exception here is likely to be a bind failure.
+			System.err.println(e.getMessage());
+			e.printStackTrace();
+			System.exit(1);
+		}
+
+		try {
+			this.stopped.await();
+		} catch (InterruptedException ie) {
+			this.shutdown();
+		}
+	}
+
+	/**
+	 * Binds the listen port and starts accepting connections on the runtime's
+	 * event loop.
+	 * 
+	 * @throws IOException
+	 *             if the port cannot be bound.
+	 */
+	public void listen() throws IOException {
+		// Backed by a channel so accepted sockets can send files with it
+		this.listenChannel = ServerSocketChannel.open();
+		ServerSocket listenSocket = this.listenChannel.socket();
+		listenSocket.setReuseAddress(true);
+		listenSocket.bind(new InetSocketAddress(this.listenPort));
+		this.runtime.listen(this, this.listenChannel);
+		log.config("Listening on port " + this.listenPort);
+		this.scheduleHistoryExpiry();
+		this.schedulePeerCacheSave();
+		this.rejoin();
+	}
+
+	/**
+	 * Hands a newly-accepted connection to the accept stage, freeing the
+	 * runtime's loop to accept more. The connection is closed if too many are
+	 * already waiting.
+	 * 
+	 * @param clientSocket
+	 *            the accepted connection, in blocking mode.
+	 */
+	protected void accepted(final Socket clientSocket) {
+		if (!this.keepRunning) {
+			closeQuietly(clientSocket);
 			return;
 		}
+		boolean queued = this.acceptStage.execute(new Runnable() {
+
+			@Override
+			public void run() {
+				addClient(clientSocket);
+			}
+		});
+		if (!queued) {
+			log.warning("Too many connections waiting, closing "
+					+ clientSocket.getRemoteSocketAddress());
+			closeQuietly(clientSocket);
+		}
+	}
 
-		// Try to find an old version of this client (same IP/port)
-		Client oldClient = findDuplicate(newClient);
+	/**
+	 * Closes a socket, ignoring errors.
+	 * 
+	 * @param socket
+	 *            the socket to close.
+	 */
+	protected static void closeQuietly(final Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException ioe) {
+			// Ignored, nothing else can be done with it
+		}
+	}
 
-		// If we already have this client in our list, then check to make sure
-		// it's still live
-		if (oldClient != null) {
-			if (this.testClient(oldClient)) {
-				// Old client is fine, so discard the new one
+	/**
+	 * Stops accepting connections, disconnects every client and, if the
+	 * runtime belongs to this client alone, stops the runtime. Does nothing if
+	 * the client was already shut down.
+	 */
+	public void shutdown() {
+		synchronized (this.stopped) {
+			if (!this.keepRunning) {
 				return;
 			}
+			this.keepRunning = false;
+		}
+		if (this.listenChannel != null) {
+			try {
+				this.listenChannel.close();
+			} catch (IOException ioe) {
+				// Ignored, we're shutting down
+			}
 		}
-
-		// Register the new client
-		this.registerClient(newClient);
-
-		// Notify other clients of the new client
-		this.notifyClients(newClient);
-
-		// Add the client to the list of known clients
-		this.clients.add(newClient);
+		this.doShutdown();
+		this.stopped.countDown();
 	}
 
 	/**
-	 * Sends client exchange messages to currently-connected clients.
-	 * 
-	 * @param newClient
-	 *            the newly-added client.
+	 * Disconnects all currently-connected clients, and shuts down the runtime
+	 * if no other client uses it.
 	 */
-	protected void notifyClients(Client newClient) {
-		// Go through each remote client and send a ClientMessage.
-		for (Iterator<Client> clientIter = this.clients.iterator(); clientIter
-				.hasNext();) {
-			Client client = clientIter.next();
+	protected void doShutdown() {
+		// Close down connections to all clients.
+		for (Client client : this.clients) {
 			try {
-				// Exchange the client information
-				client.sendClient(newClient);
-			} catch (IOException e) {
-				// Remove the client from the list of clients
-				clientIter.remove();
-				// Stop listening to messages from the client
-				client.removeMessageListener(this);
-				// Disconnect the client
-				client.disconnect();
-				// Notify the UI of the disconnect
-				this.userInterface.clientDisconnected(e.getMessage(), client);
+				client.sendDisconnectMessage();
+			} catch (IOException ioe) {
+				// Ignored for now, who cares if we're shutting down. :)
 			}
+			client.disconnect();
+			this.peerCache.seen(addressOf(client), client.getPort());
+		}
+		this.savePeerCache();
+		this.events.close();
+		if (this.history != null) {
+			// Queued behind the records still waiting to be written
+			this.history.close();
+		}
+		this.runtime.detach();
+		if (this.ownsRuntime) {
+			// Stop the stages once their queued work is done
+			this.runtime.shutdown();
 		}
 	}
 
 	/**
-	 * Checks to see if client is a duplicate of an already-connected client. If
-	 * it is, returns the client that matches, else returns null.
-	 * 
-	 * @param client
-	 *            the client to search for.
-	 * @return the currently-connected duplicate client, or null if no match is
-	 *         found.
+	 * Keeps a private message for a user who is not connected, sending it
+	 * right away if the user connected in the meantime.
 	 */
-	protected Client findDuplicate(Client client) {
-		for (Client otherClient : this.clients) {
-			if (client.equals(otherClient)) {
-				return otherClient;
-			}
+	@Override
+	public boolean offlineChatMessage(final String username,
+			final String message) {
+		Client client = this.findClient(username);
+		if (client != null) {
+			this.privateChatMessage(client, message);
+			return true;
+		}
+		long sentAt = System.currentTimeMillis();
+		long messageId = MessageIds.next();
+		this.remember(HistoryRecord.Kind.PRIVATE, true, sentAt, messageId,
+				username, null, message);
+		return this.keepForLater(username, sentAt, messageId, message, null);
+	}
 
+	/**
+	 * Searches the history for a query typed by the user. "from:" followed by
+	 * the local username finds the messages this client sent.
+	 */
+	@Override
+	public List<HistoryRecord> searchHistory(final String query) {
+		SearchQuery parsed = SearchQuery.parse(query);
+		if (this.username.equalsIgnoreCase(parsed.getSender())) {
+			parsed = new SearchQuery(parsed.getWords(), parsed.getPrefixes(),
+					SearchQuery.LOCAL_USER, parsed.getSince(),
+					parsed.getUntil(), parsed.getLimit());
 		}
-		return null;
+		return this.search(parsed);
 	}
 
 	/**
-	 * Prints out the basic usage string to System error.
+	 * Returns the newest messages in the history that match a query.
+	 * 
+	 * @param query
+	 *            the query.
+	 * @return the matching messages, newest first, or an empty list if the
+	 *         history is turned off.
 	 */
-	protected static final void printUsage() {
-		StringBuffer usageString = new StringBuffer();
-		usageString
-				.append("Usage: <Listen Port> <Username> [<Remote IP> <Remote Port>]");
-		System.err.println(usageString.toString());
+	public List<HistoryRecord> search(final SearchQuery query) {
+		if (this.history == null) {
+			return new ArrayList<HistoryRecord>();
+		}
+		return this.history.search(query);
 	}
 
 	/**
-	 * Passes the received chat message to the user interface.
+	 * Returns the counters of each stage, one stage per line, followed by the
+	 * subscribers of the event stream, the size of the history, the
+	 * messages waiting in the outbox, reconnection and the sessions.
 	 */
 	@Override
-	public void chatMessageArrived(final Client client,
-			final ChatMessage message) {
-		this.workers.execute(new Runnable() {
-			@Override
-			public void run() {
+	public String getStatistics() {
+		return this.runtime.report() + "\nevents: " + this.events.report()
+				+ "\nhistory: "
+				+ (this.history == null ? "disabled" : this.history.report())
+				+ "\noutbox: " + this.outbox.report() + "\nreconnect: "
+				+ this.reconnector.report() + " breakers: "
+				+ this.breaker.report() + "\nsessions: "
+				+ this.sessions.report();
+	}
 
-				ChatClient.this.userInterface.broadcastMessageReceived(
-						message.getTimestamp(), message.getMessage(), client);
-			}
-		});
+	/**
+	 * Returns the stream of received messages and membership changes. Each
+	 * subscriber gets every event from the time it subscribes, as fast as it
+	 * requests them. Received messages wait for subscribers that have not
+	 * requested more, which holds back reads from the peers that sent them;
+	 * membership changes never wait.
+	 * 
+	 * @return the event publisher.
+	 */
+	public Publisher<ChatEvent> getEvents() {
+		return this.events;
+	}
 
+	/**
+	 * Publishes an event if anyone is subscribed. Only received messages wait
+	 * for slow subscribers.
+	 * 
+	 * @param kind
+	 *            what happened.
+	 * @param timestamp
+	 *            when it happened.
+	 * @param client
+	 *            the client involved.
+	 * @param room
+	 *            the room of a room message, or null.
+	 * @param text
+	 *            the message text or disconnect reason, or null.
+	 */
+	protected void publish(final ChatEvent.Kind kind, final long timestamp,
+			final Client client, final String room, final String text) {
+		if (!this.events.hasSubscribers()) {
+			return;
+		}
+		boolean message = kind != ChatEvent.Kind.CONNECTED
+				&& kind != ChatEvent.Kind.DISCONNECTED;
+		this.events.publish(new ChatEvent(kind, timestamp, client, room, text),
+				message);
 	}
 
 	/**
-	 * Passes the received private chat message to the user interface.
+	 * Connects to another client in the background. Programs embedding the
+	 * client use this to join a network; the new client is reported to the
+	 * user interface once the handshake succeeds.
+	 * 
+	 * @param remoteHost
+	 *            the hostname or IP address of the client.
+	 * @param port
+	 *            the client's listen port.
+	 * @return true if the connection attempt was queued, false if too many
+	 *         connections are already waiting.
 	 */
-	@Override
-	public void privateChatMessageArrived(final Client client,
-			final PrivateChatMessage message) {
-		this.workers.execute(new Runnable() {
+	public boolean connect(final String remoteHost, final int port) {
+		return this.connectStage.execute(new Runnable() {
 			@Override
 			public void run() {
-
-				ChatClient.this.userInterface.privateMessageReceived(
-						message.getTimestamp(), message.getMessage(), client);
+				// The username is learned from the handshake
+				ChatClient.this.addClient(remoteHost, port, null);
 			}
 		});
 	}
 
 	/**
-	 * Adds the exchange chat client if it is not already connected to the local
-	 * client.
+	 * Returns the directly-connected clients. The collection is safe to
+	 * iterate while clients come and go.
+	 * 
+	 * @return a read-only view of the connected clients.
 	 */
-	@Override
-	public void clientMessageArrived(final Client client,
-			final ClientExchangeMessage message) {
-		this.workers.execute(new Runnable() {
-			@Override
-			public void run() {
-				ChatClient.this.addClient(message.getIpAddress(),
-						message.getPort(), message.getUsername());
-			}
-		});
+	public Collection<Client> getClients() {
+		return Collections.unmodifiableCollection(this.clients);
+	}
 
+	/**
+	 * Sends a chat message to every connected client without waiting. The
+	 * message is queued on each connection by the calling thread, and the
+	 * returned result completes once it has been flushed to every client or
+	 * their connections have failed. Unlike messages typed by the user, the
+	 * user interface is not told about the message.
+	 * 
+	 * @param text
+	 *            the message to send.
+	 * @return the result of the send.
+	 * @throws UnsupportedEncodingException
+	 *             if the message cannot be encoded.
+	 */
+	public SendResult send(final String text)
+			throws UnsupportedEncodingException {
+		return this.sendAll(Collections.singletonList(text)).get(0);
 	}
 
 	/**
-	 * Deregisters the client from the local client, disconnects it, and
-	 * notifies the user interface.
+	 * Sends a batch of chat messages to every connected client without
+	 * waiting. Each connection is locked once for the whole batch rather than
+	 * once per message, so a program can submit thousands of messages per
+	 * second from a single thread. The messages are written to each client in
+	 * order.
+	 * 
+	 * @param texts
+	 *            the messages to send.
+	 * @return one result per message, in the same order.
+	 * @throws UnsupportedEncodingException
+	 *             if a message cannot be encoded; nothing is sent in that
+	 *             case.
 	 */
-	@Override
-	public void disconnectMessageArrived(final Client client) {
-		try {
-		this.workers.execute(new Runnable() {
-			@Override
-			public void run() {
-				client.removeMessageListener(ChatClient.this);
-				client.disconnect();
-				ChatClient.this.clients.remove(client);
-				ChatClient.this.userInterface.clientDisconnected("User quit.",
-						client);
-			}
-		});
-		}catch(Exception e){
-			log.fine("Couldn't handle disconnect: " + e.getMessage());
+	public List<SendResult> sendAll(final List<String> texts)
+			throws UnsupportedEncodingException {
+		List<ChatMessage> messages = new ArrayList<ChatMessage>(texts.size());
+		for (String text : texts) {
+			messages.add(new ChatMessage(System.currentTimeMillis(),
+					this.username, text));
+		}
+		List<Client> targets = new ArrayList<Client>(this.clients);
+		List<SendResult> results = new ArrayList<SendResult>(messages.size());
+		for (ChatMessage message : messages) {
+			this.seenMessages.markSeen(message.getMessageId());
+			this.remember(HistoryRecord.Kind.CHAT, true, message
+					.getTimestamp(), message.getMessageId(), null, null,
+					message.getMessage());
+			results.add(new SendResult(message, targets.size()));
+		}
+		for (Client client : targets) {
+			this.sendTo(client, messages, results);
+		}
+		for (ChatMessage message : messages) {
+			this.sessions.keep(message);
 		}
+		return results;
 	}
 
 	/**
-	 * Listens for incoming connections, checking every 250ms for a user request
-	 * to exit the chat client. Incoming connections are handled by worker
-	 * threads.
+	 * Sends a room message to every connected client subscribed to the room
+	 * without waiting. The local user does not need to be in the room.
+	 * 
+	 * @param room
+	 *            the name of the room.
+	 * @param text
+	 *            the message to send.
+	 * @return the result of the send.
+	 * @throws UnsupportedEncodingException
+	 *             if the message cannot be encoded.
 	 */
-	@Override
-	public void run() {
-		try {
-			// Bind to the local listen port
-			this.listenSocket = new ServerSocket(this.listenPort);
-			this.listenSocket.setReuseAddress(true);
-			// Wait for 250ms at a time
-			this.listenSocket.setSoTimeout(250);
-		} catch (IOException e) {
-			// An exception here is likely to be a bind failure.
-			System.err.println(e.getMessage());
-			e.printStackTrace();
-			System.exit(1);
+	public SendResult sendToRoom(final String room, final String text)
+			throws UnsupportedEncodingException {
+		RoomChatMessage message = new RoomChatMessage(
+				System.currentTimeMillis(), MessageIds.next(), room,
+				this.username, text);
+		this.seenMessages.markSeen(message.getMessageId());
+		this.remember(HistoryRecord.Kind.ROOM, true, message.getTimestamp(),
+				message.getMessageId(), null, room, text);
+		int roomId = this.roomRegistry.lookup(room);
+		List<Client> targets = new ArrayList<Client>();
+		for (Client client : this.clients) {
+			if (roomId >= 0 && client.isSubscribed(roomId)) {
+				targets.add(client);
+			}
 		}
+		SendResult result = new SendResult(message, targets.size());
+		for (Client client : targets) {
+			this.sendTo(client, Collections.singletonList(message), Collections
+					.singletonList(result));
+		}
+		return result;
+	}
 
-		log.config("Listening on port " + this.listenPort);
-
-		while (this.keepRunning) {
-			try {
-				// This will block for 250ms to allow checking for user exit
-				// conditions.
-				final Socket clientSocket = this.listenSocket.accept();
-				/*
-				 * Pass the actual work of adding the client to another thread,
-				 * freeing this thread to accept new clients.
-				 */
-				this.workers.execute(new Runnable() {
-
-					@Override
-					public void run() {
-						addClient(clientSocket);
+	/**
+	 * Sends a private message to a user without waiting. Users that are not
+	 * directly connected are sent the message through their next hop, and
+	 * the result completes once the next hop has been written the message.
+	 * If there is no route to the user, the message is kept in the outbox
+	 * and the result completes once the user connects and is sent it. A
+	 * message that a connected user could not be sent is also kept, but its
+	 * result fails.
+	 * 
+	 * @param username
+	 *            the user to send the message to.
+	 * @param text
+	 *            the message to send.
+	 * @return the result of the send, which fails if there is no route to
+	 *         the user and too many messages are already waiting for them.
+	 * @throws UnsupportedEncodingException
+	 *             if the message cannot be encoded.
+	 */
+	public SendResult sendPrivate(final String username, final String text)
+			throws UnsupportedEncodingException {
+		final Client client = this.findClient(username);
+		if (client != null) {
+			final PrivateChatMessage direct = new PrivateChatMessage(System
+					.currentTimeMillis(), this.username, text);
+			this.remember(HistoryRecord.Kind.PRIVATE, true, direct
+					.getTimestamp(), direct.getMessageId(), username, null,
+					text);
+			SendResult result = new SendResult(direct, 1);
+			if (this.outbox.hasWaiting(username)) {
+				// Behind the messages already waiting, to keep the order
+				if (!this.keepForLater(username, direct.getTimestamp(), direct
+						.getMessageId(), text, result)) {
+					result.failed(client, new IOException(
+							"Too many messages waiting for " + username + "."));
+				}
+				this.deliverWaiting(client);
+				return result;
+			}
+			result.addListener(new SendListener() {
+				@Override
+				public void sendCompleted(final SendResult result) {
+					if (!result.isSuccess()) {
+						ChatClient.this.keepForLater(username, direct
+								.getTimestamp(), direct.getMessageId(), text,
+								null);
 					}
-				});
-			} catch (SocketTimeoutException ste) {
-				// Ignored
-			} catch (IOException e) {
-				// Left in for debugging
-				e.printStackTrace();
+				}
+			});
+			this.sendTo(client, Collections.singletonList(direct), Collections
+					.singletonList(result));
+			return result;
+		}
+		RoutedPrivateMessage routed = new RoutedPrivateMessage(System
+				.currentTimeMillis(), MessageIds.next(),
+				RoutedPrivateMessage.DEFAULT_TTL, this.username, username, text);
+		this.seenMessages.markSeen(routed.getMessageId());
+		this.remember(HistoryRecord.Kind.PRIVATE, true, routed.getTimestamp(),
+				routed.getMessageId(), username, null, text);
+		Client nextHop = this.nextHopFor(username);
+		SendResult result = new SendResult(routed, 1);
+		if (nextHop == null) {
+			if (!this.keepForLater(username, routed.getTimestamp(), routed
+					.getMessageId(), text, result)) {
+				result.failed(null, new IOException("No route to user "
+						+ username + " and too many messages waiting."));
 			}
+			return result;
 		}
-		this.doShutdown();
+		this.sendTo(nextHop, Collections.singletonList(routed), Collections
+				.singletonList(result));
+		return result;
 	}
 
 	/**
-	 * Disconnects all currently-connected clients, shuts down thread pools, and
-	 * exits the application.
+	 * Queues messages on one client, failing their results and disconnecting
+	 * the client if its connection is already closed.
+	 * 
+	 * @param client
+	 *            the client to send to.
+	 * @param messages
+	 *            the messages to send.
+	 * @param results
+	 *            the result for each message.
 	 */
-	protected void doShutdown() {
-		// Close down connections to all clients.
-		for (Client client : this.clients) {
-			try {
-				client.sendDisconnectMessage();
-			} catch (IOException ioe) {
-				// Ignored for now, who cares if we're shutting down. :)
+	protected void sendTo(final Client client,
+			final List<? extends AbstractMessage> messages,
+			final List<SendResult> results) {
+		try {
+			client.send(messages, results);
+		} catch (IOException e) {
+			for (SendResult result : results) {
+				result.failed(client, e);
 			}
-			client.disconnect();
+			this.removeClient(client, "Failed to send message/"
+					+ e.getMessage());
 		}
-		// Shut down the threadpool
-		this.workers.shutdown();
 	}
 
 	/**
@@ -593,56 +2419,235 @@ public class ChatClient extends Thread implements MessageListener,
 	 * exception is thrown while sending the message, then that client is
 	 * disconnected. Actual work is handled by a worker thread. Will notify the
 	 * user interface after all clients have been sent the message (or failed to
-	 * send).
+	 * send), or if received messages are acknowledged, after all clients have
+	 * acknowledged it.
 	 * 
 	 * @see UIAdapter#broadcastMessageSent(long, String)
 	 */
 	@Override
 	public void broadcastChatMessage(final String input) {
-		this.workers.execute(new Runnable() {
+		this.sendStage.execute(new Runnable() {
 			@Override
 			public void run() {
+				// Build the message once so every client sees the same identifier
+				ChatMessage message;
+				try {
+					message = new ChatMessage(System.currentTimeMillis(),
+							ChatClient.this.username, input);
+				} catch (UnsupportedEncodingException uee) {
+					log.warning("Unable to encode chat message: "
+							+ uee.getMessage());
+					return;
+				}
+				ChatClient.this.seenMessages.markSeen(message.getMessageId());
+				ChatClient.this.remember(HistoryRecord.Kind.CHAT, true,
+						message.getTimestamp(), message.getMessageId(), null,
+						null, input);
+				if (ChatClient.this.sessions.acks) {
+					ChatClient.this.broadcastAcknowledged(message);
+					return;
+				}
 				for (Iterator<Client> clientIter = ChatClient.this.clients
 						.iterator(); clientIter.hasNext();) {
 					Client client = clientIter.next();
 					try {
-						client.sendMessage(input);
+						client.sendMessage(message);
 					} catch (IOException e) {
-						// Remove the client from the list of clients
-						clientIter.remove();
-						// Disconnect the client
-						client.disconnect();
-						// Notify the UI of the disconnect
-						ChatClient.this.userInterface.clientDisconnected(
+						// Disconnect the client and notify the UI
+						ChatClient.this.removeClient(client,
 								"Failed to send broadcast chat message/"
-										+ e.getMessage(), client);
+										+ e.getMessage());
 					}
 				}
+				// For clients that lost their connection and may come back
+				ChatClient.this.sessions.keep(message);
 				ChatClient.this.userInterface.broadcastMessageSent(
-						System.currentTimeMillis(), input);
+						message.getTimestamp(), input);
+
+			}
+		});
+	}
+
+	/**
+	 * Sends a chat message to every connected client and tells the user
+	 * interface once each of them has acknowledged it, or failed. Clients
+	 * that don't acknowledge messages count once it is written to them.
+	 * 
+	 * @param message
+	 *            the message to send.
+	 */
+	protected void broadcastAcknowledged(final ChatMessage message) {
+		List<Client> targets = new ArrayList<Client>(this.clients);
+		SendResult result = new SendResult(message, targets.size());
+		result.addListener(new SendListener() {
+			@Override
+			public void sendCompleted(final SendResult completed) {
+				ChatClient.this.userInterface.broadcastMessageSent(message
+						.getTimestamp(), message.getMessage());
+			}
+		});
+		List<SendResult> results = Collections.singletonList(result);
+		for (Client client : targets) {
+			this.sendTo(client, Collections.singletonList(message), results);
+		}
+		// For clients that lost their connection and may come back
+		this.sessions.keep(message);
+	}
+
+	/**
+	 * Sends the message to every client subscribed to the room. Clients that
+	 * fail are disconnected. The local user does not need to be in the room.
+	 */
+	@Override
+	public void roomChatMessage(final String room, final String input) {
+		this.sendStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				RoomChatMessage message;
+				try {
+					message = new RoomChatMessage(System.currentTimeMillis(),
+							MessageIds.next(), room, ChatClient.this.username,
+							input);
+				} catch (UnsupportedEncodingException uee) {
+					log.warning("Unable to encode room message: "
+							+ uee.getMessage());
+					return;
+				}
+				ChatClient.this.seenMessages.markSeen(message.getMessageId());
+				ChatClient.this.remember(HistoryRecord.Kind.ROOM, true,
+						message.getTimestamp(), message.getMessageId(), null,
+						room, input);
+				int roomId = ChatClient.this.roomRegistry.lookup(room);
+				for (Client client : ChatClient.this.clients) {
+					if (roomId < 0 || !client.isSubscribed(roomId)) {
+						continue;
+					}
+					try {
+						client.sendRoomMessage(message);
+					} catch (IOException e) {
+						ChatClient.this.removeClient(client,
+								"Failed to send room chat message/"
+										+ e.getMessage());
+					}
+				}
+				ChatClient.this.userInterface.roomMessageSent(
+						message.getTimestamp(), room, input);
+			}
+		});
+	}
+
+	/**
+	 * Joins the room and tells every connected client about it.
+	 */
+	@Override
+	public void joinRoom(final String room) {
+		this.changeSubscription(room, true);
+	}
+
+	/**
+	 * Leaves the room and tells every connected client about it.
+	 */
+	@Override
+	public void leaveRoom(final String room) {
+		this.changeSubscription(room, false);
+	}
 
+	/**
+	 * Updates the local subscription for a room and sends the change to all
+	 * connected clients. Nothing is sent if the subscription did not change.
+	 * 
+	 * @param room
+	 *            the name of the room.
+	 * @param joined
+	 *            true to join the room, false to leave it.
+	 */
+	protected void changeSubscription(final String room, final boolean joined) {
+		int roomId = joined ? this.roomRegistry.intern(room)
+				: this.roomRegistry.lookup(room);
+		if (roomId < 0) {
+			if (joined) {
+				log.warning("Too many rooms, unable to join #" + room);
+			}
+			return;
+		}
+		synchronized (this.localRooms) {
+			if (this.localRooms.get(roomId) == joined) {
+				return;
+			}
+			this.localRooms.set(roomId, joined);
+		}
+		log.fine((joined ? "Joined #" : "Left #") + room);
+		this.sendStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				SubscriptionMessage message;
+				try {
+					message = new SubscriptionMessage(joined, room);
+				} catch (UnsupportedEncodingException uee) {
+					log.warning("Unable to encode subscription: "
+							+ uee.getMessage());
+					return;
+				}
+				for (Client client : ChatClient.this.clients) {
+					try {
+						client.sendSubscription(message);
+					} catch (IOException e) {
+						ChatClient.this.removeClient(client,
+								"Failed to send room subscription/"
+										+ e.getMessage());
+					}
+				}
 			}
 		});
 	}
 
 	/**
 	 * Sends the message to the specified client. If the message cannot be sent
-	 * due to an exception, then the client is disconnected.
+	 * due to an exception, then the client is disconnected and the message is
+	 * kept in the outbox until the client connects again. Messages for
+	 * clients that are not directly connected are routed through their next
+	 * hop.
 	 */
 	@Override
 	public void privateChatMessage(final Client client, final String message) {
-		this.workers.execute(new Runnable() {
+		if (client instanceof RemoteClient) {
+			this.routePrivateMessage((RemoteClient) client, message);
+			return;
+		}
+		this.sendStage.execute(new Runnable() {
 			@Override
 			public void run() {
+				final PrivateChatMessage built;
 				try {
-					client.sendPrivateMessage(message);
-				} catch (IOException e) {
-					ChatClient.this.clients.remove(client);
-					client.removeMessageListener(ChatClient.this);
-					client.disconnect();
-					ChatClient.this.userInterface.clientDisconnected(
-							"Failed to send private chat message/"
-									+ e.getMessage(), client);
+					built = new PrivateChatMessage(System.currentTimeMillis(),
+							ChatClient.this.username, message);
+				} catch (UnsupportedEncodingException uee) {
+					ChatClient.this.userInterface.messageNotSent(message, uee
+							.getMessage(), client);
+					return;
+				}
+				ChatClient.this.remember(HistoryRecord.Kind.PRIVATE, true,
+						built.getTimestamp(), built.getMessageId(), client
+								.getUsername(), null, message);
+				if (ChatClient.this.outbox.hasWaiting(client.getUsername())) {
+					// Behind the messages already waiting, to keep the order
+					ChatClient.this.keepForLater(client.getUsername(), built
+							.getTimestamp(), built.getMessageId(), message,
+							null);
+					ChatClient.this.deliverWaiting(client);
+				} else {
+					SendResult result = new SendResult(built, 1);
+					result.addListener(new SendListener() {
+						@Override
+						public void sendCompleted(final SendResult result) {
+							if (!result.isSuccess()) {
+								ChatClient.this.keepUnsent(client, built);
+							}
+						}
+					});
+					ChatClient.this.sendTo(client, Collections
+							.singletonList(built), Collections
+							.singletonList(result));
 				}
 				ChatClient.this.userInterface.privateMessageSent(
 						System.currentTimeMillis(), message, client);
@@ -652,13 +2657,88 @@ public class ChatClient extends Thread implements MessageListener,
 	}
 
 	/**
-	 * Sets the run flag to false, which should occur within 250ms.
+	 * Offers a file to a directly-connected client. Files are not routed
+	 * through other clients.
+	 */
+	@Override
+	public void sendFile(final Client client, final String path) {
+		if (client instanceof RemoteClient) {
+			this.userInterface.messageNotSent(path,
+					"Files can only be sent to directly-connected users.",
+					client);
+			return;
+		}
+		this.sendStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					FileTransfer transfer = client.offerFile(new File(path));
+					log.fine("Offered " + transfer + " to " + client);
+				} catch (IOException e) {
+					ChatClient.this.userInterface.messageNotSent(path,
+							"Unable to offer file/" + e.getMessage(), client);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Accepts a file offered by any connected client and saves it in the
+	 * download directory.
+	 */
+	@Override
+	public void acceptFile(final long transferId) {
+		this.sendStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				for (Client client : ChatClient.this.clients) {
+					if (!client.hasFileOffer(transferId)) {
+						continue;
+					}
+					try {
+						FileTransfer transfer = client.acceptFile(transferId,
+								ChatClient.this.downloadDirectory);
+						log.fine("Accepted " + transfer + " from " + client);
+					} catch (IOException e) {
+						ChatClient.this.userInterface.messageNotSent(Long
+								.toHexString(transferId),
+								"Unable to accept file/" + e.getMessage(), client);
+					}
+					return;
+				}
+				ChatClient.this.userInterface.messageNotSent(Long
+						.toHexString(transferId), "No such file offer.", null);
+			}
+		});
+	}
+
+	/**
+	 * Shuts the client down.
 	 * 
-	 * @see ChatClient#run()
+	 * @see ChatClient#shutdown()
 	 */
 	@Override
 	public void userRequestedShutdown() {
-		this.keepRunning = false;
+		this.shutdown();
+	}
+
+	/**
+	 * Sends warnings to the console and everything to the file
+	 * "cs352-chat.log". Called by the programs that start clients, rather
+	 * than when this class is loaded, so that programs embedding the client
+	 * keep control of their own logging.
+	 */
+	public static void configureLogging() {
+		Logger root = Logger.getLogger("");
+		ChatClient.replaceConsoleHandler(root, Level.WARNING);
+		try {
+			Handler fileHandler = new FileHandler("cs352-chat.log");
+			fileHandler.setLevel(Level.ALL);
+			fileHandler.setFormatter(new SimpleFormatter());
+			root.addHandler(fileHandler);
+		} catch (Exception e) {
+			System.err.println("Unable to create log file: " + e.getMessage());
+		}
 	}
 
 	/**
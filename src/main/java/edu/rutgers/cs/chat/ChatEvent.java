@@ -0,0 +1,159 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+/**
+ * Something that happened in the chat network, as published by
+ * {@link ChatClient#getEvents()}: a message received from another user, or a
+ * user connecting or disconnecting.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class ChatEvent {
+
+	/**
+	 * The kinds of events.
+	 */
+	public static enum Kind {
+		/**
+		 * A chat message sent to everyone.
+		 */
+		BROADCAST,
+		/**
+		 * A private chat message sent to the local user.
+		 */
+		PRIVATE,
+		/**
+		 * A message sent to a room the local user has joined.
+		 */
+		ROOM,
+		/**
+		 * A client connected directly.
+		 */
+		CONNECTED,
+		/**
+		 * A directly-connected client disconnected.
+		 */
+		DISCONNECTED
+	}
+
+	/**
+	 * What happened.
+	 */
+	protected final Kind kind;
+
+	/**
+	 * When the message was sent, or when the client connected or
+	 * disconnected.
+	 */
+	protected final long timestamp;
+
+	/**
+	 * The client that sent the message, connected or disconnected.
+	 */
+	protected final Client client;
+
+	/**
+	 * The room of a room message, otherwise null.
+	 */
+	protected final String room;
+
+	/**
+	 * The text of a message, or the reason for a disconnect.
+	 */
+	protected final String text;
+
+	/**
+	 * Creates a new event.
+	 * 
+	 * @param kind
+	 *            what happened.
+	 * @param timestamp
+	 *            when it happened.
+	 * @param client
+	 *            the client involved.
+	 * @param room
+	 *            the room of a room message, or null.
+	 * @param text
+	 *            the message text or disconnect reason, or null.
+	 */
+	public ChatEvent(final Kind kind, final long timestamp,
+			final Client client, final String room, final String text) {
+		this.kind = kind;
+		this.timestamp = timestamp;
+		this.client = client;
+		this.room = room;
+		this.text = text;
+	}
+
+	/**
+	 * Returns what happened.
+	 * 
+	 * @return the kind of event.
+	 */
+	public Kind getKind() {
+		return this.kind;
+	}
+
+	/**
+	 * Returns when the message was sent or the client connected or
+	 * disconnected.
+	 * 
+	 * @return the time of the event, in milliseconds since the epoch.
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	/**
+	 * Returns the client that sent the message, connected or disconnected.
+	 * 
+	 * @return the client.
+	 */
+	public Client getClient() {
+		return this.client;
+	}
+
+	/**
+	 * Returns the room of a room message.
+	 * 
+	 * @return the room name, or null for other events.
+	 */
+	public String getRoom() {
+		return this.room;
+	}
+
+	/**
+	 * Returns the text of a message, or the reason for a disconnect.
+	 * 
+	 * @return the text, or null if there is none.
+	 */
+	public String getText() {
+		return this.text;
+	}
+
+	@Override
+	public String toString() {
+		return this.kind + " " + this.client
+				+ (this.room == null ? "" : " #" + this.room)
+				+ (this.text == null ? "" : ": " + this.text);
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.history.HistoryStore;
+import edu.rutgers.cs.chat.ui.HeadlessUI;
+import edu.rutgers.cs.chat.util.Threads;
+
+/**
+ * Runs many chat identities in one JVM. Every identity has its own username,
+ * listen port and peers, but all of them share one {@link ChatRuntime}, so an
+ * identity costs a few kilobytes plus its connections instead of a whole JVM.
+ * The identities have no user interface; typing "/stats" prints the shared
+ * stages and memory use, and "quit" shuts every identity down.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class ChatHost {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(ChatHost.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * The runtime shared by every identity.
+	 */
+	protected final ChatRuntime runtime;
+
+	/**
+	 * The identities running in this host.
+	 */
+	protected final List<ChatClient> clients = new ArrayList<ChatClient>();
+
+	/**
+	 * Creates a new, empty host.
+	 * 
+	 * @param name
+	 *            the name of the shared runtime.
+	 */
+	public ChatHost(final String name) {
+		this.runtime = new ChatRuntime(name);
+	}
+
+	/**
+	 * Starts an identity listening on a port.
+	 * 
+	 * @param listenPort
+	 *            the identity's listen port.
+	 * @param username
+	 *            the identity's username.
+	 * @return the new identity.
+	 * @throws IOException
+	 *             if the port cannot be bound.
+	 */
+	public ChatClient addIdentity(final int listenPort, final String username)
+			throws IOException {
+		ChatClient client = new ChatClient(listenPort, username,
+				new HeadlessUI(), this.runtime);
+		try {
+			client.listen();
+		} catch (IOException ioe) {
+			client.shutdown();
+			throw ioe;
+		}
+		synchronized (this.clients) {
+			this.clients.add(client);
+		}
+		return client;
+	}
+
+	/**
+	 * Shuts down every identity, then the runtime.
+	 */
+	public void shutdown() {
+		List<ChatClient> toStop;
+		synchronized (this.clients) {
+			toStop = new ArrayList<ChatClient>(this.clients);
+			this.clients.clear();
+		}
+		for (ChatClient client : toStop) {
+			client.shutdown();
+		}
+		this.runtime.shutdown();
+	}
+
+	/**
+	 * Returns the shared stages, the number of identities, and the heap and
+	 * threads in use.
+	 * 
+	 * @return a multi-line report.
+	 */
+	public String report() {
+		Runtime jvm = Runtime.getRuntime();
+		return this.runtime.report() + "\nidentities="
+				+ this.runtime.getClientCount() + " heap="
+				+ ((jvm.totalMemory() - jvm.freeMemory()) >> 10) + "KB threads="
+				+ ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+
+	/**
+	 * Returns the heap in use after a garbage collection.
+	 * 
+	 * @return the heap in use, in bytes.
+	 */
+	private static long usedMemory() {
+		Runtime jvm = Runtime.getRuntime();
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return jvm.totalMemory() - jvm.freeMemory();
+	}
+
+	/**
+	 * Starts identities named PREFIX0, PREFIX1, ... on consecutive ports, and
+	 * optionally connects each one to a bootstrap client.
+	 * 
+	 * @param args
+	 *            base port, number of identities, username prefix, and
+	 *            optionally a host and port to connect to and --virtual.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 3) {
+			System.err
+					.println("Usage: <Base Port> <Identities> <Username Prefix> [<Host> <Port>] [--virtual]");
+			return;
+		}
+		ChatClient.configureLogging();
+		// Each history maps a whole segment, too much for thousands of users
+		if (System.getProperty(HistoryStore.PROPERTY_PREFIX + "enabled") == null) {
+			System.setProperty(HistoryStore.PROPERTY_PREFIX + "enabled",
+					"false");
+		}
+		int basePort = Integer.parseInt(args[0]);
+		int count = Integer.parseInt(args[1]);
+		String prefix = args[2];
+		String remoteHost = null;
+		int remotePort = 0;
+		for (int i = 3; i < args.length; ++i) {
+			if ("--virtual".equalsIgnoreCase(args[i])) {
+				Threads.setVirtual(true);
+			} else {
+				remoteHost = args[i++];
+				remotePort = Integer.parseInt(args[i]);
+			}
+		}
+
+		ChatHost chatHost = new ChatHost(prefix + "@" + basePort);
+		long baseMemory = usedMemory();
+		for (int i = 0; i < count; ++i) {
+			ChatClient client;
+			try {
+				client = chatHost.addIdentity(basePort + i, prefix + i);
+			} catch (IOException ioe) {
+				log.severe("Unable to start " + prefix + i + " on port "
+						+ (basePort + i) + ": " + ioe.getMessage());
+				continue;
+			}
+			// The connect stage refuses work when full, so wait for room
+			while (remoteHost != null
+					&& !client.connect(remoteHost, remotePort)) {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException ie) {
+					return;
+				}
+			}
+		}
+		int started = chatHost.runtime.getClientCount();
+		System.out.println("Started " + started + " identities using "
+				+ (usedMemory() - baseMemory) / Math.max(1, started)
+				+ " bytes of heap each.");
+		System.out.println("Type /stats for statistics or quit to exit.");
+
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				System.in));
+		String line;
+		while ((line = in.readLine()) != null) {
+			line = line.trim();
+			if ("quit".equals(line)) {
+				break;
+			}
+			if ("/stats".equals(line)) {
+				System.out.println(chatHost.report());
+			}
+		}
+		chatHost.shutdown();
+	}
+}
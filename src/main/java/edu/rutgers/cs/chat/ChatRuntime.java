@@ -0,0 +1,350 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.messaging.FrameLimits;
+import edu.rutgers.cs.chat.net.EventHandler;
+import edu.rutgers.cs.chat.net.EventLoop;
+import edu.rutgers.cs.chat.net.EventLoopGroup;
+import edu.rutgers.cs.chat.util.MemoryBudget;
+import edu.rutgers.cs.chat.util.Stage;
+
+/**
+ * The threads and limits shared by every {@link ChatClient} in a JVM that
+ * uses the same runtime: the accept, connect, dispatch, render and send
+ * stages, the
+ * budget for received messages, the message size limits, and a group of event
+ * loops. The first loop accepts connections on every client's listen port and
+ * runs the clients' timers. Once a peer has been registered it is assigned to
+ * one of the loops, which reads and writes its socket and runs its timers for
+ * as long as it is connected. Each client keeps its own username, listen port
+ * and peers.
+ * 
+ * A client created without a runtime gets one of its own, which is shut down
+ * with it. A host running many identities creates one runtime, passes it to
+ * each client, and shuts it down after the clients.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class ChatRuntime {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(ChatRuntime.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Name of the runtime, used for thread names and JMX.
+	 */
+	protected final String name;
+
+	/**
+	 * Handshakes with newly-accepted connections. Refuses work when full, so
+	 * a flood of connections can't exhaust memory. Kept apart from the
+	 * connect stage because a client connecting out waits for the other
+	 * client's accept stage; if both shared threads, clients in the same
+	 * runtime connecting to each other could use up every thread waiting.
+	 */
+	protected final Stage acceptStage = Stage.fromProperties("accept", 2, 64,
+			Stage.Overflow.DROP);
+
+	/**
+	 * Connects to clients learned from exchange messages. Refuses work when
+	 * full.
+	 */
+	protected final Stage connectStage = Stage.fromProperties("connect", 4,
+			64, Stage.Overflow.DROP);
+
+	/**
+	 * Forwards routed messages and removes disconnected clients.
+	 */
+	protected final Stage dispatchStage = Stage.fromProperties("dispatch", 2,
+			1024, Stage.Overflow.BLOCK);
+
+	/**
+	 * Passes received messages and events to the user interface. A single
+	 * thread keeps them in the order they arrived.
+	 */
+	protected final Stage renderStage = Stage.fromProperties("render", 1,
+			1024, Stage.Overflow.BLOCK);
+
+	/**
+	 * Sends the messages entered by the local user.
+	 */
+	protected final Stage sendStage = Stage.fromProperties("send", 2, 256,
+			Stage.Overflow.BLOCK);
+
+	/**
+	 * Writes chat history to disk. A single thread keeps each client's
+	 * records in order, and work is dropped when full so a slow disk never
+	 * holds up the threads reading from peers.
+	 */
+	protected final Stage historyStage = Stage.fromProperties("history", 1,
+			4096, Stage.Overflow.DROP);
+
+	/**
+	 * Every stage, in the order messages pass through them.
+	 */
+	protected final Stage[] stages = { this.acceptStage, this.connectStage,
+			this.dispatchStage, this.renderStage, this.sendStage,
+			this.historyStage };
+
+	/**
+	 * Limits the memory used by received messages across every client.
+	 */
+	protected final MemoryBudget inboundBudget = new MemoryBudget(Long.getLong(
+			"edu.rutgers.cs.chat.inboundBytes",
+			ChatClient.DEFAULT_INBOUND_BYTES).longValue());
+
+	/**
+	 * Largest and smallest accepted length of each type of message.
+	 */
+	protected final FrameLimits frameLimits = FrameLimits.fromProperties();
+
+	/**
+	 * Number of event loops, or 0 for one per available processor.
+	 */
+	protected final int loopCount = Integer.getInteger(
+			"edu.rutgers.cs.chat.loops", 0).intValue();
+
+	/**
+	 * Accept connections, run timers, and read and write peers. Started the
+	 * first time they are needed.
+	 */
+	protected EventLoopGroup loops;
+
+	/**
+	 * Number of clients using the runtime.
+	 */
+	protected final AtomicInteger clientCount = new AtomicInteger();
+
+	/**
+	 * Creates a new runtime and publishes its stages through JMX.
+	 * 
+	 * @param name
+	 *            the name of the runtime, such as "username@port" for a
+	 *            single client.
+	 */
+	public ChatRuntime(final String name) {
+		this.name = name;
+		for (Stage stage : this.stages) {
+			stage.register(name);
+		}
+	}
+
+	/**
+	 * Returns the runtime's event loops, starting them if needed.
+	 * 
+	 * @return the runtime's event loops.
+	 * @throws IOException
+	 *             if a loop's selector cannot be opened.
+	 */
+	public synchronized EventLoopGroup getLoops() throws IOException {
+		if (this.loops == null) {
+			this.loops = new EventLoopGroup("Runtime-" + this.name,
+					this.loopCount);
+		}
+		return this.loops;
+	}
+
+	/**
+	 * Returns the loop that accepts connections and runs timers, starting the
+	 * loops if needed.
+	 * 
+	 * @return the runtime's first event loop.
+	 * @throws IOException
+	 *             if a loop's selector cannot be opened.
+	 */
+	public EventLoop getLoop() throws IOException {
+		return this.getLoops().get(0);
+	}
+
+	/**
+	 * Returns the loop a newly-registered peer should stay on. Loops are
+	 * handed out in round-robin order.
+	 * 
+	 * @return the peer's event loop.
+	 * @throws IOException
+	 *             if a loop's selector cannot be opened.
+	 */
+	public EventLoop nextLoop() throws IOException {
+		return this.getLoops().next();
+	}
+
+	/**
+	 * Runs the task on the runtime's loop after a delay. Tasks must not
+	 * block, since every client shares the loop.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 * @param delayMillis
+	 *            the delay in milliseconds.
+	 * @throws IOException
+	 *             if the loop cannot be started.
+	 */
+	public void schedule(final Runnable task, final long delayMillis)
+			throws IOException {
+		this.getLoop().schedule(task, delayMillis);
+	}
+
+	/**
+	 * Starts accepting connections for a client. Accepted sockets are put
+	 * back in blocking mode for the handshake and passed to
+	 * {@link ChatClient#accepted}. The
+	 * client stops accepting when the server channel is closed.
+	 * 
+	 * @param client
+	 *            the client the connections are for.
+	 * @param server
+	 *            the client's bound listen channel.
+	 * @throws IOException
+	 *             if the channel cannot be made non-blocking or the loop
+	 *             cannot be started.
+	 */
+	public void listen(final ChatClient client, final ServerSocketChannel server)
+			throws IOException {
+		server.configureBlocking(false);
+		final EventLoop loop = this.getLoop();
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					loop.register(server, SelectionKey.OP_ACCEPT,
+							new EventHandler() {
+								@Override
+								public void handleEvent(final SelectionKey key) {
+									ChatRuntime.this.accept(client, server, key);
+								}
+							});
+				} catch (IOException ioe) {
+					log.warning("Unable to listen for " + client + ": "
+							+ ioe.getMessage());
+				}
+			}
+		});
+	}
+
+	/**
+	 * Accepts every waiting connection on a client's listen channel.
+	 * 
+	 * @param client
+	 *            the client the connections are for.
+	 * @param server
+	 *            the client's listen channel.
+	 * @param key
+	 *            the channel's selection key.
+	 */
+	protected void accept(final ChatClient client,
+			final ServerSocketChannel server, final SelectionKey key) {
+		while (true) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+				if (channel == null) {
+					return;
+				}
+				// The handshake blocks; the peer moves to a loop afterward
+				channel.configureBlocking(true);
+			} catch (IOException ioe) {
+				log.warning("Unable to accept connection for " + client + ": "
+						+ ioe.getMessage());
+				if (!server.isOpen()) {
+					key.cancel();
+				}
+				return;
+			}
+			client.accepted(channel.socket());
+		}
+	}
+
+	/**
+	 * Records that a client started using the runtime.
+	 */
+	protected void attach() {
+		this.clientCount.incrementAndGet();
+	}
+
+	/**
+	 * Records that a client stopped using the runtime.
+	 */
+	protected void detach() {
+		this.clientCount.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of clients using the runtime.
+	 * 
+	 * @return the number of clients.
+	 */
+	public int getClientCount() {
+		return this.clientCount.get();
+	}
+
+	/**
+	 * Stops the stages once their queued work is done, and stops the loops.
+	 * Clients using the runtime should be shut down first.
+	 */
+	public void shutdown() {
+		for (Stage stage : this.stages) {
+			stage.shutdown();
+		}
+		synchronized (this) {
+			if (this.loops != null) {
+				this.loops.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Returns the counters of each stage, one stage per line.
+	 * 
+	 * @return the stage counters.
+	 */
+	public String report() {
+		StringBuffer sb = new StringBuffer();
+		for (Stage stage : this.stages) {
+			if (sb.length() > 0) {
+				sb.append('\n');
+			}
+			sb.append(stage.report());
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "Runtime " + this.name + " (" + this.clientCount.get()
+				+ " clients)";
+	}
+}
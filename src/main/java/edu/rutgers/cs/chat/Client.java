@@ -19,33 +19,88 @@
 
 package edu.rutgers.cs.chat;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import edu.rutgers.cs.chat.messaging.AbstractMessage;
+import edu.rutgers.cs.chat.messaging.AckMessage;
 import edu.rutgers.cs.chat.messaging.ChatMessage;
 import edu.rutgers.cs.chat.messaging.ClientExchangeMessage;
+import edu.rutgers.cs.chat.messaging.FileAcceptMessage;
+import edu.rutgers.cs.chat.messaging.FileChunkMessage;
+import edu.rutgers.cs.chat.messaging.FileOfferMessage;
+import edu.rutgers.cs.chat.messaging.FragmentMessage;
+import edu.rutgers.cs.chat.messaging.FrameLimits;
 import edu.rutgers.cs.chat.messaging.HandshakeMessage;
+import edu.rutgers.cs.chat.messaging.HistoryBatchMessage;
+import edu.rutgers.cs.chat.messaging.HistoryRequestMessage;
 import edu.rutgers.cs.chat.messaging.MessageListener;
+import edu.rutgers.cs.chat.messaging.MessageView;
 import edu.rutgers.cs.chat.messaging.PrivateChatMessage;
+import edu.rutgers.cs.chat.messaging.Reassembler;
+import edu.rutgers.cs.chat.messaging.RoomChatMessage;
+import edu.rutgers.cs.chat.messaging.RoutedPrivateMessage;
+import edu.rutgers.cs.chat.messaging.SessionMessage;
+import edu.rutgers.cs.chat.messaging.SubscriptionMessage;
+import edu.rutgers.cs.chat.net.EventLoop;
+import edu.rutgers.cs.chat.util.MemoryBudget;
+import edu.rutgers.cs.chat.util.RateLimiter;
+import edu.rutgers.cs.chat.util.Threads;
 
 
 /**
  * Representation of a remote chat client connected to this client. Handles
  * reading messages from the remote client, which are passed to any registered
- * MessageListener interfaces.
+ * MessageListener interfaces. The handshake is read and written by the thread
+ * that connected or accepted the client. After that the client is read and
+ * written by the event loop it was assigned to, through a
+ * {@link ClientChannel}, and stays on that loop until it disconnects. A client
+ * started without a loop, such as when {@link Threads} uses virtual threads,
+ * is read by a dedicated thread instead.
+ * 
+ * Messages sent to the client are placed in an {@link OutboundQueue} and
+ * written by the loop, or by a second thread, so a large message never delays
+ * keep-alives or chat for longer than it takes to write one fragment. Messages
+ * too large for a single frame are split into {@link FragmentMessage}s and
+ * rebuilt by the receiving client.
+ * 
+ * Sockets are backed by a {@link SocketChannel} when possible, which the
+ * event loops need, and so that files offered to or accepted from the client
+ * can be copied between the file and the socket with {@link FileTransfer}
+ * instead of through the message codec.
+ * 
+ * Chat messages are numbered in a {@link Session} that outlives the
+ * connection, so that a new connection to the same client can pick up where
+ * the last one stopped.
  * 
  * @author Robert Moore
  * 
  */
-public class Client extends Thread {
+public class Client implements Runnable {
 	
 	/**
 	 * Logging for this class.
@@ -57,9 +112,10 @@ public class Client extends Thread {
 	}
 
 	/**
-	 * The socket connected to the remote client.
+	 * The socket connected to the remote client. Until {@link #connect()} is
+	 * called it is a plain socket, which holds no file descriptor.
 	 */
-	protected final Socket socket;
+	protected volatile Socket socket;
 
 	/**
 	 * The username of this client.
@@ -94,10 +150,141 @@ public class Client extends Thread {
 	 */
 	protected final Collection<MessageListener> listeners = new ConcurrentLinkedQueue<MessageListener>();
 
+	/**
+	 * Rooms this client has subscribed to, indexed by the local client's room
+	 * identifiers.
+	 * 
+	 * @see edu.rutgers.cs.chat.RoomRegistry
+	 */
+	protected final BitSet rooms = new BitSet();
+
+	/**
+	 * How long {@link #disconnect()} waits for queued messages to be written
+	 * before closing the socket, in milliseconds.
+	 */
+	public static final long LINGER_MILLIS = 1000;
+
+	/**
+	 * Serializes writes to the socket between the handshake and the writer
+	 * thread. Not needed once the client is on a loop, which starts after the
+	 * handshake. A lock is used rather than synchronized methods so that a
+	 * virtual thread blocked on a write (or on the handshake read) does not
+	 * pin its carrier thread.
+	 */
+	protected final ReentrantLock writeLock = new ReentrantLock();
+
+	/**
+	 * Messages waiting to be written to this client.
+	 */
+	protected final OutboundQueue outbound = new OutboundQueue();
+
+	/**
+	 * Rebuilds fragmented messages. Only used by the reader thread or loop.
+	 */
+	protected Reassembler reassembler = new Reassembler();
+
+	/**
+	 * Accepted lengths of received messages, or null for no limits.
+	 */
+	protected FrameLimits frameLimits = null;
+
+	/**
+	 * Account charged for received messages until they have been passed to
+	 * the listeners, or null.
+	 */
+	protected MemoryBudget.Account inbound = null;
+
+	/**
+	 * Limits the rate of messages received from this client, or null for no
+	 * limit.
+	 */
+	protected RateLimiter rateLimiter = null;
+
+	/**
+	 * True while messages from this client are being delayed by the rate
+	 * limiter. Only used by the reader thread or loop.
+	 */
+	protected boolean throttling = false;
+
+	/**
+	 * Files offered by this client that have not been accepted yet, by
+	 * transfer identifier.
+	 */
+	protected final Map<Long, FileOfferMessage> fileOffers = new ConcurrentHashMap<Long, FileOfferMessage>();
+
+	/**
+	 * Files being sent to this client, by transfer identifier.
+	 */
+	protected final Map<Long, FileTransfer> outgoingFiles = new ConcurrentHashMap<Long, FileTransfer>();
+
+	/**
+	 * Files being received from this client, by transfer identifier.
+	 */
+	protected final Map<Long, FileTransfer> incomingFiles = new ConcurrentHashMap<Long, FileTransfer>();
+
+	/**
+	 * Reads and writes this client on its event loop, or null if it is read
+	 * and written by threads.
+	 */
+	protected volatile ClientChannel channel = null;
+
+	/**
+	 * The thread reading messages from this client.
+	 */
+	protected Thread readerThread;
+
+	/**
+	 * The thread writing queued messages to this client.
+	 */
+	protected Thread writerThread;
+
 	/**
 	 * Flag to keep the main thread running.
 	 */
-	protected boolean keepRunning = true;
+	protected volatile boolean keepRunning = true;
+
+	/**
+	 * True if the remote client connected to us, false if we connected to it.
+	 */
+	protected final boolean accepted;
+
+	/**
+	 * Set once the connection is lost or being closed, so that listeners are
+	 * told about a lost connection at most once, and not at all when the
+	 * local client closed it.
+	 */
+	protected final AtomicBoolean lost = new AtomicBoolean(false);
+
+	/**
+	 * Set if the remote client sent a disconnect message, rather than its
+	 * connection failing.
+	 */
+	protected volatile boolean quit = false;
+
+	/**
+	 * The local client's sessions, or null if messages are not numbered.
+	 */
+	protected SessionTable sessions = null;
+
+	/**
+	 * The session with this client, found once its username is known.
+	 */
+	protected Session session = null;
+
+	/**
+	 * The stream this client said it was receiving from the local client.
+	 */
+	protected long resumeToken = SessionMessage.NO_SESSION;
+
+	/**
+	 * The last message of that stream this client said it received.
+	 */
+	protected long resumeSequence = 0;
+
+	/**
+	 * Set if this client said it acknowledges the messages it receives.
+	 */
+	protected boolean resumeAcks = false;
 
 	/**
 	 * Creates a new Client with the specified parameters. Does not connect to
@@ -122,10 +309,28 @@ public class Client extends Thread {
 		this.username = username;
 		this.localUsername = localUsername;
 		this.localPort = localPort;
+		this.accepted = false;
 
+		// The channel is opened by connect(), since many clients never connect
 		this.socket = new Socket();
 	}
 
+	/**
+	 * Creates an unconnected socket backed by a channel, or a plain socket if
+	 * a channel cannot be opened. Files are still transferred over a plain
+	 * socket, but through its streams.
+	 * 
+	 * @return a new, unconnected socket.
+	 */
+	protected static Socket openSocket() {
+		try {
+			return SocketChannel.open().socket();
+		} catch (IOException ioe) {
+			log.warning("Unable to open socket channel: " + ioe.getMessage());
+			return new Socket();
+		}
+	}
+
 	/**
 	 * Creates a new client from the provided socket and local username/listen
 	 * port. The username for this client will not be set until the handshake
@@ -143,10 +348,88 @@ public class Client extends Thread {
 		this.socket = socket;
 		this.localUsername = localUsername;
 		this.localPort = localPort;
+		this.accepted = true;
 		// Grab the actual address in case a hostname was provided
 		this.ipAddress = this.socket.getInetAddress().getHostAddress();
 	}
 
+	/**
+	 * Numbers the chat messages exchanged with this client in its session
+	 * from the table. Must be called before {@link #performHandshake()}.
+	 * 
+	 * @param sessions
+	 *            the local client's sessions.
+	 */
+	void setSessions(final SessionTable sessions) {
+		this.sessions = sessions;
+	}
+
+	/**
+	 * Limits the size of the handshake and session messages read from this
+	 * client before it is registered. Without them, default limits are used.
+	 * Must be called before {@link #performHandshake()}.
+	 * 
+	 * @param limits
+	 *            the accepted lengths of each message type.
+	 */
+	void setHandshakeLimits(final FrameLimits limits) {
+		this.frameLimits = limits;
+	}
+
+	/**
+	 * Returns the limits for messages read during the handshake.
+	 * 
+	 * @return the limits set for this client, or the defaults.
+	 */
+	private FrameLimits handshakeLimits() {
+		return this.frameLimits == null ? new FrameLimits() : this.frameLimits;
+	}
+
+	/**
+	 * Limits the size of messages received from this client and the memory
+	 * they may use. Messages outside the limits or beyond the account's room
+	 * are skipped. Must be called before {@link #start()}.
+	 * 
+	 * @param limits
+	 *            the accepted lengths of each message type.
+	 * @param account
+	 *            the account charged for received messages, or null.
+	 */
+	public void setInboundLimits(final FrameLimits limits,
+			final MemoryBudget.Account account) {
+		this.frameLimits = limits;
+		this.inbound = account;
+		this.reassembler = new Reassembler(account);
+	}
+
+	/**
+	 * Limits how fast messages are read from this client. Once a limit is
+	 * reached the reader or loop waits before handling the next message, so
+	 * the client is slowed down by TCP flow control rather than having its
+	 * messages dropped. File data is not limited, since the local user asked
+	 * for it. Must be called before {@link #start()}.
+	 * 
+	 * @param frameRate
+	 *            the most messages per second, or 0 for no limit.
+	 * @param byteRate
+	 *            the most bytes per second, or 0 for no limit.
+	 */
+	public void setRateLimits(final long frameRate, final long byteRate) {
+		this.rateLimiter = frameRate > 0 || byteRate > 0 ? new RateLimiter(
+				frameRate, byteRate) : null;
+	}
+
+	/**
+	 * Returns the number of messages from this client that were delayed by
+	 * the rate limits.
+	 * 
+	 * @return the number of delayed messages.
+	 */
+	public long getThrottledCount() {
+		RateLimiter limiter = this.rateLimiter;
+		return limiter == null ? 0 : limiter.getThrottledCount();
+	}
+
 	/**
 	 * Connects to this client if it is not already connected.
 	 * 
@@ -156,21 +439,55 @@ public class Client extends Thread {
 	 * @see Socket#connect(java.net.SocketAddress)
 	 */
 	public void connect() throws IOException {
+		this.connect(0);
+	}
+
+	/**
+	 * Connects to this client if it is not already connected, giving up
+	 * after a timeout.
+	 * 
+	 * @param timeoutMillis
+	 *            how long to wait for the connection, or 0 to wait as long as
+	 *            the operating system does.
+	 * @throws IOException
+	 *             if the connection fails or times out.
+	 * @see Socket#connect(java.net.SocketAddress, int)
+	 */
+	public void connect(final int timeoutMillis) throws IOException {
 		if (this.socket != null && !this.socket.isConnected()) {
-			this.socket
-					.connect(new InetSocketAddress(this.ipAddress, this.port));
+			if (this.socket.getChannel() == null && !this.socket.isClosed()) {
+				this.socket = openSocket();
+			}
+			this.socket.connect(
+					new InetSocketAddress(this.ipAddress, this.port),
+					timeoutMillis);
 		}
 	}
 
 	/**
 	 * Sends and receives handshake messages from this client. If this client's
 	 * handshake is invalid (because the protocol string is incorrect) an error
-	 * message is printed to System.err.
+	 * message is printed to System.err. The handshakes are followed by a
+	 * {@link SessionMessage} each way, naming the last chat message received.
 	 * 
 	 * @return true if the handshake succeeded, else false.
 	 * @see AbstractMessage#decodeMessage(java.io.InputStream)
 	 */
-	public synchronized boolean performHandshake() {
+	public boolean performHandshake() {
+		this.writeLock.lock();
+		try {
+			return this.doHandshake();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends and receives the handshake while holding the write lock.
+	 * 
+	 * @return true if the handshake succeeded, else false.
+	 */
+	private boolean doHandshake() {
 		HandshakeMessage sentMessage = null;
 		try {
 			// Try to create an outgoing handshake message
@@ -191,16 +508,13 @@ public class Client extends Thread {
 		}
 
 		AbstractMessage receivedMessage = null;
-		// Keep reading messages until a HandshakeMessage is received
-		// TODO: This is a bit of a hack
+		// Keep reading messages until a HandshakeMessage is received. Reads
+		// block, so this only loops if an unknown message type was skipped.
 		do {
 			try {
 				receivedMessage = AbstractMessage.decodeMessage(this.socket
-						.getInputStream());
-				// Either no message available, or a decoding error
+						.getInputStream(), this.handshakeLimits(), null);
 				if (receivedMessage == null) {
-					// Allow other threads to issue before trying again
-					Thread.yield();
 					continue;
 				}
 			} catch (IOException e) {
@@ -248,15 +562,89 @@ public class Client extends Thread {
 			return false;
 		}
 
+		return this.exchangeSessions();
+	}
+
+	/**
+	 * Tells this client the last chat message received from it, and reads
+	 * the last one it received from the local client, once the handshakes
+	 * have been exchanged.
+	 * 
+	 * @return true if the session messages were exchanged, else false.
+	 */
+	private boolean exchangeSessions() {
+		if (this.sessions != null) {
+			this.session = this.sessions.get(this.username);
+		}
+		try {
+			AbstractMessage.encodeMessage(this.session == null ? new SessionMessage(
+					SessionMessage.NO_SESSION, 0) : this.session.offer(), this.socket
+					.getOutputStream());
+			AbstractMessage receivedMessage = AbstractMessage.decodeMessage(
+					this.socket.getInputStream(), this.handshakeLimits(), null);
+			if (!(receivedMessage instanceof SessionMessage)) {
+				log.warning("Received non-session message after handshake: "
+						+ receivedMessage);
+				return false;
+			}
+			this.resumeToken = ((SessionMessage) receivedMessage).getToken();
+			this.resumeSequence = ((SessionMessage) receivedMessage)
+					.getSequence();
+			this.resumeAcks = ((SessionMessage) receivedMessage).isAcking();
+		} catch (IOException e) {
+			log.warning("Unable to exchange sessions with remote client: "
+					+ e.getMessage());
+			return false;
+		}
 		return true;
 	}
 
+	/**
+	 * Detaches this connection from its session once it has been lost, so
+	 * chat messages are kept for this client until it connects again.
+	 */
+	void detachSession() {
+		if (this.session != null) {
+			this.session.detach(this);
+		}
+	}
+
+	/**
+	 * Attaches this connection to its session and queues the chat messages
+	 * this client missed, ahead of any others. Must be called after a
+	 * successful handshake and before {@link #start()}.
+	 * 
+	 * @throws IOException
+	 *             if the connection is already closed.
+	 */
+	void resumeSession() throws IOException {
+		if (this.session != null) {
+			this.outbound.offerAll(this.session.attach(this,
+					this.resumeToken, this.resumeSequence, this.resumeAcks));
+		}
+	}
+
 	/**
 	 * Causes this clinet to close its socket and kill any running threads it
-	 * may have started.
+	 * may have started. Waits up to {@link #LINGER_MILLIS} for queued control
+	 * and interactive messages (such as a disconnect message) to be written
+	 * first; queued fragments are dropped.
 	 */
 	public void disconnect() {
 		this.keepRunning = false;
+		this.lost.set(true);
+		this.outbound.close();
+		ClientChannel channel = this.channel;
+		Thread writer = this.writerThread;
+		if (channel != null) {
+			channel.awaitFlushed(LINGER_MILLIS);
+		} else if (writer != null && writer != Thread.currentThread()) {
+			try {
+				writer.join(LINGER_MILLIS);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		// Close the socket if it isn't already closed
 		if (this.socket != null && !this.socket.isClosed()) {
 			try {
@@ -268,6 +656,236 @@ public class Client extends Thread {
 			// This shouldn't happen, but print an error message just in case
 			log.warning("Already disconnected?");
 		}
+		if (channel != null) {
+			channel.shutdown();
+		}
+		this.closeTransfers();
+	}
+
+	/**
+	 * Closes the files of all unfinished transfers. Partly received files are
+	 * kept so that the transfers can be resumed.
+	 */
+	protected void closeTransfers() {
+		for (FileTransfer transfer : this.outgoingFiles.values()) {
+			transfer.close();
+		}
+		this.outgoingFiles.clear();
+		for (FileTransfer transfer : this.incomingFiles.values()) {
+			transfer.close();
+		}
+		this.incomingFiles.clear();
+		this.fileOffers.clear();
+	}
+
+	/**
+	 * Offers a file to this client. The file is sent once the client accepts
+	 * it.
+	 * 
+	 * @param file
+	 *            the file to offer.
+	 * @return the outgoing transfer.
+	 * @throws IOException
+	 *             if the file cannot be opened or the offer cannot be sent.
+	 */
+	public FileTransfer offerFile(final File file) throws IOException {
+		FileTransfer transfer = FileTransfer.send(file);
+		this.outgoingFiles.put(Long.valueOf(transfer.getTransferId()), transfer);
+		try {
+			this.send(new FileOfferMessage(transfer.getTransferId(), transfer
+					.getSize(), transfer.getName()));
+		} catch (IOException ioe) {
+			this.outgoingFiles.remove(Long.valueOf(transfer.getTransferId()));
+			transfer.close();
+			throw ioe;
+		}
+		return transfer;
+	}
+
+	/**
+	 * Accepts a file offered by this client and saves it in a directory,
+	 * resuming from a partly received copy if there is one.
+	 * 
+	 * @param transferId
+	 *            the identifier from the offer.
+	 * @param directory
+	 *            the directory to save the file in.
+	 * @return the incoming transfer, or null if this client did not offer
+	 *         the file.
+	 * @throws IOException
+	 *             if the file cannot be opened or the answer cannot be sent.
+	 */
+	public FileTransfer acceptFile(final long transferId, final File directory)
+			throws IOException {
+		FileOfferMessage offer = this.fileOffers.remove(Long.valueOf(transferId));
+		if (offer == null) {
+			return null;
+		}
+		FileTransfer transfer = FileTransfer.receive(offer, directory);
+		if (!transfer.isComplete()) {
+			this.incomingFiles.put(Long.valueOf(transferId), transfer);
+		}
+		try {
+			this.send(new FileAcceptMessage(transferId, transfer.getPosition()));
+		} catch (IOException ioe) {
+			this.incomingFiles.remove(Long.valueOf(transferId));
+			transfer.close();
+			throw ioe;
+		}
+		if (transfer.isComplete()) {
+			this.finishTransfer(transfer);
+		}
+		return transfer;
+	}
+
+	/**
+	 * Returns true if this client offered a file with the identifier that has
+	 * not been accepted yet.
+	 * 
+	 * @param transferId
+	 *            the identifier from the offer.
+	 * @return true if the offer is waiting to be accepted.
+	 */
+	public boolean hasFileOffer(final long transferId) {
+		return this.fileOffers.containsKey(Long.valueOf(transferId));
+	}
+
+	/**
+	 * Starts sending an offered file from the offset the client asked for.
+	 * 
+	 * @param accept
+	 *            the client's answer to the offer.
+	 * @throws IOException
+	 *             if the first chunk cannot be queued.
+	 */
+	protected void startTransfer(final FileAcceptMessage accept)
+			throws IOException {
+		FileTransfer transfer = this.outgoingFiles.get(Long.valueOf(accept
+				.getTransferId()));
+		if (transfer == null) {
+			log.warning(this + " accepted an unknown file: " + accept);
+			return;
+		}
+		try {
+			transfer.start(accept.getOffset());
+		} catch (IOException ioe) {
+			log.warning(this + ": " + ioe.getMessage());
+			this.outgoingFiles.remove(Long.valueOf(transfer.getTransferId()));
+			transfer.close();
+			return;
+		}
+		this.sendNextChunk(transfer);
+	}
+
+	/**
+	 * Queues the next chunk of an outgoing file at the end of the bulk lane,
+	 * so that several transfers (and large messages) take turns, or finishes
+	 * the transfer if every byte has been sent.
+	 * 
+	 * @param transfer
+	 *            the outgoing transfer.
+	 * @throws IOException
+	 *             if the chunk cannot be queued.
+	 */
+	protected void sendNextChunk(final FileTransfer transfer)
+			throws IOException {
+		FileChunkMessage chunk = transfer.nextChunk();
+		if (chunk == null) {
+			this.outgoingFiles.remove(Long.valueOf(transfer.getTransferId()));
+			this.finishTransfer(transfer);
+			return;
+		}
+		this.outbound.offer(OutboundQueue.Lane.BULK, chunk);
+	}
+
+	/**
+	 * Reads the data of a file chunk straight from the socket into the file.
+	 * Data for unknown or out-of-order chunks is skipped.
+	 * 
+	 * @param chunk
+	 *            the chunk header that was just read.
+	 * @param in
+	 *            the channel to read the data from.
+	 * @throws IOException
+	 *             if the data cannot be read or written.
+	 */
+	protected void receiveChunk(final FileChunkMessage chunk,
+			final ReadableByteChannel in) throws IOException {
+		FileTransfer transfer = this.expectChunk(chunk);
+		if (transfer == null) {
+			DataInputStream din = new DataInputStream(this.socket
+					.getInputStream());
+			for (int remaining = chunk.getDataLength(); remaining > 0;) {
+				int skipped = din.skipBytes(remaining);
+				if (skipped <= 0) {
+					din.readByte();
+					skipped = 1;
+				}
+				remaining -= skipped;
+			}
+			return;
+		}
+		transfer.readChunk(chunk, in);
+		this.chunkReceived(transfer);
+	}
+
+	/**
+	 * Returns the transfer a received chunk belongs to, if the chunk is the
+	 * next one it expects. A transfer receiving an out-of-order chunk is
+	 * stopped.
+	 * 
+	 * @param chunk
+	 *            the chunk header that was just read.
+	 * @return the transfer to write the chunk's data to, or null if the data
+	 *         should be skipped.
+	 */
+	protected FileTransfer expectChunk(final FileChunkMessage chunk) {
+		Long key = Long.valueOf(chunk.getTransferId());
+		FileTransfer transfer = this.incomingFiles.get(key);
+		if (transfer == null
+				|| chunk.getOffset() != transfer.getPosition()
+				|| chunk.getOffset() + chunk.getDataLength() > transfer
+						.getSize()) {
+			if (transfer != null) {
+				log.warning("Stopping " + transfer + " after " + chunk);
+				this.incomingFiles.remove(key);
+				transfer.close();
+			}
+			return null;
+		}
+		return transfer;
+	}
+
+	/**
+	 * Finishes a transfer once the data of its last chunk has been read.
+	 * 
+	 * @param transfer
+	 *            the transfer a chunk was just read for.
+	 */
+	protected void chunkReceived(final FileTransfer transfer) {
+		if (transfer.isComplete()) {
+			this.incomingFiles.remove(Long.valueOf(transfer.getTransferId()));
+			this.finishTransfer(transfer);
+		}
+	}
+
+	/**
+	 * Closes a transfer's file and tells the listeners it is done. If a
+	 * received file cannot be renamed it keeps its ".part" name.
+	 * 
+	 * @param transfer
+	 *            the finished transfer.
+	 */
+	protected void finishTransfer(final FileTransfer transfer) {
+		try {
+			transfer.finish();
+		} catch (IOException ioe) {
+			log.warning("Unable to finish " + transfer + ": "
+					+ ioe.getMessage());
+		}
+		for (MessageListener listener : this.listeners) {
+			listener.fileTransferFinished(this, transfer);
+		}
 	}
 
 	/**
@@ -278,11 +896,24 @@ public class Client extends Thread {
 	 * @throws IOException
 	 *             if an IOException is thrown when writing the message.
 	 */
-	public synchronized void sendMessage(final String message)
+	public void sendMessage(final String message)
 			throws IOException {
 		ChatMessage cMessage = new ChatMessage(System.currentTimeMillis(),
 				this.localUsername, message);
-		AbstractMessage.encodeMessage(cMessage, this.socket.getOutputStream());
+		this.sendMessage(cMessage);
+	}
+
+	/**
+	 * Sends an already-built chat message to this client. Used when the same
+	 * message (and message identifier) is sent to several clients.
+	 * 
+	 * @param message
+	 *            the message to send.
+	 * @throws IOException
+	 *             if an IOException is thrown when writing the message.
+	 */
+	public void sendMessage(final ChatMessage message) throws IOException {
+		this.send(message);
 	}
 	
 	/**
@@ -293,13 +924,79 @@ public class Client extends Thread {
    * @throws IOException
    *             if an IOException is thrown when writing the message.
    */
-  public synchronized void sendPrivateMessage(final String message)
+  public void sendPrivateMessage(final String message)
       throws IOException {
     PrivateChatMessage cMessage = new PrivateChatMessage(System.currentTimeMillis(),
         this.localUsername, message);
-    AbstractMessage.encodeMessage(cMessage, this.socket.getOutputStream());
+    this.sendPrivateMessage(cMessage);
+  }
+
+  /**
+   * Sends an already-built private chat message to this client.
+   * 
+   * @param message
+   *            the message to send.
+   * @throws IOException
+   *             if an IOException is thrown when writing the message.
+   */
+  public void sendPrivateMessage(final PrivateChatMessage message)
+      throws IOException {
+    this.send(message);
   }
 
+	/**
+	 * Sends a routed private chat message to this client, which is either the
+	 * destination or the next hop toward it.
+	 * 
+	 * @param message
+	 *            the message to send.
+	 * @throws IOException
+	 *             if an IOException is thrown when writing the message.
+	 */
+	public void sendRoutedPrivateMessage(final RoutedPrivateMessage message)
+			throws IOException {
+		this.send(message);
+	}
+
+	/**
+	 * Sends a room chat message to this client.
+	 * 
+	 * @param message
+	 *            the message to send.
+	 * @throws IOException
+	 *             if an IOException is thrown when writing the message.
+	 */
+	public void sendRoomMessage(final RoomChatMessage message)
+			throws IOException {
+		this.send(message);
+	}
+
+	/**
+	 * Asks this client for the messages it stored since a time.
+	 * 
+	 * @param message
+	 *            the request to send.
+	 * @throws IOException
+	 *             if an IOException is thrown when writing the message.
+	 */
+	public void sendHistoryRequest(final HistoryRequestMessage message)
+			throws IOException {
+		this.send(message);
+	}
+
+	/**
+	 * Tells this client that the local client joined or left a room.
+	 * 
+	 * @param message
+	 *            the subscription change to send.
+	 * @throws IOException
+	 *             if an IOException is thrown when writing the message.
+	 */
+	public void sendSubscription(final SubscriptionMessage message)
+			throws IOException {
+		this.send(message);
+	}
+
 	/**
 	 * Sends a client exchange message to this client.
 	 * 
@@ -308,12 +1005,11 @@ public class Client extends Thread {
 	 * @throws IOException
 	 *             if an IOException is thrown when writing the message.
 	 */
-	public synchronized void sendClient(final Client otherClient)
-			throws IOException {
+	public void sendClient(final Client otherClient) throws IOException {
 		ClientExchangeMessage cMessage = new ClientExchangeMessage(otherClient
 				.getIpAddress(), otherClient.getPort(), otherClient
 				.getUsername());
-		AbstractMessage.encodeMessage(cMessage, this.socket.getOutputStream());
+		this.send(cMessage);
 	}
 
 	/**
@@ -322,9 +1018,30 @@ public class Client extends Thread {
 	 * @throws IOException
 	 *             if an IOException is thrown when writing the message.
 	 */
-	public synchronized void sendDisconnectMessage() throws IOException {
-		AbstractMessage.encodeMessage(AbstractMessage.DISCONNECT_MESSAGE,
-				this.socket.getOutputStream());
+	public void sendDisconnectMessage() throws IOException {
+		// The remote client may close the socket as soon as this is written
+		this.lost.set(true);
+		if (this.session != null) {
+			// Otherwise the sender fails the messages read since the last ack
+			this.session.flushAck();
+		}
+		this.send(AbstractMessage.DISCONNECT_MESSAGE);
+	}
+
+	/**
+	 * Sends an acknowledgement of the chat messages read from this client,
+	 * ahead of other queued messages. Dropped if the connection is closed,
+	 * since the next connection names the last message read instead.
+	 * 
+	 * @param ack
+	 *            the acknowledgement.
+	 */
+	void sendAck(final AckMessage ack) {
+		try {
+			this.outbound.offerAll(Collections.singletonList(ack));
+		} catch (SocketException se) {
+			log.fine("Not acknowledging " + this + ", connection closed.");
+		}
 	}
 
 	/**
@@ -333,9 +1050,180 @@ public class Client extends Thread {
 	 * @throws IOException
 	 *             if an IOException is thrown when writing the message.
 	 */
-	public synchronized void sendKeepAliveMessage() throws IOException {
-		AbstractMessage.encodeMessage(AbstractMessage.KEEPALIVE_MESSAGE,
-				this.socket.getOutputStream());
+	public void sendKeepAliveMessage() throws IOException {
+		this.send(AbstractMessage.KEEPALIVE_MESSAGE);
+	}
+
+	/**
+	 * Queues a message for the writer. Messages too large for one
+	 * frame are split into fragments and queued in the bulk lane. Errors
+	 * while writing are reported to the listeners as a disconnect.
+	 * 
+	 * @param message
+	 *            the message to send.
+	 * @throws IOException
+	 *             if the connection is already closed or the message cannot
+	 *             be encoded.
+	 */
+	protected void send(final AbstractMessage message) throws IOException {
+		List<FragmentMessage> fragments = FragmentMessage.split(message);
+		if (fragments == null) {
+			this.queue(Collections.singletonList(message));
+			return;
+		}
+		this.queue(fragments);
+	}
+
+	/**
+	 * Queues a message for the writer, followed by a receipt that
+	 * completes the result for this client once the message is flushed.
+	 * 
+	 * @param message
+	 *            the message to send.
+	 * @param result
+	 *            the result to complete.
+	 * @throws IOException
+	 *             if the connection is already closed or the message cannot
+	 *             be encoded. The result is not told in this case.
+	 */
+	protected void send(final AbstractMessage message, final SendResult result)
+			throws IOException {
+		this.send(Collections.singletonList(message), Collections
+				.singletonList(result));
+	}
+
+	/**
+	 * Queues several messages for the writer, each followed by a
+	 * receipt for its result. The queue is locked once for the whole batch,
+	 * and either every message is queued or none are.
+	 * 
+	 * @param messages
+	 *            the messages to send, in order.
+	 * @param results
+	 *            the result for each message.
+	 * @throws IOException
+	 *             if the connection is already closed or a message cannot be
+	 *             encoded. The results are not told in this case.
+	 */
+	protected void send(final List<? extends AbstractMessage> messages,
+			final List<SendResult> results) throws IOException {
+		List<AbstractMessage> queued = new ArrayList<AbstractMessage>(
+				messages.size() * 2);
+		for (int i = 0; i < messages.size(); ++i) {
+			AbstractMessage message = messages.get(i);
+			List<FragmentMessage> fragments = FragmentMessage.split(message);
+			OutboundQueue.Lane lane;
+			if (fragments == null) {
+				queued.add(message);
+				lane = OutboundQueue.laneOf(message);
+			} else {
+				queued.addAll(fragments);
+				lane = OutboundQueue.Lane.BULK;
+			}
+			queued.add(new WriteReceipt(this, results.get(i), lane));
+		}
+		this.queue(queued);
+	}
+
+	/**
+	 * Queues messages for the writer, numbering the chat messages in
+	 * this client's session if it has one.
+	 * 
+	 * @param messages
+	 *            the messages, fragments and receipts to queue, in order.
+	 * @throws IOException
+	 *             if the connection is already closed.
+	 */
+	protected void queue(final List<? extends AbstractMessage> messages)
+			throws IOException {
+		if (this.session != null) {
+			this.session.queue(this, messages, this.outbound);
+		} else {
+			this.outbound.offerAll(messages);
+		}
+	}
+
+	/**
+	 * Writes queued messages to the socket until the queue is closed and
+	 * empty. Each message is written with a single flush of a buffered
+	 * stream, rather than one write per field.
+	 */
+	protected void write() {
+		try {
+			OutputStream out = new BufferedOutputStream(this.socket
+					.getOutputStream(), FragmentMessage.MAX_CHUNK_SIZE
+					+ MessageView.HEADER_LENGTH + FragmentMessage.FIELDS_LENGTH);
+			// File data bypasses the buffer when the socket has a channel
+			WritableByteChannel fileOut = this.socket.getChannel() != null ? this.socket
+					.getChannel()
+					: Channels.newChannel(out);
+			AbstractMessage message;
+			while ((message = this.outbound.poll(Long.MAX_VALUE)) != null) {
+				if (message instanceof WriteReceipt) {
+					// Every message before it has been flushed
+					((WriteReceipt) message).written();
+					continue;
+				}
+				FileTransfer transfer = null;
+				if (message instanceof FileChunkMessage) {
+					transfer = this.outgoingFiles.get(Long
+							.valueOf(((FileChunkMessage) message)
+									.getTransferId()));
+					if (transfer == null) {
+						// Closed since the chunk was queued
+						continue;
+					}
+				}
+				this.writeLock.lock();
+				try {
+					AbstractMessage.encodeMessage(message, out);
+					if (transfer != null) {
+						transfer.writeChunk((FileChunkMessage) message, fileOut);
+						out.flush();
+					}
+				} finally {
+					this.writeLock.unlock();
+				}
+				if (transfer != null) {
+					this.sendNextChunk(transfer);
+				}
+			}
+		} catch (IOException ioe) {
+			this.connectionLost("Caught exception while writing to client: "
+					+ ioe.getMessage());
+		} catch (InterruptedException ie) {
+			this.connectionLost("Interrupted while writing to client.");
+		} finally {
+			// Nothing left in the queue will be written
+			this.outbound.clear();
+		}
+	}
+
+	/**
+	 * Stops both threads, or reading and writing on the loop, and tells the
+	 * listeners that the connection is gone, unless that has already been
+	 * done.
+	 * 
+	 * @param reason
+	 *            why the connection was lost, for the log.
+	 */
+	protected void connectionLost(final String reason) {
+		this.keepRunning = false;
+		this.outbound.close();
+		ClientChannel channel = this.channel;
+		if (channel != null) {
+			channel.shutdown();
+		}
+		this.closeTransfers();
+		if (!this.lost.compareAndSet(false, true)) {
+			return;
+		}
+		if (reason != null) {
+			log.warning(this + ": " + reason);
+		}
+		for (MessageListener listener : this.listeners) {
+			listener.disconnectMessageArrived(this);
+		}
 	}
 
 	/**
@@ -359,56 +1247,298 @@ public class Client extends Thread {
 	}
 
 	/**
-	 * Reads messages from this client's socket. If no message is decoded, waits
-	 * 5ms and tries again.
+	 * Starts the threads that read messages from and write messages to this
+	 * client.
+	 */
+	public void start() {
+		this.writerThread = Threads.newThread(new Runnable() {
+			@Override
+			public void run() {
+				Client.this.write();
+			}
+		}, "Writer-" + this);
+		this.writerThread.start();
+		this.readerThread = Threads.newThread(this, "Client-" + this);
+		this.readerThread.start();
+	}
+
+	/**
+	 * Starts reading messages from and writing messages to this client on an
+	 * event loop, which it stays on until it disconnects. Uses threads, as
+	 * {@link #start()} does, if there is no loop or the socket has no
+	 * channel.
+	 * 
+	 * @param loop
+	 *            the loop, or null to use threads.
+	 */
+	public void start(final EventLoop loop) {
+		SocketChannel socketChannel = this.socket.getChannel();
+		if (loop == null || socketChannel == null) {
+			this.start();
+			return;
+		}
+		try {
+			socketChannel.configureBlocking(false);
+		} catch (IOException ioe) {
+			log.warning("Unable to move " + this + " to " + loop.getName()
+					+ ", using threads: " + ioe.getMessage());
+			this.start();
+			return;
+		}
+		final ClientChannel channel = new ClientChannel(this, loop,
+				socketChannel);
+		this.channel = channel;
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				channel.register();
+			}
+		});
+	}
+
+	/**
+	 * Returns the event loop this client is read and written by.
+	 * 
+	 * @return the client's loop, or null if it uses threads.
+	 */
+	public EventLoop getLoop() {
+		ClientChannel channel = this.channel;
+		return channel == null ? null : channel.getLoop();
+	}
+
+	/**
+	 * Reads messages from this client's socket. Each read blocks until a
+	 * complete message arrives. Each message is charged to the inbound account
+	 * until it has been passed to the listeners.
 	 */
 	@Override
 	public void run() {
+		DataInputStream in;
+		ReadableByteChannel fileIn;
+		try {
+			in = new DataInputStream(this.socket.getInputStream());
+			// File data bypasses the stream when the socket has a channel
+			fileIn = this.socket.getChannel() != null ? this.socket
+					.getChannel() : Channels.newChannel(this.socket
+					.getInputStream());
+		} catch (IOException ioe) {
+			this.connectionLost("Unable to read from client: "
+					+ ioe.getMessage());
+			return;
+		}
 		// Keep running until disconnect() is called
 		while (this.keepRunning) {
 			try {
-				final AbstractMessage message = AbstractMessage
-						.decodeMessage(this.socket.getInputStream());
-
+				AbstractMessage message = AbstractMessage.decodeMessage(in,
+						this.frameLimits, this.inbound);
 				if (message == null) {
-					// Nothing received, try again?
-					try {
-						Thread.sleep(5);
-					} catch (InterruptedException ie) {
-						// Ignore interrupts
-					}
+					// Unknown or refused message
 					continue;
 				}
-				if (message.getType() == AbstractMessage.TYPE_CHAT_MESSAGE) {
-					for (MessageListener listener : Client.this.listeners) {
-						listener.chatMessageArrived(Client.this,
-								(ChatMessage) message);
+				try {
+					if (this.rateLimiter != null
+							&& !(message instanceof FileChunkMessage)) {
+						this.throttle(message.getLength() + 4);
 					}
-				} else if (message.getType() == AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE) {
-					for (MessageListener listener : Client.this.listeners) {
-						listener.clientMessageArrived(Client.this,
-								(ClientExchangeMessage) message);
+					this.handle(message, fileIn);
+				} finally {
+					if (this.inbound != null) {
+						this.inbound.release(message.getBufferedLength());
 					}
-				} else if (message.getType() == AbstractMessage.TYPE_DISCONNECT_MESSAGE) {
-					for (MessageListener listener : Client.this.listeners) {
-						listener.disconnectMessageArrived(Client.this);
-					}
-
-				}else if(message.getType() == AbstractMessage.TYPE_PRIVATE_CHAT_MESSAGE){
-				  for (MessageListener listener : Client.this.listeners) {
-            listener.privateChatMessageArrived(Client.this,(PrivateChatMessage)message);
-          }
 				}
-
 			} catch (Exception e) {
-				this.keepRunning = false;
-				log.warning(this
-						+ ": Caught exception while reading from client: " + e.getMessage());
-				for (MessageListener listener : Client.this.listeners) {
-					listener.disconnectMessageArrived(this);
+				this.connectionLost("Caught exception while reading from client: "
+						+ e.getMessage());
+			}
+		}
+		// Only this thread charges the account, so it can be closed now
+		if (this.inbound != null) {
+			this.inbound.close();
+		}
+	}
+
+	/**
+	 * Waits until the rate limiter admits a message of the specified size.
+	 * 
+	 * @param size
+	 *            the size of the message's frame.
+	 * @throws InterruptedException
+	 *             if the reader is interrupted while waiting.
+	 */
+	protected void throttle(final int size) throws InterruptedException {
+		long delay;
+		while ((delay = this.admit(size)) > 0) {
+			Thread.sleep(delay);
+		}
+	}
+
+	/**
+	 * Asks the rate limiter to admit a message of the specified size, logging
+	 * when this client starts and stops being throttled.
+	 * 
+	 * @param size
+	 *            the size of the message's frame.
+	 * @return 0 if the message was admitted, or how long to wait before
+	 *         asking again, in milliseconds.
+	 */
+	protected long admit(final int size) {
+		long delay = this.rateLimiter.admit(size, System.nanoTime());
+		if (delay == 0) {
+			if (this.throttling) {
+				this.throttling = false;
+				log.info("No longer throttling " + this + " ("
+						+ this.rateLimiter.getThrottledCount()
+						+ " messages delayed so far).");
+			}
+		} else if (!this.throttling) {
+			this.throttling = true;
+			log.info("Throttling " + this
+					+ ": messages are arriving faster than allowed.");
+		}
+		return delay;
+	}
+
+	/**
+	 * Handles a message read from the socket: file data is written to its
+	 * file, fragments are reassembled, and everything else is passed to the
+	 * listeners.
+	 * 
+	 * @param message
+	 *            the message that was read.
+	 * @param fileIn
+	 *            the channel to read file data from, or null on a loop, which
+	 *            reads file data itself.
+	 * @throws IOException
+	 *             if the message cannot be handled.
+	 */
+	protected void handle(final AbstractMessage message,
+			final ReadableByteChannel fileIn) throws IOException {
+		if (message instanceof FileChunkMessage) {
+			this.receiveChunk((FileChunkMessage) message, fileIn);
+			return;
+		}
+		if (this.session != null && Session.isSequenced(message)) {
+			AckMessage ack = this.session.received(this);
+			if (ack != null) {
+				this.sendAck(ack);
+			}
+		}
+		if (message instanceof FragmentMessage) {
+			AbstractMessage whole = this.reassembler
+					.add((FragmentMessage) message);
+			if (whole != null) {
+				try {
+					this.dispatch(whole);
+				} finally {
+					if (this.inbound != null) {
+						this.inbound.release(whole.getBufferedLength());
+					}
 				}
+			}
+			return;
+		}
+		this.dispatch(message);
+	}
 
+	/**
+	 * Passes a received message to the listeners.
+	 * 
+	 * @param message
+	 *            the message that arrived.
+	 * @throws IOException
+	 *             if an accepted file cannot be started.
+	 */
+	protected void dispatch(final AbstractMessage message) throws IOException {
+		if (message.getType() == AbstractMessage.TYPE_CHAT_MESSAGE) {
+			for (MessageListener listener : Client.this.listeners) {
+				listener.chatMessageArrived(Client.this, (ChatMessage) message);
+			}
+		} else if (message.getType() == AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE) {
+			for (MessageListener listener : Client.this.listeners) {
+				listener.clientMessageArrived(Client.this,
+						(ClientExchangeMessage) message);
+			}
+		} else if (message.getType() == AbstractMessage.TYPE_DISCONNECT_MESSAGE) {
+			// The remote side closes the socket next, so stop reading
+			this.quit = true;
+			this.connectionLost(null);
+		} else if (message.getType() == AbstractMessage.TYPE_PRIVATE_CHAT_MESSAGE) {
+			for (MessageListener listener : Client.this.listeners) {
+				listener.privateChatMessageArrived(Client.this,
+						(PrivateChatMessage) message);
+			}
+		} else if (message.getType() == AbstractMessage.TYPE_ROOM_CHAT_MESSAGE) {
+			for (MessageListener listener : Client.this.listeners) {
+				listener.roomMessageArrived(Client.this, (RoomChatMessage) message);
+			}
+		} else if (message.getType() == AbstractMessage.TYPE_SUBSCRIPTION_MESSAGE) {
+			for (MessageListener listener : Client.this.listeners) {
+				listener.subscriptionMessageArrived(Client.this,
+						(SubscriptionMessage) message);
+			}
+		} else if (message.getType() == AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE) {
+			for (MessageListener listener : Client.this.listeners) {
+				listener.routedPrivateMessageArrived(Client.this,
+						(RoutedPrivateMessage) message);
 			}
+		} else if (message.getType() == AbstractMessage.TYPE_FILE_OFFER_MESSAGE) {
+			FileOfferMessage offer = (FileOfferMessage) message;
+			this.fileOffers.put(Long.valueOf(offer.getTransferId()), offer);
+			for (MessageListener listener : Client.this.listeners) {
+				listener.fileOfferArrived(Client.this, offer);
+			}
+		} else if (message.getType() == AbstractMessage.TYPE_FILE_ACCEPT_MESSAGE) {
+			this.startTransfer((FileAcceptMessage) message);
+		} else if (message.getType() == AbstractMessage.TYPE_HISTORY_REQUEST_MESSAGE) {
+			for (MessageListener listener : Client.this.listeners) {
+				listener.historyRequestArrived(Client.this,
+						(HistoryRequestMessage) message);
+			}
+		} else if (message.getType() == AbstractMessage.TYPE_HISTORY_BATCH_MESSAGE) {
+			for (MessageListener listener : Client.this.listeners) {
+				listener.historyBatchArrived(Client.this,
+						(HistoryBatchMessage) message);
+			}
+		} else if (message.getType() == AbstractMessage.TYPE_SESSION_MESSAGE) {
+			if (this.session != null) {
+				this.session.started(this, (SessionMessage) message);
+			}
+		} else if (message.getType() == AbstractMessage.TYPE_ACK_MESSAGE) {
+			if (this.session != null) {
+				this.session.acknowledged(this, (AckMessage) message);
+			}
+		}
+	}
+
+	/**
+	 * Records whether this client is subscribed to a room.
+	 * @param roomId the local identifier of the room.
+	 * @param subscribed true if the client joined the room, false if it left.
+	 */
+	public void setSubscribed(final int roomId, final boolean subscribed) {
+		synchronized (this.rooms) {
+			this.rooms.set(roomId, subscribed);
+		}
+	}
+
+	/**
+	 * Returns the number of rooms this client is subscribed to.
+	 * @return the number of rooms this client is subscribed to.
+	 */
+	public int getSubscriptionCount() {
+		synchronized (this.rooms) {
+			return this.rooms.cardinality();
+		}
+	}
+
+	/**
+	 * Returns true if this client is subscribed to the room.
+	 * @param roomId the local identifier of the room.
+	 * @return true if this client is subscribed to the room.
+	 */
+	public boolean isSubscribed(final int roomId) {
+		synchronized (this.rooms) {
+			return this.rooms.get(roomId);
 		}
 	}
 
@@ -444,6 +1574,24 @@ public class Client extends Thread {
 		return this.port;
 	}
 
+	/**
+	 * Returns true if the remote client connected to us, false if we
+	 * connected to it.
+	 * @return true if the connection was accepted.
+	 */
+	public boolean isAccepted() {
+		return this.accepted;
+	}
+
+	/**
+	 * Returns true if the remote client said it was leaving, false if its
+	 * connection failed or is still open.
+	 * @return true if the remote client quit.
+	 */
+	public boolean hasQuit() {
+		return this.quit;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (o instanceof Client)
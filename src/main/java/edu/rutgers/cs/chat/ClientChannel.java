@@ -0,0 +1,758 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.messaging.AbstractMessage;
+import edu.rutgers.cs.chat.messaging.FileChunkMessage;
+import edu.rutgers.cs.chat.messaging.FrameLimits;
+import edu.rutgers.cs.chat.messaging.MessageView;
+import edu.rutgers.cs.chat.net.EventHandler;
+import edu.rutgers.cs.chat.net.EventLoop;
+
+/**
+ * Reads and writes a {@link Client}'s socket on the event loop it was
+ * assigned to, in place of a reader and a writer thread. Everything except
+ * {@link #wakeup()}, {@link #awaitFlushed(long)} and {@link #shutdown()} runs
+ * on the loop's thread, so the read and write state needs no locks. Messages
+ * sent from other threads are added to the client's {@link OutboundQueue},
+ * which hands the write to the loop through the loop's task queue.
+ * 
+ * A message is decoded once its whole frame has been read, with the same
+ * limits and memory account as the reader thread uses. File data is written
+ * to its file as it arrives. When the client's rate limit is reached, the
+ * loop stops reading from the socket and a timer starts it again, so the
+ * client is slowed down by TCP flow control rather than having its messages
+ * dropped.
+ * 
+ * @author Robert Moore
+ * 
+ */
+class ClientChannel implements EventHandler {
+
+	/**
+	 * Logging for this class.
+	 */
+	private static final Logger log = Logger.getLogger(ClientChannel.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Initial size of the read buffer. It grows to hold the largest message
+	 * read, and shrinks back once it is empty.
+	 */
+	protected static final int BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Most bytes of queued messages encoded for a single write.
+	 */
+	protected static final int WRITE_BATCH = 64 * 1024;
+
+	/**
+	 * The client being read and written.
+	 */
+	protected final Client client;
+
+	/**
+	 * The loop the client stays on.
+	 */
+	protected final EventLoop loop;
+
+	/**
+	 * The client's socket, in non-blocking mode.
+	 */
+	protected final SocketChannel channel;
+
+	/**
+	 * The channel's selection key, set once it is registered.
+	 */
+	protected SelectionKey key = null;
+
+	/**
+	 * Bytes read from the socket that have not been handled yet. Kept ready
+	 * for the next read between events.
+	 */
+	protected ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/**
+	 * Bytes of a refused message still to be skipped.
+	 */
+	protected int skipping = 0;
+
+	/**
+	 * Bytes of file data still to be read for the current chunk.
+	 */
+	protected int chunkRemaining = 0;
+
+	/**
+	 * The transfer the current chunk's data is written to, or null if the
+	 * data is being skipped.
+	 */
+	protected FileTransfer chunkTransfer = null;
+
+	/**
+	 * A message waiting for the rate limiter, or null. Nothing is read while
+	 * a message is held.
+	 */
+	protected AbstractMessage held = null;
+
+	/**
+	 * Encodes queued messages for writing. Starts small, since most peers
+	 * are idle, and grows to the largest batch written.
+	 */
+	protected final FrameBuffer out = new FrameBuffer(1024);
+
+	/**
+	 * Encoded messages not yet written, or null.
+	 */
+	protected ByteBuffer pending = null;
+
+	/**
+	 * Receipts for the messages in {@link #pending}, completed once it has
+	 * been written.
+	 */
+	protected final List<WriteReceipt> receipts = new ArrayList<WriteReceipt>();
+
+	/**
+	 * The file chunk whose data is being written, or null.
+	 */
+	protected FileChunkMessage sending = null;
+
+	/**
+	 * The transfer the chunk being written belongs to.
+	 */
+	protected FileTransfer sendingTransfer = null;
+
+	/**
+	 * Offset in the file of the next byte of the chunk to write.
+	 */
+	protected long sendingOffset = 0;
+
+	/**
+	 * Set while a write is waiting in the loop's task queue, so a burst of
+	 * sends from other threads queues only one.
+	 */
+	protected final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+	/**
+	 * Released once the outbound queue has been closed and everything left
+	 * in it was written, or the channel was shut down.
+	 */
+	protected final CountDownLatch flushed = new CountDownLatch(1);
+
+	/**
+	 * Set once the channel has been shut down. Only used by the loop.
+	 */
+	protected boolean stopped = false;
+
+	/**
+	 * Writes queued messages. Run by the loop after messages are queued.
+	 */
+	protected final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			ClientChannel.this.flushScheduled.set(false);
+			ClientChannel.this.flush();
+		}
+	};
+
+	/**
+	 * Handles the held message once the rate limiter admits it.
+	 */
+	protected final Runnable resumeTask = new Runnable() {
+		@Override
+		public void run() {
+			ClientChannel.this.resume();
+		}
+	};
+
+	/**
+	 * A byte array stream whose contents can be written without copying
+	 * them.
+	 */
+	protected static final class FrameBuffer extends ByteArrayOutputStream {
+
+		/**
+		 * Creates a stream with an initial capacity.
+		 * 
+		 * @param size
+		 *            the initial capacity in bytes.
+		 */
+		FrameBuffer(final int size) {
+			super(size);
+		}
+
+		/**
+		 * Returns a buffer over the bytes written so far. The buffer is only
+		 * valid until the stream is reset.
+		 * 
+		 * @return the written bytes.
+		 */
+		ByteBuffer toBuffer() {
+			return ByteBuffer.wrap(this.buf, 0, this.count);
+		}
+	}
+
+	/**
+	 * Creates a channel for a client whose handshake has been exchanged. The
+	 * client's messages are read once {@link #register()} has run on the
+	 * loop.
+	 * 
+	 * @param client
+	 *            the client.
+	 * @param loop
+	 *            the loop the client stays on.
+	 * @param channel
+	 *            the client's socket, already in non-blocking mode.
+	 */
+	ClientChannel(final Client client, final EventLoop loop,
+			final SocketChannel channel) {
+		this.client = client;
+		this.loop = loop;
+		this.channel = channel;
+		client.outbound.setWakeup(new Runnable() {
+			@Override
+			public void run() {
+				ClientChannel.this.wakeup();
+			}
+		});
+	}
+
+	/**
+	 * Registers the socket with the loop and writes anything already queued.
+	 * Must run on the loop.
+	 */
+	void register() {
+		if (this.stopped) {
+			return;
+		}
+		try {
+			this.key = this.loop.register(this.channel, SelectionKey.OP_READ,
+					this);
+		} catch (IOException ioe) {
+			this.client.connectionLost("Unable to register with "
+					+ this.loop.getName() + ": " + ioe.getMessage());
+			return;
+		}
+		this.flush();
+	}
+
+	/**
+	 * Returns the loop the client stays on.
+	 * 
+	 * @return the client's loop.
+	 */
+	EventLoop getLoop() {
+		return this.loop;
+	}
+
+	@Override
+	public void handleEvent(final SelectionKey key) {
+		if (key.isValid() && key.isWritable()) {
+			this.flush();
+		}
+		if (key.isValid() && key.isReadable()) {
+			this.read();
+		}
+	}
+
+	/**
+	 * Reads what the socket has and handles every complete message.
+	 */
+	protected void read() {
+		try {
+			if (this.channel.read(this.in) < 0) {
+				this.client.connectionLost("Connection closed by client.");
+				return;
+			}
+			this.process();
+		} catch (Exception e) {
+			this.client.connectionLost("Caught exception while reading from client: "
+					+ e.getMessage());
+		}
+	}
+
+	/**
+	 * Handles the bytes in the read buffer until more are needed, the rate
+	 * limiter holds a message, or the connection is closed.
+	 * 
+	 * @throws IOException
+	 *             if a message is malformed or cannot be handled.
+	 */
+	protected void process() throws IOException {
+		this.in.flip();
+		try {
+			while (this.client.keepRunning && this.held == null
+					&& this.in.hasRemaining()) {
+				if (this.skipping > 0) {
+					int count = Math.min(this.skipping, this.in.remaining());
+					this.in.position(this.in.position() + count);
+					this.skipping -= count;
+				} else if (this.chunkRemaining > 0) {
+					this.readChunkData();
+				} else if (!this.readMessage()) {
+					break;
+				}
+			}
+		} finally {
+			this.in.compact();
+		}
+		if (this.in.position() == 0 && this.in.capacity() > BUFFER_SIZE) {
+			this.in = ByteBuffer.allocate(BUFFER_SIZE);
+		}
+	}
+
+	/**
+	 * Decodes and handles the message at the start of the read buffer, if
+	 * all of it has arrived. Messages outside the client's limits are
+	 * skipped as they arrive rather than being buffered.
+	 * 
+	 * @return true if the message was handled or skipped, false if more bytes
+	 *         are needed or the message is held by the rate limiter.
+	 * @throws IOException
+	 *             if the message is malformed or cannot be handled.
+	 */
+	protected boolean readMessage() throws IOException {
+		if (this.in.remaining() < MessageView.HEADER_LENGTH) {
+			return false;
+		}
+		int start = this.in.position();
+		int length = this.in.getInt(start);
+		byte type = this.in.get(start + 4);
+		FrameLimits limits = this.client.frameLimits;
+		if (limits != null && !limits.accepts(type, length)) {
+			if (length < 1 || length > limits.getMaxSkip() - 4) {
+				throw new IOException("Cannot skip " + length
+						+ "-byte message of type " + type + ".");
+			}
+			log.warning("Skipping " + length + "-byte message of type " + type
+					+ ".");
+			this.in.position(start + MessageView.HEADER_LENGTH);
+			this.skipping = length - 1;
+			return true;
+		}
+		if (length < 1) {
+			throw new IOException("Invalid message length: " + length);
+		}
+		// Only the header of a file chunk is decoded, the data goes to the file
+		boolean chunk = type == AbstractMessage.TYPE_FILE_CHUNK_MESSAGE;
+		int frameLength = 4 + (chunk ? 1 + FileChunkMessage.FIELDS_LENGTH
+				: length);
+		if (this.in.remaining() < frameLength) {
+			if (frameLength > this.in.capacity()) {
+				this.grow(frameLength);
+			}
+			return false;
+		}
+		AbstractMessage message = AbstractMessage.decodeMessage(
+				new DataInputStream(new ByteArrayInputStream(this.in.array(),
+						this.in.arrayOffset() + start, frameLength)), limits,
+				chunk ? null : this.client.inbound);
+		this.in.position(start + frameLength);
+		if (message == null) {
+			// Unknown or refused message
+			return true;
+		}
+		if (chunk) {
+			this.startChunk((FileChunkMessage) message);
+			return true;
+		}
+		if (this.client.rateLimiter != null) {
+			long delay = this.client.admit(message.getLength() + 4);
+			if (delay > 0) {
+				this.hold(message, delay);
+				return false;
+			}
+		}
+		this.deliver(message);
+		return true;
+	}
+
+	/**
+	 * Replaces the read buffer with a larger one holding the same unread
+	 * bytes. Called while the buffer is being read from.
+	 * 
+	 * @param capacity
+	 *            the new capacity.
+	 */
+	protected void grow(final int capacity) {
+		ByteBuffer larger = ByteBuffer.allocate(capacity);
+		larger.put(this.in);
+		larger.flip();
+		this.in = larger;
+	}
+
+	/**
+	 * Passes a message to the client, then releases what it was charged to
+	 * the inbound account.
+	 * 
+	 * @param message
+	 *            the decoded message.
+	 * @throws IOException
+	 *             if the message cannot be handled.
+	 */
+	protected void deliver(final AbstractMessage message) throws IOException {
+		try {
+			this.client.handle(message, null);
+		} finally {
+			if (this.client.inbound != null) {
+				this.client.inbound.release(message.getBufferedLength());
+			}
+		}
+	}
+
+	/**
+	 * Stops reading until the rate limiter admits a message.
+	 * 
+	 * @param message
+	 *            the message to hold.
+	 * @param delay
+	 *            how long to wait before trying again, in milliseconds.
+	 */
+	protected void hold(final AbstractMessage message, final long delay) {
+		this.held = message;
+		this.setInterest(SelectionKey.OP_READ, false);
+		this.loop.schedule(this.resumeTask, delay);
+	}
+
+	/**
+	 * Handles the held message if the rate limiter admits it now, followed
+	 * by any others already read, and reads again.
+	 */
+	protected void resume() {
+		if (this.stopped || this.held == null) {
+			return;
+		}
+		// Still throttling until a message is admitted without waiting
+		long delay = this.client.rateLimiter.admit(this.held.getLength() + 4,
+				System.nanoTime());
+		if (delay > 0) {
+			this.loop.schedule(this.resumeTask, delay);
+			return;
+		}
+		AbstractMessage message = this.held;
+		this.held = null;
+		try {
+			this.deliver(message);
+			this.process();
+		} catch (Exception e) {
+			this.client.connectionLost("Caught exception while reading from client: "
+					+ e.getMessage());
+			return;
+		}
+		if (this.held == null) {
+			this.setInterest(SelectionKey.OP_READ, true);
+		}
+	}
+
+	/**
+	 * Prepares to read the data of a file chunk whose header was decoded.
+	 * 
+	 * @param chunk
+	 *            the chunk header.
+	 */
+	protected void startChunk(final FileChunkMessage chunk) {
+		this.chunkTransfer = this.client.expectChunk(chunk);
+		this.chunkRemaining = chunk.getDataLength();
+		if (this.chunkRemaining == 0) {
+			this.endChunk();
+		}
+	}
+
+	/**
+	 * Writes the chunk data in the read buffer to its file, or skips it.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	protected void readChunkData() throws IOException {
+		int count = Math.min(this.chunkRemaining, this.in.remaining());
+		if (this.chunkTransfer != null) {
+			ByteBuffer data = this.in.duplicate();
+			data.limit(data.position() + count);
+			this.chunkTransfer.receive(data);
+		}
+		this.in.position(this.in.position() + count);
+		this.chunkRemaining -= count;
+		if (this.chunkRemaining == 0) {
+			this.endChunk();
+		}
+	}
+
+	/**
+	 * Finishes the transfer if the chunk just read was its last.
+	 */
+	protected void endChunk() {
+		FileTransfer transfer = this.chunkTransfer;
+		this.chunkTransfer = null;
+		if (transfer != null) {
+			this.client.chunkReceived(transfer);
+		}
+	}
+
+	/**
+	 * Asks the loop to write queued messages, unless it has already been
+	 * asked. Called from any thread after messages are queued.
+	 */
+	void wakeup() {
+		if (this.flushScheduled.compareAndSet(false, true)) {
+			this.loop.execute(this.flushTask);
+		}
+	}
+
+	/**
+	 * Writes queued messages until the queue is empty or the socket is full.
+	 * Once the socket is full the loop waits for it to be writable.
+	 */
+	protected void flush() {
+		if (this.stopped || this.key == null) {
+			return;
+		}
+		try {
+			while (true) {
+				if (this.pending != null) {
+					this.channel.write(this.pending);
+					if (this.pending.hasRemaining()) {
+						this.setInterest(SelectionKey.OP_WRITE, true);
+						return;
+					}
+					this.pending = null;
+					this.completeReceipts();
+				}
+				if (this.sendingTransfer != null) {
+					this.sendingOffset = this.sendingTransfer.writeChunk(
+							this.sending, this.sendingOffset, this.channel);
+					if (this.sendingOffset < this.sending.getOffset()
+							+ this.sending.getDataLength()) {
+						this.setInterest(SelectionKey.OP_WRITE, true);
+						return;
+					}
+					FileTransfer transfer = this.sendingTransfer;
+					this.sendingTransfer = null;
+					this.sending = null;
+					this.client.sendNextChunk(transfer);
+				}
+				if (!this.fill()) {
+					break;
+				}
+			}
+			this.setInterest(SelectionKey.OP_WRITE, false);
+			if (this.client.outbound.isClosed()
+					&& this.client.outbound.isEmpty()) {
+				this.flushed.countDown();
+			}
+		} catch (IOException ioe) {
+			this.client.connectionLost("Caught exception while writing to client: "
+					+ ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Encodes queued messages into {@link #pending}, up to
+	 * {@link #WRITE_BATCH} bytes or the header of a file chunk, whose data is
+	 * written from the file afterward.
+	 * 
+	 * @return true if any messages were taken from the queue.
+	 * @throws IOException
+	 *             if a message cannot be encoded.
+	 */
+	protected boolean fill() throws IOException {
+		this.out.reset();
+		boolean taken = false;
+		AbstractMessage message;
+		while (this.out.size() < WRITE_BATCH
+				&& (message = this.poll()) != null) {
+			taken = true;
+			if (message instanceof WriteReceipt) {
+				// Every message before it is in this batch
+				this.receipts.add((WriteReceipt) message);
+				continue;
+			}
+			if (message instanceof FileChunkMessage) {
+				FileChunkMessage chunk = (FileChunkMessage) message;
+				FileTransfer transfer = this.client.outgoingFiles.get(Long
+						.valueOf(chunk.getTransferId()));
+				if (transfer == null) {
+					// Closed since the chunk was queued
+					continue;
+				}
+				AbstractMessage.encodeMessage(chunk, this.out);
+				this.sending = chunk;
+				this.sendingTransfer = transfer;
+				this.sendingOffset = chunk.getOffset();
+				break;
+			}
+			AbstractMessage.encodeMessage(message, this.out);
+		}
+		if (this.out.size() > 0) {
+			this.pending = this.out.toBuffer();
+		} else {
+			this.completeReceipts();
+		}
+		return taken;
+	}
+
+	/**
+	 * Takes the next message from the client's queue without waiting.
+	 * 
+	 * @return the next message, or null if there is none.
+	 */
+	protected AbstractMessage poll() {
+		try {
+			return this.client.outbound.poll(0);
+		} catch (InterruptedException ie) {
+			// Never waits, but keep the status for the loop
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Completes the receipts of the messages just written.
+	 */
+	protected void completeReceipts() {
+		if (this.receipts.isEmpty()) {
+			return;
+		}
+		WriteReceipt[] written = this.receipts
+				.toArray(new WriteReceipt[this.receipts.size()]);
+		this.receipts.clear();
+		for (WriteReceipt receipt : written) {
+			receipt.written();
+		}
+	}
+
+	/**
+	 * Adds or removes an interest operation, if the key is still valid.
+	 * 
+	 * @param op
+	 *            the operation.
+	 * @param interested
+	 *            true to add it, false to remove it.
+	 */
+	protected void setInterest(final int op, final boolean interested) {
+		if (this.key == null || !this.key.isValid()) {
+			return;
+		}
+		int ops = this.key.interestOps();
+		int wanted = interested ? ops | op : ops & ~op;
+		if (wanted != ops) {
+			this.key.interestOps(wanted);
+		}
+	}
+
+	/**
+	 * Waits for the messages left in the closed outbound queue to be written.
+	 * Does not wait when called from the loop, which is the thread that would
+	 * write them.
+	 * 
+	 * @param millis
+	 *            the longest time to wait, in milliseconds.
+	 * @return true if everything was written.
+	 */
+	boolean awaitFlushed(final long millis) {
+		if (this.loop.inEventLoop()) {
+			this.flush();
+			return this.flushed.getCount() == 0;
+		}
+		this.wakeup();
+		try {
+			return this.flushed.await(millis, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	/**
+	 * Stops reading and writing the socket, on the loop. The socket itself is
+	 * closed by {@link Client#disconnect()}.
+	 */
+	void shutdown() {
+		if (this.loop.inEventLoop()) {
+			this.stop();
+			return;
+		}
+		this.loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				ClientChannel.this.stop();
+			}
+		});
+	}
+
+	/**
+	 * Cancels the channel's key, fails whatever was not written, and closes
+	 * the inbound account, which only the loop charges.
+	 */
+	protected void stop() {
+		if (this.stopped) {
+			return;
+		}
+		this.stopped = true;
+		if (this.key != null) {
+			this.key.cancel();
+		}
+		this.client.outbound.clear();
+		if (!this.receipts.isEmpty()) {
+			SocketException cause = new SocketException(
+					"Connection closed before the message was written.");
+			for (WriteReceipt receipt : this.receipts) {
+				receipt.failed(cause);
+			}
+			this.receipts.clear();
+		}
+		this.pending = null;
+		this.sending = null;
+		this.sendingTransfer = null;
+		this.chunkTransfer = null;
+		if (this.client.inbound != null) {
+			if (this.held != null) {
+				this.client.inbound.release(this.held.getBufferedLength());
+			}
+			this.client.inbound.close();
+		}
+		this.held = null;
+		this.flushed.countDown();
+	}
+
+	@Override
+	public String toString() {
+		return this.client + " on " + this.loop.getName();
+	}
+}
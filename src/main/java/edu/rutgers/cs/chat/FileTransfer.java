@@ -0,0 +1,425 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import edu.rutgers.cs.chat.messaging.FileChunkMessage;
+import edu.rutgers.cs.chat.messaging.FileOfferMessage;
+import edu.rutgers.cs.chat.messaging.MessageIds;
+
+/**
+ * A file being sent to or received from a connected client. The file's data
+ * is moved between the file and the socket with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} and
+ * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}, so it is
+ * never copied into the Java heap. A client read by an event loop receives
+ * file data in its read buffer instead, and writes it with
+ * {@link #receive(ByteBuffer)}.
+ * 
+ * A received file is written to a ".part" file next to its final name and
+ * renamed once complete. If the transfer is interrupted, the ".part" file is
+ * kept and accepting another offer of the same file resumes from its end.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class FileTransfer {
+
+	/**
+	 * Suffix of files that are still being received.
+	 */
+	public static final String PART_SUFFIX = ".part";
+
+	/**
+	 * Identifier of the transfer.
+	 */
+	protected final long transferId;
+
+	/**
+	 * Name of the file, without any directories.
+	 */
+	protected final String name;
+
+	/**
+	 * Size of the file in bytes.
+	 */
+	protected final long size;
+
+	/**
+	 * True if the file is being received, false if it is being sent.
+	 */
+	protected final boolean incoming;
+
+	/**
+	 * The file being sent, or the ".part" file being received.
+	 */
+	protected final File file;
+
+	/**
+	 * Channel for reading or writing the file.
+	 */
+	protected final FileChannel channel;
+
+	/**
+	 * Number of bytes sent or received so far, including any bytes skipped
+	 * when the transfer was resumed.
+	 */
+	protected volatile long position = 0;
+
+	/**
+	 * The received file once it has been renamed, or null.
+	 */
+	protected File completedFile = null;
+
+	/**
+	 * Creates a new transfer.
+	 * 
+	 * @param transferId
+	 *            the identifier of the transfer.
+	 * @param name
+	 *            the name of the file.
+	 * @param size
+	 *            the size of the file in bytes.
+	 * @param incoming
+	 *            true if the file is being received.
+	 * @param file
+	 *            the file to read or write.
+	 * @param channel
+	 *            an open channel for the file.
+	 */
+	protected FileTransfer(final long transferId, final String name,
+			final long size, final boolean incoming, final File file,
+			final FileChannel channel) {
+		this.transferId = transferId;
+		this.name = name;
+		this.size = size;
+		this.incoming = incoming;
+		this.file = file;
+		this.channel = channel;
+	}
+
+	/**
+	 * Opens a file to be sent.
+	 * 
+	 * @param file
+	 *            the file to send.
+	 * @return a new outgoing transfer.
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 */
+	public static FileTransfer send(final File file) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		return new FileTransfer(MessageIds.next(), file.getName(), channel
+				.size(), false, file, channel);
+	}
+
+	/**
+	 * Opens the ".part" file for an offered file in a directory. If the
+	 * ".part" file already exists, the transfer resumes from its end.
+	 * 
+	 * @param offer
+	 *            the offer being accepted.
+	 * @param directory
+	 *            the directory to save the file in.
+	 * @return a new incoming transfer.
+	 * @throws IOException
+	 *             if the name is not usable or the file cannot be opened.
+	 */
+	public static FileTransfer receive(final FileOfferMessage offer,
+			final File directory) throws IOException {
+		String name = new File(offer.getName()).getName();
+		if (name.length() == 0 || ".".equals(name) || "..".equals(name)
+				|| offer.getSize() < 0) {
+			throw new IOException("Invalid file offer: " + offer);
+		}
+		File part = new File(directory, name + PART_SUFFIX);
+		FileChannel channel = new RandomAccessFile(part, "rw").getChannel();
+		FileTransfer transfer = new FileTransfer(offer.getTransferId(), name,
+				offer.getSize(), true, part, channel);
+		if (channel.size() > offer.getSize()) {
+			// Not the same file, start over
+			channel.truncate(0);
+		}
+		transfer.position = channel.size();
+		return transfer;
+	}
+
+	/**
+	 * Sets the position an outgoing transfer starts from, as requested by the
+	 * receiving client.
+	 * 
+	 * @param offset
+	 *            the number of bytes the receiver already has.
+	 * @throws IOException
+	 *             if the offset is outside the file.
+	 */
+	public void start(final long offset) throws IOException {
+		if (offset < 0 || offset > this.size) {
+			throw new IOException("Invalid offset " + offset + " for "
+					+ this.name);
+		}
+		this.position = offset;
+	}
+
+	/**
+	 * Returns the header of the next chunk to send, or null if every byte
+	 * has been sent.
+	 * 
+	 * @return the next chunk, or null.
+	 */
+	public FileChunkMessage nextChunk() {
+		long remaining = this.size - this.position;
+		if (remaining <= 0) {
+			return null;
+		}
+		return new FileChunkMessage(this.transferId, this.position, (int) Math
+				.min(remaining, FileChunkMessage.MAX_CHUNK_SIZE));
+	}
+
+	/**
+	 * Writes the data of a chunk from the file to a channel. The chunk's
+	 * header must already have been written.
+	 * 
+	 * @param chunk
+	 *            the chunk being sent.
+	 * @param out
+	 *            the channel to write to.
+	 * @throws IOException
+	 *             if the file or channel throws an IOException, or the file
+	 *             became shorter.
+	 */
+	public void writeChunk(final FileChunkMessage chunk,
+			final WritableByteChannel out) throws IOException {
+		long offset = chunk.getOffset();
+		long end = offset + chunk.getDataLength();
+		while (offset < end) {
+			long sent = this.channel.transferTo(offset, end - offset, out);
+			if (sent <= 0) {
+				throw new EOFException(this.name + " is shorter than "
+						+ this.size + " bytes.");
+			}
+			offset += sent;
+		}
+		this.position = end;
+	}
+
+	/**
+	 * Writes as much of a chunk's data from the file to a non-blocking channel
+	 * as it accepts. The chunk's header must already have been written.
+	 * 
+	 * @param chunk
+	 *            the chunk being sent.
+	 * @param offset
+	 *            the offset in the file of the first byte not yet written.
+	 * @param out
+	 *            the channel to write to.
+	 * @return the offset of the first byte still to be written, which is the
+	 *         end of the chunk once it has all been written.
+	 * @throws IOException
+	 *             if the file or channel throws an IOException, or the file
+	 *             became shorter.
+	 */
+	public long writeChunk(final FileChunkMessage chunk, final long offset,
+			final WritableByteChannel out) throws IOException {
+		long position = offset;
+		long end = chunk.getOffset() + chunk.getDataLength();
+		while (position < end) {
+			long sent = this.channel.transferTo(position, end - position, out);
+			if (sent <= 0) {
+				if (position >= this.channel.size()) {
+					throw new EOFException(this.name + " is shorter than "
+							+ this.size + " bytes.");
+				}
+				// The channel is full
+				break;
+			}
+			position += sent;
+		}
+		if (position == end) {
+			this.position = end;
+		}
+		return position;
+	}
+
+	/**
+	 * Reads the data of a chunk from a channel into the file. The chunk's
+	 * header has already been read.
+	 * 
+	 * @param chunk
+	 *            the chunk being received.
+	 * @param in
+	 *            the channel to read from.
+	 * @throws IOException
+	 *             if the chunk is not the next one expected, or the file or
+	 *             channel throws an IOException.
+	 */
+	public void readChunk(final FileChunkMessage chunk,
+			final ReadableByteChannel in) throws IOException {
+		if (chunk.getOffset() != this.position
+				|| chunk.getOffset() + chunk.getDataLength() > this.size) {
+			throw new IOException("Unexpected " + chunk + " for " + this.name
+					+ " at " + this.position);
+		}
+		long offset = this.position;
+		long end = offset + chunk.getDataLength();
+		while (offset < end) {
+			long received = this.channel.transferFrom(in, offset, end - offset);
+			if (received <= 0) {
+				throw new EOFException("Connection closed during " + this.name);
+			}
+			offset += received;
+		}
+		this.position = end;
+	}
+
+	/**
+	 * Writes received file data at the end of the file. The data is part of a
+	 * chunk whose header has already been checked against the transfer.
+	 * 
+	 * @param data
+	 *            the data, which is consumed.
+	 * @throws IOException
+	 *             if the data goes past the end of the file, or the file
+	 *             throws an IOException.
+	 */
+	public void receive(final ByteBuffer data) throws IOException {
+		if (this.position + data.remaining() > this.size) {
+			throw new IOException("Too much data for " + this.name + " at "
+					+ this.position);
+		}
+		while (data.hasRemaining()) {
+			this.position += this.channel.write(data, this.position);
+		}
+	}
+
+	/**
+	 * Returns true once every byte has been sent or received.
+	 * 
+	 * @return true if the transfer is complete.
+	 */
+	public boolean isComplete() {
+		return this.position >= this.size;
+	}
+
+	/**
+	 * Closes the file. A completely received file is renamed from its ".part"
+	 * name to the offered name, or to the offered name with a number added if
+	 * that file already exists.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be closed or renamed.
+	 */
+	public void finish() throws IOException {
+		this.channel.close();
+		if (!this.incoming || !this.isComplete()) {
+			return;
+		}
+		File target = new File(this.file.getParentFile(), this.name);
+		for (int i = 1; target.exists(); ++i) {
+			target = new File(this.file.getParentFile(), this.name + '.' + i);
+		}
+		if (!this.file.renameTo(target)) {
+			throw new IOException("Unable to rename " + this.file + " to "
+					+ target);
+		}
+		this.completedFile = target;
+	}
+
+	/**
+	 * Closes the file without finishing the transfer. A partly received file
+	 * is kept so the transfer can be resumed.
+	 */
+	public void close() {
+		try {
+			this.channel.close();
+		} catch (IOException ioe) {
+			// Ignored, nothing else to do with it
+		}
+	}
+
+	/**
+	 * Returns the identifier of the transfer.
+	 * 
+	 * @return the identifier of the transfer.
+	 */
+	public long getTransferId() {
+		return this.transferId;
+	}
+
+	/**
+	 * Returns the name of the file.
+	 * 
+	 * @return the name of the file.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	/**
+	 * Returns the size of the file in bytes.
+	 * 
+	 * @return the size of the file in bytes.
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the number of bytes sent or received so far.
+	 * 
+	 * @return the current position in the file.
+	 */
+	public long getPosition() {
+		return this.position;
+	}
+
+	/**
+	 * Returns true if the file is being received.
+	 * 
+	 * @return true for incoming transfers, false for outgoing ones.
+	 */
+	public boolean isIncoming() {
+		return this.incoming;
+	}
+
+	/**
+	 * Returns the file being sent, the ".part" file being received, or the
+	 * received file once it has been renamed.
+	 * 
+	 * @return the transfer's file.
+	 */
+	public File getFile() {
+		return this.completedFile != null ? this.completedFile : this.file;
+	}
+
+	@Override
+	public String toString() {
+		return this.name + " (" + this.position + '/' + this.size + " bytes)";
+	}
+}
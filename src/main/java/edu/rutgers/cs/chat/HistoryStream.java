@@ -0,0 +1,232 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.history.HistoryRecord;
+import edu.rutgers.cs.chat.messaging.HistoryBatchMessage;
+
+/**
+ * Sends the messages stored since a time to a client that asked for them, in
+ * batches. Only one batch is queued on the connection at a time: the next is
+ * read from the history once the previous one has been written. Batches use
+ * the connection's bulk lane, so chat typed while a client is catching up is
+ * always written first.
+ * 
+ * Private messages are never sent, room messages only if the client has
+ * joined the room, and messages the client sent itself are left out.
+ * 
+ * @author Robert Moore
+ * 
+ */
+class HistoryStream implements Runnable, SendListener {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(HistoryStream.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Most records read from the history for one batch.
+	 */
+	public static final int BATCH_RECORDS = 256;
+
+	/**
+	 * Size of the records in a batch after which no more are added.
+	 */
+	public static final int BATCH_BYTES = 32 * 1024;
+
+	/**
+	 * How long to wait before trying again when the history stage is full.
+	 */
+	public static final long RETRY_MILLIS = 100;
+
+	/**
+	 * The client whose history is sent.
+	 */
+	protected final ChatClient owner;
+
+	/**
+	 * The client the history is sent to.
+	 */
+	protected final Client peer;
+
+	/**
+	 * Storage time to read the next batch from.
+	 */
+	protected long since;
+
+	/**
+	 * Number of records stored at {@link #since} that were already handled.
+	 */
+	protected int skip = 0;
+
+	/**
+	 * Number of messages still to send.
+	 */
+	protected int remaining;
+
+	/**
+	 * Creates a new stream. Nothing is sent until {@link #schedule()} is
+	 * called.
+	 * 
+	 * @param owner
+	 *            the client whose history is sent.
+	 * @param peer
+	 *            the client that asked for it.
+	 * @param since
+	 *            the earliest storage time to send.
+	 * @param limit
+	 *            the most messages to send.
+	 */
+	HistoryStream(final ChatClient owner, final Client peer, final long since,
+			final int limit) {
+		this.owner = owner;
+		this.peer = peer;
+		this.since = since;
+		this.remaining = limit;
+	}
+
+	/**
+	 * Queues the next batch to be read on the history stage. If the stage is
+	 * full, tries again shortly on the runtime's timer.
+	 */
+	void schedule() {
+		if (!this.owner.keepRunning) {
+			return;
+		}
+		if (this.owner.runtime.historyStage.execute(this)) {
+			return;
+		}
+		try {
+			this.owner.runtime.schedule(new Runnable() {
+				@Override
+				public void run() {
+					HistoryStream.this.schedule();
+				}
+			}, RETRY_MILLIS);
+		} catch (IOException ioe) {
+			log.warning("Unable to continue sending history to " + this.peer
+					+ ": " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Reads the next batch and queues it on the connection.
+	 */
+	@Override
+	public void run() {
+		if (!this.peer.keepRunning) {
+			log.fine("Stopped sending history to " + this.peer
+					+ ", disconnected.");
+			return;
+		}
+		ByteArrayOutputStream batch = new ByteArrayOutputStream();
+		boolean last = false;
+		// Keep reading if everything read was left out
+		while (batch.size() == 0 && !last) {
+			int wanted = Math.min(BATCH_RECORDS, this.remaining);
+			List<HistoryRecord> read = this.owner.history.read(this.since,
+					this.skip + wanted);
+			boolean end = read.size() < this.skip + wanted;
+			int consumed = Math.min(this.skip, read.size());
+			while (consumed < read.size() && batch.size() < BATCH_BYTES
+					&& this.remaining > 0) {
+				HistoryRecord record = read.get(consumed++);
+				if (!this.shares(record)) {
+					continue;
+				}
+				ByteBuffer encoded = record.asReceived(this.owner.username)
+						.encode();
+				batch.write(encoded.array(), 0, encoded.remaining());
+				--this.remaining;
+			}
+			if (consumed > 0) {
+				// Records stored in the same millisecond as the last one read
+				long next = read.get(consumed - 1).getStoredAt();
+				int same = 0;
+				for (int i = consumed - 1; i >= 0
+						&& read.get(i).getStoredAt() == next; --i) {
+					++same;
+				}
+				this.since = next;
+				this.skip = same;
+			}
+			last = (end && consumed == read.size()) || this.remaining <= 0;
+		}
+
+		HistoryBatchMessage message = new HistoryBatchMessage(last, batch
+				.toByteArray());
+		SendResult result = new SendResult(message, 1);
+		if (!last) {
+			result.addListener(this);
+		} else {
+			log.fine("Sent history to " + this.peer);
+		}
+		this.owner.sendTo(this.peer, Collections.singletonList(message),
+				Collections.singletonList(result));
+	}
+
+	/**
+	 * Reads the next batch once the previous one has been written.
+	 */
+	@Override
+	public void sendCompleted(final SendResult result) {
+		if (result.isSuccess()) {
+			this.schedule();
+		}
+	}
+
+	/**
+	 * Returns true if a stored message may be sent to the peer.
+	 * 
+	 * @param record
+	 *            the stored message.
+	 * @return true if the message should be sent.
+	 */
+	protected boolean shares(final HistoryRecord record) {
+		if (record.getKind() == HistoryRecord.Kind.PRIVATE
+				|| this.peer.getUsername().equals(record.getPeer())) {
+			return false;
+		}
+		if (record.getKind() == HistoryRecord.Kind.ROOM) {
+			int roomId = this.owner.roomRegistry.lookup(record.getRoom());
+			return roomId >= 0 && this.peer.isSubscribed(roomId);
+		}
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "history for " + this.peer + " since " + this.since;
+	}
+}
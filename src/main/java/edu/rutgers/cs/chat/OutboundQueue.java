@@ -0,0 +1,397 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.rutgers.cs.chat.messaging.AbstractMessage;
+
+/**
+ * Messages waiting to be written to one connection, kept in separate lanes so
+ * that small, urgent messages are not stuck behind large ones. The writer
+ * always takes the next message from the highest-priority lane that has one,
+ * so a control message waits for at most one message already being written,
+ * and interactive chat waits for at most one fragment of a bulk transfer.
+ * 
+ * Messages in the same lane are written in the order they were queued. A
+ * {@link WriteReceipt} queued behind a message is returned by {@link #poll}
+ * once everything before it has been taken, and receipts that will never be
+ * reached are failed when the queue is closed or cleared.
+ * 
+ * A queue written by an event loop rather than a writer thread is given a
+ * task to run whenever messages are added, which hands the write off to the
+ * loop.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class OutboundQueue {
+
+	/**
+	 * The lanes of an outbound queue, highest priority first.
+	 */
+	public static enum Lane {
+		/**
+		 * Keep-alive, client exchange, subscription, file offer/accept and
+		 * session messages.
+		 */
+		CONTROL,
+		/**
+		 * Chat messages typed by a user, and disconnect messages.
+		 */
+		INTERACTIVE,
+		/**
+		 * Fragments of large messages and file chunks.
+		 */
+		BULK
+	}
+
+	/**
+	 * Guards the lanes. A lock is used rather than synchronized methods so
+	 * that a virtual writer thread waiting for messages does not pin its
+	 * carrier thread.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when a message is queued or the queue is closed.
+	 */
+	protected final Condition available = this.lock.newCondition();
+
+	/**
+	 * One queue of messages per lane, indexed by {@link Lane#ordinal()}.
+	 */
+	protected final List<Queue<AbstractMessage>> lanes;
+
+	/**
+	 * Total number of encoded bytes waiting in all lanes.
+	 */
+	protected long queuedBytes = 0;
+
+	/**
+	 * Set once no more messages may be queued.
+	 */
+	protected boolean closed = false;
+
+	/**
+	 * Run after messages are added, or null if a writer thread waits for
+	 * them instead.
+	 */
+	protected volatile Runnable wakeup = null;
+
+	/**
+	 * Creates a new, empty outbound queue.
+	 */
+	public OutboundQueue() {
+		Lane[] values = Lane.values();
+		this.lanes = new ArrayList<Queue<AbstractMessage>>(values.length);
+		for (int i = 0; i < values.length; ++i) {
+			this.lanes.add(new ArrayDeque<AbstractMessage>());
+		}
+	}
+
+	/**
+	 * Sets a task to run, outside the lock, every time messages are added.
+	 * 
+	 * @param wakeup
+	 *            the task, or null for none.
+	 */
+	public void setWakeup(final Runnable wakeup) {
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * Returns the lane a message belongs in, based on its type.
+	 * 
+	 * @param message
+	 *            the message to classify.
+	 * @return the message's lane.
+	 */
+	public static Lane laneOf(final AbstractMessage message) {
+		if (message instanceof WriteReceipt) {
+			return ((WriteReceipt) message).getLane();
+		}
+		switch (message.getType()) {
+		case AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE:
+		case AbstractMessage.TYPE_HANDSHAKE_MESSAGE:
+		case AbstractMessage.TYPE_KEEPALIVE_MESSAGE:
+		case AbstractMessage.TYPE_SUBSCRIPTION_MESSAGE:
+		case AbstractMessage.TYPE_FILE_OFFER_MESSAGE:
+		case AbstractMessage.TYPE_FILE_ACCEPT_MESSAGE:
+		case AbstractMessage.TYPE_HISTORY_REQUEST_MESSAGE:
+		case AbstractMessage.TYPE_SESSION_MESSAGE:
+		case AbstractMessage.TYPE_ACK_MESSAGE:
+			return Lane.CONTROL;
+		case AbstractMessage.TYPE_FRAGMENT_MESSAGE:
+		case AbstractMessage.TYPE_FILE_CHUNK_MESSAGE:
+		case AbstractMessage.TYPE_HISTORY_BATCH_MESSAGE:
+			return Lane.BULK;
+		default:
+			return Lane.INTERACTIVE;
+		}
+	}
+
+	/**
+	 * Adds a message to the end of its lane.
+	 * 
+	 * @param message
+	 *            the message to queue.
+	 * @throws SocketException
+	 *             if the queue has been closed.
+	 */
+	public void offer(final AbstractMessage message) throws SocketException {
+		this.offer(laneOf(message), message);
+	}
+
+	/**
+	 * Adds a message to the end of a lane.
+	 * 
+	 * @param lane
+	 *            the lane to add the message to.
+	 * @param message
+	 *            the message to queue.
+	 * @throws SocketException
+	 *             if the queue has been closed.
+	 */
+	public void offer(final Lane lane, final AbstractMessage message)
+			throws SocketException {
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				throw new SocketException("Connection is closed.");
+			}
+			this.lanes.get(lane.ordinal()).add(message);
+			this.queuedBytes += sizeOf(message);
+			this.available.signal();
+		} finally {
+			this.lock.unlock();
+		}
+		this.wake();
+	}
+
+	/**
+	 * Adds several messages, each to the end of its own lane, taking the lock
+	 * once. Either all of the messages are queued or none are.
+	 * 
+	 * @param messages
+	 *            the messages to queue, in order.
+	 * @throws SocketException
+	 *             if the queue has been closed.
+	 */
+	public void offerAll(final List<? extends AbstractMessage> messages)
+			throws SocketException {
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				throw new SocketException("Connection is closed.");
+			}
+			for (AbstractMessage message : messages) {
+				this.lanes.get(laneOf(message).ordinal()).add(message);
+				this.queuedBytes += sizeOf(message);
+			}
+			this.available.signal();
+		} finally {
+			this.lock.unlock();
+		}
+		this.wake();
+	}
+
+	/**
+	 * Runs the wakeup task, if there is one.
+	 */
+	protected void wake() {
+		Runnable task = this.wakeup;
+		if (task != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Returns the number of bytes a queued message will take on the wire.
+	 * Receipts are not written, so they take none.
+	 * 
+	 * @param message
+	 *            the queued message.
+	 * @return the encoded length of the message, including its length field.
+	 */
+	protected static int sizeOf(final AbstractMessage message) {
+		return message instanceof WriteReceipt ? 0 : message.getLength() + 4;
+	}
+
+	/**
+	 * Removes and returns the next message to write, waiting if every lane is
+	 * empty. After the queue is closed the remaining control and interactive
+	 * messages are still returned, but queued bulk messages are discarded.
+	 * 
+	 * @param timeout
+	 *            the longest time to wait, in milliseconds.
+	 * @return the next message, or null if the timeout passed or the queue is
+	 *         closed and empty.
+	 * @throws InterruptedException
+	 *             if the thread is interrupted while waiting.
+	 */
+	public AbstractMessage poll(final long timeout)
+			throws InterruptedException {
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeout);
+		this.lock.lock();
+		try {
+			while (true) {
+				for (Queue<AbstractMessage> lane : this.lanes) {
+					AbstractMessage message = lane.poll();
+					if (message != null) {
+						this.queuedBytes -= sizeOf(message);
+						return message;
+					}
+				}
+				if (this.closed || remaining <= 0) {
+					return null;
+				}
+				remaining = this.available.awaitNanos(remaining);
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if no messages are waiting in any lane.
+	 * 
+	 * @return true if the queue is empty.
+	 */
+	public boolean isEmpty() {
+		this.lock.lock();
+		try {
+			return this.queuedBytes == 0;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true once the queue has been closed.
+	 * 
+	 * @return true if no more messages may be queued.
+	 */
+	public boolean isClosed() {
+		this.lock.lock();
+		try {
+			return this.closed;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of encoded bytes waiting in all lanes.
+	 * 
+	 * @return the number of queued bytes.
+	 */
+	public long getQueuedBytes() {
+		this.lock.lock();
+		try {
+			return this.queuedBytes;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of messages waiting in a lane.
+	 * 
+	 * @param lane
+	 *            the lane to check.
+	 * @return the number of messages in the lane.
+	 */
+	public int size(final Lane lane) {
+		this.lock.lock();
+		try {
+			return this.lanes.get(lane.ordinal()).size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the queue. Later calls to {@link #offer} fail, and queued bulk
+	 * messages are dropped since a half-sent transfer is useless to the
+	 * remote client once the connection is closing.
+	 */
+	public void close() {
+		this.remove(false);
+	}
+
+	/**
+	 * Closes the queue and drops every queued message. Called once the writer
+	 * has stopped, when nothing left in the queue will be written.
+	 */
+	public void clear() {
+		this.remove(true);
+	}
+
+	/**
+	 * Closes the queue and drops the bulk lane, or every lane. Receipts for
+	 * the dropped messages are failed once the lock is released, since their
+	 * listeners may do anything.
+	 * 
+	 * @param all
+	 *            true to drop every lane, false for only the bulk lane.
+	 */
+	protected void remove(final boolean all) {
+		List<WriteReceipt> dropped = new ArrayList<WriteReceipt>();
+		this.lock.lock();
+		try {
+			this.closed = true;
+			for (Lane lane : Lane.values()) {
+				if (!all && lane != Lane.BULK) {
+					continue;
+				}
+				for (Iterator<AbstractMessage> iter = this.lanes.get(lane.ordinal())
+						.iterator(); iter.hasNext();) {
+					AbstractMessage message = iter.next();
+					if (message instanceof WriteReceipt) {
+						dropped.add((WriteReceipt) message);
+					}
+					this.queuedBytes -= sizeOf(message);
+					iter.remove();
+				}
+			}
+			this.available.signalAll();
+		} finally {
+			this.lock.unlock();
+		}
+		if (!dropped.isEmpty()) {
+			SocketException cause = new SocketException(
+					"Connection closed before the message was written.");
+			for (WriteReceipt receipt : dropped) {
+				receipt.failed(cause);
+			}
+		}
+		// So a loop writing the queue sees that it was closed
+		this.wake();
+	}
+}
@@ -0,0 +1,184 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.history.HistoryRecord;
+import edu.rutgers.cs.chat.messaging.PrivateChatMessage;
+
+/**
+ * Sends the private messages waiting in the outbox to a client that just
+ * connected, in batches. Only one batch is queued on the connection at a
+ * time; once every message in it has been written, the written ones are
+ * removed from the outbox and the next batch is sent. Messages keep the
+ * identifier they were given when they were typed, so the client drops any
+ * it was already sent.
+ * 
+ * @author Robert Moore
+ * 
+ */
+class OutboxDelivery implements Runnable, SendListener {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(OutboxDelivery.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Most messages sent in one batch.
+	 */
+	public static final int BATCH_MESSAGES = 64;
+
+	/**
+	 * The client whose outbox is delivered.
+	 */
+	protected final ChatClient owner;
+
+	/**
+	 * The client the messages are for.
+	 */
+	protected final Client peer;
+
+	/**
+	 * Identifiers of the messages in the batch being sent.
+	 */
+	protected final List<Long> batch = new ArrayList<Long>();
+
+	/**
+	 * Identifiers of the messages in the batch that were written.
+	 */
+	protected final List<Long> written = new ArrayList<Long>();
+
+	/**
+	 * Number of messages in the batch that have not completed.
+	 */
+	protected int pending = 0;
+
+	/**
+	 * Creates a new delivery. Nothing is sent until it is run.
+	 * 
+	 * @param owner
+	 *            the client whose outbox is delivered.
+	 * @param peer
+	 *            the client the messages are for.
+	 */
+	OutboxDelivery(final ChatClient owner, final Client peer) {
+		this.owner = owner;
+		this.peer = peer;
+	}
+
+	/**
+	 * Queues the next batch on the connection, or finishes if there are no
+	 * messages left.
+	 */
+	@Override
+	public void run() {
+		String username = this.peer.getUsername();
+		if (!this.peer.keepRunning) {
+			this.owner.deliveryFinished(this);
+			log.fine("Stopped delivering messages to " + this.peer
+					+ ", disconnected.");
+			return;
+		}
+		List<HistoryRecord> records = this.owner.outbox.peek(username,
+				BATCH_MESSAGES);
+		if (records.isEmpty()) {
+			this.owner.deliveryFinished(this);
+			log.fine("Delivered waiting messages to " + this.peer);
+			// A message may have been kept since the outbox was read
+			this.owner.deliverWaiting(this.peer);
+			return;
+		}
+		List<PrivateChatMessage> messages = new ArrayList<PrivateChatMessage>();
+		List<SendResult> results = new ArrayList<SendResult>();
+		synchronized (this) {
+			this.batch.clear();
+			this.written.clear();
+			for (HistoryRecord record : records) {
+				PrivateChatMessage message;
+				try {
+					message = new PrivateChatMessage(record.getSentAt(), record
+							.getMessageId(), this.owner.username, record
+							.getText());
+				} catch (UnsupportedEncodingException uee) {
+					log.warning("Unable to encode waiting message: "
+							+ uee.getMessage());
+					continue;
+				}
+				messages.add(message);
+				results.add(new SendResult(message, 1));
+				this.batch.add(Long.valueOf(record.getMessageId()));
+			}
+			this.pending = messages.size();
+		}
+		for (SendResult result : results) {
+			result.addListener(this);
+		}
+		this.owner.sendTo(this.peer, messages, results);
+	}
+
+	/**
+	 * Removes the written messages from the outbox once the whole batch has
+	 * completed, then sends the next batch if the connection is still open.
+	 */
+	@Override
+	public void sendCompleted(final SendResult result) {
+		List<Long> done;
+		boolean failed;
+		synchronized (this) {
+			if (result.isSuccess()) {
+				this.written.add(Long.valueOf(((PrivateChatMessage) result
+						.getMessage()).getMessageId()));
+			}
+			if (--this.pending > 0) {
+				return;
+			}
+			done = new ArrayList<Long>(this.written);
+			failed = done.size() < this.batch.size();
+		}
+		this.owner.outbox.delivered(this.peer.getUsername(), done);
+		this.owner.waitingDelivered(this.peer, done);
+		if (failed) {
+			this.owner.deliveryFinished(this);
+			log.fine("Stopped delivering messages to " + this.peer
+					+ ", send failed.");
+			return;
+		}
+		if (!this.owner.sendStage.execute(this)) {
+			// Tried again when the client next connects
+			this.owner.deliveryFinished(this);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "waiting messages for " + this.peer;
+	}
+}
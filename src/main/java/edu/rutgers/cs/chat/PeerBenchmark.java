@@ -0,0 +1,339 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import edu.rutgers.cs.chat.messaging.AbstractMessage;
+import edu.rutgers.cs.chat.messaging.HandshakeMessage;
+import edu.rutgers.cs.chat.messaging.MessageIds;
+import edu.rutgers.cs.chat.messaging.MessageView;
+import edu.rutgers.cs.chat.messaging.RoutedPrivateMessage;
+import edu.rutgers.cs.chat.messaging.SessionMessage;
+import edu.rutgers.cs.chat.ui.UIAdapter.UIType;
+import edu.rutgers.cs.chat.util.Threads;
+
+/**
+ * Compares the memory use and forwarding latency of a chat client running its
+ * peers on its runtime's event loops with one running them on virtual
+ * threads. A ChatClient is started in this JVM and a number of simulated peers
+ * connect to it. Idle peers only handshake. Active peers send routed private
+ * messages to each other through the ChatClient, and the time from send to
+ * receipt is recorded. Run once with and once without <code>--virtual</code>
+ * to compare, or with different numbers of loops, set with
+ * <code>-Dedu.rutgers.cs.chat.loops</code>.
+ * 
+ * All simulated peers share a single selector thread so that they add as
+ * little as possible to the measurements.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class PeerBenchmark {
+
+	/**
+	 * First listen port reported by the simulated peers. Peers must report
+	 * different ports or the client treats them as duplicates.
+	 */
+	private static final int BASE_PEER_PORT = 20000;
+
+	/**
+	 * Channels waiting to be registered with the selector.
+	 */
+	private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+	/**
+	 * Selector for every simulated peer.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Latencies of received messages, in nanoseconds. Only used by the
+	 * selector thread until the benchmark ends.
+	 */
+	private long[] latencies = new long[1 << 16];
+
+	/**
+	 * Number of entries in {@link #latencies}.
+	 */
+	private int received = 0;
+
+	/**
+	 * Flag to stop the selector thread.
+	 */
+	private volatile boolean keepRunning = true;
+
+	/**
+	 * Runs the benchmark.
+	 * 
+	 * @param args
+	 *            the hub port, the number of idle and active peers, the
+	 *            duration in seconds, and optionally the messages per second
+	 *            sent by each active peer and "--virtual".
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err
+					.println("Usage: <Hub Port> <Idle Peers> <Active Peers> <Seconds> [Messages/s per Peer] [--virtual]");
+			return;
+		}
+		int hubPort = Integer.parseInt(args[0]);
+		int idle = Integer.parseInt(args[1]);
+		int active = Integer.parseInt(args[2]);
+		int seconds = Integer.parseInt(args[3]);
+		int rate = 10;
+		for (int i = 4; i < args.length; ++i) {
+			if ("--virtual".equalsIgnoreCase(args[i])) {
+				Threads.setVirtual(true);
+			} else {
+				rate = Integer.parseInt(args[i]);
+			}
+		}
+
+		ChatClient.configureLogging();
+
+		// The client's console interface prints every connection
+		PrintStream results = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				// Discarded
+			}
+		}));
+
+		ChatClient hub = new ChatClient(hubPort, "Hub", UIType.CONSOLE);
+		hub.start();
+		Thread.sleep(500);
+		long baseMemory = usedMemory();
+		int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		final PeerBenchmark bench = new PeerBenchmark();
+		Thread reader = new Thread("Bench-Selector") {
+			@Override
+			public void run() {
+				bench.select();
+			}
+		};
+		reader.setDaemon(true);
+		reader.start();
+
+		int total = idle + active;
+		SocketChannel[] channels = new SocketChannel[total];
+		long connectStart = System.currentTimeMillis();
+		for (int i = 0; i < total; ++i) {
+			channels[i] = SocketChannel.open(new InetSocketAddress(
+					"localhost", hubPort));
+			write(channels[i], encode(new HandshakeMessage("peer-" + i,
+					BASE_PEER_PORT + i)));
+			write(channels[i], encode(new SessionMessage(
+					SessionMessage.NO_SESSION, 0)));
+			channels[i].configureBlocking(false);
+			bench.pending.add(channels[i]);
+			bench.selector.wakeup();
+		}
+		while (hub.clients.size() < total) {
+			Thread.sleep(100);
+		}
+		long connectMillis = System.currentTimeMillis() - connectStart;
+		long peerMemory = usedMemory() - baseMemory;
+		int peerThreads = ManagementFactory.getThreadMXBean().getThreadCount()
+				- baseThreads;
+
+		// Each active peer sends to the next one through the hub
+		long intervalNanos = 1000000000L / Math.max(1, rate);
+		long end = System.nanoTime() + seconds * 1000000000L;
+		long sent = 0;
+		for (long next = System.nanoTime(); next < end; next += intervalNanos) {
+			long sleep = next - System.nanoTime();
+			if (sleep > 0) {
+				Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
+			}
+			for (int i = 0; i < active; ++i) {
+				int from = idle + i;
+				int to = idle + (i + 1) % active;
+				write(channels[from], encode(new RoutedPrivateMessage(System
+						.nanoTime(), MessageIds.next(),
+						RoutedPrivateMessage.DEFAULT_TTL, "peer-" + from,
+						"peer-" + to, "ping")));
+				++sent;
+			}
+		}
+		Thread.sleep(1000);
+		bench.keepRunning = false;
+		bench.selector.wakeup();
+		reader.join();
+
+		long[] sorted = Arrays.copyOf(bench.latencies, bench.received);
+		Arrays.sort(sorted);
+		results.println("peers=" + (Threads.isVirtual() ? "virtual-threads"
+				: "loops-" + hub.runtime.getLoops().size()) + " idle=" + idle
+				+ " active=" + active + " connect=" + connectMillis + "ms");
+		results.println("heap-per-peer=" + (peerMemory / Math.max(1, total))
+				+ "B platform-threads-per-peer="
+				+ String.format("%.2f", peerThreads / (double) Math.max(1, total)));
+		results.println("sent=" + sent + " received=" + sorted.length
+				+ " p50=" + micros(sorted, 0.5) + "us p99="
+				+ micros(sorted, 0.99) + "us max=" + micros(sorted, 1.0) + "us");
+		System.exit(0);
+	}
+
+	/**
+	 * Creates the benchmark's selector.
+	 * 
+	 * @throws IOException
+	 *             if the selector cannot be opened.
+	 */
+	private PeerBenchmark() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Reads from every simulated peer, discarding everything except routed
+	 * private messages, whose latencies are recorded.
+	 */
+	private void select() {
+		MessageView view = new MessageView();
+		try {
+			while (this.keepRunning) {
+				this.selector.select();
+				SocketChannel channel;
+				while ((channel = this.pending.poll()) != null) {
+					channel.register(this.selector, SelectionKey.OP_READ,
+							ByteBuffer.allocate(64 * 1024));
+				}
+				for (Iterator<SelectionKey> keys = this.selector
+						.selectedKeys().iterator(); keys.hasNext();) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					ByteBuffer buffer = (ByteBuffer) key.attachment();
+					if (((SocketChannel) key.channel()).read(buffer) < 0) {
+						key.cancel();
+						continue;
+					}
+					buffer.flip();
+					while (buffer.remaining() >= MessageView.HEADER_LENGTH) {
+						int frameSize = buffer.getInt(buffer.position()) + 4;
+						if (buffer.remaining() < frameSize) {
+							break;
+						}
+						view.wrap(buffer, buffer.position());
+						if (view.getType() == AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE) {
+							this.record(System.nanoTime() - view.getTimestamp());
+						}
+						buffer.position(buffer.position() + frameSize);
+					}
+					buffer.compact();
+				}
+			}
+		} catch (IOException ioe) {
+			System.err.println("Benchmark peer failed: " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Records a latency sample.
+	 * 
+	 * @param nanos
+	 *            the latency in nanoseconds.
+	 */
+	private void record(final long nanos) {
+		if (this.received == this.latencies.length) {
+			this.latencies = Arrays.copyOf(this.latencies,
+					this.latencies.length * 2);
+		}
+		this.latencies[this.received++] = nanos;
+	}
+
+	/**
+	 * Returns the heap in use after a garbage collection.
+	 * 
+	 * @return the heap in use, in bytes.
+	 */
+	private static long usedMemory() throws InterruptedException {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; ++i) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Returns a percentile of the sorted latencies in microseconds.
+	 * 
+	 * @param sorted
+	 *            the sorted latencies in nanoseconds.
+	 * @param fraction
+	 *            the percentile, between 0 and 1.
+	 * @return the latency in microseconds, or -1 if there are none.
+	 */
+	private static long micros(final long[] sorted, final double fraction) {
+		if (sorted.length == 0) {
+			return -1;
+		}
+		int index = Math.min(sorted.length - 1,
+				(int) (sorted.length * fraction));
+		return sorted[index] / 1000;
+	}
+
+	/**
+	 * Encodes a message into a buffer.
+	 * 
+	 * @param message
+	 *            the message to encode.
+	 * @return the encoded frame.
+	 */
+	private static ByteBuffer encode(final AbstractMessage message)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		AbstractMessage.encodeMessage(message, out);
+		return ByteBuffer.wrap(out.toByteArray());
+	}
+
+	/**
+	 * Writes a whole frame, spinning if a non-blocking channel is full.
+	 * 
+	 * @param channel
+	 *            the channel to write.
+	 * @param frame
+	 *            the frame to write.
+	 */
+	private static void write(final SocketChannel channel,
+			final ByteBuffer frame) throws IOException {
+		while (frame.hasRemaining()) {
+			if (channel.write(frame) == 0) {
+				Thread.yield();
+			}
+		}
+	}
+}
@@ -0,0 +1,575 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The clients this client has been connected to, kept in a small file so
+ * that a restarted client can connect to them again right away instead of
+ * waiting to be told about them one at a time. For each client the cache
+ * keeps when it was last connected, when a connection to it last failed,
+ * how many connections succeeded and failed, and the time taken to connect
+ * to it, which is about one round trip.
+ * 
+ * {@link #ranked(int)} returns the clients most likely to accept a
+ * connection first: those whose last attempt succeeded, then those with the
+ * best record, the most recently seen and the fastest to connect to.
+ * 
+ * The cache can be configured with system properties starting with
+ * {@value #PROPERTY_PREFIX}: {@code max} clients kept, {@code dial} clients
+ * connected to at start-up, and {@code maxAgeHours} after which a client
+ * that hasn't been seen is forgotten.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class PeerCache {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(PeerCache.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Prefix of the system properties that configure the cache.
+	 */
+	public static final String PROPERTY_PREFIX = "edu.rutgers.cs.chat.peers.";
+
+	/**
+	 * Default number of clients kept.
+	 */
+	public static final int DEFAULT_MAX_PEERS = 64;
+
+	/**
+	 * Default number of clients connected to at start-up.
+	 */
+	public static final int DEFAULT_DIAL = 8;
+
+	/**
+	 * Default age after which a client is forgotten: 7 days.
+	 */
+	public static final long DEFAULT_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * First bytes of the file, "PEER".
+	 */
+	private static final int MAGIC = 0x50454552;
+
+	/**
+	 * Version of the file format.
+	 */
+	private static final byte VERSION = 1;
+
+	/**
+	 * Weight of the newest connect time in the average.
+	 */
+	private static final double RTT_WEIGHT = 0.25;
+
+	/**
+	 * What is known about one client.
+	 */
+	public static class Peer {
+		/**
+		 * The client's IP address.
+		 */
+		protected final String host;
+
+		/**
+		 * The client's listen port.
+		 */
+		protected final int port;
+
+		/**
+		 * The client's username, or null if it isn't known.
+		 */
+		protected String username;
+
+		/**
+		 * When the client was last connected, or 0.
+		 */
+		protected long lastSeen;
+
+		/**
+		 * When a connection to the client last failed, or 0.
+		 */
+		protected long lastFailure;
+
+		/**
+		 * Average time taken to connect to the client, in microseconds, or -1
+		 * if it was never measured.
+		 */
+		protected int rttMicros = -1;
+
+		/**
+		 * Number of connections that succeeded.
+		 */
+		protected int successes;
+
+		/**
+		 * Number of connections that failed.
+		 */
+		protected int failures;
+
+		/**
+		 * Creates an entry for a client that hasn't been seen.
+		 * 
+		 * @param host
+		 *            the client's IP address.
+		 * @param port
+		 *            the client's listen port.
+		 */
+		Peer(final String host, final int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		/**
+		 * Returns true if the last connection to the client succeeded.
+		 * 
+		 * @return true if the client was healthy last time.
+		 */
+		public boolean isHealthy() {
+			return this.lastSeen >= this.lastFailure;
+		}
+
+		/**
+		 * Returns the share of connections that succeeded, counting one
+		 * success and one failure that never happened so that clients tried
+		 * once aren't ranked first or last.
+		 * 
+		 * @return the success rate, between 0 and 1.
+		 */
+		public double getSuccessRate() {
+			return (this.successes + 1.0) / (this.successes + this.failures + 2.0);
+		}
+
+		/**
+		 * Returns the client's IP address.
+		 * 
+		 * @return the address.
+		 */
+		public String getHost() {
+			return this.host;
+		}
+
+		/**
+		 * Returns the client's listen port.
+		 * 
+		 * @return the port.
+		 */
+		public int getPort() {
+			return this.port;
+		}
+
+		/**
+		 * Returns the client's username.
+		 * 
+		 * @return the username, or null if it isn't known.
+		 */
+		public String getUsername() {
+			return this.username;
+		}
+
+		/**
+		 * Returns when the client was last connected.
+		 * 
+		 * @return the time, or 0 if it never was.
+		 */
+		public long getLastSeen() {
+			return this.lastSeen;
+		}
+
+		/**
+		 * Returns the average time taken to connect to the client.
+		 * 
+		 * @return the time in microseconds, or -1 if it was never measured.
+		 */
+		public int getRttMicros() {
+			return this.rttMicros;
+		}
+
+		@Override
+		public String toString() {
+			return (this.username == null ? "" : this.username + "@")
+					+ this.host + ":" + this.port + " ("
+					+ this.successes + "/" + (this.successes + this.failures)
+					+ (this.rttMicros < 0 ? "" : ", " + this.rttMicros + "us")
+					+ ")";
+		}
+	}
+
+	/**
+	 * Orders clients with the most likely to accept a connection first.
+	 */
+	protected static final Comparator<Peer> RANKING = new Comparator<Peer>() {
+		@Override
+		public int compare(final Peer a, final Peer b) {
+			if (a.isHealthy() != b.isHealthy()) {
+				return a.isHealthy() ? -1 : 1;
+			}
+			int byRate = Double.compare(b.getSuccessRate(), a
+					.getSuccessRate());
+			if (byRate != 0) {
+				return byRate;
+			}
+			if (a.lastSeen != b.lastSeen) {
+				return a.lastSeen > b.lastSeen ? -1 : 1;
+			}
+			// Unmeasured clients last
+			long aRtt = a.rttMicros < 0 ? Long.MAX_VALUE : a.rttMicros;
+			long bRtt = b.rttMicros < 0 ? Long.MAX_VALUE : b.rttMicros;
+			return aRtt < bRtt ? -1 : aRtt == bRtt ? 0 : 1;
+		}
+	};
+
+	/**
+	 * The file the cache is kept in, or null if it is only kept in memory.
+	 */
+	protected final File file;
+
+	/**
+	 * Most clients kept.
+	 */
+	protected final int maxPeers;
+
+	/**
+	 * Age after which a client that hasn't been seen is forgotten.
+	 */
+	protected final long maxAgeMillis;
+
+	/**
+	 * The clients, keyed by address and port.
+	 */
+	protected final Map<String, Peer> peers = new HashMap<String, Peer>();
+
+	/**
+	 * True if the clients changed since the file was last written.
+	 */
+	protected boolean dirty = false;
+
+	/**
+	 * Creates a cache, loading the clients saved in a file. A missing or
+	 * damaged file leaves the cache empty.
+	 * 
+	 * @param file
+	 *            the file to keep the clients in, or null to keep them only
+	 *            in memory.
+	 * @param maxPeers
+	 *            the most clients kept.
+	 * @param maxAgeMillis
+	 *            the age after which a client that hasn't been seen is
+	 *            forgotten.
+	 */
+	public PeerCache(final File file, final int maxPeers,
+			final long maxAgeMillis) {
+		if (maxPeers < 1) {
+			throw new IllegalArgumentException(
+					"Peer cache must hold at least one client: " + maxPeers);
+		}
+		this.file = file;
+		this.maxPeers = maxPeers;
+		this.maxAgeMillis = maxAgeMillis;
+		if (file != null) {
+			try {
+				this.load();
+			} catch (FileNotFoundException fnfe) {
+				log.fine("No saved clients in " + file);
+			} catch (IOException ioe) {
+				log.warning("Ignoring saved clients in " + file + ": "
+						+ ioe.getMessage());
+				this.peers.clear();
+			}
+		}
+	}
+
+	/**
+	 * Creates a cache with the limits set by system properties.
+	 * 
+	 * @param file
+	 *            the file to keep the clients in, or null to keep them only
+	 *            in memory.
+	 * @return the cache.
+	 */
+	public static PeerCache fromProperties(final File file) {
+		return new PeerCache(file, Integer.getInteger(
+				PROPERTY_PREFIX + "max", DEFAULT_MAX_PEERS).intValue(), Long
+				.getLong(PROPERTY_PREFIX + "maxAgeHours",
+						DEFAULT_MAX_AGE_MILLIS / (60 * 60 * 1000)).longValue()
+				* 60 * 60 * 1000);
+	}
+
+	/**
+	 * Reads the file.
+	 */
+	private void load() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(this.file)));
+		try {
+			if (in.readInt() != MAGIC || in.readByte() != VERSION) {
+				throw new IOException("Not a peer cache.");
+			}
+			int count = in.readInt();
+			long now = System.currentTimeMillis();
+			for (int i = 0; i < count; ++i) {
+				Peer peer = new Peer(in.readUTF(), in.readUnsignedShort());
+				String username = in.readUTF();
+				peer.username = username.length() == 0 ? null : username;
+				peer.lastSeen = in.readLong();
+				peer.lastFailure = in.readLong();
+				peer.rttMicros = in.readInt();
+				peer.successes = in.readInt();
+				peer.failures = in.readInt();
+				if (now - Math.max(peer.lastSeen, peer.lastFailure) <= this.maxAgeMillis) {
+					this.peers.put(key(peer.host, peer.port), peer);
+				}
+			}
+		} finally {
+			in.close();
+		}
+		log.config("Loaded " + this.peers.size() + " clients from "
+				+ this.file);
+	}
+
+	/**
+	 * Writes the file if anything changed since it was last written. The new
+	 * file is written beside the old one and renamed over it.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be written.
+	 */
+	public void save() throws IOException {
+		List<Peer> copy;
+		synchronized (this) {
+			if (this.file == null || !this.dirty) {
+				return;
+			}
+			this.dirty = false;
+			copy = new ArrayList<Peer>(this.peers.size());
+			for (Peer peer : this.peers.values()) {
+				Peer saved = new Peer(peer.host, peer.port);
+				saved.username = peer.username;
+				saved.lastSeen = peer.lastSeen;
+				saved.lastFailure = peer.lastFailure;
+				saved.rttMicros = peer.rttMicros;
+				saved.successes = peer.successes;
+				saved.failures = peer.failures;
+				copy.add(saved);
+			}
+		}
+		File temporary = new File(this.file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temporary);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				stream));
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeInt(copy.size());
+			for (Peer peer : copy) {
+				out.writeUTF(peer.host);
+				out.writeShort(peer.port);
+				out.writeUTF(peer.username == null ? "" : peer.username);
+				out.writeLong(peer.lastSeen);
+				out.writeLong(peer.lastFailure);
+				out.writeInt(peer.rttMicros);
+				out.writeInt(peer.successes);
+				out.writeInt(peer.failures);
+			}
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			out.close();
+		}
+		// Windows won't rename over an existing file
+		if (!temporary.renameTo(this.file)
+				&& !(this.file.delete() && temporary.renameTo(this.file))) {
+			synchronized (this) {
+				this.dirty = true;
+			}
+			throw new IOException("Unable to replace " + this.file);
+		}
+	}
+
+	/**
+	 * Records a successful connection to a client.
+	 * 
+	 * @param host
+	 *            the client's IP address.
+	 * @param port
+	 *            the client's listen port.
+	 * @param username
+	 *            the client's username.
+	 * @param rttMicros
+	 *            the time taken to connect, in microseconds, or -1 if the
+	 *            client connected to us.
+	 */
+	public synchronized void connected(final String host, final int port,
+			final String username, final long rttMicros) {
+		Peer peer = this.peerFor(host, port);
+		peer.username = username;
+		peer.lastSeen = System.currentTimeMillis();
+		++peer.successes;
+		if (rttMicros >= 0) {
+			int rtt = (int) Math.min(Integer.MAX_VALUE, rttMicros);
+			peer.rttMicros = peer.rttMicros < 0 ? rtt : (int) Math
+					.round(peer.rttMicros * (1 - RTT_WEIGHT) + rtt * RTT_WEIGHT);
+		}
+		this.dirty = true;
+		this.trim();
+	}
+
+	/**
+	 * Records that a client was connected until now.
+	 * 
+	 * @param host
+	 *            the client's IP address.
+	 * @param port
+	 *            the client's listen port.
+	 */
+	public synchronized void seen(final String host, final int port) {
+		Peer peer = this.peers.get(key(host, port));
+		if (peer != null) {
+			peer.lastSeen = System.currentTimeMillis();
+			this.dirty = true;
+		}
+	}
+
+	/**
+	 * Records a failed connection to a client.
+	 * 
+	 * @param host
+	 *            the client's IP address.
+	 * @param port
+	 *            the client's listen port.
+	 */
+	public synchronized void failed(final String host, final int port) {
+		Peer peer = this.peerFor(host, port);
+		peer.lastFailure = System.currentTimeMillis();
+		++peer.failures;
+		this.dirty = true;
+		this.trim();
+	}
+
+	/**
+	 * Returns the clients most likely to accept a connection, best first.
+	 * Clients that haven't been seen within the maximum age are forgotten.
+	 * 
+	 * @param max
+	 *            the most clients to return.
+	 * @return the clients.
+	 */
+	public synchronized List<Peer> ranked(final int max) {
+		this.forgetOld();
+		List<Peer> ranked = new ArrayList<Peer>(this.peers.values());
+		Collections.sort(ranked, RANKING);
+		return new ArrayList<Peer>(ranked.subList(0, Math.min(max, ranked
+				.size())));
+	}
+
+	/**
+	 * Returns the number of clients in the cache.
+	 * 
+	 * @return the number of clients.
+	 */
+	public synchronized int size() {
+		return this.peers.size();
+	}
+
+	/**
+	 * Returns the entry for a client, adding one if there is none. Must be
+	 * called while synchronized.
+	 */
+	private Peer peerFor(final String host, final int port) {
+		String key = key(host, port);
+		Peer peer = this.peers.get(key);
+		if (peer == null) {
+			peer = new Peer(host, port);
+			this.peers.put(key, peer);
+		}
+		return peer;
+	}
+
+	/**
+	 * Forgets clients not seen within the maximum age. Must be called while
+	 * synchronized.
+	 */
+	private void forgetOld() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Peer> it = this.peers.values().iterator(); it.hasNext();) {
+			Peer peer = it.next();
+			if (now - Math.max(peer.lastSeen, peer.lastFailure) > this.maxAgeMillis) {
+				it.remove();
+				this.dirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Forgets the worst-ranked clients while there are too many. Must be
+	 * called while synchronized.
+	 */
+	private void trim() {
+		if (this.peers.size() <= this.maxPeers) {
+			return;
+		}
+		this.forgetOld();
+		List<Peer> ranked = new ArrayList<Peer>(this.peers.values());
+		Collections.sort(ranked, RANKING);
+		for (Peer peer : ranked.subList(this.maxPeers, ranked.size())) {
+			this.peers.remove(key(peer.host, peer.port));
+		}
+	}
+
+	/**
+	 * Returns the key of a client's entry.
+	 */
+	private static String key(final String host, final int port) {
+		return host + ":" + port;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "peer cache in "
+				+ (this.file == null ? "memory" : this.file.getPath()) + " ("
+				+ this.peers.size() + " clients)";
+	}
+}
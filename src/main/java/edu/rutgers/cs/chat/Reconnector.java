@@ -0,0 +1,382 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.util.CircuitBreaker;
+
+/**
+ * Connects again to clients whose connections failed. Each lost client is
+ * tried again after a delay that doubles with every failed attempt, up to a
+ * limit, with a random part so that clients that lost each other at the same
+ * moment don't all try again at once: an attempt waits between half and all
+ * of {@code baseMillis * 2^attempts}. Attempts are scheduled on the
+ * runtime's timer and made by the connect stage, so waiting clients use no
+ * threads.
+ * 
+ * Clients that said they were leaving are not tried again, nor are clients
+ * that connect to us before the next attempt. Attempts to an address whose
+ * circuit breaker is open wait until it lets one through. After
+ * {@code maxAttempts} failures in a row the client is given up on.
+ * 
+ * The delays can be set with system properties starting with
+ * {@value #PROPERTY_PREFIX}: {@code baseMillis}, {@code maxMillis} and
+ * {@code maxAttempts} (0 to turn reconnecting off), and for the breakers
+ * {@code breakerFailures}, {@code breakerOpenMillis} and
+ * {@code breakerMaxOpenMillis}.
+ * 
+ * @author Robert Moore
+ * 
+ */
+class Reconnector {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(Reconnector.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Prefix of the system properties that configure reconnecting.
+	 */
+	public static final String PROPERTY_PREFIX = "edu.rutgers.cs.chat.reconnect.";
+
+	/**
+	 * Default delay before the first attempt.
+	 */
+	public static final long DEFAULT_BASE_MILLIS = 500;
+
+	/**
+	 * Default longest delay between attempts.
+	 */
+	public static final long DEFAULT_MAX_MILLIS = 60 * 1000;
+
+	/**
+	 * Default number of failed attempts after which a client is given up on.
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 30;
+
+	/**
+	 * Default failures in a row that open an address's circuit breaker.
+	 */
+	public static final int DEFAULT_BREAKER_FAILURES = 5;
+
+	/**
+	 * Default time a circuit breaker stays open the first time.
+	 */
+	public static final long DEFAULT_BREAKER_OPEN_MILLIS = 30 * 1000;
+
+	/**
+	 * Default longest time a circuit breaker stays open.
+	 */
+	public static final long DEFAULT_BREAKER_MAX_OPEN_MILLIS = 10 * 60 * 1000;
+
+	/**
+	 * A client being reconnected to.
+	 */
+	protected static class Attempt {
+		/**
+		 * The client's IP address.
+		 */
+		final String host;
+
+		/**
+		 * The client's listen port.
+		 */
+		final int port;
+
+		/**
+		 * The client's username.
+		 */
+		final String username;
+
+		/**
+		 * Number of failed attempts so far.
+		 */
+		int failures = 0;
+
+		Attempt(final String host, final int port, final String username) {
+			this.host = host;
+			this.port = port;
+			this.username = username;
+		}
+
+		@Override
+		public String toString() {
+			return this.username + "@" + this.host + ":" + this.port;
+		}
+	}
+
+	/**
+	 * The client doing the reconnecting.
+	 */
+	protected final ChatClient owner;
+
+	/**
+	 * Delay before the first attempt.
+	 */
+	protected final long baseMillis;
+
+	/**
+	 * Longest delay between attempts.
+	 */
+	protected final long maxMillis;
+
+	/**
+	 * Failed attempts after which a client is given up on.
+	 */
+	protected final int maxAttempts;
+
+	/**
+	 * Clients waiting for their next attempt, keyed by address and port.
+	 */
+	protected final ConcurrentHashMap<String, Attempt> waiting = new ConcurrentHashMap<String, Attempt>();
+
+	/**
+	 * Chooses the random part of each delay.
+	 */
+	protected final Random random = new Random();
+
+	/**
+	 * Number of clients connected to again.
+	 */
+	protected final AtomicLong reconnected = new AtomicLong();
+
+	/**
+	 * Number of clients given up on.
+	 */
+	protected final AtomicLong abandoned = new AtomicLong();
+
+	/**
+	 * Creates a reconnector with the delays set by system properties.
+	 * 
+	 * @param owner
+	 *            the client doing the reconnecting.
+	 */
+	Reconnector(final ChatClient owner) {
+		this.owner = owner;
+		this.baseMillis = Math.max(1, Long.getLong(
+				PROPERTY_PREFIX + "baseMillis", DEFAULT_BASE_MILLIS)
+				.longValue());
+		this.maxMillis = Math.max(this.baseMillis, Long.getLong(
+				PROPERTY_PREFIX + "maxMillis", DEFAULT_MAX_MILLIS).longValue());
+		this.maxAttempts = Integer.getInteger(PROPERTY_PREFIX + "maxAttempts",
+				DEFAULT_MAX_ATTEMPTS).intValue();
+	}
+
+	/**
+	 * Creates the circuit breakers for the addresses of other clients, with
+	 * the limits set by the system properties {@code breakerFailures},
+	 * {@code breakerOpenMillis} and {@code breakerMaxOpenMillis}.
+	 * 
+	 * @return the breakers.
+	 */
+	static CircuitBreaker breakerFromProperties() {
+		long open = Long.getLong(PROPERTY_PREFIX + "breakerOpenMillis",
+				DEFAULT_BREAKER_OPEN_MILLIS).longValue();
+		return new CircuitBreaker(Integer.getInteger(
+				PROPERTY_PREFIX + "breakerFailures", DEFAULT_BREAKER_FAILURES)
+				.intValue(), open, Math.max(open, Long.getLong(
+				PROPERTY_PREFIX + "breakerMaxOpenMillis",
+				DEFAULT_BREAKER_MAX_OPEN_MILLIS).longValue()));
+	}
+
+	/**
+	 * Starts reconnecting to a client whose connection failed, unless it is
+	 * already being reconnected to or reconnecting is turned off.
+	 * 
+	 * @param client
+	 *            the lost client.
+	 */
+	void lost(final Client client) {
+		if (this.maxAttempts <= 0 || client.getUsername() == null) {
+			return;
+		}
+		Attempt attempt = new Attempt(ChatClient.addressOf(client), client
+				.getPort(), client.getUsername());
+		if (this.waiting.putIfAbsent(key(attempt.host, attempt.port), attempt) == null) {
+			log.fine("Will reconnect to " + attempt);
+			this.schedule(attempt, this.delay(0));
+		}
+	}
+
+	/**
+	 * Stops reconnecting to a client because it is connected again.
+	 * 
+	 * @param client
+	 *            the connected client.
+	 */
+	void connected(final Client client) {
+		this.waiting.remove(key(ChatClient.addressOf(client), client.getPort()));
+	}
+
+	/**
+	 * Returns the delay before an attempt: between half and all of the base
+	 * delay doubled once per failure, no more than the maximum.
+	 * 
+	 * @param failures
+	 *            the failed attempts so far.
+	 * @return the delay in milliseconds.
+	 */
+	protected long delay(final int failures) {
+		long ceiling = this.baseMillis << Math.min(failures, 30);
+		if (ceiling <= 0 || ceiling > this.maxMillis) {
+			ceiling = this.maxMillis;
+		}
+		long half = ceiling / 2;
+		return half + (long) (this.random.nextDouble() * (ceiling - half));
+	}
+
+	/**
+	 * Schedules an attempt on the runtime's timer.
+	 * 
+	 * @param attempt
+	 *            the client to reconnect to.
+	 * @param delayMillis
+	 *            how long to wait.
+	 */
+	protected void schedule(final Attempt attempt, final long delayMillis) {
+		if (!this.owner.keepRunning) {
+			return;
+		}
+		try {
+			this.owner.runtime.schedule(new Runnable() {
+				@Override
+				public void run() {
+					Reconnector.this.queue(attempt);
+				}
+			}, delayMillis);
+		} catch (IOException ioe) {
+			this.waiting.remove(key(attempt.host, attempt.port), attempt);
+			log.warning("Unable to schedule reconnecting to " + attempt + ": "
+					+ ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Hands an attempt to the connect stage, so the timer never waits for a
+	 * connection. If the stage is full, the attempt counts as failed.
+	 * 
+	 * @param attempt
+	 *            the client to reconnect to.
+	 */
+	protected void queue(final Attempt attempt) {
+		if (!this.isCurrent(attempt)) {
+			return;
+		}
+		boolean queued = this.owner.connectStage.execute(new Runnable() {
+			@Override
+			public void run() {
+				Reconnector.this.attempt(attempt);
+			}
+		});
+		if (!queued) {
+			this.failed(attempt);
+		}
+	}
+
+	/**
+	 * Tries to connect to a client, scheduling the next attempt if it fails.
+	 * 
+	 * @param attempt
+	 *            the client to reconnect to.
+	 */
+	protected void attempt(final Attempt attempt) {
+		if (!this.isCurrent(attempt)) {
+			return;
+		}
+		if (this.owner.findClient(attempt.username) != null) {
+			// Connected to us, or through another address
+			this.waiting.remove(key(attempt.host, attempt.port), attempt);
+			return;
+		}
+		long retryAt = this.owner.breaker.retryAt(key(attempt.host,
+				attempt.port));
+		if (retryAt > 0) {
+			// Doesn't count as a failure, the breaker already knows
+			this.schedule(attempt, retryAt - System.currentTimeMillis());
+			return;
+		}
+		if (this.owner.addClient(attempt.host, attempt.port, attempt.username)) {
+			this.waiting.remove(key(attempt.host, attempt.port), attempt);
+			this.reconnected.incrementAndGet();
+			log.info("Reconnected to " + attempt + " after "
+					+ attempt.failures + " failed attempts.");
+			return;
+		}
+		this.failed(attempt);
+	}
+
+	/**
+	 * Schedules the next attempt after a failure, or gives up.
+	 * 
+	 * @param attempt
+	 *            the client that couldn't be reconnected to.
+	 */
+	protected void failed(final Attempt attempt) {
+		if (++attempt.failures >= this.maxAttempts) {
+			this.waiting.remove(key(attempt.host, attempt.port), attempt);
+			this.abandoned.incrementAndGet();
+			// Nothing kept for it will be sent now
+			this.owner.sessions.remove(attempt.username);
+			log.warning("Gave up reconnecting to " + attempt + " after "
+					+ attempt.failures + " attempts.");
+			return;
+		}
+		this.schedule(attempt, this.delay(attempt.failures));
+	}
+
+	/**
+	 * Returns true if an attempt is still wanted: the client is running and
+	 * the client wasn't connected to or given up on in the meantime.
+	 */
+	private boolean isCurrent(final Attempt attempt) {
+		return this.owner.keepRunning
+				&& this.waiting.get(key(attempt.host, attempt.port)) == attempt;
+	}
+
+	/**
+	 * Returns the key of a client.
+	 */
+	static String key(final String host, final int port) {
+		return host + ":" + port;
+	}
+
+	/**
+	 * Returns a one-line summary of reconnecting.
+	 * 
+	 * @return the summary.
+	 */
+	String report() {
+		return "waiting=" + this.waiting.size() + " reconnected="
+				+ this.reconnected.get() + " abandoned="
+				+ this.abandoned.get();
+	}
+}
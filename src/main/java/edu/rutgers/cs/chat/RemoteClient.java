@@ -0,0 +1,103 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+/**
+ * A client that is known through membership information but is not directly
+ * connected to the local client. Messages for a remote client are routed
+ * through a directly-connected next hop. A remote client never opens its
+ * socket and is never started.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RemoteClient extends Client {
+
+	/**
+	 * The directly-connected client through which this client is reached.
+	 */
+	protected volatile Client nextHop;
+
+	/**
+	 * Creates a new remote client.
+	 * 
+	 * @param ipAddress
+	 *            the IP address of the client, or of the next hop if unknown.
+	 * @param port
+	 *            the listen port of the client, or -1 if unknown.
+	 * @param username
+	 *            the username of the client.
+	 * @param nextHop
+	 *            the directly-connected client that can reach this client.
+	 * @param localUsername
+	 *            the username of the local client.
+	 * @param localPort
+	 *            the listen port of the local client.
+	 */
+	public RemoteClient(final String ipAddress, final int port,
+			final String username, final Client nextHop,
+			final String localUsername, final int localPort) {
+		super(ipAddress, port, username, localUsername, localPort);
+		this.nextHop = nextHop;
+	}
+
+	/**
+	 * Returns the directly-connected client through which this client is
+	 * reached.
+	 * 
+	 * @return the next hop for this client.
+	 */
+	public Client getNextHop() {
+		return this.nextHop;
+	}
+
+	/**
+	 * Updates the directly-connected client through which this client is
+	 * reached.
+	 * 
+	 * @param nextHop
+	 *            the new next hop for this client.
+	 */
+	public void setNextHop(final Client nextHop) {
+		this.nextHop = nextHop;
+	}
+
+	/**
+	 * Remote clients are equal only if they have the same username, since the
+	 * address of a remote client may not be known.
+	 */
+	@Override
+	public boolean equals(Client client) {
+		if (client instanceof RemoteClient) {
+			return this.username.equals(client.getUsername());
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode() {
+		return this.username.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " (via " + this.nextHop.getUsername() + ")";
+	}
+}
@@ -0,0 +1,151 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interns room names as small integer identifiers so that subscriptions can be
+ * stored as compact bitsets. Identifiers are only meaningful to the local
+ * client; room names are always used on the wire. Identifiers are never
+ * reclaimed, so the registry holds at most a fixed number of rooms.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RoomRegistry {
+
+	/**
+	 * Room identifiers, keyed by room name.
+	 */
+	protected final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Room names, indexed by identifier.
+	 */
+	protected final List<String> names = new ArrayList<String>();
+
+	/**
+	 * Most rooms that can be interned.
+	 */
+	protected final int maxRooms;
+
+	/**
+	 * Creates a registry with no limit on the number of rooms.
+	 */
+	public RoomRegistry() {
+		this(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a registry that holds at most {@code maxRooms} rooms.
+	 * 
+	 * @param maxRooms
+	 *            the most rooms that can be interned.
+	 */
+	public RoomRegistry(final int maxRooms) {
+		this.maxRooms = maxRooms;
+	}
+
+	/**
+	 * Returns the identifier for the room, assigning a new one if the room has
+	 * not been seen before and the registry is not full.
+	 * 
+	 * @param room
+	 *            the name of the room.
+	 * @return the identifier of the room, or -1 if the registry is full.
+	 */
+	public int intern(final String room) {
+		Integer id = this.ids.get(room);
+		if (id != null) {
+			return id.intValue();
+		}
+		synchronized (this.names) {
+			id = this.ids.get(room);
+			if (id == null) {
+				if (this.names.size() >= this.maxRooms) {
+					return -1;
+				}
+				id = Integer.valueOf(this.names.size());
+				this.names.add(room);
+				this.ids.put(room, id);
+			}
+		}
+		return id.intValue();
+	}
+
+	/**
+	 * Returns the identifier for the room, or -1 if the room has not been
+	 * interned.
+	 * 
+	 * @param room
+	 *            the name of the room.
+	 * @return the identifier of the room, or -1.
+	 */
+	public int lookup(final String room) {
+		Integer id = this.ids.get(room);
+		return id == null ? -1 : id.intValue();
+	}
+
+	/**
+	 * Returns the number of interned rooms.
+	 * 
+	 * @return the number of interned rooms.
+	 */
+	public int size() {
+		synchronized (this.names) {
+			return this.names.size();
+		}
+	}
+
+	/**
+	 * Returns the name of the room with the specified identifier.
+	 * 
+	 * @param id
+	 *            the room identifier.
+	 * @return the name of the room.
+	 */
+	public String getName(final int id) {
+		synchronized (this.names) {
+			return this.names.get(id);
+		}
+	}
+
+	/**
+	 * Returns the names of every room set in the bitset.
+	 * 
+	 * @param rooms
+	 *            a bitset of room identifiers.
+	 * @return the names of the rooms.
+	 */
+	public List<String> getNames(final BitSet rooms) {
+		List<String> roomNames = new ArrayList<String>();
+		synchronized (this.names) {
+			for (int i = rooms.nextSetBit(0); i >= 0; i = rooms
+					.nextSetBit(i + 1)) {
+				roomNames.add(this.names.get(i));
+			}
+		}
+		return roomNames;
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routes for clients that are not directly connected. Each route maps a
+ * username to a {@link RemoteClient} which records the directly-connected next
+ * hop. Routes are learned from client exchange messages (the sender of the
+ * exchange can reach the advertised client) and from routed messages (the
+ * previous hop can reach the source).
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RoutingTable {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(RoutingTable.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Known routes, keyed by username.
+	 */
+	protected final ConcurrentHashMap<String, RemoteClient> routes = new ConcurrentHashMap<String, RemoteClient>();
+
+	/**
+	 * Adds a route to the specified username through the next hop. If a route
+	 * already exists, it is left unchanged.
+	 * 
+	 * @param remote
+	 *            the remote client to add.
+	 * @return true if the route is new, false if one already existed.
+	 */
+	public boolean addRoute(final RemoteClient remote) {
+		RemoteClient old = this.routes.putIfAbsent(remote.getUsername(), remote);
+		if (old == null) {
+			log.fine("Learned route to " + remote);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the remote client for the username, or null if no route is
+	 * known.
+	 * 
+	 * @param username
+	 *            the username to look up.
+	 * @return the remote client, or null if there is no route.
+	 */
+	public RemoteClient getRoute(final String username) {
+		return this.routes.get(username);
+	}
+
+	/**
+	 * Removes the route to the username.
+	 * 
+	 * @param username
+	 *            the username whose route should be removed.
+	 * @return the removed remote client, or null if there was no route.
+	 */
+	public RemoteClient removeRoute(final String username) {
+		return this.routes.remove(username);
+	}
+
+	/**
+	 * Removes every route that goes through the specified next hop.
+	 * 
+	 * @param nextHop
+	 *            the client that is no longer connected.
+	 * @return the remote clients that are no longer reachable.
+	 */
+	public Collection<RemoteClient> removeRoutesVia(final Client nextHop) {
+		Collection<RemoteClient> removed = new ArrayList<RemoteClient>();
+		for (Iterator<RemoteClient> iter = this.routes.values().iterator(); iter
+				.hasNext();) {
+			RemoteClient remote = iter.next();
+			if (remote.getNextHop() == nextHop) {
+				iter.remove();
+				removed.add(remote);
+			}
+		}
+		return removed;
+	}
+}
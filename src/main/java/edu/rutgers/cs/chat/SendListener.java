@@ -0,0 +1,40 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+/**
+ * Notified when every peer a message was sent to has either been written the
+ * message or failed.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public interface SendListener {
+
+	/**
+	 * Called once the result is complete. This is usually called by a
+	 * connection's writer thread or event loop, so it should return quickly
+	 * and must not wait for other sends to complete.
+	 * 
+	 * @param result
+	 *            the completed result.
+	 */
+	public void sendCompleted(SendResult result);
+}
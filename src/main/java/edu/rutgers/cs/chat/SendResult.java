@@ -0,0 +1,337 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.messaging.AbstractMessage;
+
+/**
+ * The outcome of sending one message to one or more peers. The result is
+ * complete once the message has been flushed to the socket of every peer, or
+ * the peer's connection failed first. {@link #get()} returns the number of
+ * peers the message was written to, and fails only if it could not be written
+ * to any of them. Peers that failed are available from {@link #getFailures()}.
+ * 
+ * Sends cannot be cancelled once queued.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class SendResult implements Future<Integer> {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(SendResult.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * The message that was sent.
+	 */
+	protected final AbstractMessage message;
+
+	/**
+	 * Guards the counters. A lock is used so that a virtual thread waiting for
+	 * the result does not pin its carrier thread.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Signalled when the result completes.
+	 */
+	protected final Condition completed = this.lock.newCondition();
+
+	/**
+	 * Number of peers that have not yet been written the message or failed.
+	 */
+	protected int pending;
+
+	/**
+	 * Number of peers the message was written to.
+	 */
+	protected int written = 0;
+
+	/**
+	 * Peers that could not be sent the message, and why.
+	 */
+	protected final Map<Client, Throwable> failures = new LinkedHashMap<Client, Throwable>();
+
+	/**
+	 * Listeners waiting for the result to complete, or null once it has.
+	 */
+	protected List<SendListener> listeners = new ArrayList<SendListener>(1);
+
+	/**
+	 * Creates a new result for a message that will be sent to a number of
+	 * peers. A message sent to no peers is complete immediately.
+	 * 
+	 * @param message
+	 *            the message being sent.
+	 * @param peers
+	 *            the number of peers the message will be sent to.
+	 */
+	public SendResult(final AbstractMessage message, final int peers) {
+		this.message = message;
+		this.pending = peers;
+		if (peers == 0) {
+			this.listeners = null;
+		}
+	}
+
+	/**
+	 * Records that the message was flushed to a peer.
+	 * 
+	 * @param client
+	 *            the peer.
+	 */
+	protected void written(final Client client) {
+		this.complete(client, null);
+	}
+
+	/**
+	 * Records that the message could not be sent to a peer.
+	 * 
+	 * @param client
+	 *            the peer.
+	 * @param cause
+	 *            why the message could not be sent.
+	 */
+	protected void failed(final Client client, final Throwable cause) {
+		this.complete(client, cause);
+	}
+
+	/**
+	 * Counts one peer as finished and notifies the listeners if it was the
+	 * last one.
+	 * 
+	 * @param client
+	 *            the peer.
+	 * @param cause
+	 *            why the message could not be sent, or null if it was.
+	 */
+	protected void complete(final Client client, final Throwable cause) {
+		List<SendListener> toNotify;
+		this.lock.lock();
+		try {
+			if (this.pending == 0) {
+				log.warning("Too many completions for " + this + " from "
+						+ client);
+				return;
+			}
+			if (cause == null) {
+				++this.written;
+			} else {
+				this.failures.put(client, cause);
+			}
+			if (--this.pending > 0) {
+				return;
+			}
+			this.completed.signalAll();
+			toNotify = this.listeners;
+			this.listeners = null;
+		} finally {
+			this.lock.unlock();
+		}
+		for (SendListener listener : toNotify) {
+			this.notify(listener);
+		}
+	}
+
+	/**
+	 * Calls a listener, logging anything it throws.
+	 * 
+	 * @param listener
+	 *            the listener to call.
+	 */
+	protected void notify(final SendListener listener) {
+		try {
+			listener.sendCompleted(this);
+		} catch (RuntimeException re) {
+			log.log(Level.WARNING, "Send listener failed for " + this, re);
+		}
+	}
+
+	/**
+	 * Registers a listener to be called once the result completes. If it
+	 * already has, the listener is called right away by this thread.
+	 * 
+	 * @param listener
+	 *            the listener to add.
+	 */
+	public void addListener(final SendListener listener) {
+		this.lock.lock();
+		try {
+			if (this.listeners != null) {
+				this.listeners.add(listener);
+				return;
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		this.notify(listener);
+	}
+
+	/**
+	 * Returns the message that was sent.
+	 * 
+	 * @return the message.
+	 */
+	public AbstractMessage getMessage() {
+		return this.message;
+	}
+
+	/**
+	 * Returns the peers that could not be sent the message so far, and why.
+	 * 
+	 * @return a copy of the failures.
+	 */
+	public Map<Client, Throwable> getFailures() {
+		this.lock.lock();
+		try {
+			return Collections
+					.unmodifiableMap(new LinkedHashMap<Client, Throwable>(
+							this.failures));
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns true if the result is complete and no peer failed.
+	 * 
+	 * @return true if the message was written to every peer.
+	 */
+	public boolean isSuccess() {
+		this.lock.lock();
+		try {
+			return this.pending == 0 && this.failures.isEmpty();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Sends cannot be cancelled, so this always returns false.
+	 */
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return false;
+	}
+
+	@Override
+	public boolean isDone() {
+		this.lock.lock();
+		try {
+			return this.pending == 0;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for the result to complete.
+	 * 
+	 * @return the number of peers the message was written to.
+	 * @throws ExecutionException
+	 *             if the message could not be written to any peer.
+	 */
+	@Override
+	public Integer get() throws InterruptedException, ExecutionException {
+		this.lock.lock();
+		try {
+			while (this.pending > 0) {
+				this.completed.await();
+			}
+			return this.getNow();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits at most the given time for the result to complete.
+	 * 
+	 * @return the number of peers the message was written to.
+	 * @throws ExecutionException
+	 *             if the message could not be written to any peer.
+	 */
+	@Override
+	public Integer get(final long timeout, final TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long remaining = unit.toNanos(timeout);
+		this.lock.lock();
+		try {
+			while (this.pending > 0) {
+				if (remaining <= 0) {
+					throw new TimeoutException(this.pending
+							+ " peers have not been written " + this.message);
+				}
+				remaining = this.completed.awaitNanos(remaining);
+			}
+			return this.getNow();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the outcome of a completed result. Must be called while holding
+	 * the lock.
+	 * 
+	 * @return the number of peers the message was written to.
+	 * @throws ExecutionException
+	 *             if every peer failed.
+	 */
+	protected Integer getNow() throws ExecutionException {
+		if (this.written == 0 && !this.failures.isEmpty()) {
+			throw new ExecutionException("Unable to send " + this.message
+					+ " to any peer.", this.failures.values().iterator()
+					.next());
+		}
+		return Integer.valueOf(this.written);
+	}
+
+	@Override
+	public String toString() {
+		return "Result of " + this.message;
+	}
+}
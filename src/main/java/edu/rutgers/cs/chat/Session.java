@@ -0,0 +1,607 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.messaging.AbstractMessage;
+import edu.rutgers.cs.chat.messaging.AckMessage;
+import edu.rutgers.cs.chat.messaging.SessionMessage;
+
+/**
+ * The numbered chat messages exchanged with one other client, kept across
+ * connections so that a lost connection can be resumed. Chat, private, routed
+ * and room messages small enough to be sent whole are numbered as they are
+ * queued, and the last ones are kept so they can be sent again. They all
+ * share one lane of the {@link OutboundQueue}, so they are written in the
+ * order they are numbered. Messages sent in fragments are not numbered.
+ * 
+ * When a connection is made, each client tells the other which of its
+ * messages it received last (see {@link SessionMessage}). Once the
+ * connection is registered, each client sends again the kept messages after
+ * that one, or starts a new stream if they are no longer kept, before any
+ * new message. Messages that arrive twice are dropped by their identifiers.
+ * 
+ * Only the connection the session is attached to numbers messages, so a
+ * connection being replaced can't disturb the count. While no connection is
+ * attached, chat messages for the other client are kept until it comes back.
+ * 
+ * If the other client acknowledges what it receives (see {@link AckMessage}),
+ * acknowledged messages are no longer kept, and the {@link WriteReceipt} of a
+ * numbered message is held with it rather than queued, so its
+ * {@link SendResult} completes once the other client has read the message,
+ * or fails if the message is dropped before then. In turn, if the local
+ * client acknowledges messages, one acknowledgement is sent for every few
+ * messages received, or a short time after the first one not yet
+ * acknowledged.
+ * 
+ * @author Robert Moore
+ * 
+ */
+class Session {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger
+			.getLogger(Session.class.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * The username of the other client.
+	 */
+	protected final String username;
+
+	/**
+	 * The table this session belongs to, for its limits and statistics.
+	 */
+	protected final SessionTable table;
+
+	/**
+	 * The connection numbering messages, or null.
+	 */
+	protected Client owner = null;
+
+	/**
+	 * Token of the stream of messages sent to the other client.
+	 */
+	protected long outToken = SessionMessage.NO_SESSION;
+
+	/**
+	 * Number of the last message queued.
+	 */
+	protected long last = 0;
+
+	/**
+	 * The last messages queued, up to and including {@link #last}.
+	 */
+	protected final ArrayDeque<Kept> kept = new ArrayDeque<Kept>();
+
+	/**
+	 * Encoded size of the kept messages.
+	 */
+	protected long keptBytes = 0;
+
+	/**
+	 * Token of the stream of messages received from the other client.
+	 */
+	protected long inToken = SessionMessage.NO_SESSION;
+
+	/**
+	 * Number of the last message received.
+	 */
+	protected long received = 0;
+
+	/**
+	 * Set if the other client acknowledges the messages it receives.
+	 */
+	protected boolean peerAcks = false;
+
+	/**
+	 * Number of messages received since the last acknowledgement was sent.
+	 */
+	protected int unacked = 0;
+
+	/**
+	 * Set while an acknowledgement is scheduled.
+	 */
+	protected boolean ackScheduled = false;
+
+	/**
+	 * A kept message, with the receipt to complete once it is acknowledged.
+	 */
+	protected static final class Kept {
+		/**
+		 * The numbered message.
+		 */
+		final AbstractMessage message;
+
+		/**
+		 * The receipt for the message, or null.
+		 */
+		WriteReceipt receipt = null;
+
+		/**
+		 * Creates a kept message without a receipt.
+		 * 
+		 * @param message
+		 *            the message.
+		 */
+		Kept(final AbstractMessage message) {
+			this.message = message;
+		}
+	}
+
+	/**
+	 * Creates an empty session.
+	 * 
+	 * @param username
+	 *            the username of the other client.
+	 * @param table
+	 *            the table the session belongs to.
+	 */
+	Session(final String username, final SessionTable table) {
+		this.username = username;
+		this.table = table;
+	}
+
+	/**
+	 * Returns true if a message is numbered when it is sent whole.
+	 * 
+	 * @param message
+	 *            the message.
+	 * @return true for chat, private, routed and room messages.
+	 */
+	static boolean isSequenced(final AbstractMessage message) {
+		switch (message.getType()) {
+		case AbstractMessage.TYPE_CHAT_MESSAGE:
+		case AbstractMessage.TYPE_PRIVATE_CHAT_MESSAGE:
+		case AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE:
+		case AbstractMessage.TYPE_ROOM_CHAT_MESSAGE:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the first session message for a new connection, naming the
+	 * last message received from the other client.
+	 * 
+	 * @return the message to send after the handshake.
+	 */
+	synchronized SessionMessage offer() {
+		return new SessionMessage(this.inToken, this.received,
+				this.table.acks ? SessionMessage.FLAG_ACKS : 0);
+	}
+
+	/**
+	 * Attaches the session to a registered connection and returns the
+	 * messages to send on it before any others: the second session message,
+	 * then the kept messages after the last one the other client received.
+	 * Messages up to that one have been read, so their receipts are
+	 * completed. If the other client asked for messages that are no longer
+	 * kept, or for another stream, a new stream is started instead and the
+	 * receipts of the kept messages fail.
+	 * 
+	 * @param client
+	 *            the new connection.
+	 * @param token
+	 *            the stream the other client was receiving.
+	 * @param sequence
+	 *            the last message it received.
+	 * @param acks
+	 *            true if the other client acknowledges the messages it
+	 *            receives.
+	 * @return the messages to queue, in order.
+	 */
+	List<AbstractMessage> attach(final Client client, final long token,
+			final long sequence, final boolean acks) {
+		List<AbstractMessage> queued = new ArrayList<AbstractMessage>();
+		List<WriteReceipt> read = new ArrayList<WriteReceipt>();
+		List<WriteReceipt> dropped = new ArrayList<WriteReceipt>();
+		synchronized (this) {
+			this.owner = client;
+			this.peerAcks = acks;
+			this.unacked = 0;
+			long first = this.last - this.kept.size() + 1;
+			long from;
+			if (token != SessionMessage.NO_SESSION && token == this.outToken
+					&& sequence <= this.last && sequence >= first - 1) {
+				from = sequence;
+				this.trim(sequence, read);
+				for (Kept entry : this.kept) {
+					queued.add(entry.message);
+				}
+				this.table.resumed(queued.size());
+				if (!queued.isEmpty()) {
+					log.info("Resuming " + client + " after message " + sequence
+							+ ", sending " + queued.size() + " again.");
+				}
+			} else {
+				if (token != SessionMessage.NO_SESSION && token == this.outToken) {
+					log.warning("Unable to resume " + client + " after message "
+							+ sequence + ", only " + first + " to " + this.last
+							+ " are kept.");
+				}
+				from = 0;
+				this.outToken = this.table.newToken();
+				this.last = 0;
+				for (Kept entry : this.kept) {
+					if (entry.receipt != null) {
+						dropped.add(entry.receipt);
+					}
+				}
+				this.kept.clear();
+				this.keptBytes = 0;
+				this.table.started();
+			}
+			queued.add(0, new SessionMessage(this.outToken, from));
+		}
+		complete(read, null);
+		complete(dropped, new IOException("Connection to " + this.username
+				+ " restarted before the message was acknowledged."));
+		return queued;
+	}
+
+	/**
+	 * Detaches the session from a connection that was lost, so chat messages
+	 * are kept for the other client until it connects again.
+	 * 
+	 * @param client
+	 *            the lost connection.
+	 */
+	synchronized void detach(final Client client) {
+		if (client == this.owner) {
+			this.owner = null;
+		}
+	}
+
+	/**
+	 * Numbers the messages being queued on a connection and queues them,
+	 * holding the session so that messages are queued in the order they are
+	 * numbered. Messages are kept even if the connection turns out to be
+	 * closed, so they are sent again if it is resumed. If the other client
+	 * acknowledges messages, the receipt following a numbered message is
+	 * kept with it instead of being queued. The receipts of messages dropped
+	 * before being acknowledged are queued instead, so they complete once
+	 * written.
+	 * 
+	 * @param client
+	 *            the connection.
+	 * @param messages
+	 *            the messages, fragments and receipts to queue.
+	 * @param outbound
+	 *            the connection's queue.
+	 * @throws SocketException
+	 *             if the queue has been closed.
+	 */
+	void queue(final Client client,
+			final List<? extends AbstractMessage> messages,
+			final OutboundQueue outbound) throws SocketException {
+		List<WriteReceipt> dropped = new ArrayList<WriteReceipt>();
+		try {
+			synchronized (this) {
+				if (client != this.owner) {
+					outbound.offerAll(messages);
+					return;
+				}
+				List<? extends AbstractMessage> queued = messages;
+				if (this.peerAcks) {
+					List<AbstractMessage> unheld = new ArrayList<AbstractMessage>(
+							messages.size());
+					AbstractMessage previous = null;
+					for (AbstractMessage message : messages) {
+						if (!(message instanceof WriteReceipt
+								&& previous != null && isSequenced(previous))) {
+							unheld.add(message);
+						}
+						previous = message;
+					}
+					queued = unheld;
+				}
+				SocketException closed = null;
+				try {
+					outbound.offerAll(queued);
+				} catch (SocketException se) {
+					// The caller fails the results, but the messages are kept
+					closed = se;
+				}
+				Kept previous = null;
+				for (AbstractMessage message : messages) {
+					if (isSequenced(message)) {
+						previous = this.add(message, dropped);
+					} else if (previous != null && closed == null
+							&& queued != messages
+							&& message instanceof WriteReceipt) {
+						previous.receipt = (WriteReceipt) message;
+						previous = null;
+					} else {
+						previous = null;
+					}
+				}
+				if (closed != null) {
+					throw closed;
+				}
+				if (!dropped.isEmpty()) {
+					try {
+						outbound.offerAll(dropped);
+						dropped.clear();
+					} catch (SocketException se) {
+						// Failed below; this batch was already queued
+					}
+				}
+			}
+		} finally {
+			complete(dropped, new IOException("Connection to "
+					+ this.username
+					+ " closed before the message was acknowledged."));
+		}
+	}
+
+	/**
+	 * Keeps a chat message for the other client while it is not connected.
+	 * 
+	 * @param message
+	 *            the message.
+	 * @return true if the message was kept, false if a connection is
+	 *         attached or no stream was ever started.
+	 */
+	boolean keep(final AbstractMessage message) {
+		List<WriteReceipt> dropped = new ArrayList<WriteReceipt>();
+		synchronized (this) {
+			if (this.owner != null
+					|| this.outToken == SessionMessage.NO_SESSION) {
+				return false;
+			}
+			this.add(message, dropped);
+		}
+		complete(dropped, new IOException("Connection to " + this.username
+				+ " closed before the message was acknowledged."));
+		return true;
+	}
+
+	/**
+	 * Numbers a message and keeps it, dropping the oldest messages once the
+	 * table's limits are reached.
+	 * 
+	 * @param message
+	 *            a message for which {@link #isSequenced} is true.
+	 * @param dropped
+	 *            receives the receipts of dropped messages.
+	 * @return the kept message.
+	 */
+	protected Kept add(final AbstractMessage message,
+			final List<WriteReceipt> dropped) {
+		++this.last;
+		Kept added = new Kept(message);
+		this.kept.addLast(added);
+		this.keptBytes += message.getLength() + 4;
+		while (this.kept.size() > this.table.maxFrames
+				|| (this.keptBytes > this.table.maxBytes && this.kept.size() > 1)) {
+			Kept oldest = this.kept.removeFirst();
+			this.keptBytes -= oldest.message.getLength() + 4;
+			if (oldest.receipt != null) {
+				dropped.add(oldest.receipt);
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * Drops the kept messages up to one the other client has read.
+	 * 
+	 * @param sequence
+	 *            the number of the last message read.
+	 * @param read
+	 *            receives the receipts of the dropped messages.
+	 */
+	protected void trim(final long sequence, final List<WriteReceipt> read) {
+		long first = this.last - this.kept.size() + 1;
+		for (; first <= sequence && !this.kept.isEmpty(); ++first) {
+			Kept oldest = this.kept.removeFirst();
+			this.keptBytes -= oldest.message.getLength() + 4;
+			if (oldest.receipt != null) {
+				read.add(oldest.receipt);
+			}
+		}
+	}
+
+	/**
+	 * Completes receipts outside the session's lock, since their listeners
+	 * may send more messages.
+	 * 
+	 * @param receipts
+	 *            the receipts.
+	 * @param cause
+	 *            why the messages were not read, or null if they were.
+	 */
+	protected static void complete(final List<WriteReceipt> receipts,
+			final Throwable cause) {
+		for (WriteReceipt receipt : receipts) {
+			if (cause == null) {
+				receipt.written();
+			} else {
+				receipt.failed(cause);
+			}
+		}
+	}
+
+	/**
+	 * Counts a numbered message read from the other client. If the local
+	 * client acknowledges messages, returns an acknowledgement once enough
+	 * messages have arrived since the last one, and otherwise makes sure one
+	 * is scheduled.
+	 * 
+	 * @param client
+	 *            the connection the message arrived on.
+	 * @return the acknowledgement to send now, or null.
+	 */
+	synchronized AckMessage received(final Client client) {
+		if (client != this.owner || this.inToken == SessionMessage.NO_SESSION) {
+			return null;
+		}
+		++this.received;
+		if (!this.table.acks) {
+			return null;
+		}
+		if (++this.unacked >= this.table.ackFrames) {
+			return this.ack();
+		}
+		if (!this.ackScheduled) {
+			this.ackScheduled = true;
+			this.table.scheduleAck(this, client);
+		}
+		return null;
+	}
+
+	/**
+	 * Returns an acknowledgement of the messages received so far.
+	 * 
+	 * @return the acknowledgement.
+	 */
+	protected AckMessage ack() {
+		this.unacked = 0;
+		this.table.ackSent();
+		return new AckMessage(this.inToken, this.received);
+	}
+
+	/**
+	 * Sends an acknowledgement if messages arrived since the last one. Run a
+	 * short time after the first of them.
+	 */
+	void flushAck() {
+		AckMessage ack;
+		Client client;
+		synchronized (this) {
+			this.ackScheduled = false;
+			if (this.unacked == 0 || this.owner == null) {
+				return;
+			}
+			ack = this.ack();
+			client = this.owner;
+		}
+		client.sendAck(ack);
+	}
+
+	/**
+	 * Handles an acknowledgement from the other client, dropping the
+	 * messages it has read and completing their receipts.
+	 * 
+	 * @param client
+	 *            the connection the message arrived on.
+	 * @param message
+	 *            the acknowledgement.
+	 */
+	void acknowledged(final Client client, final AckMessage message) {
+		List<WriteReceipt> read = new ArrayList<WriteReceipt>();
+		synchronized (this) {
+			if (client != this.owner || message.getToken() != this.outToken) {
+				return;
+			}
+			this.trim(Math.min(message.getSequence(), this.last), read);
+		}
+		this.table.ackReceived();
+		complete(read, null);
+	}
+
+	/**
+	 * Fails the receipts of messages that were never acknowledged, once the
+	 * session is dropped.
+	 */
+	void close() {
+		List<WriteReceipt> dropped = new ArrayList<WriteReceipt>();
+		synchronized (this) {
+			for (Kept entry : this.kept) {
+				if (entry.receipt != null) {
+					dropped.add(entry.receipt);
+				}
+			}
+			this.kept.clear();
+			this.keptBytes = 0;
+		}
+		complete(dropped, new IOException(this.username
+				+ " left before the message was acknowledged."));
+	}
+
+	/**
+	 * Handles the second session message from the other client, which says
+	 * where its numbering continues on this connection.
+	 * 
+	 * @param client
+	 *            the connection the message arrived on.
+	 * @param message
+	 *            the session message.
+	 */
+	synchronized void started(final Client client, final SessionMessage message) {
+		if (client != this.owner) {
+			return;
+		}
+		if (message.getToken() == this.inToken
+				&& message.getSequence() > this.received) {
+			log.warning("Messages " + (this.received + 1) + " to "
+					+ message.getSequence() + " from " + client
+					+ " were lost.");
+		}
+		this.inToken = message.getToken();
+		this.received = message.getSequence();
+		this.unacked = 0;
+	}
+
+	/**
+	 * Returns the number of messages kept to be sent again.
+	 * 
+	 * @return the number of kept messages.
+	 */
+	synchronized int getKeptCount() {
+		return this.kept.size();
+	}
+
+	/**
+	 * Returns the number of kept messages whose receipts wait for an
+	 * acknowledgement.
+	 * 
+	 * @return the number of unacknowledged messages.
+	 */
+	synchronized int getUnackedCount() {
+		int unackedCount = 0;
+		for (Kept entry : this.kept) {
+			if (entry.receipt != null) {
+				++unackedCount;
+			}
+		}
+		return unackedCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.username + " sent=" + this.last + " kept="
+				+ this.kept.size() + " received=" + this.received;
+	}
+}
@@ -0,0 +1,322 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.messaging.AbstractMessage;
+import edu.rutgers.cs.chat.messaging.SessionMessage;
+import edu.rutgers.cs.chat.net.EventLoop;
+
+/**
+ * The {@link Session}s of a local client, one for each client it has been
+ * connected to, by username. A session is kept while the other client may
+ * come back, and dropped when it says it is leaving or is given up on.
+ * 
+ * The number of messages each session keeps to send again can be set with
+ * the system properties {@code edu.rutgers.cs.chat.session.maxFrames} and
+ * {@code edu.rutgers.cs.chat.session.maxBytes}.
+ * 
+ * Setting {@code edu.rutgers.cs.chat.session.acks} to true makes the local
+ * client acknowledge the messages it receives, once every
+ * {@code edu.rutgers.cs.chat.session.ackFrames} messages or
+ * {@code edu.rutgers.cs.chat.session.ackMillis} milliseconds after the first
+ * one not yet acknowledged, whichever comes first. Clients sending to it
+ * then complete their send results only once the messages are acknowledged,
+ * and in this mode the local client tells its user interface a chat message
+ * was sent only once every client has acknowledged it or failed.
+ * 
+ * @author Robert Moore
+ * 
+ */
+class SessionTable {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(SessionTable.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Prefix of the system properties that configure sessions.
+	 */
+	public static final String PROPERTY_PREFIX = "edu.rutgers.cs.chat.session.";
+
+	/**
+	 * Default number of messages kept for each client.
+	 */
+	public static final int DEFAULT_MAX_FRAMES = 1024;
+
+	/**
+	 * Default encoded size of the messages kept for each client.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+	/**
+	 * Default number of messages received for each acknowledgement.
+	 */
+	public static final int DEFAULT_ACK_FRAMES = 32;
+
+	/**
+	 * Default time from the first message not yet acknowledged to its
+	 * acknowledgement.
+	 */
+	public static final long DEFAULT_ACK_MILLIS = 100;
+
+	/**
+	 * Most messages kept for each client.
+	 */
+	protected final int maxFrames;
+
+	/**
+	 * Most bytes of messages kept for each client.
+	 */
+	protected final long maxBytes;
+
+	/**
+	 * Set if received messages are acknowledged.
+	 */
+	protected final boolean acks;
+
+	/**
+	 * Most messages received for each acknowledgement.
+	 */
+	protected final int ackFrames;
+
+	/**
+	 * Longest wait from a message to its acknowledgement.
+	 */
+	protected final long ackMillis;
+
+	/**
+	 * The runtime that schedules acknowledgements for connections read by
+	 * threads.
+	 */
+	protected final ChatRuntime runtime;
+
+	/**
+	 * Sessions by the username of the other client.
+	 */
+	protected final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+	/**
+	 * Chooses stream tokens.
+	 */
+	protected final Random random = new Random();
+
+	/**
+	 * Number of connections that resumed a stream.
+	 */
+	protected final AtomicLong resumed = new AtomicLong();
+
+	/**
+	 * Number of messages sent again.
+	 */
+	protected final AtomicLong replayed = new AtomicLong();
+
+	/**
+	 * Number of new streams started.
+	 */
+	protected final AtomicLong started = new AtomicLong();
+
+	/**
+	 * Number of acknowledgements sent.
+	 */
+	protected final AtomicLong acksSent = new AtomicLong();
+
+	/**
+	 * Number of acknowledgements received.
+	 */
+	protected final AtomicLong acksReceived = new AtomicLong();
+
+	/**
+	 * Creates a table with the limits set by system properties.
+	 * 
+	 * @param runtime
+	 *            the runtime that schedules acknowledgements.
+	 */
+	SessionTable(final ChatRuntime runtime) {
+		this.runtime = runtime;
+		this.maxFrames = Math.max(1, Integer.getInteger(
+				PROPERTY_PREFIX + "maxFrames", DEFAULT_MAX_FRAMES).intValue());
+		this.maxBytes = Long.getLong(PROPERTY_PREFIX + "maxBytes",
+				DEFAULT_MAX_BYTES).longValue();
+		this.acks = Boolean.getBoolean(PROPERTY_PREFIX + "acks");
+		this.ackFrames = Math.max(1, Integer.getInteger(
+				PROPERTY_PREFIX + "ackFrames", DEFAULT_ACK_FRAMES).intValue());
+		this.ackMillis = Long.getLong(PROPERTY_PREFIX + "ackMillis",
+				DEFAULT_ACK_MILLIS).longValue();
+	}
+
+	/**
+	 * Returns the session with a client, creating it if there is none.
+	 * 
+	 * @param username
+	 *            the username of the other client.
+	 * @return the session.
+	 */
+	Session get(final String username) {
+		Session session = this.sessions.get(username);
+		if (session == null) {
+			Session created = new Session(username, this);
+			session = this.sessions.putIfAbsent(username, created);
+			if (session == null) {
+				session = created;
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Drops the session with a client that left, failing the results of
+	 * messages it never acknowledged.
+	 * 
+	 * @param username
+	 *            the username of the other client.
+	 */
+	void remove(final String username) {
+		Session session = this.sessions.remove(username);
+		if (session != null) {
+			session.close();
+		}
+	}
+
+	/**
+	 * Keeps a chat message for every client that has a session but is not
+	 * connected, so it is sent to them if they come back.
+	 * 
+	 * @param message
+	 *            the message.
+	 * @return the number of clients the message was kept for.
+	 */
+	int keep(final AbstractMessage message) {
+		int kept = 0;
+		for (Session session : this.sessions.values()) {
+			if (session.keep(message)) {
+				++kept;
+			}
+		}
+		return kept;
+	}
+
+	/**
+	 * Returns a new, non-zero stream token.
+	 * 
+	 * @return the token.
+	 */
+	long newToken() {
+		long token;
+		synchronized (this.random) {
+			do {
+				token = this.random.nextLong();
+			} while (token == SessionMessage.NO_SESSION);
+		}
+		return token;
+	}
+
+	/**
+	 * Counts a resumed stream.
+	 * 
+	 * @param messages
+	 *            the number of messages sent again.
+	 */
+	void resumed(final int messages) {
+		this.resumed.incrementAndGet();
+		this.replayed.addAndGet(messages);
+	}
+
+	/**
+	 * Counts a new stream.
+	 */
+	void started() {
+		this.started.incrementAndGet();
+	}
+
+	/**
+	 * Schedules an acknowledgement of the messages a session received, on the
+	 * loop of the connection they arrived on if it has one.
+	 * 
+	 * @param session
+	 *            the session.
+	 * @param client
+	 *            the connection the messages arrived on.
+	 */
+	void scheduleAck(final Session session, final Client client) {
+		Runnable flush = new Runnable() {
+			@Override
+			public void run() {
+				session.flushAck();
+			}
+		};
+		EventLoop loop = client.getLoop();
+		if (loop != null) {
+			loop.schedule(flush, this.ackMillis);
+			return;
+		}
+		try {
+			this.runtime.schedule(flush, this.ackMillis);
+		} catch (IOException ioe) {
+			log.warning("Unable to schedule acknowledgement: "
+					+ ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Counts an acknowledgement sent.
+	 */
+	void ackSent() {
+		this.acksSent.incrementAndGet();
+	}
+
+	/**
+	 * Counts an acknowledgement received.
+	 */
+	void ackReceived() {
+		this.acksReceived.incrementAndGet();
+	}
+
+	/**
+	 * Returns a one-line summary of the sessions, for the statistics command.
+	 * 
+	 * @return the summary.
+	 */
+	String report() {
+		int kept = 0;
+		int unacked = 0;
+		for (Session session : this.sessions.values()) {
+			kept += session.getKeptCount();
+			unacked += session.getUnackedCount();
+		}
+		return "sessions=" + this.sessions.size() + " kept=" + kept
+				+ " started=" + this.started.get() + " resumed="
+				+ this.resumed.get() + " replayed=" + this.replayed.get()
+				+ " unacked=" + unacked + " acksSent=" + this.acksSent.get()
+				+ " acksReceived=" + this.acksReceived.get();
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat;
+
+import edu.rutgers.cs.chat.OutboundQueue.Lane;
+import edu.rutgers.cs.chat.messaging.AbstractMessage;
+
+/**
+ * A marker queued behind a message in an outbound queue. It is never
+ * written; when the writer reaches it, every byte of the message before it
+ * has been flushed to the socket, so the message's {@link SendResult} can be
+ * told. A receipt still queued when the connection closes fails the result.
+ * 
+ * @author Robert Moore
+ * 
+ */
+final class WriteReceipt extends AbstractMessage {
+
+	/**
+	 * Type used for receipts, which is never sent.
+	 */
+	private static final byte TYPE_RECEIPT = (byte) -1;
+
+	/**
+	 * The peer the message is being sent to.
+	 */
+	private final Client client;
+
+	/**
+	 * The result to complete.
+	 */
+	private final SendResult result;
+
+	/**
+	 * The lane the message was queued in.
+	 */
+	private final Lane lane;
+
+	/**
+	 * Creates a receipt for a message queued to a peer.
+	 * 
+	 * @param client
+	 *            the peer.
+	 * @param result
+	 *            the result to complete.
+	 * @param lane
+	 *            the lane the message was queued in, so the receipt stays
+	 *            behind it.
+	 */
+	WriteReceipt(final Client client, final SendResult result, final Lane lane) {
+		super(0, TYPE_RECEIPT);
+		this.client = client;
+		this.result = result;
+		this.lane = lane;
+	}
+
+	/**
+	 * Returns the lane the receipt belongs in.
+	 * 
+	 * @return the lane of the message it follows.
+	 */
+	Lane getLane() {
+		return this.lane;
+	}
+
+	/**
+	 * Tells the result that the message was written.
+	 */
+	void written() {
+		this.result.written(this.client);
+	}
+
+	/**
+	 * Tells the result that the message will not be written.
+	 * 
+	 * @param cause
+	 *            why the message was not written.
+	 */
+	void failed(final Throwable cause) {
+		this.result.failed(this.client, cause);
+	}
+
+	@Override
+	public String toString() {
+		return "Receipt for " + this.result.getMessage() + " to " + this.client;
+	}
+}
@@ -0,0 +1,408 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.history;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * One chat message kept in the history. Records are stored in a compact
+ * binary form:
+ * 
+ * <pre>
+ * int   length of everything after the checksum
+ * int   CRC-32 of everything after the checksum
+ * byte  kind, with the high bit set for messages sent by the local user
+ * long  time the record was stored, in milliseconds (never decreases)
+ * long  time the message was sent, from the message itself
+ * long  message identifier, 0 if the message has none
+ * short length of the peer's username in UTF-8, then the username
+ * short length of the room in UTF-8, then the room
+ * int   length of the text in UTF-8, then the text
+ * </pre>
+ * 
+ * A length of 0 marks the end of a segment. The checksum lets a record that
+ * was only partly written before a crash be recognized and dropped.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class HistoryRecord {
+
+	/**
+	 * The kinds of messages kept.
+	 */
+	public static enum Kind {
+		/**
+		 * A chat message sent to everyone.
+		 */
+		CHAT,
+		/**
+		 * A private message.
+		 */
+		PRIVATE,
+		/**
+		 * A message sent to a room.
+		 */
+		ROOM
+	}
+
+	/**
+	 * Bytes before the record body: the length and the checksum.
+	 */
+	public static final int HEADER_LENGTH = 8;
+
+	/**
+	 * Bytes of the body that do not depend on the strings.
+	 */
+	protected static final int FIXED_BODY_LENGTH = 1 + 8 + 8 + 8 + 2 + 2 + 4;
+
+	/**
+	 * Bit set in the kind byte for messages sent by the local user.
+	 */
+	protected static final int SENT_FLAG = 0x80;
+
+	/**
+	 * Character set used for the strings.
+	 */
+	protected static final String CHARSET = "UTF-8";
+
+	/**
+	 * What kind of message this is.
+	 */
+	protected final Kind kind;
+
+	/**
+	 * True if the local user sent the message.
+	 */
+	protected final boolean sent;
+
+	/**
+	 * When the record was stored.
+	 */
+	protected long storedAt;
+
+	/**
+	 * When the message was sent.
+	 */
+	protected final long sentAt;
+
+	/**
+	 * The message identifier, or 0.
+	 */
+	protected final long messageId;
+
+	/**
+	 * The user who sent a received message, or the user a private message was
+	 * sent to. Null for chat and room messages sent by the local user.
+	 */
+	protected final String peer;
+
+	/**
+	 * The room of a room message, otherwise null.
+	 */
+	protected final String room;
+
+	/**
+	 * The text of the message.
+	 */
+	protected final String text;
+
+	/**
+	 * Creates a new record. The time it is stored is set by the store.
+	 * 
+	 * @param kind
+	 *            what kind of message it is.
+	 * @param sent
+	 *            true if the local user sent it.
+	 * @param sentAt
+	 *            when the message was sent.
+	 * @param messageId
+	 *            the message identifier, or 0.
+	 * @param peer
+	 *            the sender of a received message or recipient of a private
+	 *            one, or null.
+	 * @param room
+	 *            the room, or null.
+	 * @param text
+	 *            the text of the message.
+	 */
+	public HistoryRecord(final Kind kind, final boolean sent,
+			final long sentAt, final long messageId, final String peer,
+			final String room, final String text) {
+		this.kind = kind;
+		this.sent = sent;
+		this.sentAt = sentAt;
+		this.messageId = messageId;
+		this.peer = peer;
+		this.room = room;
+		this.text = text;
+	}
+
+	/**
+	 * Encodes the record, including its length and checksum.
+	 * 
+	 * @return the encoded record, ready to be copied into a segment.
+	 */
+	public ByteBuffer encode() {
+		byte[] peerBytes = toBytes(this.peer);
+		byte[] roomBytes = toBytes(this.room);
+		byte[] textBytes = toBytes(this.text);
+		int bodyLength = FIXED_BODY_LENGTH + Math.min(peerBytes.length, 0xFFFF)
+				+ Math.min(roomBytes.length, 0xFFFF) + textBytes.length;
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + bodyLength);
+		buffer.putInt(bodyLength);
+		buffer.putInt(0);
+		buffer.put((byte) (this.kind.ordinal() | (this.sent ? SENT_FLAG : 0)));
+		buffer.putLong(this.storedAt);
+		buffer.putLong(this.sentAt);
+		buffer.putLong(this.messageId);
+		putShortString(buffer, peerBytes);
+		putShortString(buffer, roomBytes);
+		buffer.putInt(textBytes.length);
+		buffer.put(textBytes);
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), HEADER_LENGTH, bodyLength);
+		buffer.putInt(4, (int) crc.getValue());
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Decodes the record at the buffer's position and moves the position past
+	 * it.
+	 * 
+	 * @param buffer
+	 *            the buffer to read from.
+	 * @return the record, or null if the buffer holds the end of a segment, a
+	 *         partly-written record, or a damaged one. The position is not
+	 *         moved in that case.
+	 */
+	public static HistoryRecord decode(final ByteBuffer buffer) {
+		int start = buffer.position();
+		if (buffer.remaining() < HEADER_LENGTH) {
+			return null;
+		}
+		int bodyLength = buffer.getInt(start);
+		if (bodyLength < FIXED_BODY_LENGTH
+				|| bodyLength > buffer.remaining() - HEADER_LENGTH) {
+			return null;
+		}
+		byte[] body = new byte[bodyLength];
+		buffer.position(start + HEADER_LENGTH);
+		buffer.get(body);
+		CRC32 crc = new CRC32();
+		crc.update(body, 0, bodyLength);
+		if ((int) crc.getValue() != buffer.getInt(start + 4)) {
+			buffer.position(start);
+			return null;
+		}
+		try {
+			ByteBuffer in = ByteBuffer.wrap(body);
+			int kindByte = in.get() & 0xFF;
+			Kind[] kinds = Kind.values();
+			int kindIndex = kindByte & ~SENT_FLAG;
+			if (kindIndex >= kinds.length) {
+				buffer.position(start);
+				return null;
+			}
+			long storedAt = in.getLong();
+			long sentAt = in.getLong();
+			long messageId = in.getLong();
+			String peer = getString(in, in.getShort() & 0xFFFF);
+			String room = getString(in, in.getShort() & 0xFFFF);
+			String text = getString(in, in.getInt());
+			HistoryRecord record = new HistoryRecord(kinds[kindIndex],
+					(kindByte & SENT_FLAG) != 0, sentAt, messageId, peer, room,
+					text);
+			record.storedAt = storedAt;
+			return record;
+		} catch (RuntimeException re) {
+			// Lengths inside the body don't add up
+			buffer.position(start);
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the time a record was stored without decoding it.
+	 * 
+	 * @param buffer
+	 *            the buffer holding the record.
+	 * @param position
+	 *            where the record starts.
+	 * @return the time the record was stored.
+	 */
+	static long storedAtOf(final ByteBuffer buffer, final int position) {
+		return buffer.getLong(position + HEADER_LENGTH + 1);
+	}
+
+	/**
+	 * Writes a string's bytes after a two-byte length, cutting off anything
+	 * past 65535 bytes.
+	 */
+	private static void putShortString(final ByteBuffer buffer,
+			final byte[] bytes) {
+		int length = Math.min(bytes.length, 0xFFFF);
+		buffer.putShort((short) length);
+		buffer.put(bytes, 0, length);
+	}
+
+	/**
+	 * Encodes a string in UTF-8, with null as no bytes.
+	 */
+	private static byte[] toBytes(final String string) {
+		if (string == null) {
+			return new byte[0];
+		}
+		try {
+			return string.getBytes(CHARSET);
+		} catch (UnsupportedEncodingException uee) {
+			// UTF-8 is always supported
+			throw new IllegalStateException(uee);
+		}
+	}
+
+	/**
+	 * Decodes a UTF-8 string, with no bytes as null.
+	 */
+	private static String getString(final ByteBuffer in, final int length) {
+		if (length == 0) {
+			return null;
+		}
+		try {
+			String string = new String(in.array(), in.position(), length,
+					CHARSET);
+			in.position(in.position() + length);
+			return string;
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException(uee);
+		}
+	}
+
+	/**
+	 * Sets the time the record was stored. Called by the store.
+	 * 
+	 * @param storedAt
+	 *            the time.
+	 */
+	void setStoredAt(final long storedAt) {
+		this.storedAt = storedAt;
+	}
+
+	/**
+	 * Returns what kind of message this is.
+	 * 
+	 * @return the kind.
+	 */
+	public Kind getKind() {
+		return this.kind;
+	}
+
+	/**
+	 * Returns true if the local user sent the message.
+	 * 
+	 * @return true for sent messages, false for received ones.
+	 */
+	public boolean isSent() {
+		return this.sent;
+	}
+
+	/**
+	 * Returns when the record was stored. Never decreases from one record to
+	 * the next.
+	 * 
+	 * @return the time, in milliseconds since the epoch.
+	 */
+	public long getStoredAt() {
+		return this.storedAt;
+	}
+
+	/**
+	 * Returns when the message was sent, according to its sender.
+	 * 
+	 * @return the time, in milliseconds since the epoch.
+	 */
+	public long getSentAt() {
+		return this.sentAt;
+	}
+
+	/**
+	 * Returns the message identifier.
+	 * 
+	 * @return the identifier, or 0 if the message has none.
+	 */
+	public long getMessageId() {
+		return this.messageId;
+	}
+
+	/**
+	 * Returns the sender of a received message, or the recipient of a private
+	 * message the local user sent.
+	 * 
+	 * @return the other user, or null.
+	 */
+	public String getPeer() {
+		return this.peer;
+	}
+
+	/**
+	 * Returns the room of a room message.
+	 * 
+	 * @return the room, or null.
+	 */
+	public String getRoom() {
+		return this.room;
+	}
+
+	/**
+	 * Returns the text of the message.
+	 * 
+	 * @return the text.
+	 */
+	public String getText() {
+		return this.text;
+	}
+
+	/**
+	 * Returns a copy of the record as another client would keep it: sent
+	 * messages become received ones from the local user. The copy keeps the
+	 * time this record was stored.
+	 * 
+	 * @param localUsername
+	 *            the username of the client that kept this record.
+	 * @return the copy to give another client.
+	 */
+	public HistoryRecord asReceived(final String localUsername) {
+		HistoryRecord copy = new HistoryRecord(this.kind, false, this.sentAt,
+				this.messageId, this.sent ? localUsername : this.peer,
+				this.room, this.text);
+		copy.storedAt = this.storedAt;
+		return copy;
+	}
+
+	@Override
+	public String toString() {
+		return (this.sent ? "sent " : "received ") + this.kind
+				+ (this.peer == null ? "" : " " + this.peer)
+				+ (this.room == null ? "" : " #" + this.room) + ": " + this.text;
+	}
+}
@@ -0,0 +1,502 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.history;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * One file of the history log and its sparse time index. The log is mapped
+ * into memory at its full size when created, so appending a record is a
+ * memory copy rather than a system call. Every {@code indexInterval} bytes,
+ * the time and position of a record are added to the index, which is also a
+ * mapped file; a reader looking for records after some time starts from the
+ * last index entry before it rather than the start of the segment.
+ * 
+ * Once full, a segment is sealed: its data is forced to disk and the log is
+ * cut down to the bytes actually used.
+ * 
+ * @author Robert Moore
+ * 
+ */
+class HistorySegment {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(HistorySegment.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * First four bytes of every log file: "CSHL".
+	 */
+	static final int MAGIC = 0x4353484C;
+
+	/**
+	 * Version of the record format.
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * Bytes at the start of the log before the first record.
+	 */
+	static final int FILE_HEADER_LENGTH = 8;
+
+	/**
+	 * Bytes per index entry: the time a record was stored, then its position.
+	 */
+	static final int INDEX_ENTRY_LENGTH = 12;
+
+	/**
+	 * Suffix of log files.
+	 */
+	static final String LOG_SUFFIX = ".log";
+
+	/**
+	 * Suffix of index files.
+	 */
+	static final String INDEX_SUFFIX = ".idx";
+
+	/**
+	 * Position of the segment in the history, used as its file name.
+	 */
+	final long sequence;
+
+	/**
+	 * The log file.
+	 */
+	final File logFile;
+
+	/**
+	 * The index file.
+	 */
+	final File indexFile;
+
+	/**
+	 * Channel of the log file, kept open until the segment is closed.
+	 */
+	private final FileChannel logChannel;
+
+	/**
+	 * Channel of the index file.
+	 */
+	private final FileChannel indexChannel;
+
+	/**
+	 * The mapped log.
+	 */
+	private final MappedByteBuffer logBuffer;
+
+	/**
+	 * The mapped index.
+	 */
+	private final MappedByteBuffer indexBuffer;
+
+	/**
+	 * Bytes between index entries.
+	 */
+	private final int indexInterval;
+
+	/**
+	 * Times of the index entries, kept in memory for searching.
+	 */
+	private long[] indexTimes;
+
+	/**
+	 * Positions of the index entries.
+	 */
+	private int[] indexPositions;
+
+	/**
+	 * Number of index entries.
+	 */
+	private int indexCount = 0;
+
+	/**
+	 * Position after the last complete record.
+	 */
+	private int end = FILE_HEADER_LENGTH;
+
+	/**
+	 * Time the last record was stored, or when the segment was last changed
+	 * if it was opened sealed.
+	 */
+	private long lastStoredAt = 0;
+
+	/**
+	 * True once the segment is full and no more records may be added.
+	 */
+	private boolean sealed = false;
+
+	/**
+	 * Opens or creates a segment.
+	 * 
+	 * @param directory
+	 *            the history directory.
+	 * @param sequence
+	 *            the segment's number.
+	 * @param capacity
+	 *            the size of a new segment's log.
+	 * @param indexInterval
+	 *            bytes between index entries.
+	 * @param sealed
+	 *            true if the segment is full and only needs to be read.
+	 * @throws IOException
+	 *             if the files cannot be opened or mapped, or the log is not
+	 *             a history log.
+	 */
+	HistorySegment(final File directory, final long sequence,
+			final int capacity, final int indexInterval, final boolean sealed)
+			throws IOException {
+		this.sequence = sequence;
+		this.indexInterval = indexInterval;
+		String name = String.format("%016x", Long.valueOf(sequence));
+		this.logFile = new File(directory, name + LOG_SUFFIX);
+		this.indexFile = new File(directory, name + INDEX_SUFFIX);
+		boolean created = !this.logFile.exists();
+
+		this.logChannel = new RandomAccessFile(this.logFile, "rw").getChannel();
+		this.indexChannel = new RandomAccessFile(this.indexFile, "rw")
+				.getChannel();
+		try {
+			int logSize = sealed ? (int) this.logChannel.size() : Math.max(
+					capacity, (int) this.logChannel.size());
+			this.logBuffer = this.logChannel.map(FileChannel.MapMode.READ_WRITE,
+					0, logSize);
+			int indexSize = (logSize / indexInterval + 1) * INDEX_ENTRY_LENGTH;
+			this.indexBuffer = this.indexChannel.map(
+					FileChannel.MapMode.READ_WRITE, 0, Math.max(indexSize,
+							(int) this.indexChannel.size()));
+			if (created) {
+				this.logBuffer.putInt(0, MAGIC);
+				this.logBuffer.putInt(4, VERSION);
+			} else if (this.logBuffer.getInt(0) != MAGIC
+					|| this.logBuffer.getInt(4) != VERSION) {
+				throw new IOException(this.logFile + " is not a history log.");
+			}
+			this.loadIndex();
+			if (sealed) {
+				this.end = logSize;
+				this.sealed = true;
+				this.lastStoredAt = this.logFile.lastModified();
+			} else {
+				this.recover();
+			}
+		} catch (IOException ioe) {
+			this.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Reads the index entries from the index file, stopping at the first
+	 * empty one.
+	 */
+	private void loadIndex() {
+		int capacity = this.indexBuffer.capacity() / INDEX_ENTRY_LENGTH;
+		this.indexTimes = new long[Math.min(capacity, 64)];
+		this.indexPositions = new int[this.indexTimes.length];
+		for (int i = 0; i < capacity; ++i) {
+			long time = this.indexBuffer.getLong(i * INDEX_ENTRY_LENGTH);
+			int position = this.indexBuffer.getInt(i * INDEX_ENTRY_LENGTH + 8);
+			if (position < FILE_HEADER_LENGTH) {
+				break;
+			}
+			this.addIndexEntry(time, position, false);
+		}
+	}
+
+	/**
+	 * Finds the end of the last complete record in an unsealed segment,
+	 * starting from the last index entry, and drops index entries past it. A
+	 * record cut short by a crash is overwritten by the next append.
+	 */
+	private void recover() {
+		while (this.indexCount > 0
+				&& this.indexPositions[this.indexCount - 1] >= this.logBuffer
+						.capacity()) {
+			--this.indexCount;
+		}
+		ByteBuffer view = this.logBuffer.duplicate();
+		view.position(this.indexCount == 0 ? FILE_HEADER_LENGTH
+				: this.indexPositions[this.indexCount - 1]);
+		HistoryRecord record;
+		int lastValid = view.position();
+		while ((record = HistoryRecord.decode(view)) != null) {
+			lastValid = view.position();
+			this.lastStoredAt = record.getStoredAt();
+		}
+		this.end = lastValid;
+		// Index entries for records that didn't survive
+		int valid = this.indexCount;
+		while (valid > 0 && this.indexPositions[valid - 1] >= this.end) {
+			--valid;
+		}
+		for (int i = valid; i < this.indexCount; ++i) {
+			this.indexBuffer.putLong(i * INDEX_ENTRY_LENGTH, 0);
+			this.indexBuffer.putInt(i * INDEX_ENTRY_LENGTH + 8, 0);
+		}
+		this.indexCount = valid;
+		// Clear what may be left of a partly-written record
+		if (this.end + HistoryRecord.HEADER_LENGTH <= this.logBuffer.capacity()) {
+			this.logBuffer.putInt(this.end, 0);
+		}
+	}
+
+	/**
+	 * Adds an index entry in memory and optionally to the index file.
+	 */
+	private void addIndexEntry(final long time, final int position,
+			final boolean write) {
+		if (this.indexCount == this.indexTimes.length) {
+			this.indexTimes = Arrays.copyOf(this.indexTimes,
+					this.indexCount * 2);
+			this.indexPositions = Arrays.copyOf(this.indexPositions,
+					this.indexCount * 2);
+		}
+		this.indexTimes[this.indexCount] = time;
+		this.indexPositions[this.indexCount] = position;
+		++this.indexCount;
+		if (write) {
+			int offset = (this.indexCount - 1) * INDEX_ENTRY_LENGTH;
+			if (offset + INDEX_ENTRY_LENGTH <= this.indexBuffer.capacity()) {
+				this.indexBuffer.putLong(offset, time);
+				this.indexBuffer.putInt(offset + 8, position);
+			}
+		}
+	}
+
+	/**
+	 * Appends an encoded record.
+	 * 
+	 * @param record
+	 *            the encoded record.
+	 * @param storedAt
+	 *            the time the record was stored.
+	 * @return the position of the record in the log, or -1 if the segment is
+	 *         sealed or the record doesn't fit.
+	 */
+	int append(final ByteBuffer record, final long storedAt) {
+		int length = record.remaining();
+		if (this.sealed || this.end + length > this.logBuffer.capacity()) {
+			return -1;
+		}
+		int position = this.end;
+		if (this.indexCount == 0
+				|| position - this.indexPositions[this.indexCount - 1] >= this.indexInterval) {
+			this.addIndexEntry(storedAt, position, true);
+		}
+		// Mark the end first so a reader never runs into a half-copied record
+		if (position + length + HistoryRecord.HEADER_LENGTH <= this.logBuffer
+				.capacity()) {
+			this.logBuffer.putInt(position + length, 0);
+		}
+		ByteBuffer target = this.logBuffer.duplicate();
+		target.position(position);
+		target.put(record);
+		this.end = position + length;
+		this.lastStoredAt = storedAt;
+		return position;
+	}
+
+	/**
+	 * Returns the record at a position returned by
+	 * {@link #append(ByteBuffer, long)}.
+	 * 
+	 * @param position
+	 *            the position of the record.
+	 * @return the record, or null if there is no complete record there.
+	 */
+	HistoryRecord readAt(final int position) {
+		if (position < FILE_HEADER_LENGTH || position >= this.end) {
+			return null;
+		}
+		ByteBuffer view = this.view();
+		view.position(position);
+		return HistoryRecord.decode(view);
+	}
+
+	/**
+	 * Returns a view of the records in the log, positioned at the first one.
+	 * 
+	 * @return a buffer from the first record to the end of the last.
+	 */
+	ByteBuffer view() {
+		ByteBuffer view = this.logBuffer.duplicate();
+		view.limit(this.end);
+		view.position(FILE_HEADER_LENGTH);
+		return view;
+	}
+
+	/**
+	 * Adds the records stored at or after a time to a list.
+	 * 
+	 * @param since
+	 *            the earliest time a record may have been stored.
+	 * @param limit
+	 *            the most records the list may hold.
+	 * @param records
+	 *            the list to add to.
+	 */
+	void read(final long since, final int limit,
+			final List<HistoryRecord> records) {
+		ByteBuffer view = this.view();
+		view.position(this.seek(since));
+		HistoryRecord record;
+		while (records.size() < limit
+				&& (record = HistoryRecord.decode(view)) != null) {
+			if (record.getStoredAt() >= since) {
+				records.add(record);
+			}
+		}
+	}
+
+	/**
+	 * Returns the position of the last indexed record stored before a time,
+	 * or of the first record.
+	 * 
+	 * @param since
+	 *            the time to look for.
+	 * @return the position to start reading from.
+	 */
+	int seek(final long since) {
+		int low = 0, high = this.indexCount - 1, found = -1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (this.indexTimes[middle] < since) {
+				found = middle;
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return found < 0 ? FILE_HEADER_LENGTH : this.indexPositions[found];
+	}
+
+	/**
+	 * Returns the time the first record was stored.
+	 * 
+	 * @return the time, or Long.MAX_VALUE if the segment is empty.
+	 */
+	long getFirstStoredAt() {
+		return this.indexCount == 0 ? Long.MAX_VALUE : this.indexTimes[0];
+	}
+
+	/**
+	 * Returns the time the last record was stored, or when a sealed segment
+	 * was last changed.
+	 * 
+	 * @return the time.
+	 */
+	long getLastStoredAt() {
+		return this.lastStoredAt;
+	}
+
+	/**
+	 * Returns the bytes used by the log.
+	 * 
+	 * @return the size of the log's contents.
+	 */
+	int size() {
+		return this.end;
+	}
+
+	/**
+	 * Returns true if no records have been appended.
+	 * 
+	 * @return true if empty.
+	 */
+	boolean isEmpty() {
+		return this.end == FILE_HEADER_LENGTH;
+	}
+
+	/**
+	 * Writes changes to disk.
+	 */
+	void force() {
+		this.logBuffer.force();
+		this.indexBuffer.force();
+	}
+
+	/**
+	 * Stops appending, writes the segment to disk and cuts the log down to
+	 * the bytes used.
+	 */
+	void seal() {
+		if (this.sealed) {
+			return;
+		}
+		this.sealed = true;
+		this.force();
+		try {
+			this.logChannel.truncate(this.end);
+		} catch (IOException ioe) {
+			// Readers stop at the end marker, so the extra space is harmless
+			log.fine("Unable to shrink " + this.logFile + ": "
+					+ ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Closes the files. The mapped buffers are released by the garbage
+	 * collector.
+	 */
+	void close() {
+		try {
+			this.logChannel.close();
+		} catch (IOException ioe) {
+			// Ignored, nothing else can be done
+		}
+		try {
+			this.indexChannel.close();
+		} catch (IOException ioe) {
+			// Ignored
+		}
+	}
+
+	/**
+	 * Closes and deletes the segment's files.
+	 * 
+	 * @return true if the log was deleted.
+	 */
+	boolean delete() {
+		this.close();
+		this.indexFile.delete();
+		return this.logFile.delete();
+	}
+
+	@Override
+	public String toString() {
+		return "Segment " + this.logFile.getName() + " (" + this.end
+				+ " bytes)";
+	}
+}
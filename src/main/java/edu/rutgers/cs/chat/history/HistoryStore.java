@@ -0,0 +1,691 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.history;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.util.Stage;
+
+/**
+ * Keeps every chat message sent and received by one user in an append-only
+ * log on disk. The log is split into segments of a fixed size, each mapped
+ * into memory; when one fills up it is sealed and a new one started, and the
+ * oldest segments are deleted once the history is larger or older than
+ * allowed.
+ * 
+ * {@link #append(HistoryRecord)} never waits: records are written by a
+ * separate stage, and are dropped and counted if that stage falls behind,
+ * so that a slow disk never holds up the threads reading from peers.
+ * Records are kept in the order they were written, and each one is given a
+ * storage time that never decreases, which is what the sparse index and
+ * {@link #read(long, int)} use.
+ * 
+ * Every record is also added to a {@link SearchIndex} kept in memory, which
+ * {@link #search(SearchQuery)} uses to find messages by word, sender and
+ * time. The index of the records already on disk is built by the writer when
+ * the history is opened; searches wait until it is done.
+ * 
+ * The limits can be set with system properties starting with
+ * {@value #PROPERTY_PREFIX}: {@code segmentBytes}, {@code maxBytes} and
+ * {@code maxAgeHours}.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class HistoryStore {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(HistoryStore.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Prefix of the system properties that configure the history.
+	 */
+	public static final String PROPERTY_PREFIX = "edu.rutgers.cs.chat.history.";
+
+	/**
+	 * Default size of each segment's log.
+	 */
+	public static final int DEFAULT_SEGMENT_BYTES = 16 * 1024 * 1024;
+
+	/**
+	 * Default largest size of the whole history.
+	 */
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+
+	/**
+	 * Default age after which a segment is deleted: 30 days.
+	 */
+	public static final long DEFAULT_MAX_AGE_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * Bytes of log between entries of the sparse time index.
+	 */
+	public static final int INDEX_INTERVAL = 4096;
+
+	/**
+	 * Smallest allowed segment size: large enough for any chat message.
+	 */
+	public static final int MIN_SEGMENT_BYTES = 1024 * 1024;
+
+	/**
+	 * Longest time {@link #close()} waits for room in the writer's queue.
+	 */
+	private static final long CLOSE_WAIT_MILLIS = 1000;
+
+	/**
+	 * The directory holding the segments.
+	 */
+	protected final File directory;
+
+	/**
+	 * Size of each segment's log.
+	 */
+	protected final int segmentBytes;
+
+	/**
+	 * Largest size of the whole history.
+	 */
+	protected final long maxBytes;
+
+	/**
+	 * Age after which a segment is deleted.
+	 */
+	protected final long maxAgeMillis;
+
+	/**
+	 * The stage that writes records.
+	 */
+	protected final Stage writer;
+
+	/**
+	 * Guards the segments.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * The segments, oldest first. The last one is being appended to.
+	 */
+	protected final List<HistorySegment> segments = new ArrayList<HistorySegment>();
+
+	/**
+	 * Lock on the directory, so two clients don't write the same history.
+	 */
+	protected final FileLock directoryLock;
+
+	/**
+	 * Storage time of the last record.
+	 */
+	protected long lastStoredAt = 0;
+
+	/**
+	 * Index of the words in the stored records.
+	 */
+	protected final SearchIndex index = new SearchIndex();
+
+	/**
+	 * Set once the records that were on disk when the history was opened
+	 * have been indexed. Records written before then are indexed with them.
+	 */
+	protected boolean indexed = false;
+
+	/**
+	 * Set once the store is closed.
+	 */
+	protected volatile boolean closed = false;
+
+	/**
+	 * Number of records written.
+	 */
+	protected final AtomicLong written = new AtomicLong();
+
+	/**
+	 * Number of records dropped because the writer fell behind or failed.
+	 */
+	protected final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Opens the history in a directory, creating it if needed.
+	 * 
+	 * @param directory
+	 *            the directory holding the segments.
+	 * @param segmentBytes
+	 *            the size of each segment.
+	 * @param maxBytes
+	 *            the largest size of the whole history.
+	 * @param maxAgeMillis
+	 *            the age after which a segment is deleted.
+	 * @param writer
+	 *            the stage that writes records. A single-threaded stage
+	 *            keeps records in the order they were appended.
+	 * @throws IOException
+	 *             if the directory cannot be created or locked, or a segment
+	 *             cannot be opened.
+	 */
+	public HistoryStore(final File directory, final int segmentBytes,
+			final long maxBytes, final long maxAgeMillis, final Stage writer)
+			throws IOException {
+		if (segmentBytes < MIN_SEGMENT_BYTES) {
+			throw new IllegalArgumentException("Segments must be at least "
+					+ MIN_SEGMENT_BYTES + " bytes: " + segmentBytes);
+		}
+		if (maxBytes < segmentBytes) {
+			throw new IllegalArgumentException(
+					"History must hold at least one segment: " + maxBytes);
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = maxBytes;
+		this.maxAgeMillis = maxAgeMillis;
+		this.writer = writer;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+		this.directoryLock = new RandomAccessFile(new File(directory, "lock"),
+				"rw").getChannel().tryLock();
+		if (this.directoryLock == null) {
+			throw new IOException(directory + " is in use by another client.");
+		}
+		try {
+			this.open();
+		} catch (IOException ioe) {
+			this.closeSegments();
+			throw ioe;
+		} catch (RuntimeException re) {
+			this.closeSegments();
+			throw re;
+		}
+		Runnable indexer = new Runnable() {
+			@Override
+			public void run() {
+				HistoryStore.this.buildIndex();
+			}
+		};
+		if (!writer.execute(indexer)) {
+			indexer.run();
+		}
+	}
+
+	/**
+	 * Opens the history in a directory with the limits set by system
+	 * properties.
+	 * 
+	 * @param directory
+	 *            the directory holding the segments.
+	 * @param writer
+	 *            the stage that writes records.
+	 * @return the opened history.
+	 * @throws IOException
+	 *             if the history cannot be opened.
+	 */
+	public static HistoryStore fromProperties(final File directory,
+			final Stage writer) throws IOException {
+		return new HistoryStore(directory, Integer.getInteger(
+				PROPERTY_PREFIX + "segmentBytes", DEFAULT_SEGMENT_BYTES)
+				.intValue(), Long.getLong(PROPERTY_PREFIX + "maxBytes",
+				DEFAULT_MAX_BYTES).longValue(), Long.getLong(
+				PROPERTY_PREFIX + "maxAgeHours",
+				DEFAULT_MAX_AGE_MILLIS / (60 * 60 * 1000)).longValue()
+				* 60 * 60 * 1000, writer);
+	}
+
+	/**
+	 * Opens the existing segments, oldest first, and starts a new one if
+	 * there are none.
+	 */
+	private void open() throws IOException {
+		String[] names = this.directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.endsWith(HistorySegment.LOG_SUFFIX);
+			}
+		});
+		long[] sequences = new long[names == null ? 0 : names.length];
+		int count = 0;
+		for (int i = 0; i < sequences.length; ++i) {
+			String base = names[i].substring(0, names[i].length()
+					- HistorySegment.LOG_SUFFIX.length());
+			try {
+				sequences[count++] = Long.parseLong(base, 16);
+			} catch (NumberFormatException nfe) {
+				--count;
+				log.warning("Ignoring unexpected file " + names[i] + " in "
+						+ this.directory);
+			}
+		}
+		sequences = Arrays.copyOf(sequences, count);
+		Arrays.sort(sequences);
+		for (int i = 0; i < sequences.length; ++i) {
+			boolean last = i == sequences.length - 1;
+			this.segments.add(new HistorySegment(this.directory, sequences[i],
+					this.segmentBytes, INDEX_INTERVAL, !last));
+		}
+		if (this.segments.isEmpty()) {
+			this.segments.add(new HistorySegment(this.directory, 0,
+					this.segmentBytes, INDEX_INTERVAL, false));
+		}
+		this.lastStoredAt = this.active().getLastStoredAt();
+		this.expire();
+		log.config("Opened history in " + this.directory + " with "
+				+ this.segments.size() + " segments.");
+	}
+
+	/**
+	 * Indexes every record on disk. Called once, by the writer, after the
+	 * history is opened.
+	 */
+	protected void buildIndex() {
+		this.lock.lock();
+		try {
+			if (this.indexed) {
+				return;
+			}
+			long start = System.currentTimeMillis();
+			for (HistorySegment segment : this.segments) {
+				ByteBuffer view = segment.view();
+				int position = view.position();
+				HistoryRecord record;
+				while ((record = HistoryRecord.decode(view)) != null) {
+					this.index.add(record, location(segment.sequence, position));
+					position = view.position();
+				}
+			}
+			this.indexed = true;
+			log.config("Indexed " + this.index.size() + " records in "
+					+ this.directory + " in "
+					+ (System.currentTimeMillis() - start) + "ms.");
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the location of a record, ordered the same way as the records.
+	 * 
+	 * @param sequence
+	 *            the segment's number.
+	 * @param position
+	 *            the record's position in the segment.
+	 * @return the location.
+	 */
+	static long location(final long sequence, final int position) {
+		return (sequence << 32) | position;
+	}
+
+	/**
+	 * Returns the segment being appended to. Must be called while holding
+	 * the lock.
+	 * 
+	 * @return the newest segment.
+	 */
+	protected HistorySegment active() {
+		return this.segments.get(this.segments.size() - 1);
+	}
+
+	/**
+	 * Queues a record to be written, without waiting.
+	 * 
+	 * @param record
+	 *            the record to write.
+	 * @return false if the record was dropped because the writer is behind
+	 *         or the store is closed.
+	 */
+	public boolean append(final HistoryRecord record) {
+		if (this.closed || !this.writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				HistoryStore.this.write(record);
+			}
+		})) {
+			this.dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Writes a record, starting a new segment if it doesn't fit in the
+	 * current one. Called by the writer stage.
+	 * 
+	 * @param record
+	 *            the record to write.
+	 */
+	protected void write(final HistoryRecord record) {
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				this.dropped.incrementAndGet();
+				return;
+			}
+			long storedAt = Math.max(System.currentTimeMillis(),
+					this.lastStoredAt);
+			record.setStoredAt(storedAt);
+			ByteBuffer encoded = record.encode();
+			if (encoded.remaining() > this.segmentBytes
+					- HistorySegment.FILE_HEADER_LENGTH) {
+				log.warning("Record too large for the history: " + record);
+				this.dropped.incrementAndGet();
+				return;
+			}
+			int position = this.active().append(encoded, storedAt);
+			if (position < 0) {
+				this.roll();
+				position = this.active().append(encoded, storedAt);
+			}
+			if (this.indexed) {
+				this.index.add(record, location(this.active().sequence,
+						position));
+			}
+			this.lastStoredAt = storedAt;
+			this.written.incrementAndGet();
+		} catch (IOException ioe) {
+			log.warning("Unable to write to the history: " + ioe.getMessage());
+			this.dropped.incrementAndGet();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Seals the current segment, starts a new one, and deletes old segments.
+	 * Must be called while holding the lock.
+	 * 
+	 * @throws IOException
+	 *             if the new segment cannot be created.
+	 */
+	protected void roll() throws IOException {
+		HistorySegment full = this.active();
+		full.seal();
+		HistorySegment next = new HistorySegment(this.directory,
+				full.sequence + 1, this.segmentBytes, INDEX_INTERVAL, false);
+		this.segments.add(next);
+		log.fine("Started " + next + " after " + full);
+		this.expire();
+	}
+
+	/**
+	 * Deletes the oldest segments while the history is too large, and any
+	 * segment whose newest record is too old. The segment being appended to
+	 * is never deleted, and is counted as full so the history stays within
+	 * its limit until the next segment is started.
+	 */
+	public void expire() {
+		this.lock.lock();
+		try {
+			long total = this.segmentBytes;
+			for (int i = 0; i < this.segments.size() - 1; ++i) {
+				total += this.segments.get(i).size();
+			}
+			long oldest = System.currentTimeMillis() - this.maxAgeMillis;
+			while (this.segments.size() > 1) {
+				HistorySegment first = this.segments.get(0);
+				if (total <= this.maxBytes
+						&& first.getLastStoredAt() >= oldest) {
+					break;
+				}
+				this.segments.remove(0);
+				total -= first.size();
+				if (!first.delete()) {
+					log.warning("Unable to delete " + first);
+				} else {
+					log.fine("Deleted " + first);
+				}
+				this.index.removeBefore(location(
+						this.segments.get(0).sequence, 0));
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the records stored at or after a time, oldest first. Segments
+	 * that end before the time are skipped, and within a segment reading
+	 * starts at the last index entry before the time.
+	 * 
+	 * @param since
+	 *            the earliest storage time, in milliseconds since the epoch.
+	 * @param limit
+	 *            the most records to return.
+	 * @return the records.
+	 */
+	public List<HistoryRecord> read(final long since, final int limit) {
+		List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				return records;
+			}
+			int count = this.segments.size();
+			for (int i = 0; i < count && records.size() < limit; ++i) {
+				// Every record of this segment is older than the next one's first
+				if (i + 1 < count
+						&& this.segments.get(i + 1).getFirstStoredAt() <= since) {
+					continue;
+				}
+				this.segments.get(i).read(since, limit, records);
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return records;
+	}
+
+	/**
+	 * Returns the newest stored records matching a query. Waits for the
+	 * index to be built if the history was just opened.
+	 * 
+	 * @param query
+	 *            the query.
+	 * @return the matching records, newest first.
+	 */
+	public List<HistoryRecord> search(final SearchQuery query) {
+		if (!this.indexed && !this.closed) {
+			this.buildIndex();
+		}
+		List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				return records;
+			}
+			long[] found = this.index.search(query);
+			for (long location : found) {
+				HistorySegment segment = this.segmentFor(location >>> 32);
+				HistoryRecord record = segment == null ? null : segment
+						.readAt((int) location);
+				if (record != null) {
+					records.add(record);
+				}
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return records;
+	}
+
+	/**
+	 * Returns the segment with a number, or null if it was deleted. Must be
+	 * called while holding the lock.
+	 */
+	private HistorySegment segmentFor(final long sequence) {
+		int low = 0, high = this.segments.size() - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			long found = this.segments.get(middle).sequence;
+			if (found == sequence) {
+				return this.segments.get(middle);
+			} else if (found < sequence) {
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Writes everything appended so far to disk and closes the history. The
+	 * close is queued behind the records already waiting to be written.
+	 */
+	public void close() {
+		Runnable closer = new Runnable() {
+			@Override
+			public void run() {
+				HistoryStore.this.closeNow();
+			}
+		};
+		long deadline = System.currentTimeMillis() + CLOSE_WAIT_MILLIS;
+		while (!this.writer.execute(closer)) {
+			if (System.currentTimeMillis() > deadline) {
+				// The writer is stopped or stuck, so close without it
+				this.closeNow();
+				return;
+			}
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				this.closeNow();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Closes the history immediately. Records still queued are dropped.
+	 */
+	protected void closeNow() {
+		this.lock.lock();
+		try {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			this.closeSegments();
+		} finally {
+			this.lock.unlock();
+		}
+		log.config("Closed history in " + this.directory);
+	}
+
+	/**
+	 * Forces and closes every segment, and releases the directory lock.
+	 */
+	private void closeSegments() {
+		for (HistorySegment segment : this.segments) {
+			segment.force();
+			segment.close();
+		}
+		this.segments.clear();
+		try {
+			this.directoryLock.channel().close();
+		} catch (IOException ioe) {
+			// Ignored, we're closing
+		}
+	}
+
+	/**
+	 * Returns the time the newest record was stored.
+	 * 
+	 * @return the storage time of the newest record, or 0 if the history is
+	 *         empty.
+	 */
+	public long getLastStoredAt() {
+		this.lock.lock();
+		try {
+			return this.lastStoredAt;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the directory holding the history.
+	 * 
+	 * @return the directory.
+	 */
+	public File getDirectory() {
+		return this.directory;
+	}
+
+	/**
+	 * Returns the number of segments and bytes in the history, and how many
+	 * records were written and dropped.
+	 * 
+	 * @return a one-line summary.
+	 */
+	public String report() {
+		int count, indexedCount, terms;
+		long bytes = 0;
+		this.lock.lock();
+		try {
+			count = this.segments.size();
+			indexedCount = this.index.size();
+			terms = this.index.getTermCount();
+			for (HistorySegment segment : this.segments) {
+				bytes += segment.size();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return "segments=" + count + " bytes=" + bytes + " written="
+				+ this.written.get() + " dropped=" + this.dropped.get()
+				+ " indexed=" + indexedCount + " terms=" + terms;
+	}
+
+	/**
+	 * Returns a directory name for a username, replacing characters that are
+	 * not safe in file names.
+	 * 
+	 * @param username
+	 *            the username.
+	 * @return a safe directory name.
+	 */
+	public static String directoryName(final String username) {
+		StringBuilder sb = new StringBuilder(username.length());
+		for (int i = 0; i < username.length(); ++i) {
+			char c = username.charAt(i);
+			sb.append(Character.isLetterOrDigit(c) || c == '-' || c == '.' ? c
+					: '_');
+		}
+		return sb.length() == 0 || sb.charAt(0) == '.' ? "_" + sb : sb
+				.toString();
+	}
+}
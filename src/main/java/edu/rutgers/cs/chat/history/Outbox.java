@@ -0,0 +1,522 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.history;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps private messages for users who are not connected until they can be
+ * delivered. Messages are kept per recipient, in the order they were added,
+ * and each recipient's messages are also appended to a file of their own so
+ * they are still delivered after the client restarts. A message is only
+ * removed, and the file rewritten without it, once
+ * {@link #delivered(String, Collection)} is called for it; until then
+ * {@link #peek(String, int)} keeps returning it.
+ * 
+ * Messages are identified by their message identifier, and a message that is
+ * already waiting is not added again. Delivered messages keep the identifier
+ * they were first given, so a recipient that is sent a message twice (for
+ * example if the client stopped before the file was rewritten) drops the
+ * second copy as it does any other duplicate.
+ * 
+ * Each recipient may have at most {@code maxMessages} messages waiting, and
+ * messages older than {@code maxAgeMillis} are discarded. The limits can be
+ * set with system properties starting with {@value #PROPERTY_PREFIX}:
+ * {@code maxMessages} and {@code maxAgeHours}.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class Outbox {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(Outbox.class.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Prefix of the system properties that configure the outbox.
+	 */
+	public static final String PROPERTY_PREFIX = "edu.rutgers.cs.chat.outbox.";
+
+	/**
+	 * Default number of messages kept for each recipient.
+	 */
+	public static final int DEFAULT_MAX_MESSAGES = 1000;
+
+	/**
+	 * Default age after which a waiting message is discarded: 7 days.
+	 */
+	public static final long DEFAULT_MAX_AGE_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * Suffix of each recipient's file.
+	 */
+	public static final String SUFFIX = ".out";
+
+	/**
+	 * The directory holding the files, or null if messages are only kept in
+	 * memory.
+	 */
+	protected final File directory;
+
+	/**
+	 * Most messages kept for each recipient.
+	 */
+	protected final int maxMessages;
+
+	/**
+	 * Age after which a waiting message is discarded.
+	 */
+	protected final long maxAgeMillis;
+
+	/**
+	 * Guards the waiting messages and the files.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+
+	/**
+	 * Waiting messages by recipient, each in the order they were added and
+	 * keyed by message identifier.
+	 */
+	protected final Map<String, LinkedHashMap<Long, HistoryRecord>> waiting = new HashMap<String, LinkedHashMap<Long, HistoryRecord>>();
+
+	/**
+	 * Number of messages added.
+	 */
+	protected final AtomicLong added = new AtomicLong();
+
+	/**
+	 * Number of messages delivered.
+	 */
+	protected final AtomicLong deliveredCount = new AtomicLong();
+
+	/**
+	 * Number of messages discarded for being too old or over the limit.
+	 */
+	protected final AtomicLong discarded = new AtomicLong();
+
+	/**
+	 * Creates an outbox, loading the messages left in a directory.
+	 * 
+	 * @param directory
+	 *            the directory to keep the messages in, or null to keep them
+	 *            only in memory.
+	 * @param maxMessages
+	 *            the most messages kept for each recipient.
+	 * @param maxAgeMillis
+	 *            the age after which a waiting message is discarded.
+	 * @throws IOException
+	 *             if the directory cannot be created or read.
+	 */
+	public Outbox(final File directory, final int maxMessages,
+			final long maxAgeMillis) throws IOException {
+		if (maxMessages < 1) {
+			throw new IllegalArgumentException(
+					"Outbox must hold at least one message: " + maxMessages);
+		}
+		this.directory = directory;
+		this.maxMessages = maxMessages;
+		this.maxAgeMillis = maxAgeMillis;
+		if (directory != null) {
+			if (!directory.isDirectory() && !directory.mkdirs()) {
+				throw new IOException("Unable to create " + directory);
+			}
+			this.load();
+		}
+	}
+
+	/**
+	 * Creates an outbox with the limits set by system properties.
+	 * 
+	 * @param directory
+	 *            the directory to keep the messages in, or null to keep them
+	 *            only in memory.
+	 * @return the outbox.
+	 * @throws IOException
+	 *             if the directory cannot be created or read.
+	 */
+	public static Outbox fromProperties(final File directory)
+			throws IOException {
+		return new Outbox(directory, Integer.getInteger(
+				PROPERTY_PREFIX + "maxMessages", DEFAULT_MAX_MESSAGES)
+				.intValue(), Long.getLong(PROPERTY_PREFIX + "maxAgeHours",
+				DEFAULT_MAX_AGE_MILLIS / (60 * 60 * 1000)).longValue()
+				* 60 * 60 * 1000);
+	}
+
+	/**
+	 * Reads every recipient's file. Messages after a damaged or partly
+	 * written one are lost.
+	 */
+	private void load() throws IOException {
+		String[] names = this.directory.list(new FilenameFilter() {
+			@Override
+			public boolean accept(final File dir, final String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		if (names == null) {
+			throw new IOException("Unable to read " + this.directory);
+		}
+		for (String name : names) {
+			File file = new File(this.directory, name);
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			byte[] contents;
+			try {
+				contents = new byte[(int) in.length()];
+				in.readFully(contents);
+			} finally {
+				in.close();
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(contents);
+			HistoryRecord record;
+			int count = 0;
+			while ((record = HistoryRecord.decode(buffer)) != null) {
+				this.messagesFor(record.getPeer()).put(
+						Long.valueOf(record.getMessageId()), record);
+				++count;
+			}
+			if (buffer.hasRemaining()) {
+				log.warning("Ignored " + buffer.remaining()
+						+ " damaged bytes at the end of " + file);
+			}
+			log.config("Loaded " + count + " waiting messages from " + file);
+		}
+		// Rewrite files that had expired or damaged records
+		for (String recipient : new ArrayList<String>(this.waiting.keySet())) {
+			this.discardOld(recipient, System.currentTimeMillis());
+			this.rewrite(recipient);
+		}
+	}
+
+	/**
+	 * Returns the waiting messages for a recipient, creating the map if there
+	 * are none. Must be called while holding the lock or from the
+	 * constructor.
+	 */
+	private LinkedHashMap<Long, HistoryRecord> messagesFor(
+			final String recipient) {
+		LinkedHashMap<Long, HistoryRecord> messages = this.waiting
+				.get(recipient);
+		if (messages == null) {
+			messages = new LinkedHashMap<Long, HistoryRecord>();
+			this.waiting.put(recipient, messages);
+		}
+		return messages;
+	}
+
+	/**
+	 * Keeps a private message until its recipient can be sent it. The
+	 * record's peer is the recipient. If the outbox keeps messages on disk,
+	 * the message has been written to disk when this returns.
+	 * 
+	 * @param record
+	 *            the message.
+	 * @return true if the message was added or was already waiting, false if
+	 *         the recipient already has too many messages waiting.
+	 * @throws IOException
+	 *             if the message could not be written to disk. It is still
+	 *             kept in memory.
+	 */
+	public boolean add(final HistoryRecord record) throws IOException {
+		Long id = Long.valueOf(record.getMessageId());
+		this.lock.lock();
+		try {
+			long now = System.currentTimeMillis();
+			LinkedHashMap<Long, HistoryRecord> messages = this
+					.messagesFor(record.getPeer());
+			if (messages.containsKey(id)) {
+				return true;
+			}
+			this.discardOld(record.getPeer(), now);
+			if (messages.size() >= this.maxMessages) {
+				this.discarded.incrementAndGet();
+				return false;
+			}
+			record.setStoredAt(now);
+			messages.put(id, record);
+			this.added.incrementAndGet();
+			if (this.directory != null) {
+				RandomAccessFile out = new RandomAccessFile(this
+						.fileFor(record.getPeer()), "rw");
+				try {
+					ByteBuffer encoded = record.encode();
+					out.seek(out.length());
+					out.write(encoded.array(), encoded.position(), encoded
+							.remaining());
+					out.getChannel().force(false);
+				} finally {
+					out.close();
+				}
+			}
+			return true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the oldest messages waiting for a recipient, without removing
+	 * them.
+	 * 
+	 * @param recipient
+	 *            the recipient's username.
+	 * @param max
+	 *            the most messages to return.
+	 * @return the messages, oldest first.
+	 */
+	public List<HistoryRecord> peek(final String recipient, final int max) {
+		List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+		this.lock.lock();
+		try {
+			if (this.discardOld(recipient, System.currentTimeMillis())) {
+				this.rewriteQuietly(recipient);
+			}
+			LinkedHashMap<Long, HistoryRecord> messages = this.waiting
+					.get(recipient);
+			if (messages == null) {
+				return records;
+			}
+			for (HistoryRecord record : messages.values()) {
+				if (records.size() >= max) {
+					break;
+				}
+				records.add(record);
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return records;
+	}
+
+	/**
+	 * Returns true if any messages are waiting for a recipient.
+	 * 
+	 * @param recipient
+	 *            the recipient's username.
+	 * @return true if messages are waiting.
+	 */
+	public boolean hasWaiting(final String recipient) {
+		this.lock.lock();
+		try {
+			return this.waiting.containsKey(recipient);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes messages that were sent to their recipient, and rewrites the
+	 * recipient's file without them.
+	 * 
+	 * @param recipient
+	 *            the recipient's username.
+	 * @param messageIds
+	 *            the identifiers of the messages that were sent.
+	 */
+	public void delivered(final String recipient,
+			final Collection<Long> messageIds) {
+		this.lock.lock();
+		try {
+			LinkedHashMap<Long, HistoryRecord> messages = this.waiting
+					.get(recipient);
+			if (messages == null) {
+				return;
+			}
+			int removed = 0;
+			for (Long id : messageIds) {
+				if (messages.remove(id) != null) {
+					++removed;
+				}
+			}
+			if (removed == 0) {
+				return;
+			}
+			this.deliveredCount.addAndGet(removed);
+			this.rewriteQuietly(recipient);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards a recipient's messages older than the maximum age. Must be
+	 * called while holding the lock or from the constructor.
+	 * 
+	 * @return true if any were discarded.
+	 */
+	private boolean discardOld(final String recipient, final long now) {
+		LinkedHashMap<Long, HistoryRecord> messages = this.waiting
+				.get(recipient);
+		if (messages == null) {
+			return false;
+		}
+		boolean changed = false;
+		for (Iterator<HistoryRecord> it = messages.values().iterator(); it
+				.hasNext();) {
+			HistoryRecord record = it.next();
+			if (now - record.getStoredAt() <= this.maxAgeMillis) {
+				break;
+			}
+			it.remove();
+			this.discarded.incrementAndGet();
+			changed = true;
+		}
+		return changed;
+	}
+
+	/**
+	 * Rewrites a recipient's file, logging rather than throwing if it fails.
+	 * The messages stay in memory either way.
+	 */
+	private void rewriteQuietly(final String recipient) {
+		try {
+			this.rewrite(recipient);
+		} catch (IOException ioe) {
+			log.warning("Unable to update waiting messages for " + recipient
+					+ ": " + ioe.getMessage());
+		}
+	}
+
+	/**
+	 * Replaces a recipient's file with one holding only the messages still
+	 * waiting, or deletes it if there are none. The new file is written
+	 * beside the old one and renamed over it, so a crash leaves one or the
+	 * other. Must be called while holding the lock or from the constructor.
+	 */
+	private void rewrite(final String recipient) throws IOException {
+		LinkedHashMap<Long, HistoryRecord> messages = this.waiting
+				.get(recipient);
+		if (messages != null && messages.isEmpty()) {
+			this.waiting.remove(recipient);
+			messages = null;
+		}
+		if (this.directory == null) {
+			return;
+		}
+		File file = this.fileFor(recipient);
+		if (messages == null) {
+			if (file.exists() && !file.delete()) {
+				throw new IOException("Unable to delete " + file);
+			}
+			return;
+		}
+		File temporary = new File(this.directory, file.getName() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temporary, "rw");
+		try {
+			out.setLength(0);
+			for (HistoryRecord record : messages.values()) {
+				ByteBuffer encoded = record.encode();
+				out.write(encoded.array(), encoded.position(), encoded
+						.remaining());
+			}
+			out.getChannel().force(false);
+		} finally {
+			out.close();
+		}
+		// Windows won't rename over an existing file
+		if (!temporary.renameTo(file)
+				&& !(file.delete() && temporary.renameTo(file))) {
+			throw new IOException("Unable to replace " + file);
+		}
+	}
+
+	/**
+	 * Returns the file holding a recipient's messages. Usernames are written
+	 * in hexadecimal so that every username has its own file.
+	 */
+	private File fileFor(final String recipient) {
+		StringBuilder name = new StringBuilder();
+		try {
+			for (byte b : recipient.getBytes("UTF-8")) {
+				name.append(Character.forDigit((b >> 4) & 0xF, 16));
+				name.append(Character.forDigit(b & 0xF, 16));
+			}
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException("UTF-8 is not supported.", uee);
+		}
+		return new File(this.directory, name.append(SUFFIX).toString());
+	}
+
+	/**
+	 * Returns the number of messages waiting for all recipients.
+	 * 
+	 * @return the number of messages.
+	 */
+	public int size() {
+		this.lock.lock();
+		try {
+			int size = 0;
+			for (LinkedHashMap<Long, HistoryRecord> messages : this.waiting
+					.values()) {
+				size += messages.size();
+			}
+			return size;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a one-line summary of the outbox.
+	 * 
+	 * @return the summary.
+	 */
+	public String report() {
+		int recipients;
+		this.lock.lock();
+		try {
+			recipients = this.waiting.size();
+		} finally {
+			this.lock.unlock();
+		}
+		return "recipients=" + recipients + " waiting=" + this.size()
+				+ " added=" + this.added.get() + " delivered="
+				+ this.deliveredCount.get() + " discarded="
+				+ this.discarded.get();
+	}
+
+	@Override
+	public String toString() {
+		return "outbox in "
+				+ (this.directory == null ? "memory" : this.directory);
+	}
+}
@@ -0,0 +1,444 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.history;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An inverted index of the words in the history, kept in memory and updated
+ * as records are appended. Each record is numbered in the order it was
+ * stored, and each word maps to the sorted numbers of the records containing
+ * it. The number also finds the record's location in the log and the time
+ * it was stored, which never decreases, so a time range is a range of
+ * numbers.
+ * 
+ * Queries match records containing every word and a word starting with
+ * every prefix, and walk the lists from the newest record backwards,
+ * skipping ahead in each list by binary search, so a query looks at a few
+ * entries per result rather than every record. The sender of each record is
+ * indexed as a word that cannot appear in text.
+ * 
+ * Not thread-safe; {@link HistoryStore} calls it while holding its lock.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class SearchIndex {
+
+	/**
+	 * Longest indexed word. Longer words are cut, so they can still be found
+	 * by prefix.
+	 */
+	public static final int MAX_TERM_LENGTH = 64;
+
+	/**
+	 * Most words a prefix may expand to. Longer prefixes narrow the search.
+	 */
+	public static final int MAX_PREFIX_TERMS = 4096;
+
+	/**
+	 * Starts the word that indexes a record's sender. Never part of a word
+	 * from text, which holds only letters and digits.
+	 */
+	static final char SENDER_MARK = '@';
+
+	/**
+	 * Record numbers containing one word, in increasing order.
+	 */
+	static final class Postings {
+		/**
+		 * The record numbers.
+		 */
+		int[] records = new int[2];
+
+		/**
+		 * Number of record numbers.
+		 */
+		int size = 0;
+
+		/**
+		 * Adds a record number larger than any already added, once.
+		 */
+		void add(final int record) {
+			if (this.size > 0 && this.records[this.size - 1] == record) {
+				return;
+			}
+			if (this.size == this.records.length) {
+				this.records = Arrays.copyOf(this.records, this.size * 2);
+			}
+			this.records[this.size++] = record;
+		}
+
+		/**
+		 * Returns the index of the last record number at or below a target,
+		 * searching no further than an index, or -1 if there is none.
+		 */
+		int floor(final int target, final int highest) {
+			int low = 0, high = highest, found = -1;
+			while (low <= high) {
+				int middle = (low + high) >>> 1;
+				if (this.records[middle] <= target) {
+					found = middle;
+					low = middle + 1;
+				} else {
+					high = middle - 1;
+				}
+			}
+			return found;
+		}
+
+		/**
+		 * Drops record numbers below a number.
+		 */
+		void trim(final int first) {
+			int keep = this.floor(first - 1, this.size - 1) + 1;
+			if (keep > 0) {
+				System.arraycopy(this.records, keep, this.records, 0, this.size
+						- keep);
+				this.size -= keep;
+			}
+		}
+	}
+
+	/**
+	 * Walks a list of record numbers from the newest backwards.
+	 */
+	private interface Cursor {
+		/**
+		 * Returns the largest record number at or below the target, or -1.
+		 * Targets must never increase.
+		 */
+		int floor(int target);
+	}
+
+	/**
+	 * Walks the record numbers of one word.
+	 */
+	private static final class PostingsCursor implements Cursor {
+		private final Postings postings;
+
+		/**
+		 * Highest index still worth searching, since targets only decrease.
+		 */
+		private int highest;
+
+		PostingsCursor(final Postings postings) {
+			this.postings = postings;
+			this.highest = postings.size - 1;
+		}
+
+		@Override
+		public int floor(final int target) {
+			int index = this.postings.floor(target, this.highest);
+			if (index < 0) {
+				this.highest = -1;
+				return -1;
+			}
+			this.highest = index;
+			return this.postings.records[index];
+		}
+	}
+
+	/**
+	 * Walks the record numbers of any of several words.
+	 */
+	private static final class UnionCursor implements Cursor {
+		private final List<PostingsCursor> cursors;
+
+		UnionCursor(final List<PostingsCursor> cursors) {
+			this.cursors = cursors;
+		}
+
+		@Override
+		public int floor(final int target) {
+			int best = -1;
+			for (Iterator<PostingsCursor> it = this.cursors.iterator(); it
+					.hasNext();) {
+				int record = it.next().floor(target);
+				if (record < 0) {
+					// Exhausted for every later, smaller target too
+					it.remove();
+				} else if (record > best) {
+					best = record;
+				}
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * Record numbers of each word, sorted so prefixes are ranges.
+	 */
+	protected final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+
+	/**
+	 * Location of each record, from {@link HistoryStore#location(long, int)}
+	 * , indexed by record number minus {@link #offset}.
+	 */
+	protected long[] locations = new long[1024];
+
+	/**
+	 * Time each record was stored, indexed like {@link #locations}.
+	 */
+	protected long[] times = new long[1024];
+
+	/**
+	 * Record number of the first entry in the tables.
+	 */
+	protected int offset = 0;
+
+	/**
+	 * Number of the oldest record still in the history.
+	 */
+	protected int first = 0;
+
+	/**
+	 * Number the next record will be given.
+	 */
+	protected int next = 0;
+
+	/**
+	 * Adds a record to the index.
+	 * 
+	 * @param record
+	 *            the stored record.
+	 * @param location
+	 *            where it is stored.
+	 */
+	void add(final HistoryRecord record, final long location) {
+		int number = this.next++;
+		int slot = number - this.offset;
+		if (slot == this.locations.length) {
+			this.locations = Arrays.copyOf(this.locations, slot * 2);
+			this.times = Arrays.copyOf(this.times, slot * 2);
+		}
+		this.locations[slot] = location;
+		this.times[slot] = record.getStoredAt();
+		this.posting(senderTerm(record.isSent() ? null : record.getPeer()))
+				.add(number);
+		for (String term : tokenize(record.getText())) {
+			this.posting(term).add(number);
+		}
+	}
+
+	/**
+	 * Returns the record numbers of a word, creating them if needed.
+	 */
+	private Postings posting(final String term) {
+		Postings postings = this.terms.get(term);
+		if (postings == null) {
+			postings = new Postings();
+			this.terms.put(term, postings);
+		}
+		return postings;
+	}
+
+	/**
+	 * Forgets records stored before a location, after their segments were
+	 * deleted. The memory is reclaimed once most records are forgotten.
+	 * 
+	 * @param location
+	 *            the location of the oldest record still stored.
+	 */
+	void removeBefore(final long location) {
+		while (this.first < this.next
+				&& this.locations[this.first - this.offset] < location) {
+			++this.first;
+		}
+		int live = this.next - this.first;
+		if (this.first - this.offset > Math.max(1024, live)) {
+			this.compact();
+		}
+	}
+
+	/**
+	 * Drops forgotten records from the tables and the word lists.
+	 */
+	private void compact() {
+		int drop = this.first - this.offset;
+		int live = this.next - this.first;
+		int capacity = Math.max(1024, Integer.highestOneBit(live) * 2);
+		long[] newLocations = new long[capacity];
+		long[] newTimes = new long[capacity];
+		System.arraycopy(this.locations, drop, newLocations, 0, live);
+		System.arraycopy(this.times, drop, newTimes, 0, live);
+		this.locations = newLocations;
+		this.times = newTimes;
+		this.offset = this.first;
+		for (Iterator<Map.Entry<String, Postings>> it = this.terms.entrySet()
+				.iterator(); it.hasNext();) {
+			Postings postings = it.next().getValue();
+			postings.trim(this.first);
+			if (postings.size == 0) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of the first record stored at or after a time.
+	 */
+	private int numberAt(final long time) {
+		int low = this.first, high = this.next - 1, found = this.next;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (this.times[middle - this.offset] >= time) {
+				found = middle;
+				high = middle - 1;
+			} else {
+				low = middle + 1;
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * Finds the newest records matching a query.
+	 * 
+	 * @param query
+	 *            the query.
+	 * @return the locations of the matching records, newest first.
+	 */
+	long[] search(final SearchQuery query) {
+		List<Cursor> cursors = new ArrayList<Cursor>();
+		for (String word : query.getWords()) {
+			Postings postings = this.terms.get(word);
+			if (postings == null) {
+				return new long[0];
+			}
+			cursors.add(new PostingsCursor(postings));
+		}
+		for (String prefix : query.getPrefixes()) {
+			List<PostingsCursor> matches = new ArrayList<PostingsCursor>();
+			for (Postings postings : this.terms.subMap(prefix,
+					prefix + Character.MAX_VALUE).values()) {
+				if (matches.size() == MAX_PREFIX_TERMS) {
+					break;
+				}
+				matches.add(new PostingsCursor(postings));
+			}
+			if (matches.isEmpty()) {
+				return new long[0];
+			}
+			cursors.add(matches.size() == 1 ? matches.get(0)
+					: new UnionCursor(matches));
+		}
+		if (query.getSender() != null) {
+			Postings postings = this.terms.get(senderTerm(query.getSender()));
+			if (postings == null) {
+				return new long[0];
+			}
+			cursors.add(new PostingsCursor(postings));
+		}
+
+		int lowest = this.numberAt(query.getSince());
+		int target = this.numberAt(query.getUntil()) - 1;
+		long[] found = new long[Math.min(query.getLimit(), Math.max(0, target
+				- lowest + 1))];
+		int count = 0;
+		// Find the newest record every cursor agrees on, then look below it
+		while (count < found.length && target >= lowest) {
+			int agreed = target;
+			for (int i = 0; i < cursors.size(); ++i) {
+				int record = cursors.get(i).floor(agreed);
+				if (record < agreed) {
+					agreed = record;
+					if (agreed < lowest) {
+						break;
+					}
+					// Every earlier cursor must agree on the lower number
+					i = -1;
+				}
+			}
+			if (agreed < lowest) {
+				break;
+			}
+			found[count++] = this.locations[agreed - this.offset];
+			target = agreed - 1;
+		}
+		return count == found.length ? found : Arrays.copyOf(found, count);
+	}
+
+	/**
+	 * Returns the number of records in the index.
+	 * 
+	 * @return the number of records.
+	 */
+	public int size() {
+		return this.next - this.first;
+	}
+
+	/**
+	 * Returns the number of different words in the index.
+	 * 
+	 * @return the number of words, including senders.
+	 */
+	public int getTermCount() {
+		return this.terms.size();
+	}
+
+	/**
+	 * Returns the word that indexes a sender.
+	 * 
+	 * @param username
+	 *            the sender, or null for the local user.
+	 * @return the word.
+	 */
+	static String senderTerm(final String username) {
+		return username == null ? String.valueOf(SENDER_MARK) : SENDER_MARK
+				+ username.toLowerCase(Locale.ENGLISH);
+	}
+
+	/**
+	 * Splits text into lower-case words of letters and digits, each at most
+	 * {@link #MAX_TERM_LENGTH} characters.
+	 * 
+	 * @param text
+	 *            the text to split.
+	 * @return the words, in order, possibly repeated.
+	 */
+	public static List<String> tokenize(final String text) {
+		List<String> words = new ArrayList<String>();
+		if (text == null) {
+			return words;
+		}
+		int length = text.length();
+		int start = -1;
+		for (int i = 0; i <= length; ++i) {
+			boolean wordChar = i < length
+					&& Character.isLetterOrDigit(text.charAt(i));
+			if (wordChar && start < 0) {
+				start = i;
+			} else if (!wordChar && start >= 0) {
+				words.add(text.substring(start,
+						Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(
+						Locale.ENGLISH));
+				start = -1;
+			}
+		}
+		return words;
+	}
+}
@@ -0,0 +1,254 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.history;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A search of the chat history: words that must all appear, prefixes that
+ * must each start a word, and optionally the sender and a range of times.
+ * Queries typed by the user are read with {@link #parse(String)}.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class SearchQuery {
+
+	/**
+	 * Default number of results.
+	 */
+	public static final int DEFAULT_LIMIT = 20;
+
+	/**
+	 * The sender of messages sent by the local user.
+	 */
+	public static final String LOCAL_USER = "";
+
+	/**
+	 * Formats accepted for times, from most to least precise.
+	 */
+	private static final String[] TIME_FORMATS = { "yyyy-MM-dd'T'HH:mm",
+			"yyyy-MM-dd HH:mm", "yyyy-MM-dd" };
+
+	/**
+	 * Words that must all appear, in lower case.
+	 */
+	protected final List<String> words;
+
+	/**
+	 * Prefixes that must each start a word, in lower case.
+	 */
+	protected final List<String> prefixes;
+
+	/**
+	 * The sender, {@link #LOCAL_USER}, or null for anyone.
+	 */
+	protected final String sender;
+
+	/**
+	 * Earliest storage time, inclusive.
+	 */
+	protected final long since;
+
+	/**
+	 * Latest storage time, exclusive.
+	 */
+	protected final long until;
+
+	/**
+	 * Most results returned.
+	 */
+	protected final int limit;
+
+	/**
+	 * Creates a new query.
+	 * 
+	 * @param words
+	 *            words that must all appear.
+	 * @param prefixes
+	 *            prefixes that must each start a word.
+	 * @param sender
+	 *            the sender, {@link #LOCAL_USER}, or null for anyone.
+	 * @param since
+	 *            the earliest storage time, inclusive.
+	 * @param until
+	 *            the latest storage time, exclusive.
+	 * @param limit
+	 *            the most results returned.
+	 */
+	public SearchQuery(final List<String> words, final List<String> prefixes,
+			final String sender, final long since, final long until,
+			final int limit) {
+		this.words = normalize(words);
+		this.prefixes = normalize(prefixes);
+		this.sender = sender;
+		this.since = since;
+		this.until = until;
+		this.limit = limit;
+	}
+
+	/**
+	 * Splits each word the way the index does, so punctuation and case
+	 * don't matter.
+	 */
+	private static List<String> normalize(final List<String> words) {
+		List<String> normalized = new ArrayList<String>();
+		for (String word : words) {
+			normalized.addAll(SearchIndex.tokenize(word));
+		}
+		return Collections.unmodifiableList(normalized);
+	}
+
+	/**
+	 * Reads a query typed by the user. Words ending in "*" are prefixes,
+	 * "from:user" limits the sender, and "after:time" and "before:time" limit
+	 * the time. Times are "yyyy-MM-dd", "yyyy-MM-dd HH:mm" with a "T" instead
+	 * of the space, or a number of minutes, hours or days ago such as "30m",
+	 * "2h" or "7d".
+	 * 
+	 * @param text
+	 *            the query.
+	 * @return the parsed query.
+	 * @throws IllegalArgumentException
+	 *             if a time cannot be read.
+	 */
+	public static SearchQuery parse(final String text) {
+		List<String> words = new ArrayList<String>();
+		List<String> prefixes = new ArrayList<String>();
+		String sender = null;
+		long since = 0;
+		long until = Long.MAX_VALUE;
+		for (String part : text.trim().split("\\s+")) {
+			if (part.length() == 0) {
+				continue;
+			}
+			if (part.startsWith("from:")) {
+				sender = part.substring(5);
+			} else if (part.startsWith("after:")) {
+				since = parseTime(part.substring(6));
+			} else if (part.startsWith("before:")) {
+				until = parseTime(part.substring(7));
+			} else if (part.endsWith("*")) {
+				List<String> split = SearchIndex.tokenize(part);
+				if (!split.isEmpty()) {
+					// Only the last piece is a prefix, as in "don't*"
+					words.addAll(split.subList(0, split.size() - 1));
+					prefixes.add(split.get(split.size() - 1));
+				}
+			} else {
+				words.add(part);
+			}
+		}
+		return new SearchQuery(words, prefixes, sender, since, until,
+				DEFAULT_LIMIT);
+	}
+
+	/**
+	 * Reads a date, a date and time, or a time ago.
+	 */
+	private static long parseTime(final String text) {
+		if (text.matches("\\d+[mhd]")) {
+			long amount = Long.parseLong(text.substring(0, text.length() - 1));
+			char unit = text.charAt(text.length() - 1);
+			long millis = unit == 'm' ? 60000L : unit == 'h' ? 3600000L
+					: 86400000L;
+			return System.currentTimeMillis() - amount * millis;
+		}
+		for (String format : TIME_FORMATS) {
+			SimpleDateFormat parser = new SimpleDateFormat(format);
+			parser.setLenient(false);
+			try {
+				if (text.length() == format.replace("'", "").length()) {
+					return parser.parse(text).getTime();
+				}
+			} catch (ParseException pe) {
+				// Try the next format
+			}
+		}
+		throw new IllegalArgumentException("Unknown time \"" + text
+				+ "\", use yyyy-MM-dd, yyyy-MM-ddTHH:mm or a time ago like 2h.");
+	}
+
+	/**
+	 * Returns the words that must all appear.
+	 * 
+	 * @return the words, in lower case.
+	 */
+	public List<String> getWords() {
+		return this.words;
+	}
+
+	/**
+	 * Returns the prefixes that must each start a word.
+	 * 
+	 * @return the prefixes, in lower case.
+	 */
+	public List<String> getPrefixes() {
+		return this.prefixes;
+	}
+
+	/**
+	 * Returns the sender of the messages searched for.
+	 * 
+	 * @return the sender, {@link #LOCAL_USER}, or null for anyone.
+	 */
+	public String getSender() {
+		return this.sender;
+	}
+
+	/**
+	 * Returns the earliest storage time searched.
+	 * 
+	 * @return the time in milliseconds since the epoch, inclusive.
+	 */
+	public long getSince() {
+		return this.since;
+	}
+
+	/**
+	 * Returns the latest storage time searched.
+	 * 
+	 * @return the time in milliseconds since the epoch, exclusive.
+	 */
+	public long getUntil() {
+		return this.until;
+	}
+
+	/**
+	 * Returns the most results returned.
+	 * 
+	 * @return the number of results.
+	 */
+	public int getLimit() {
+		return this.limit;
+	}
+
+	@Override
+	public String toString() {
+		return "words=" + this.words + " prefixes=" + this.prefixes
+				+ (this.sender == null ? "" : " from=" + this.sender)
+				+ " since=" + this.since + " until=" + this.until + " limit="
+				+ this.limit;
+	}
+}
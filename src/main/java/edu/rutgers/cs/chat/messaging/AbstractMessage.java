@@ -26,9 +26,12 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import edu.rutgers.cs.chat.util.MemoryBudget;
+
 /**
  * Base class for all messages exchanged between chat clients. Keeps the encoded
  * message length and message type for all subclasses.
@@ -59,6 +62,28 @@ import java.util.logging.Logger;
  * information, or if a client connects from the same IP and has the same listen
  * port value.</li>
  * <li>Private Chat messages are only sent to a selected client.</li>
+ * <li>Routed Private Chat messages are private messages for a client that is
+ * not directly connected. They carry the source and destination usernames and
+ * a time-to-live (TTL), and are forwarded hop by hop until they reach the
+ * destination or the TTL runs out.</li>
+ * <li>Room Chat messages are sent only to clients that have subscribed to the
+ * named room. Subscription messages announce that a client joined or left a
+ * room, and are sent after the handshake and whenever the subscription
+ * changes.</li>
+ * <li>Fragment messages carry one piece of a message whose encoded frame is
+ * larger than {@link FragmentMessage#FRAGMENT_THRESHOLD}. The pieces are sent
+ * in order and the original message is decoded once all of them have
+ * arrived.</li>
+ * <li>File Offer messages offer a file to a single client, which answers with
+ * a File Accept message giving the offset to start from. The file is then
+ * sent as File Chunk messages, whose data is copied between the file and the
+ * socket without being decoded.</li>
+ * <li>Session messages follow the handshake and resume the numbering of chat
+ * messages from an earlier connection to the same client; see
+ * {@link SessionMessage}.</li>
+ * <li>Ack messages tell a client that asked for them the number of the last
+ * chat message received from it, once every few messages or after a short
+ * wait.</li>
  * </ul>
  * 
  * The messages have a standard header of a 4-byte unsigned integer length field
@@ -71,8 +96,41 @@ import java.util.logging.Logger;
  * <li>Handshake messages have a message type value of 3.</li>
  * <li>Keep-Alive messages have a message type value of 4.</li>
  * <li>Private Chat messages have a message type value of 5.</li>
+ * <li>Routed Private Chat messages have a message type value of 6.</li>
+ * <li>Room Chat messages have a message type value of 7.</li>
+ * <li>Subscription messages have a message type value of 8.</li>
+ * <li>Fragment messages have a message type value of 9.</li>
+ * <li>File Offer messages have a message type value of 10.</li>
+ * <li>File Accept messages have a message type value of 11.</li>
+ * <li>File Chunk messages have a message type value of 12.</li>
+ * <li>History Request messages have a message type value of 13.</li>
+ * <li>History Batch messages have a message type value of 14.</li>
+ * <li>Session messages have a message type value of 15.</li>
+ * <li>Ack messages have a message type value of 16.</li>
  * </ul>
  * 
+ * Chat and Private Chat messages carry an 8-byte timestamp followed by an
+ * 8-byte message identifier. The identifier is unique across clients and is
+ * used to discard duplicate copies of the same message.
+ * 
+ * Fragment messages carry an 8-byte fragment identifier, the 4-byte length of
+ * the complete encoded message, the 4-byte offset of the piece within it, and
+ * then the piece itself.
+ * 
+ * File messages start with an 8-byte transfer identifier. File Offer messages
+ * follow it with the 8-byte file size and the file name, File Accept messages
+ * with the 8-byte starting offset, and File Chunk messages with the 8-byte
+ * offset of the data and then the data.
+ * 
+ * History Request messages carry the 8-byte earliest storage time and the
+ * 4-byte number of messages wanted. History Batch messages carry a byte that
+ * is 1 for the last batch, then records in the form used by
+ * {@link edu.rutgers.cs.chat.history.HistoryRecord}.
+ * 
+ * Session messages carry an 8-byte stream token, an 8-byte sequence number
+ * and a byte of flags. Ack messages carry an 8-byte stream token and an
+ * 8-byte sequence number.
+ * 
  * @author Robert Moore
  * 
  */
@@ -117,11 +175,68 @@ public abstract class AbstractMessage {
    */
   public static final byte TYPE_PRIVATE_CHAT_MESSAGE = 5;
 
+  /**
+   * Message type for private chat messages routed through other clients.
+   */
+  public static final byte TYPE_ROUTED_PRIVATE_MESSAGE = 6;
+
+  /**
+   * Message type for room chat messages.
+   */
+  public static final byte TYPE_ROOM_CHAT_MESSAGE = 7;
+
+  /**
+   * Message type for room subscription changes.
+   */
+  public static final byte TYPE_SUBSCRIPTION_MESSAGE = 8;
+
+  /**
+   * Message type for one piece of a fragmented message.
+   */
+  public static final byte TYPE_FRAGMENT_MESSAGE = 9;
+
+  /**
+   * Message type for file offers.
+   */
+  public static final byte TYPE_FILE_OFFER_MESSAGE = 10;
+
+  /**
+   * Message type for accepting a file offer.
+   */
+  public static final byte TYPE_FILE_ACCEPT_MESSAGE = 11;
+
+  /**
+   * Message type for a piece of a file.
+   */
+  public static final byte TYPE_FILE_CHUNK_MESSAGE = 12;
+
+  /**
+   * Message type for asking a client for its stored messages.
+   */
+  public static final byte TYPE_HISTORY_REQUEST_MESSAGE = 13;
+
+  /**
+   * Message type for a batch of stored messages.
+   */
+  public static final byte TYPE_HISTORY_BATCH_MESSAGE = 14;
+
+  /**
+   * Message type for resuming the numbered chat messages of a connection.
+   */
+  public static final byte TYPE_SESSION_MESSAGE = 15;
+
+  /**
+   * Message type for acknowledging received chat messages.
+   */
+  public static final byte TYPE_ACK_MESSAGE = 16;
+
   /**
    * Convenience array for printing message types.
    */
   public static final String[] MESSAGE_NAMES = { "Chat", "Client Exchange",
-      "Disconnect", "Handshake", "Keep-Alive" };
+      "Disconnect", "Handshake", "Keep-Alive", "Private Chat",
+      "Routed Private Chat", "Room Chat", "Subscription", "Fragment", "File Offer", "File Accept",
+      "File Chunk", "History Request", "History Batch", "Session", "Ack" };
 
   /**
    * Static reference to a disconnect message so that new objects don't need to
@@ -145,6 +260,12 @@ public abstract class AbstractMessage {
    */
   protected final byte type;
 
+  /**
+   * The encoded frame this message was decoded from, or null if the message
+   * was created locally.
+   */
+  protected final MessageView view;
+
   /**
    * Creates a new abstract message with the specified length and message type.
    * 
@@ -156,6 +277,31 @@ public abstract class AbstractMessage {
   protected AbstractMessage(final int length, final byte type) {
     this.length = length;
     this.type = type;
+    this.view = null;
+  }
+
+  /**
+   * Creates a new abstract message backed by an encoded frame. Subclasses
+   * decode their fields from the view when they are first requested.
+   * 
+   * @param view
+   *          the encoded frame. The view must not be re-wrapped afterwards.
+   */
+  protected AbstractMessage(final MessageView view) {
+    this.length = view.getLength();
+    this.type = view.getType();
+    this.view = view;
+  }
+
+  /**
+   * Returns the encoded frame this message was decoded from, or null if the
+   * message was created locally. Messages with a view are encoded by copying
+   * the frame, so forwarding a received message never decodes its strings.
+   * 
+   * @return the encoded frame, or null.
+   */
+  public MessageView getView() {
+    return this.view;
   }
 
   /**
@@ -167,6 +313,17 @@ public abstract class AbstractMessage {
     return this.length;
   }
 
+  /**
+   * Returns the number of bytes of this message held in memory once it has
+   * been decoded. This is what {@link #decodeMessage(InputStream, FrameLimits,
+   * MemoryBudget.Account)} charges to the receiving peer's account.
+   * 
+   * @return the number of bytes held in memory.
+   */
+  public int getBufferedLength() {
+    return this.length;
+  }
+
   /**
    * Returns the type of this message.
    * 
@@ -228,6 +385,13 @@ public abstract class AbstractMessage {
   public static void encodeMessage(final AbstractMessage message,
       final OutputStream out) throws IOException {
 
+    // Received messages can just be copied
+    if (message.getView() != null) {
+      message.getView().writeTo(out);
+      out.flush();
+      return;
+    }
+
     // Wrap a DataOutputStream for convenience.
     DataOutputStream dout = new DataOutputStream(out);
 
@@ -243,6 +407,7 @@ public abstract class AbstractMessage {
       case AbstractMessage.TYPE_CHAT_MESSAGE: {
         ChatMessage chat = (ChatMessage) message;
         dout.writeLong(chat.getTimestamp());
+        dout.writeLong(chat.getMessageId());
         dout.writeInt(chat.getUsername().getBytes("UTF-16BE").length);
         dout.write(chat.getUsername().getBytes("UTF-16BE"));
         dout.write(chat.getMessage().getBytes("UTF-16BE"));
@@ -251,11 +416,99 @@ public abstract class AbstractMessage {
       case AbstractMessage.TYPE_PRIVATE_CHAT_MESSAGE: {
         PrivateChatMessage chat = (PrivateChatMessage) message;
         dout.writeLong(chat.getTimestamp());
+        dout.writeLong(chat.getMessageId());
         dout.writeInt(chat.getUsername().getBytes("UTF-16BE").length);
         dout.write(chat.getUsername().getBytes("UTF-16BE"));
         dout.write(chat.getMessage().getBytes("UTF-16BE"));
         break;
       }
+      case AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE: {
+        RoutedPrivateMessage routed = (RoutedPrivateMessage) message;
+        byte[] srcBytes = routed.getSourceUsername().getBytes("UTF-16BE");
+        byte[] dstBytes = routed.getDestinationUsername().getBytes("UTF-16BE");
+        dout.writeLong(routed.getTimestamp());
+        dout.writeLong(routed.getMessageId());
+        dout.writeByte(routed.getTtl());
+        dout.writeInt(srcBytes.length);
+        dout.write(srcBytes);
+        dout.writeInt(dstBytes.length);
+        dout.write(dstBytes);
+        dout.write(routed.getMessage().getBytes("UTF-16BE"));
+        break;
+      }
+      case AbstractMessage.TYPE_ROOM_CHAT_MESSAGE: {
+        RoomChatMessage chat = (RoomChatMessage) message;
+        byte[] roomBytes = chat.getRoom().getBytes("UTF-16BE");
+        byte[] userBytes = chat.getUsername().getBytes("UTF-16BE");
+        dout.writeLong(chat.getTimestamp());
+        dout.writeLong(chat.getMessageId());
+        dout.writeInt(roomBytes.length);
+        dout.write(roomBytes);
+        dout.writeInt(userBytes.length);
+        dout.write(userBytes);
+        dout.write(chat.getMessage().getBytes("UTF-16BE"));
+        break;
+      }
+      case AbstractMessage.TYPE_SUBSCRIPTION_MESSAGE: {
+        SubscriptionMessage sub = (SubscriptionMessage) message;
+        dout.writeByte(sub.isJoined() ? 1 : 0);
+        dout.write(sub.getRoom().getBytes("UTF-16BE"));
+        break;
+      }
+      case AbstractMessage.TYPE_FRAGMENT_MESSAGE: {
+        FragmentMessage fragment = (FragmentMessage) message;
+        dout.writeLong(fragment.getFragmentId());
+        dout.writeInt(fragment.getTotalLength());
+        dout.writeInt(fragment.getOffset());
+        dout.write(fragment.getData(), fragment.getDataOffset(),
+            fragment.getDataLength());
+        break;
+      }
+      case AbstractMessage.TYPE_FILE_OFFER_MESSAGE: {
+        FileOfferMessage offer = (FileOfferMessage) message;
+        dout.writeLong(offer.getTransferId());
+        dout.writeLong(offer.getSize());
+        dout.write(offer.getName().getBytes("UTF-16BE"));
+        break;
+      }
+      case AbstractMessage.TYPE_FILE_ACCEPT_MESSAGE: {
+        FileAcceptMessage accept = (FileAcceptMessage) message;
+        dout.writeLong(accept.getTransferId());
+        dout.writeLong(accept.getOffset());
+        break;
+      }
+      case AbstractMessage.TYPE_FILE_CHUNK_MESSAGE: {
+        // Only the header; the caller writes the data from the file
+        FileChunkMessage chunk = (FileChunkMessage) message;
+        dout.writeLong(chunk.getTransferId());
+        dout.writeLong(chunk.getOffset());
+        break;
+      }
+      case AbstractMessage.TYPE_HISTORY_REQUEST_MESSAGE: {
+        HistoryRequestMessage request = (HistoryRequestMessage) message;
+        dout.writeLong(request.getSince());
+        dout.writeInt(request.getLimit());
+        break;
+      }
+      case AbstractMessage.TYPE_HISTORY_BATCH_MESSAGE: {
+        HistoryBatchMessage batch = (HistoryBatchMessage) message;
+        dout.writeByte(batch.isLast() ? 1 : 0);
+        dout.write(batch.getEncodedRecords());
+        break;
+      }
+      case AbstractMessage.TYPE_SESSION_MESSAGE: {
+        SessionMessage session = (SessionMessage) message;
+        dout.writeLong(session.getToken());
+        dout.writeLong(session.getSequence());
+        dout.writeByte(session.getFlags());
+        break;
+      }
+      case AbstractMessage.TYPE_ACK_MESSAGE: {
+        AckMessage ack = (AckMessage) message;
+        dout.writeLong(ack.getToken());
+        dout.writeLong(ack.getSequence());
+        break;
+      }
       // Client exchange messages
       case AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE:
         ClientExchangeMessage client = (ClientExchangeMessage) message;
@@ -282,53 +535,123 @@ public abstract class AbstractMessage {
   }
 
   /**
-   * Decodes and returns the next message from the provided InputStream. If no
-   * message can be decoded, returns null.
+   * Decodes and returns the next message from the provided InputStream,
+   * blocking until a complete message is available. If the message type is
+   * unknown, the message is skipped and null is returned. For File Chunk
+   * messages only the header is read; the caller must consume
+   * {@link FileChunkMessage#getDataLength()} more bytes before decoding the
+   * next message.
    * 
    * @param in
    *          the InputStream from which to decode the next message.
-   * @return the decoded message, or null if no message can be decoded.
+   * @return the decoded message, or null if the message type is unknown.
    * @throws IOException
    *           if the socket is closed or an IOException is thrown by the
    *           InputStream.
    */
   public static AbstractMessage decodeMessage(final InputStream in)
       throws IOException {
+    return decodeMessage(in, null, null);
+  }
+
+  /**
+   * Decodes and returns the next message from the provided InputStream, like
+   * {@link #decodeMessage(InputStream)}, but only reads messages within the
+   * specified limits and budget. A message outside its type's limits, or one
+   * the account has no room for, is skipped without being read into memory
+   * and null is returned.
+   * 
+   * The account is charged {@link #getBufferedLength()} bytes for each
+   * message returned. The caller must release them once it is done with the
+   * message.
+   * 
+   * Passing a DataInputStream avoids creating a new one for every message.
+   * 
+   * @param in
+   *          the InputStream from which to decode the next message.
+   * @param limits
+   *          the accepted lengths of each message type, or null for no
+   *          limits.
+   * @param account
+   *          the account to charge for the message, or null.
+   * @return the decoded message, or null if it was skipped.
+   * @throws IOException
+   *           if the socket is closed, an IOException is thrown by the
+   *           InputStream, or the message is too large to skip.
+   */
+  public static AbstractMessage decodeMessage(final InputStream in,
+      final FrameLimits limits, final MemoryBudget.Account account)
+      throws IOException {
     // Check for null socket or EOF
     if (in == null || in.available() < 0) {
       throw new SocketException("Socket is null or closed.");
     }
 
     // Wrap for convenience
-    DataInputStream din = new DataInputStream(in);
+    DataInputStream din = in instanceof DataInputStream ? (DataInputStream) in
+        : new DataInputStream(in);
 
     // Message length and type should always be present
     int messageLength = din.readInt();
     byte messageType = din.readByte();
 
-    AbstractMessage message = null;
-
-    // Handle decoding based on the message type
-    switch (messageType) {
-    case AbstractMessage.TYPE_CHAT_MESSAGE: {
-      // Decode the message timestamp
-      long timestamp = din.readLong();
+    if (limits != null && !limits.accepts(messageType, messageLength)) {
+      if (messageLength < 1 || messageLength > limits.getMaxSkip() - 4) {
+        throw new IOException("Cannot skip " + messageLength
+            + "-byte message of type " + messageType + ".");
+      }
+      log.warning("Skipping " + messageLength + "-byte message of type "
+          + messageType + ".");
+      skipFully(din, messageLength - 1);
+      return null;
+    }
 
-      // Decode the username as a UTF-16 big endian string
-      int usernameLength = din.readInt();
-      byte[] usernameBytes = new byte[usernameLength];
-      din.readFully(usernameBytes);
-      String username = new String(usernameBytes, "UTF-16BE");
+    int buffered = messageLength;
+    if (messageType == TYPE_FILE_CHUNK_MESSAGE) {
+      // The data is read straight from the stream by the caller
+      buffered = 1 + FileChunkMessage.FIELDS_LENGTH;
+    }
+    if (account != null && !account.tryReserve(buffered)) {
+      log.warning("No inbound memory left for " + account + ", skipping "
+          + messageLength + "-byte message of type " + messageType + ".");
+      skipFully(din, messageLength - 1);
+      return null;
+    }
 
-      // Decode the chat message as a UTF-16 big endian string
-      byte[] messageBytes = new byte[messageLength - 13 - usernameLength];
-      din.readFully(messageBytes);
-      String messageString = new String(messageBytes, "UTF-16BE");
+    AbstractMessage message = null;
+    try {
+      message = decodeBody(din, messageLength, messageType);
+    } finally {
+      if (message == null && account != null) {
+        account.release(buffered);
+      }
+    }
+    return message;
+  }
 
-      message = new ChatMessage(timestamp, username, messageString);
+  /**
+   * Decodes the rest of a message once its length and type have been read.
+   * 
+   * @param din
+   *          the stream positioned after the type field.
+   * @param messageLength
+   *          the decoded message length.
+   * @param messageType
+   *          the decoded message type.
+   * @return the decoded message, or null if the message type is unknown.
+   * @throws IOException
+   *           if the stream throws an IOException or the message is malformed.
+   */
+  private static AbstractMessage decodeBody(final DataInputStream din,
+      final int messageLength, final byte messageType) throws IOException {
+    AbstractMessage message = null;
 
+    // Handle decoding based on the message type
+    switch (messageType) {
+    case AbstractMessage.TYPE_CHAT_MESSAGE:
+      // Strings are decoded later, if anyone asks for them
+      message = new ChatMessage(readFrame(din, messageLength, messageType));
       break;
-    }
     case AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE:
       // Decode the IP address of the client
       byte[] ipBytes = new byte[4];
@@ -377,31 +700,147 @@ public abstract class AbstractMessage {
       // Keep-alive messages are all identical, so return the static instance
       message = AbstractMessage.KEEPALIVE_MESSAGE;
       break;
-    case AbstractMessage.TYPE_PRIVATE_CHAT_MESSAGE: {
-      // Decode the message timestamp
-      long timestamp = din.readLong();
-
-      // Decode the username as a UTF-16 big endian string
-      int usernameLength = din.readInt();
-      byte[] usernameBytes = new byte[usernameLength];
-      din.readFully(usernameBytes);
-      String username = new String(usernameBytes, "UTF-16BE");
-
-      // Decode the chat message as a UTF-16 big endian string
-      byte[] messageBytes = new byte[messageLength - 13 - usernameLength];
-      din.readFully(messageBytes);
-      String messageString = new String(messageBytes, "UTF-16BE");
-
-      message = new PrivateChatMessage(timestamp, username, messageString);
+    case AbstractMessage.TYPE_PRIVATE_CHAT_MESSAGE:
+      message = new PrivateChatMessage(readFrame(din, messageLength,
+          messageType));
+      break;
+    case AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE:
+      message = new RoutedPrivateMessage(readFrame(din, messageLength,
+          messageType));
+      break;
+    case AbstractMessage.TYPE_ROOM_CHAT_MESSAGE:
+      message = new RoomChatMessage(readFrame(din, messageLength, messageType));
+      break;
+    case AbstractMessage.TYPE_SUBSCRIPTION_MESSAGE: {
+      boolean joined = din.readByte() != 0;
+      byte[] roomBytes = new byte[messageLength - 2];
+      din.readFully(roomBytes);
+      message = new SubscriptionMessage(joined, new String(roomBytes,
+          "UTF-16BE"));
+      break;
+    }
+    case AbstractMessage.TYPE_FRAGMENT_MESSAGE: {
+      int dataLength = messageLength - 1 - FragmentMessage.FIELDS_LENGTH;
+      if (dataLength < 0 || dataLength > FragmentMessage.MAX_CHUNK_SIZE) {
+        throw new IOException("Invalid fragment length: " + messageLength);
+      }
+      long fragmentId = din.readLong();
+      int totalLength = din.readInt();
+      int offset = din.readInt();
+      byte[] data = new byte[dataLength];
+      din.readFully(data);
+      message = new FragmentMessage(fragmentId, totalLength, offset, data, 0,
+          dataLength);
+      break;
+    }
+    case AbstractMessage.TYPE_FILE_OFFER_MESSAGE: {
+      if (messageLength < 17) {
+        throw new IOException("File offer too short: " + messageLength);
+      }
+      long transferId = din.readLong();
+      long size = din.readLong();
+      byte[] fileBytes = new byte[messageLength - 17];
+      din.readFully(fileBytes);
+      message = new FileOfferMessage(transferId, size, new String(fileBytes,
+          "UTF-16BE"));
+      break;
+    }
+    case AbstractMessage.TYPE_FILE_ACCEPT_MESSAGE:
+      message = new FileAcceptMessage(din.readLong(), din.readLong());
+      break;
+    case AbstractMessage.TYPE_FILE_CHUNK_MESSAGE: {
+      // The data is left in the stream for the caller
+      int dataLength = messageLength - 1 - FileChunkMessage.FIELDS_LENGTH;
+      if (dataLength < 0 || dataLength > FileChunkMessage.MAX_CHUNK_SIZE) {
+        throw new IOException("Invalid file chunk length: " + messageLength);
+      }
+      message = new FileChunkMessage(din.readLong(), din.readLong(),
+          dataLength);
+      break;
+    }
+    case AbstractMessage.TYPE_HISTORY_REQUEST_MESSAGE:
+      message = new HistoryRequestMessage(din.readLong(), din.readInt());
+      break;
+    case AbstractMessage.TYPE_HISTORY_BATCH_MESSAGE: {
+      if (messageLength < 2) {
+        throw new IOException("History batch too short: " + messageLength);
+      }
+      boolean last = din.readByte() != 0;
+      byte[] records = new byte[messageLength - 2];
+      din.readFully(records);
+      message = new HistoryBatchMessage(last, records);
       break;
     }
+    case AbstractMessage.TYPE_SESSION_MESSAGE:
+      message = new SessionMessage(din.readLong(), din.readLong(), din
+          .readByte());
+      break;
+    case AbstractMessage.TYPE_ACK_MESSAGE:
+      message = new AckMessage(din.readLong(), din.readLong());
+      break;
     default:
       log.warning("Unexpected message type when decoding: "
           + messageType);
+      // Skip the payload so the next message can still be decoded
+      skipFully(din, messageLength - 1);
     }
 
     return message;
 
   }
 
+  /**
+   * Reads and discards bytes from the stream.
+   * 
+   * @param din
+   *          the stream to read from.
+   * @param count
+   *          the number of bytes to discard.
+   * @throws IOException
+   *           if the stream ends or throws an IOException.
+   */
+  private static void skipFully(final DataInputStream din, final int count)
+      throws IOException {
+    for (int remaining = count; remaining > 0;) {
+      int skipped = din.skipBytes(remaining);
+      if (skipped <= 0) {
+        din.readByte();
+        skipped = 1;
+      }
+      remaining -= skipped;
+    }
+  }
+
+  /**
+   * Reads the rest of a chat frame into a single array and returns a view of
+   * it. The length and type have already been read from the stream.
+   * 
+   * @param din
+   *          the stream positioned after the type field.
+   * @param messageLength
+   *          the decoded message length.
+   * @param messageType
+   *          the decoded message type.
+   * @return a view of the complete frame.
+   * @throws IOException
+   *           if the stream throws an IOException or the frame is malformed.
+   */
+  private static MessageView readFrame(final DataInputStream din,
+      final int messageLength, final byte messageType) throws IOException {
+    if (messageLength < MessageView.FIELDS_OFFSET) {
+      throw new IOException("Chat message too short: " + messageLength);
+    }
+    byte[] frame = new byte[messageLength + 4];
+    ByteBuffer buffer = ByteBuffer.wrap(frame);
+    buffer.putInt(0, messageLength);
+    buffer.put(4, messageType);
+    din.readFully(frame, MessageView.HEADER_LENGTH, messageLength - 1);
+    MessageView view = new MessageView().wrap(buffer, 0);
+    if (!view.isWellFormed()) {
+      throw new IOException("Malformed " + MESSAGE_NAMES[messageType]
+          + " message.");
+    }
+    return view;
+  }
+
 }
@@ -0,0 +1,80 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+/**
+ * Acknowledges the chat messages received from a client, by the number of
+ * the last one; every message up to it has been read. Sent only to clients
+ * whose {@link SessionMessage} asked for acknowledgements, after every few
+ * messages or a short wait, so one acknowledgement covers many messages.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class AckMessage extends AbstractMessage {
+
+	/**
+	 * Token of the acknowledged stream.
+	 */
+	protected final long token;
+
+	/**
+	 * Number of the last message received.
+	 */
+	protected final long sequence;
+
+	/**
+	 * Creates a new acknowledgement.
+	 * 
+	 * @param token
+	 *            the token of the stream.
+	 * @param sequence
+	 *            the number of the last message received.
+	 */
+	public AckMessage(final long token, final long sequence) {
+		super(17, AbstractMessage.TYPE_ACK_MESSAGE);
+		this.token = token;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Returns the token of the acknowledged stream.
+	 * 
+	 * @return the token.
+	 */
+	public long getToken() {
+		return this.token;
+	}
+
+	/**
+	 * Returns the number of the last message received.
+	 * 
+	 * @return the sequence number.
+	 */
+	public long getSequence() {
+		return this.sequence;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ' ' + Long.toHexString(this.token)
+				+ " up to " + this.sequence;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+/**
+ * Accepts a file offered with a {@link FileOfferMessage}. The offset is the
+ * number of bytes the receiving client already has, so an interrupted
+ * transfer can be resumed by offering and accepting the file again.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class FileAcceptMessage extends AbstractMessage {
+
+	/**
+	 * Identifier of the accepted transfer.
+	 */
+	protected final long transferId;
+
+	/**
+	 * Position in the file to start sending from.
+	 */
+	protected final long offset;
+
+	/**
+	 * Creates a new file accept message.
+	 * 
+	 * @param transferId
+	 *            the identifier of the offered transfer.
+	 * @param offset
+	 *            the position in the file to start sending from.
+	 */
+	public FileAcceptMessage(final long transferId, final long offset) {
+		super(17, AbstractMessage.TYPE_FILE_ACCEPT_MESSAGE);
+		this.transferId = transferId;
+		this.offset = offset;
+	}
+
+	/**
+	 * Returns the identifier of the accepted transfer.
+	 * 
+	 * @return the identifier of the transfer.
+	 */
+	public long getTransferId() {
+		return this.transferId;
+	}
+
+	/**
+	 * Returns the position in the file to start sending from.
+	 * 
+	 * @return the starting offset.
+	 */
+	public long getOffset() {
+		return this.offset;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ' ' + Long.toHexString(this.transferId)
+				+ " from " + this.offset;
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+/**
+ * Header of one piece of a file being transferred. Unlike every other
+ * message, a file chunk never holds its data: the sender writes the data from
+ * the file straight to the socket after encoding the header, and
+ * {@link AbstractMessage#decodeMessage(java.io.InputStream)} leaves the data in
+ * the stream for the receiver to write straight to the file. The data never
+ * passes through a heap buffer on either side.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class FileChunkMessage extends AbstractMessage {
+
+	/**
+	 * Largest number of file bytes sent in one chunk. Chat waits for at most
+	 * one chunk while a file is being sent.
+	 */
+	public static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * Size of the fixed fields after the message type: the transfer
+	 * identifier and the offset.
+	 */
+	public static final int FIELDS_LENGTH = 16;
+
+	/**
+	 * Identifier of the transfer.
+	 */
+	protected final long transferId;
+
+	/**
+	 * Position of the data in the file.
+	 */
+	protected final long offset;
+
+	/**
+	 * Creates a new file chunk header.
+	 * 
+	 * @param transferId
+	 *            the identifier of the transfer.
+	 * @param offset
+	 *            the position of the data in the file.
+	 * @param dataLength
+	 *            the number of data bytes that follow the header.
+	 */
+	public FileChunkMessage(final long transferId, final long offset,
+			final int dataLength) {
+		super(1 + FIELDS_LENGTH + dataLength,
+				AbstractMessage.TYPE_FILE_CHUNK_MESSAGE);
+		this.transferId = transferId;
+		this.offset = offset;
+	}
+
+	/**
+	 * Returns the identifier of the transfer.
+	 * 
+	 * @return the identifier of the transfer.
+	 */
+	public long getTransferId() {
+		return this.transferId;
+	}
+
+	/**
+	 * Returns the position of the data in the file.
+	 * 
+	 * @return the offset of the data.
+	 */
+	public long getOffset() {
+		return this.offset;
+	}
+
+	/**
+	 * Returns the number of data bytes that follow the header.
+	 * 
+	 * @return the length of the data.
+	 */
+	public int getDataLength() {
+		return this.length - 1 - FIELDS_LENGTH;
+	}
+
+	/**
+	 * Only the header is held in memory; the data goes straight to the file.
+	 */
+	@Override
+	public int getBufferedLength() {
+		return 1 + FIELDS_LENGTH;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ' ' + Long.toHexString(this.transferId)
+				+ " [" + this.offset + '+' + this.getDataLength() + ']';
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Offers a file to the receiving client. Nothing is sent until the receiving
+ * client answers with a {@link FileAcceptMessage}, which says where in the
+ * file to start.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class FileOfferMessage extends AbstractMessage {
+
+	/**
+	 * Identifier of the transfer, used by the accept and chunk messages.
+	 */
+	protected final long transferId;
+
+	/**
+	 * Size of the file in bytes.
+	 */
+	protected final long size;
+
+	/**
+	 * Name of the file, without any directories.
+	 */
+	protected final String name;
+
+	/**
+	 * Creates a new file offer.
+	 * 
+	 * @param transferId
+	 *            the identifier of the transfer.
+	 * @param size
+	 *            the size of the file in bytes.
+	 * @param name
+	 *            the name of the file, without any directories.
+	 * @throws UnsupportedEncodingException
+	 *             if the name cannot be encoded in UTF-16 big endian.
+	 */
+	public FileOfferMessage(final long transferId, final long size,
+			final String name) throws UnsupportedEncodingException {
+		super(17 + name.getBytes("UTF-16BE").length,
+				AbstractMessage.TYPE_FILE_OFFER_MESSAGE);
+		this.transferId = transferId;
+		this.size = size;
+		this.name = name;
+	}
+
+	/**
+	 * Returns the identifier of the transfer.
+	 * 
+	 * @return the identifier of the transfer.
+	 */
+	public long getTransferId() {
+		return this.transferId;
+	}
+
+	/**
+	 * Returns the size of the file in bytes.
+	 * 
+	 * @return the size of the file in bytes.
+	 */
+	public long getSize() {
+		return this.size;
+	}
+
+	/**
+	 * Returns the name of the file.
+	 * 
+	 * @return the name of the file.
+	 */
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ' ' + Long.toHexString(this.transferId)
+				+ ' ' + this.name + " (" + this.size + " bytes)";
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One piece of a message that was too large to send as a single frame. The
+ * sender encodes the original message, cuts the encoded frame into chunks of
+ * at most {@link #MAX_CHUNK_SIZE} bytes and sends each chunk in order with the
+ * same fragment identifier. The receiver copies the chunks into place with a
+ * {@link Reassembler} and decodes the original frame once every byte has
+ * arrived.
+ * 
+ * Because no single frame is larger than a chunk, other messages can be sent
+ * between the fragments of a large message instead of waiting for all of it.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class FragmentMessage extends AbstractMessage {
+
+	/**
+	 * Largest number of message bytes carried by one fragment.
+	 */
+	public static final int MAX_CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * Encoded messages larger than this many bytes are sent as fragments.
+	 */
+	public static final int FRAGMENT_THRESHOLD = 64 * 1024;
+
+	/**
+	 * Size of the fixed fields after the message type: the fragment
+	 * identifier, the total length and the offset.
+	 */
+	public static final int FIELDS_LENGTH = 16;
+
+	/**
+	 * Identifier shared by all fragments of the same message.
+	 */
+	protected final long fragmentId;
+
+	/**
+	 * Size of the complete encoded message, in bytes.
+	 */
+	protected final int totalLength;
+
+	/**
+	 * Position of this chunk within the complete encoded message.
+	 */
+	protected final int offset;
+
+	/**
+	 * Array holding the chunk. Fragments created by {@link #split} share the
+	 * array of the encoded message.
+	 */
+	protected final byte[] data;
+
+	/**
+	 * Position of the chunk within {@link #data}.
+	 */
+	protected final int dataOffset;
+
+	/**
+	 * Length of the chunk in bytes.
+	 */
+	protected final int dataLength;
+
+	/**
+	 * Creates a new fragment.
+	 * 
+	 * @param fragmentId
+	 *            the identifier shared by all fragments of the message.
+	 * @param totalLength
+	 *            the size of the complete encoded message.
+	 * @param offset
+	 *            the position of this chunk within the encoded message.
+	 * @param data
+	 *            the array holding the chunk.
+	 * @param dataOffset
+	 *            the position of the chunk within the array.
+	 * @param dataLength
+	 *            the length of the chunk.
+	 */
+	public FragmentMessage(final long fragmentId, final int totalLength,
+			final int offset, final byte[] data, final int dataOffset,
+			final int dataLength) {
+		super(1 + FIELDS_LENGTH + dataLength,
+				AbstractMessage.TYPE_FRAGMENT_MESSAGE);
+		this.fragmentId = fragmentId;
+		this.totalLength = totalLength;
+		this.offset = offset;
+		this.data = data;
+		this.dataOffset = dataOffset;
+		this.dataLength = dataLength;
+	}
+
+	/**
+	 * Encodes the message and cuts it into fragments, or returns null if the
+	 * message is small enough to be sent as it is. File chunks are never
+	 * split, since their data is not part of the encoded message.
+	 * 
+	 * @param message
+	 *            the message to split.
+	 * @return the fragments in sending order, or null if the message does not
+	 *         need to be split.
+	 * @throws IOException
+	 *             if the message cannot be encoded.
+	 */
+	public static List<FragmentMessage> split(final AbstractMessage message)
+			throws IOException {
+		int frameSize = message.getLength() + 4;
+		if (frameSize <= FRAGMENT_THRESHOLD
+				|| message.getType() == AbstractMessage.TYPE_FRAGMENT_MESSAGE
+				|| message.getType() == AbstractMessage.TYPE_FILE_CHUNK_MESSAGE) {
+			return null;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(frameSize);
+		AbstractMessage.encodeMessage(message, out);
+		byte[] frame = out.toByteArray();
+
+		long fragmentId = MessageIds.next();
+		List<FragmentMessage> fragments = new ArrayList<FragmentMessage>(
+				(frame.length + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE);
+		for (int offset = 0; offset < frame.length; offset += MAX_CHUNK_SIZE) {
+			fragments.add(new FragmentMessage(fragmentId, frame.length, offset,
+					frame, offset, Math.min(MAX_CHUNK_SIZE, frame.length
+							- offset)));
+		}
+		return fragments;
+	}
+
+	/**
+	 * Returns the identifier shared by all fragments of the message.
+	 * 
+	 * @return the fragment identifier.
+	 */
+	public long getFragmentId() {
+		return this.fragmentId;
+	}
+
+	/**
+	 * Returns the size of the complete encoded message.
+	 * 
+	 * @return the size of the complete message in bytes.
+	 */
+	public int getTotalLength() {
+		return this.totalLength;
+	}
+
+	/**
+	 * Returns the position of this chunk within the encoded message.
+	 * 
+	 * @return the offset of this chunk.
+	 */
+	public int getOffset() {
+		return this.offset;
+	}
+
+	/**
+	 * Returns true if this is the last fragment of the message.
+	 * 
+	 * @return true if this chunk ends the message.
+	 */
+	public boolean isLast() {
+		return this.offset + this.dataLength == this.totalLength;
+	}
+
+	/**
+	 * Returns the array holding the chunk.
+	 * 
+	 * @return the array holding the chunk.
+	 */
+	public byte[] getData() {
+		return this.data;
+	}
+
+	/**
+	 * Returns the position of the chunk within {@link #getData()}.
+	 * 
+	 * @return the position of the chunk.
+	 */
+	public int getDataOffset() {
+		return this.dataOffset;
+	}
+
+	/**
+	 * Returns the length of the chunk.
+	 * 
+	 * @return the length of the chunk in bytes.
+	 */
+	public int getDataLength() {
+		return this.dataLength;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ' ' + Long.toHexString(this.fragmentId)
+				+ " [" + this.offset + '+' + this.dataLength + '/'
+				+ this.totalLength + ']';
+	}
+}
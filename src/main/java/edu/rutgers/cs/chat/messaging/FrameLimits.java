@@ -0,0 +1,242 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The smallest and largest encoded length accepted for each message type.
+ * Lengths are the value of the frame's length field, so they include the type
+ * byte but not the length field itself. A frame outside its type's limits is
+ * skipped without being read into memory, as long as it is no larger than
+ * {@link #getMaxSkip()}; anything larger ends the connection, since reading
+ * past it would take too long.
+ * 
+ * The largest length of a type can be changed with a system property named
+ * {@code edu.rutgers.cs.chat.maxLength.} followed by the type's name without
+ * spaces, for example {@code edu.rutgers.cs.chat.maxLength.RoomChat=8192}.
+ * Frames of unknown types are always skipped.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class FrameLimits {
+
+	/**
+	 * Logging facility for this class.
+	 */
+	private static final Logger log = Logger.getLogger(FrameLimits.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Prefix of the system properties that change the largest length of a
+	 * type.
+	 */
+	public static final String PROPERTY_PREFIX = "edu.rutgers.cs.chat.maxLength.";
+
+	/**
+	 * Largest length of messages with variable-length names, such as
+	 * handshakes and subscriptions.
+	 */
+	public static final int MAX_CONTROL_LENGTH = 4096;
+
+	/**
+	 * Default size of the largest frame that is skipped instead of ending the
+	 * connection.
+	 */
+	public static final int DEFAULT_MAX_SKIP = 1024 * 1024;
+
+	/**
+	 * Smallest accepted length of each message type.
+	 */
+	protected final int[] minLength = new int[AbstractMessage.MESSAGE_NAMES.length];
+
+	/**
+	 * Largest accepted length of each message type.
+	 */
+	protected final int[] maxLength = new int[AbstractMessage.MESSAGE_NAMES.length];
+
+	/**
+	 * Largest frame that is skipped instead of ending the connection.
+	 */
+	protected int maxSkip = DEFAULT_MAX_SKIP;
+
+	/**
+	 * Creates limits with the default length of each message type. Chat
+	 * messages and history batches may be as large as a message that is not
+	 * fragmented, and fragments and file chunks as large as one chunk of data.
+	 */
+	public FrameLimits() {
+		int chat = FragmentMessage.FRAGMENT_THRESHOLD - 4;
+		this.set(AbstractMessage.TYPE_CHAT_MESSAGE, MessageView.FIELDS_OFFSET,
+				chat);
+		this.set(AbstractMessage.TYPE_PRIVATE_CHAT_MESSAGE,
+				MessageView.FIELDS_OFFSET, chat);
+		this.set(AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE,
+				MessageView.ROUTED_HEADER_LENGTH, chat);
+		this.set(AbstractMessage.TYPE_ROOM_CHAT_MESSAGE,
+				MessageView.FIELDS_OFFSET, chat);
+		this.set(AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE, 7,
+				MAX_CONTROL_LENGTH);
+		this.set(AbstractMessage.TYPE_HANDSHAKE_MESSAGE,
+				3 + 2 * HandshakeMessage.PROTOCOL_STRING.length(),
+				MAX_CONTROL_LENGTH);
+		this.set(AbstractMessage.TYPE_DISCONNECT_MESSAGE, 1, 1);
+		this.set(AbstractMessage.TYPE_KEEPALIVE_MESSAGE, 1, 1);
+		this.set(AbstractMessage.TYPE_SUBSCRIPTION_MESSAGE, 2,
+				MAX_CONTROL_LENGTH);
+		this.set(AbstractMessage.TYPE_FRAGMENT_MESSAGE,
+				1 + FragmentMessage.FIELDS_LENGTH, 1
+						+ FragmentMessage.FIELDS_LENGTH
+						+ FragmentMessage.MAX_CHUNK_SIZE);
+		this.set(AbstractMessage.TYPE_FILE_OFFER_MESSAGE, 17,
+				MAX_CONTROL_LENGTH);
+		this.set(AbstractMessage.TYPE_FILE_ACCEPT_MESSAGE, 17, 17);
+		this.set(AbstractMessage.TYPE_FILE_CHUNK_MESSAGE,
+				1 + FileChunkMessage.FIELDS_LENGTH, 1
+						+ FileChunkMessage.FIELDS_LENGTH
+						+ FileChunkMessage.MAX_CHUNK_SIZE);
+		this.set(AbstractMessage.TYPE_HISTORY_REQUEST_MESSAGE, 13, 13);
+		this.set(AbstractMessage.TYPE_HISTORY_BATCH_MESSAGE, 2, chat);
+		this.set(AbstractMessage.TYPE_SESSION_MESSAGE, 18, 18);
+		this.set(AbstractMessage.TYPE_ACK_MESSAGE, 17, 17);
+	}
+
+	/**
+	 * Creates limits with the default lengths, changed by any system
+	 * properties that are set.
+	 * 
+	 * @return the configured limits.
+	 */
+	public static FrameLimits fromProperties() {
+		FrameLimits limits = new FrameLimits();
+		for (int type = 0; type < AbstractMessage.MESSAGE_NAMES.length; ++type) {
+			String property = PROPERTY_PREFIX
+					+ AbstractMessage.MESSAGE_NAMES[type].replace(" ", "");
+			String value = System.getProperty(property);
+			if (value == null) {
+				continue;
+			}
+			try {
+				limits.setMaxLength(type, Integer.parseInt(value.trim()));
+			} catch (NumberFormatException nfe) {
+				log.warning("Ignoring invalid value for " + property + ": "
+						+ value);
+			}
+		}
+		return limits;
+	}
+
+	/**
+	 * Sets both limits of a message type.
+	 * 
+	 * @param type
+	 *            the message type.
+	 * @param min
+	 *            the smallest accepted length.
+	 * @param max
+	 *            the largest accepted length.
+	 */
+	protected void set(final int type, final int min, final int max) {
+		this.minLength[type] = min;
+		this.maxLength[type] = max;
+	}
+
+	/**
+	 * Changes the largest accepted length of a message type. The length is
+	 * never set below the type's smallest length.
+	 * 
+	 * @param type
+	 *            the message type.
+	 * @param max
+	 *            the largest accepted length.
+	 */
+	public void setMaxLength(final int type, final int max) {
+		this.maxLength[type] = Math.max(max, this.minLength[type]);
+	}
+
+	/**
+	 * Limits every message type to at most the specified length.
+	 * 
+	 * @param max
+	 *            the largest accepted length of any message.
+	 */
+	public void capMaxLength(final int max) {
+		for (int type = 0; type < this.maxLength.length; ++type) {
+			this.setMaxLength(type, Math.min(this.maxLength[type], max));
+		}
+	}
+
+	/**
+	 * Returns the largest accepted length of a message type.
+	 * 
+	 * @param type
+	 *            the message type.
+	 * @return the largest accepted length, or -1 if the type is unknown.
+	 */
+	public int getMaxLength(final int type) {
+		if (type < 0 || type >= this.maxLength.length) {
+			return -1;
+		}
+		return this.maxLength[type];
+	}
+
+	/**
+	 * Returns true if a message of the specified type and length should be
+	 * read.
+	 * 
+	 * @param type
+	 *            the message type.
+	 * @param length
+	 *            the value of the frame's length field.
+	 * @return true if the length is within the type's limits.
+	 */
+	public boolean accepts(final int type, final int length) {
+		return type >= 0 && type < this.maxLength.length
+				&& length >= this.minLength[type]
+				&& length <= this.maxLength[type];
+	}
+
+	/**
+	 * Returns the size of the largest frame that is skipped instead of ending
+	 * the connection.
+	 * 
+	 * @return the largest skipped frame, in bytes.
+	 */
+	public int getMaxSkip() {
+		return this.maxSkip;
+	}
+
+	/**
+	 * Sets the size of the largest frame that is skipped instead of ending the
+	 * connection.
+	 * 
+	 * @param maxSkip
+	 *            the largest skipped frame, in bytes.
+	 */
+	public void setMaxSkip(final int maxSkip) {
+		this.maxSkip = maxSkip;
+	}
+}
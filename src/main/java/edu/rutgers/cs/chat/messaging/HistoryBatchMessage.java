@@ -0,0 +1,100 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.rutgers.cs.chat.history.HistoryRecord;
+
+/**
+ * Carries some of the messages asked for by a {@link HistoryRequestMessage}.
+ * The records are in the same binary form as in the history itself, one
+ * after another, after a byte that is 1 for the last batch of the reply.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class HistoryBatchMessage extends AbstractMessage {
+
+	/**
+	 * True if no more batches follow.
+	 */
+	protected final boolean last;
+
+	/**
+	 * The encoded records.
+	 */
+	protected final byte[] records;
+
+	/**
+	 * Creates a new batch from encoded records.
+	 * 
+	 * @param last
+	 *            true if no more batches follow.
+	 * @param records
+	 *            the encoded records.
+	 */
+	public HistoryBatchMessage(final boolean last, final byte[] records) {
+		super(2 + records.length, AbstractMessage.TYPE_HISTORY_BATCH_MESSAGE);
+		this.last = last;
+		this.records = records;
+	}
+
+	/**
+	 * Returns true if no more batches follow.
+	 * 
+	 * @return true for the last batch of a reply.
+	 */
+	public boolean isLast() {
+		return this.last;
+	}
+
+	/**
+	 * Returns the encoded records.
+	 * 
+	 * @return the records in their binary form.
+	 */
+	public byte[] getEncodedRecords() {
+		return this.records;
+	}
+
+	/**
+	 * Decodes the records. Decoding stops at the first damaged record.
+	 * 
+	 * @return the records, oldest first.
+	 */
+	public List<HistoryRecord> getRecords() {
+		List<HistoryRecord> decoded = new ArrayList<HistoryRecord>();
+		ByteBuffer buffer = ByteBuffer.wrap(this.records);
+		HistoryRecord record;
+		while ((record = HistoryRecord.decode(buffer)) != null) {
+			decoded.add(record);
+		}
+		return decoded;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ' ' + this.records.length + " bytes"
+				+ (this.last ? " (last)" : "");
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+/**
+ * Asks a client for the chat messages it stored since a time, so a client
+ * joining a conversation can see what was said before it arrived. The
+ * messages are returned in {@link HistoryBatchMessage}s.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class HistoryRequestMessage extends AbstractMessage {
+
+	/**
+	 * Earliest storage time of the messages wanted.
+	 */
+	protected final long since;
+
+	/**
+	 * Most messages wanted.
+	 */
+	protected final int limit;
+
+	/**
+	 * Creates a new history request.
+	 * 
+	 * @param since
+	 *            the earliest storage time of the messages wanted, in
+	 *            milliseconds since the epoch.
+	 * @param limit
+	 *            the most messages wanted.
+	 */
+	public HistoryRequestMessage(final long since, final int limit) {
+		super(13, AbstractMessage.TYPE_HISTORY_REQUEST_MESSAGE);
+		this.since = since;
+		this.limit = limit;
+	}
+
+	/**
+	 * Returns the earliest storage time of the messages wanted.
+	 * 
+	 * @return the time in milliseconds since the epoch.
+	 */
+	public long getSince() {
+		return this.since;
+	}
+
+	/**
+	 * Returns the most messages wanted.
+	 * 
+	 * @return the number of messages.
+	 */
+	public int getLimit() {
+		return this.limit;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + " since " + this.since + " up to "
+				+ this.limit;
+	}
+}
@@ -0,0 +1,82 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Generates compact 64-bit message identifiers. The upper 24 bits are a random
+ * node prefix chosen when the class is loaded and the lower 40 bits are a
+ * per-process counter, so two clients will only generate the same identifier
+ * if their prefixes collide and their counters line up.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class MessageIds {
+
+	/**
+	 * Number of bits used by the per-process counter.
+	 */
+	private static final int COUNTER_BITS = 40;
+
+	/**
+	 * Mask for the counter portion of an identifier.
+	 */
+	private static final long COUNTER_MASK = (1L << COUNTER_BITS) - 1;
+
+	/**
+	 * Random prefix for this process, already shifted into place.
+	 */
+	private static final long NODE_PREFIX;
+
+	/**
+	 * Counter for the next identifier.
+	 */
+	private static final AtomicLong counter;
+
+	static {
+		SecureRandom rand = new SecureRandom();
+		NODE_PREFIX = ((long) (rand.nextInt() & 0xFFFFFF)) << COUNTER_BITS;
+		// Start the counter somewhere random so restarts don't reuse ids
+		counter = new AtomicLong(rand.nextLong() & COUNTER_MASK);
+	}
+
+	/**
+	 * Not instantiable.
+	 */
+	private MessageIds() {
+		super();
+	}
+
+	/**
+	 * Returns a new message identifier. Never returns 0.
+	 * 
+	 * @return a new message identifier.
+	 */
+	public static long next() {
+		long id;
+		do {
+			id = NODE_PREFIX | (counter.getAndIncrement() & COUNTER_MASK);
+		} while (id == 0);
+		return id;
+	}
+}
@@ -20,6 +20,7 @@
 package edu.rutgers.cs.chat.messaging;
 
 import edu.rutgers.cs.chat.Client;
+import edu.rutgers.cs.chat.FileTransfer;
 
 
 /**
@@ -44,6 +45,29 @@ public interface MessageListener {
    */
   public void privateChatMessageArrived(final Client client, final PrivateChatMessage message);
 	
+	/**
+	 * Called when a routed private chat message is received from a remote
+	 * client. The message may be addressed to the local client or may need to
+	 * be forwarded toward its destination.
+	 * @param client the client that delivered the message (the previous hop).
+	 * @param message the routed message.
+	 */
+	public void routedPrivateMessageArrived(final Client client, final RoutedPrivateMessage message);
+
+	/**
+	 * Called when a room chat message is received from a remote client.
+	 * @param client the client that sent the chat message.
+	 * @param message the message that was sent
+	 */
+	public void roomMessageArrived(final Client client, final RoomChatMessage message);
+
+	/**
+	 * Called when a remote client joins or leaves a room.
+	 * @param client the client whose subscription changed.
+	 * @param message the subscription change.
+	 */
+	public void subscriptionMessageArrived(final Client client, final SubscriptionMessage message);
+
 	/**
 	 * Called when a client exchange message is received from a remote client.
 	 * @param client the client that sent the exchange message.
@@ -57,5 +81,36 @@ public interface MessageListener {
 	 * @param client the client that sent the disconnect message.
 	 */
 	public void disconnectMessageArrived(final Client client);
+
+	/**
+	 * Called when a remote client offers a file. The offer can be accepted
+	 * with {@link Client#acceptFile(long, java.io.File)}.
+	 * @param client the client offering the file.
+	 * @param message the offer.
+	 */
+	public void fileOfferArrived(final Client client, final FileOfferMessage message);
+
+	/**
+	 * Called when a file has been completely sent to or received from a remote
+	 * client.
+	 * @param client the client the file was exchanged with.
+	 * @param transfer the finished transfer.
+	 */
+	public void fileTransferFinished(final Client client, final FileTransfer transfer);
+
+	/**
+	 * Called when a remote client asks for the messages stored since a time.
+	 * @param client the client asking.
+	 * @param message the request.
+	 */
+	public void historyRequestArrived(final Client client, final HistoryRequestMessage message);
+
+	/**
+	 * Called when a batch of stored messages arrives in reply to a history
+	 * request.
+	 * @param client the client that sent the batch.
+	 * @param message the batch.
+	 */
+	public void historyBatchArrived(final Client client, final HistoryBatchMessage message);
 	
 }
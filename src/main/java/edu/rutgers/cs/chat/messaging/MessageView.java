@@ -0,0 +1,406 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * A read-only view of an encoded message frame. The view reads fields directly
+ * from the underlying buffer, so the message type, length, timestamp, message
+ * identifier and raw bytes are available without decoding anything. Strings
+ * are only decoded when one of the string accessors is called.
+ * 
+ * A single view may be reused for many frames by calling
+ * {@link #wrap(ByteBuffer, int)} again, which makes it suitable for forwarding
+ * paths that look at a frame and pass it on unchanged.
+ * 
+ * The offsets used by the view follow the frame layouts described in
+ * {@link AbstractMessage}. Offsets are measured from the start of the frame,
+ * which is the first byte of the 4-byte length field.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class MessageView {
+
+	/**
+	 * Size of the length and type fields at the start of every frame.
+	 */
+	public static final int HEADER_LENGTH = 5;
+
+	/**
+	 * Offset of the timestamp in Chat, Private Chat, Routed Private Chat and
+	 * Room Chat frames.
+	 */
+	protected static final int TIMESTAMP_OFFSET = 5;
+
+	/**
+	 * Offset of the message identifier in Chat, Private Chat, Routed Private
+	 * Chat and Room Chat frames.
+	 */
+	protected static final int MESSAGE_ID_OFFSET = 13;
+
+	/**
+	 * Offset of the first variable-length field (or the TTL in Routed Private
+	 * Chat frames).
+	 */
+	protected static final int FIELDS_OFFSET = 21;
+
+	/**
+	 * Length of the fixed part of a Routed Private Chat frame, up to and
+	 * including the TTL.
+	 */
+	public static final int ROUTED_HEADER_LENGTH = FIELDS_OFFSET + 1;
+
+	/**
+	 * The buffer containing the frame.
+	 */
+	protected ByteBuffer buffer;
+
+	/**
+	 * Offset of the frame within the buffer.
+	 */
+	protected int offset;
+
+	/**
+	 * Points this view at the frame starting at the specified offset. The
+	 * buffer's position and limit are not used or changed.
+	 * 
+	 * @param buffer
+	 *            the buffer containing the frame.
+	 * @param offset
+	 *            the offset of the frame's length field.
+	 * @return this view.
+	 */
+	public MessageView wrap(final ByteBuffer buffer, final int offset) {
+		this.buffer = buffer;
+		this.offset = offset;
+		return this;
+	}
+
+	/**
+	 * Returns the encoded length of the message, not including the length
+	 * field itself.
+	 * 
+	 * @return the encoded length of the message.
+	 */
+	public int getLength() {
+		return this.buffer.getInt(this.offset);
+	}
+
+	/**
+	 * Returns the size of the whole frame, including the length field.
+	 * 
+	 * @return the size of the frame in bytes.
+	 */
+	public int getFrameSize() {
+		return this.getLength() + 4;
+	}
+
+	/**
+	 * Returns the message type.
+	 * 
+	 * @return the message type.
+	 */
+	public byte getType() {
+		return this.buffer.get(this.offset + 4);
+	}
+
+	/**
+	 * Returns true if this type of message carries a timestamp, identifier and
+	 * username.
+	 * 
+	 * @return true if this is a chat message of any kind.
+	 */
+	public boolean isChat() {
+		return isChat(this.getType());
+	}
+
+	/**
+	 * Returns true if messages of this type carry a timestamp, identifier and
+	 * username.
+	 * 
+	 * @param type
+	 *            the message type.
+	 * @return true if the type is a chat message of any kind.
+	 */
+	public static boolean isChat(final byte type) {
+		return type == AbstractMessage.TYPE_CHAT_MESSAGE
+				|| type == AbstractMessage.TYPE_PRIVATE_CHAT_MESSAGE
+				|| type == AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE
+				|| type == AbstractMessage.TYPE_ROOM_CHAT_MESSAGE;
+	}
+
+	/**
+	 * Returns the timestamp of a chat message.
+	 * 
+	 * @return the timestamp of the message.
+	 */
+	public long getTimestamp() {
+		return this.buffer.getLong(this.offset + TIMESTAMP_OFFSET);
+	}
+
+	/**
+	 * Returns the identifier of a chat message.
+	 * 
+	 * @return the identifier of the message.
+	 */
+	public long getMessageId() {
+		return this.buffer.getLong(this.offset + MESSAGE_ID_OFFSET);
+	}
+
+	/**
+	 * Returns the TTL of a Routed Private Chat message.
+	 * 
+	 * @return the TTL of the message.
+	 */
+	public int getTtl() {
+		return this.buffer.get(this.offset + FIELDS_OFFSET) & 0xFF;
+	}
+
+	/**
+	 * Changes the TTL of a Routed Private Chat message in place.
+	 * 
+	 * @param ttl
+	 *            the new TTL.
+	 */
+	public void setTtl(final int ttl) {
+		this.buffer.put(this.offset + FIELDS_OFFSET, (byte) ttl);
+	}
+
+	/**
+	 * Returns the offset of the message payload (everything after the type
+	 * field) within the buffer.
+	 * 
+	 * @return the offset of the payload.
+	 */
+	public int getPayloadOffset() {
+		return this.offset + HEADER_LENGTH;
+	}
+
+	/**
+	 * Returns the length of the message payload.
+	 * 
+	 * @return the length of the payload in bytes.
+	 */
+	public int getPayloadLength() {
+		return this.getLength() - 1;
+	}
+
+	/**
+	 * Returns the buffer containing the frame.
+	 * 
+	 * @return the underlying buffer.
+	 */
+	public ByteBuffer getBuffer() {
+		return this.buffer;
+	}
+
+	/**
+	 * Returns the offset of the frame within the buffer.
+	 * 
+	 * @return the offset of the frame.
+	 */
+	public int getOffset() {
+		return this.offset;
+	}
+
+	/**
+	 * Decodes the username of a chat message. For Routed Private Chat messages
+	 * this is the source username.
+	 * 
+	 * @return the username.
+	 */
+	public String getUsername() {
+		switch (this.getType()) {
+		case AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE:
+			return this.stringAt(FIELDS_OFFSET + 1);
+		case AbstractMessage.TYPE_ROOM_CHAT_MESSAGE:
+			return this.stringAt(this.skip(FIELDS_OFFSET));
+		default:
+			return this.stringAt(FIELDS_OFFSET);
+		}
+	}
+
+	/**
+	 * Decodes the destination username of a Routed Private Chat message.
+	 * 
+	 * @return the destination username.
+	 */
+	public String getDestinationUsername() {
+		return this.stringAt(this.skip(FIELDS_OFFSET + 1));
+	}
+
+	/**
+	 * Decodes the room name of a Room Chat message.
+	 * 
+	 * @return the room name.
+	 */
+	public String getRoom() {
+		return this.stringAt(FIELDS_OFFSET);
+	}
+
+	/**
+	 * Decodes the text of a chat message.
+	 * 
+	 * @return the text of the message.
+	 */
+	public String getMessage() {
+		int start;
+		switch (this.getType()) {
+		case AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE:
+			start = this.skip(this.skip(FIELDS_OFFSET + 1));
+			break;
+		case AbstractMessage.TYPE_ROOM_CHAT_MESSAGE:
+			start = this.skip(this.skip(FIELDS_OFFSET));
+			break;
+		default:
+			start = this.skip(FIELDS_OFFSET);
+			break;
+		}
+		return this.decode(this.offset + start, this.getFrameSize() - start);
+	}
+
+	/**
+	 * Checks that every length-prefixed field of a chat message lies within
+	 * the frame, so the string accessors cannot read past it.
+	 * 
+	 * @return true if the frame is well-formed.
+	 */
+	public boolean isWellFormed() {
+		return this.isWellFormed(this.getFrameSize());
+	}
+
+	/**
+	 * Checks that the fixed fields and every length-prefixed field of a chat
+	 * message lie within the first bytes of the frame. Used when only the
+	 * start of a frame is available, such as the first fragment of a large
+	 * message.
+	 * 
+	 * @param available
+	 *            the number of bytes of the frame that may be read.
+	 * @return true if the fields can be read from the available bytes.
+	 */
+	public boolean isWellFormed(final int available) {
+		int frameSize = Math.min(this.getFrameSize(), available);
+		byte type = this.getType();
+		boolean routed = type == AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE;
+		int fields = routed || type == AbstractMessage.TYPE_ROOM_CHAT_MESSAGE ? 2
+				: 1;
+		int position = routed ? FIELDS_OFFSET + 1 : FIELDS_OFFSET;
+		if (position > frameSize) {
+			return false;
+		}
+		for (int i = 0; i < fields; ++i) {
+			if (position + 4 > frameSize) {
+				return false;
+			}
+			int length = this.buffer.getInt(this.offset + position);
+			if (length < 0 || length > frameSize - position - 4) {
+				return false;
+			}
+			position += 4 + length;
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the whole frame into a new array.
+	 * 
+	 * @return a copy of the frame.
+	 */
+	public byte[] toByteArray() {
+		byte[] copy = new byte[this.getFrameSize()];
+		for (int i = 0; i < copy.length; ++i) {
+			copy[i] = this.buffer.get(this.offset + i);
+		}
+		return copy;
+	}
+
+	/**
+	 * Writes the whole frame to the stream.
+	 * 
+	 * @param out
+	 *            the stream to write to.
+	 * @throws IOException
+	 *             if the stream throws an IOException.
+	 */
+	public void writeTo(final OutputStream out) throws IOException {
+		if (this.buffer.hasArray()) {
+			out.write(this.buffer.array(), this.buffer.arrayOffset()
+					+ this.offset, this.getFrameSize());
+		} else {
+			out.write(this.toByteArray());
+		}
+	}
+
+	/**
+	 * Returns the offset just past the length-prefixed field at the specified
+	 * frame offset.
+	 * 
+	 * @param fieldOffset
+	 *            the frame offset of the field's length.
+	 * @return the frame offset of the next field.
+	 */
+	protected int skip(final int fieldOffset) {
+		return fieldOffset + 4 + this.buffer.getInt(this.offset + fieldOffset);
+	}
+
+	/**
+	 * Decodes the length-prefixed string at the specified frame offset.
+	 * 
+	 * @param fieldOffset
+	 *            the frame offset of the string's length.
+	 * @return the decoded string.
+	 */
+	protected String stringAt(final int fieldOffset) {
+		return this.decode(this.offset + fieldOffset + 4,
+				this.buffer.getInt(this.offset + fieldOffset));
+	}
+
+	/**
+	 * Decodes a UTF-16BE string from the buffer.
+	 * 
+	 * @param position
+	 *            the absolute position of the string in the buffer.
+	 * @param length
+	 *            the length of the string in bytes.
+	 * @return the decoded string.
+	 */
+	protected String decode(final int position, final int length) {
+		try {
+			if (this.buffer.hasArray()) {
+				return new String(this.buffer.array(), this.buffer.arrayOffset()
+						+ position, length, "UTF-16BE");
+			}
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; ++i) {
+				bytes[i] = this.buffer.get(position + i);
+			}
+			return new String(bytes, "UTF-16BE");
+		} catch (UnsupportedEncodingException uee) {
+			// Every JVM is required to support UTF-16BE
+			throw new IllegalStateException(uee);
+		}
+	}
+}
@@ -38,18 +38,23 @@ public class PrivateChatMessage extends AbstractMessage {
   protected final long timestamp;
 
   /**
-   * The username at the sending client.
+   * Identifier of this message, unique across all clients.
    */
-  protected final String username;
+  protected final long messageId;
 
   /**
-   * The message that was sent.
+   * The username at the sending client. Decoded from the view on first use.
    */
-  protected final String message;
+  protected String username;
+
+  /**
+   * The message that was sent. Decoded from the view on first use.
+   */
+  protected String message;
 
   /**
    * Creates a private chat message with the specified timestamp, username, and
-   * message.
+   * message. A new message identifier is generated for the message.
    * 
    * @param timestamp
    *          the time at which the message was created by the user.
@@ -63,14 +68,50 @@ public class PrivateChatMessage extends AbstractMessage {
    */
   public PrivateChatMessage(final long timestamp, final String username,
       final String message) throws UnsupportedEncodingException {
-    super(13 + username.getBytes("UTF-16BE").length
+    this(timestamp, MessageIds.next(), username, message);
+  }
+
+  /**
+   * Creates a private chat message with the specified timestamp, message
+   * identifier, username, and message.
+   * 
+   * @param timestamp
+   *          the time at which the message was created by the user.
+   * @param messageId
+   *          the identifier of the message.
+   * @param username
+   *          the username at the sending client.
+   * @param message
+   *          the message to send
+   * @throws UnsupportedEncodingException
+   *           if the username or message cannot be encoded in UTF-16 big
+   *           endian.
+   */
+  public PrivateChatMessage(final long timestamp, final long messageId,
+      final String username, final String message)
+      throws UnsupportedEncodingException {
+    super(21 + username.getBytes("UTF-16BE").length
         + message.getBytes("UTF-16BE").length,
         AbstractMessage.TYPE_PRIVATE_CHAT_MESSAGE);
     this.timestamp = timestamp;
+    this.messageId = messageId;
     this.username = username;
     this.message = message;
   }
 
+  /**
+   * Creates a private chat message backed by a received frame. The username
+   * and message are not decoded until they are requested.
+   * 
+   * @param view
+   *          the received frame.
+   */
+  PrivateChatMessage(final MessageView view) {
+    super(view);
+    this.timestamp = view.getTimestamp();
+    this.messageId = view.getMessageId();
+  }
+
   /**
    * Returns the timestamp of this private chat message.
    * 
@@ -80,12 +121,24 @@ public class PrivateChatMessage extends AbstractMessage {
     return this.timestamp;
   }
 
+  /**
+   * Returns the identifier of this private chat message.
+   * 
+   * @return the identifier of this private chat message.
+   */
+  public long getMessageId() {
+    return this.messageId;
+  }
+
   /**
    * Returns the username of this private chat message.
    * 
    * @return the username of this private chat message.
    */
   public String getUsername() {
+    if (this.username == null) {
+      this.username = this.view.getUsername();
+    }
     return this.username;
   }
 
@@ -95,6 +148,9 @@ public class PrivateChatMessage extends AbstractMessage {
    * @return the message contained in this private chat message.
    */
   public String getMessage() {
+    if (this.message == null) {
+      this.message = this.view.getMessage();
+    }
     return this.message;
   }
 
@@ -102,8 +158,9 @@ public class PrivateChatMessage extends AbstractMessage {
   public String toString() {
     StringBuffer sb = new StringBuffer();
     sb.append(super.toString());
-    sb.append(' ').append(this.username).append('@')
-        .append(new Date(this.timestamp)).append("[P]: ").append(this.message);
+    sb.append(' ').append(this.getUsername()).append('@')
+        .append(new Date(this.timestamp)).append("[P]: ")
+        .append(this.getMessage());
     return sb.toString();
   }
 }
@@ -0,0 +1,231 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.util.MemoryBudget;
+
+/**
+ * Rebuilds messages that were sent as {@link FragmentMessage}s. Each
+ * connection has its own reassembler, and since a connection delivers
+ * fragments in the order they were sent, the chunks of a message must arrive
+ * in order. A message that arrives out of order or claims an invalid length
+ * is dropped.
+ * 
+ * The memory used is bounded: messages larger than {@link #MAX_MESSAGE_SIZE}
+ * are refused, and no more than {@link #MAX_PENDING} messages are rebuilt at
+ * once. When another message starts, the oldest unfinished one is dropped.
+ * If the reassembler has a {@link MemoryBudget.Account}, each message is also
+ * charged to it while it is rebuilt, and refused if the account is full.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class Reassembler {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(Reassembler.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Largest message that will be reassembled, in bytes.
+	 */
+	public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * Most messages that may be partially received at once.
+	 */
+	public static final int MAX_PENDING = 4;
+
+	/**
+	 * A message that has been partially received.
+	 */
+	protected static final class Partial {
+		/**
+		 * The encoded message.
+		 */
+		final byte[] frame;
+
+		/**
+		 * Number of bytes received so far.
+		 */
+		int received;
+
+		/**
+		 * Creates a new partial message.
+		 * 
+		 * @param totalLength
+		 *            the size of the encoded message.
+		 */
+		Partial(final int totalLength) {
+			this.frame = new byte[totalLength];
+		}
+	}
+
+	/**
+	 * Messages being reassembled, oldest first.
+	 */
+	protected final Map<Long, Partial> pending = new LinkedHashMap<Long, Partial>();
+
+	/**
+	 * The account charged for messages being rebuilt, or null.
+	 */
+	protected final MemoryBudget.Account account;
+
+	/**
+	 * Creates a reassembler that is not charged for its memory.
+	 */
+	public Reassembler() {
+		this(null);
+	}
+
+	/**
+	 * Creates a reassembler that charges the messages it rebuilds to an
+	 * account.
+	 * 
+	 * @param account
+	 *            the account to charge, or null.
+	 */
+	public Reassembler(final MemoryBudget.Account account) {
+		this.account = account;
+	}
+
+	/**
+	 * Adds a fragment and returns the original message if it is now complete.
+	 * A returned message remains charged to the account for
+	 * {@link AbstractMessage#getBufferedLength()} bytes, the same as a message
+	 * returned by
+	 * {@link AbstractMessage#decodeMessage(java.io.InputStream, FrameLimits, MemoryBudget.Account)}
+	 * .
+	 * 
+	 * @param fragment
+	 *            the fragment that arrived.
+	 * @return the reassembled message, or null if it is not complete yet or was
+	 *         dropped.
+	 * @throws IOException
+	 *             if the reassembled message cannot be decoded.
+	 */
+	public AbstractMessage add(final FragmentMessage fragment)
+			throws IOException {
+		Long key = Long.valueOf(fragment.getFragmentId());
+		Partial partial = this.pending.get(key);
+		if (partial == null) {
+			if (fragment.getOffset() != 0) {
+				// Start was dropped, so the rest of the message is useless
+				return null;
+			}
+			if (fragment.getTotalLength() < MessageView.HEADER_LENGTH
+					|| fragment.getTotalLength() > MAX_MESSAGE_SIZE) {
+				log.warning("Refusing fragmented message of "
+						+ fragment.getTotalLength() + " bytes.");
+				return null;
+			}
+			if (this.pending.size() >= MAX_PENDING) {
+				Iterator<Partial> oldest = this.pending.values().iterator();
+				this.release(oldest.next());
+				oldest.remove();
+				log.warning("Too many fragmented messages, dropped the oldest.");
+			}
+			if (this.account != null
+					&& !this.account.tryReserve(fragment.getTotalLength())) {
+				log.warning("No inbound memory left for " + this.account
+						+ ", refusing fragmented message of "
+						+ fragment.getTotalLength() + " bytes.");
+				return null;
+			}
+			partial = new Partial(fragment.getTotalLength());
+			this.pending.put(key, partial);
+		}
+
+		if (fragment.getOffset() != partial.received
+				|| fragment.getTotalLength() != partial.frame.length
+				|| fragment.getDataLength() > partial.frame.length
+						- partial.received) {
+			log.warning("Dropping fragmented message after invalid " + fragment);
+			this.release(this.pending.remove(key));
+			return null;
+		}
+		System.arraycopy(fragment.getData(), fragment.getDataOffset(),
+				partial.frame, partial.received, fragment.getDataLength());
+		partial.received += fragment.getDataLength();
+		if (partial.received < partial.frame.length) {
+			return null;
+		}
+
+		this.pending.remove(key);
+		AbstractMessage message;
+		try {
+			message = AbstractMessage.decodeMessage(new ByteArrayInputStream(
+					partial.frame));
+		} catch (IOException ioe) {
+			this.release(partial);
+			throw ioe;
+		}
+		if (message == null || message instanceof FragmentMessage
+				|| message instanceof FileChunkMessage) {
+			this.release(partial);
+			if (message != null) {
+				throw new IOException("Unexpected " + message + " in "
+						+ fragment);
+			}
+			return null;
+		}
+		if (this.account != null) {
+			// Keep only what the decoded message holds
+			this.account.release(partial.frame.length
+					- message.getBufferedLength());
+		}
+		return message;
+	}
+
+	/**
+	 * Returns the memory charged for a partial message that was dropped.
+	 * 
+	 * @param partial
+	 *            the dropped message.
+	 */
+	protected void release(final Partial partial) {
+		if (this.account != null && partial != null) {
+			this.account.release(partial.frame.length);
+		}
+	}
+
+	/**
+	 * Returns the number of messages that are partially received.
+	 * 
+	 * @return the number of unfinished messages.
+	 */
+	public int getPendingCount() {
+		return this.pending.size();
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+
+/**
+ * A chat message sent to a named room. Room chat messages are only sent to
+ * clients that have subscribed to the room, and should only be shown to the
+ * user if the local client is subscribed to the room as well.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RoomChatMessage extends AbstractMessage {
+
+	/**
+	 * The time at which the message was created by the sending client.
+	 */
+	protected final long timestamp;
+
+	/**
+	 * Identifier of this message, unique across all clients.
+	 */
+	protected final long messageId;
+
+	/**
+	 * The name of the room. Decoded from the view on first use.
+	 */
+	protected String room;
+
+	/**
+	 * The username at the sending client. Decoded from the view on first use.
+	 */
+	protected String username;
+
+	/**
+	 * The message that was sent. Decoded from the view on first use.
+	 */
+	protected String message;
+
+	/**
+	 * Creates a room chat message with the specified timestamp, identifier,
+	 * room, username, and message.
+	 * 
+	 * @param timestamp
+	 *            the time at which the message was created by the user.
+	 * @param messageId
+	 *            the identifier of the message.
+	 * @param room
+	 *            the name of the room.
+	 * @param username
+	 *            the username at the sending client.
+	 * @param message
+	 *            the message to send.
+	 * @throws UnsupportedEncodingException
+	 *             if the room, username or message cannot be encoded in UTF-16
+	 *             big endian.
+	 */
+	public RoomChatMessage(final long timestamp, final long messageId,
+			final String room, final String username, final String message)
+			throws UnsupportedEncodingException {
+		super(25 + room.getBytes("UTF-16BE").length
+				+ username.getBytes("UTF-16BE").length
+				+ message.getBytes("UTF-16BE").length,
+				AbstractMessage.TYPE_ROOM_CHAT_MESSAGE);
+		this.timestamp = timestamp;
+		this.messageId = messageId;
+		this.room = room;
+		this.username = username;
+		this.message = message;
+	}
+
+	/**
+	 * Creates a room chat message backed by a received frame. The room,
+	 * username and message are not decoded until they are requested.
+	 * 
+	 * @param view
+	 *            the received frame.
+	 */
+	RoomChatMessage(final MessageView view) {
+		super(view);
+		this.timestamp = view.getTimestamp();
+		this.messageId = view.getMessageId();
+	}
+
+	/**
+	 * Returns the timestamp of this room chat message.
+	 * 
+	 * @return the timestamp of this room chat message.
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	/**
+	 * Returns the identifier of this room chat message.
+	 * 
+	 * @return the identifier of this room chat message.
+	 */
+	public long getMessageId() {
+		return this.messageId;
+	}
+
+	/**
+	 * Returns the name of the room this message was sent to.
+	 * 
+	 * @return the name of the room.
+	 */
+	public String getRoom() {
+		if (this.room == null) {
+			this.room = this.view.getRoom();
+		}
+		return this.room;
+	}
+
+	/**
+	 * Returns the username of this room chat message.
+	 * 
+	 * @return the username of this room chat message.
+	 */
+	public String getUsername() {
+		if (this.username == null) {
+			this.username = this.view.getUsername();
+		}
+		return this.username;
+	}
+
+	/**
+	 * Returns the message contained in this room chat message.
+	 * 
+	 * @return the message contained in this room chat message.
+	 */
+	public String getMessage() {
+		if (this.message == null) {
+			this.message = this.view.getMessage();
+		}
+		return this.message;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append(super.toString());
+		sb.append(" #").append(this.getRoom()).append(' ')
+				.append(this.getUsername()).append('@')
+				.append(new Date(this.timestamp)).append(": ")
+				.append(this.getMessage());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Date;
+
+/**
+ * A private chat message addressed to a user that may not be directly
+ * connected to the sender. Intermediate clients forward the message toward
+ * the destination username, decrementing the time-to-live (TTL) at each hop,
+ * and never show it to their own user.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RoutedPrivateMessage extends AbstractMessage {
+
+	/**
+	 * Default number of hops a routed message may take.
+	 */
+	public static final int DEFAULT_TTL = 8;
+
+	/**
+	 * The time at which the message was created by the sending client.
+	 */
+	protected final long timestamp;
+
+	/**
+	 * Identifier of this message, unique across all clients.
+	 */
+	protected final long messageId;
+
+	/**
+	 * Remaining number of hops this message may take.
+	 */
+	protected final int ttl;
+
+	/**
+	 * The username of the client that created the message. Decoded from the
+	 * view on first use.
+	 */
+	protected String sourceUsername;
+
+	/**
+	 * The username of the client the message is addressed to. Decoded from
+	 * the view on first use.
+	 */
+	protected String destinationUsername;
+
+	/**
+	 * The message that was sent. Decoded from the view on first use.
+	 */
+	protected String message;
+
+	/**
+	 * Creates a routed private chat message.
+	 * 
+	 * @param timestamp
+	 *            the time at which the message was created by the user.
+	 * @param messageId
+	 *            the identifier of the message.
+	 * @param ttl
+	 *            the remaining number of hops, between 0 and 255.
+	 * @param sourceUsername
+	 *            the username of the sending client.
+	 * @param destinationUsername
+	 *            the username of the receiving client.
+	 * @param message
+	 *            the message to send.
+	 * @throws UnsupportedEncodingException
+	 *             if the usernames or message cannot be encoded in UTF-16 big
+	 *             endian.
+	 */
+	public RoutedPrivateMessage(final long timestamp, final long messageId,
+			final int ttl, final String sourceUsername,
+			final String destinationUsername, final String message)
+			throws UnsupportedEncodingException {
+		super(26 + sourceUsername.getBytes("UTF-16BE").length
+				+ destinationUsername.getBytes("UTF-16BE").length
+				+ message.getBytes("UTF-16BE").length,
+				AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE);
+		if (ttl < 0 || ttl > 255) {
+			throw new IllegalArgumentException("TTL out of range: " + ttl);
+		}
+		this.timestamp = timestamp;
+		this.messageId = messageId;
+		this.ttl = ttl;
+		this.sourceUsername = sourceUsername;
+		this.destinationUsername = destinationUsername;
+		this.message = message;
+	}
+
+	/**
+	 * Creates a routed private chat message backed by a received frame. The
+	 * usernames and message are not decoded until they are requested.
+	 * 
+	 * @param view
+	 *            the received frame.
+	 */
+	RoutedPrivateMessage(final MessageView view) {
+		super(view);
+		this.timestamp = view.getTimestamp();
+		this.messageId = view.getMessageId();
+		this.ttl = view.getTtl();
+	}
+
+	/**
+	 * Returns a copy of this message with the TTL reduced by one, for
+	 * forwarding to the next hop. Received messages are copied byte for byte,
+	 * so the message text is never decoded by intermediate clients.
+	 * 
+	 * @return a copy of this message with the TTL reduced by one.
+	 * @throws UnsupportedEncodingException
+	 *             if the usernames or message cannot be encoded.
+	 */
+	public RoutedPrivateMessage nextHop() throws UnsupportedEncodingException {
+		if (this.view != null) {
+			MessageView copy = new MessageView().wrap(
+					ByteBuffer.wrap(this.view.toByteArray()), 0);
+			copy.setTtl(this.ttl - 1);
+			return new RoutedPrivateMessage(copy);
+		}
+		return new RoutedPrivateMessage(this.timestamp, this.messageId,
+				this.ttl - 1, this.sourceUsername, this.destinationUsername,
+				this.message);
+	}
+
+	/**
+	 * Returns the timestamp of this message.
+	 * 
+	 * @return the timestamp of this message.
+	 */
+	public long getTimestamp() {
+		return this.timestamp;
+	}
+
+	/**
+	 * Returns the identifier of this message.
+	 * 
+	 * @return the identifier of this message.
+	 */
+	public long getMessageId() {
+		return this.messageId;
+	}
+
+	/**
+	 * Returns the remaining number of hops for this message.
+	 * 
+	 * @return the remaining number of hops for this message.
+	 */
+	public int getTtl() {
+		return this.ttl;
+	}
+
+	/**
+	 * Returns the username of the client that created this message.
+	 * 
+	 * @return the username of the client that created this message.
+	 */
+	public String getSourceUsername() {
+		if (this.sourceUsername == null) {
+			this.sourceUsername = this.view.getUsername();
+		}
+		return this.sourceUsername;
+	}
+
+	/**
+	 * Returns the username this message is addressed to.
+	 * 
+	 * @return the username this message is addressed to.
+	 */
+	public String getDestinationUsername() {
+		if (this.destinationUsername == null) {
+			this.destinationUsername = this.view.getDestinationUsername();
+		}
+		return this.destinationUsername;
+	}
+
+	/**
+	 * Returns the message contained in this routed message.
+	 * 
+	 * @return the message contained in this routed message.
+	 */
+	public String getMessage() {
+		if (this.message == null) {
+			this.message = this.view.getMessage();
+		}
+		return this.message;
+	}
+
+	@Override
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append(super.toString());
+		sb.append(' ').append(this.getSourceUsername()).append("->")
+				.append(this.getDestinationUsername()).append('@')
+				.append(new Date(this.timestamp)).append("[TTL ")
+				.append(this.ttl).append("]: ").append(this.getMessage());
+		return sb.toString();
+	}
+}
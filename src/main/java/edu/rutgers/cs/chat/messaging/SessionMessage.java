@@ -0,0 +1,142 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+/**
+ * Names a stream of chat messages and a position in it, so a connection that
+ * was lost can be resumed without losing the messages sent while it failed.
+ * Each client numbers the chat messages it writes to another client, and the
+ * numbers continue across connections to the same client.
+ * 
+ * Two are sent on each connection. The first, sent right after the
+ * handshake, names the other client's stream the sender has been receiving
+ * and the number of the last message it received, or a token of 0 if it has
+ * none. The second, sent before any chat message, names the stream the
+ * sender's chat messages belong to and the number of the message before the
+ * first one it is about to send; messages after that number are sent again
+ * if the stream is being resumed.
+ * 
+ * The first also says whether the sender acknowledges the messages it
+ * receives with {@link AckMessage}s.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class SessionMessage extends AbstractMessage {
+
+	/**
+	 * Token of a client that has no stream to resume.
+	 */
+	public static final long NO_SESSION = 0;
+
+	/**
+	 * Flag set by a client that acknowledges the messages it receives.
+	 */
+	public static final byte FLAG_ACKS = 1;
+
+	/**
+	 * Identifies the stream, chosen at random by the client sending it.
+	 */
+	protected final long token;
+
+	/**
+	 * Number of a message in the stream.
+	 */
+	protected final long sequence;
+
+	/**
+	 * Flags such as {@link #FLAG_ACKS}.
+	 */
+	protected final byte flags;
+
+	/**
+	 * Creates a new session message without flags.
+	 * 
+	 * @param token
+	 *            the stream's token, or {@link #NO_SESSION}.
+	 * @param sequence
+	 *            the number of a message in the stream.
+	 */
+	public SessionMessage(final long token, final long sequence) {
+		this(token, sequence, (byte) 0);
+	}
+
+	/**
+	 * Creates a new session message.
+	 * 
+	 * @param token
+	 *            the stream's token, or {@link #NO_SESSION}.
+	 * @param sequence
+	 *            the number of a message in the stream.
+	 * @param flags
+	 *            flags such as {@link #FLAG_ACKS}.
+	 */
+	public SessionMessage(final long token, final long sequence,
+			final byte flags) {
+		super(18, AbstractMessage.TYPE_SESSION_MESSAGE);
+		this.token = token;
+		this.sequence = sequence;
+		this.flags = flags;
+	}
+
+	/**
+	 * Returns the token of the stream.
+	 * 
+	 * @return the token, or {@link #NO_SESSION}.
+	 */
+	public long getToken() {
+		return this.token;
+	}
+
+	/**
+	 * Returns the number of a message in the stream: the last one received
+	 * in the first session message on a connection, or the one before the
+	 * next one sent in the second.
+	 * 
+	 * @return the sequence number.
+	 */
+	public long getSequence() {
+		return this.sequence;
+	}
+
+	/**
+	 * Returns the flags.
+	 * 
+	 * @return flags such as {@link #FLAG_ACKS}.
+	 */
+	public byte getFlags() {
+		return this.flags;
+	}
+
+	/**
+	 * Returns true if the sender acknowledges the messages it receives.
+	 * 
+	 * @return true if {@link #FLAG_ACKS} is set.
+	 */
+	public boolean isAcking() {
+		return (this.flags & FLAG_ACKS) != 0;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + ' ' + Long.toHexString(this.token) + " at "
+				+ this.sequence + (this.isAcking() ? " acking" : "");
+	}
+}
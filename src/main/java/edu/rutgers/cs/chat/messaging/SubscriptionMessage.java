@@ -0,0 +1,86 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.messaging;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Announces that the sending client has joined or left a room. Subscription
+ * changes are sent incrementally: one message per room whenever the local
+ * user joins or leaves, and one message per subscribed room after a new
+ * connection has completed its handshake.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class SubscriptionMessage extends AbstractMessage {
+
+	/**
+	 * Whether the client joined (true) or left (false) the room.
+	 */
+	protected final boolean joined;
+
+	/**
+	 * The name of the room.
+	 */
+	protected final String room;
+
+	/**
+	 * Creates a new subscription message.
+	 * 
+	 * @param joined
+	 *            true if the client joined the room, false if it left.
+	 * @param room
+	 *            the name of the room.
+	 * @throws UnsupportedEncodingException
+	 *             if the room cannot be encoded in UTF-16 big endian.
+	 */
+	public SubscriptionMessage(final boolean joined, final String room)
+			throws UnsupportedEncodingException {
+		super(2 + room.getBytes("UTF-16BE").length,
+				AbstractMessage.TYPE_SUBSCRIPTION_MESSAGE);
+		this.joined = joined;
+		this.room = room;
+	}
+
+	/**
+	 * Returns true if the client joined the room, false if it left.
+	 * 
+	 * @return true if the client joined the room, false if it left.
+	 */
+	public boolean isJoined() {
+		return this.joined;
+	}
+
+	/**
+	 * Returns the name of the room.
+	 * 
+	 * @return the name of the room.
+	 */
+	public String getRoom() {
+		return this.room;
+	}
+
+	@Override
+	public String toString() {
+		return super.toString() + (this.joined ? " joined #" : " left #")
+				+ this.room;
+	}
+}
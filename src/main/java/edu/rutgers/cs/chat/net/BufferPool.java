@@ -0,0 +1,544 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.net;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of direct buffers for socket I/O. Buffers are carved out of large
+ * direct slabs in power-of-two size classes, and are handed out as
+ * {@link PooledBuffer}s that return to the pool when their last reference is
+ * released. Once the pool has warmed up, leasing and releasing a buffer
+ * allocates nothing.
+ * 
+ * Each thread keeps a small cache of free buffers per size class, so a loop
+ * that leases and releases on its own thread never touches shared state.
+ * Caches exchange buffers with the pool's shared free lists in batches.
+ * 
+ * Requests larger than the largest size class, or made once the pool has
+ * reserved its maximum number of bytes, are served with ordinary heap buffers
+ * that are simply dropped when released.
+ * 
+ * A sample of leases is tracked for leaks. If a tracked buffer is garbage
+ * collected without being released, a warning is logged and its memory is
+ * returned to the pool. The level is set with the
+ * <code>edu.rutgers.cs.chat.leakDetection</code> system property: "off",
+ * "sample" (the default, one lease in 128) or "paranoid" (every lease, with
+ * the stack trace of where it was leased).
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class BufferPool {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(BufferPool.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Size of the smallest size class.
+	 */
+	public static final int MIN_CLASS_SIZE = 256;
+
+	/**
+	 * Size of the direct slabs that buffers are cut from. Classes larger than
+	 * this get one buffer per slab.
+	 */
+	public static final int SLAB_SIZE = 1024 * 1024;
+
+	/**
+	 * Maximum number of free buffers each thread keeps per size class.
+	 */
+	public static final int THREAD_CACHE_SIZE = 32;
+
+	/**
+	 * One in this many leases is tracked for leaks in "sample" mode.
+	 */
+	public static final int LEAK_SAMPLE_INTERVAL = 128;
+
+	/**
+	 * Leak tracking interval: 0 for none, 1 for every lease.
+	 */
+	protected static final int leakInterval;
+
+	/**
+	 * Whether to record where tracked buffers were leased.
+	 */
+	protected static final boolean leakStacks;
+
+	static {
+		String mode = System.getProperty("edu.rutgers.cs.chat.leakDetection",
+				"sample");
+		if ("off".equalsIgnoreCase(mode)) {
+			leakInterval = 0;
+			leakStacks = false;
+		} else if ("paranoid".equalsIgnoreCase(mode)) {
+			leakInterval = 1;
+			leakStacks = true;
+		} else {
+			leakInterval = LEAK_SAMPLE_INTERVAL;
+			leakStacks = false;
+		}
+	}
+
+	/**
+	 * Free buffers of a single size, shared by all threads.
+	 */
+	protected static final class SizeClass {
+		/**
+		 * Capacity of every buffer in this class.
+		 */
+		final int size;
+
+		/**
+		 * Free buffers. Guarded by this object.
+		 */
+		PooledBuffer[] free = new PooledBuffer[16];
+
+		/**
+		 * Number of entries in {@link #free}.
+		 */
+		int freeCount = 0;
+
+		/**
+		 * Number of buffers leased from this class and not yet released.
+		 */
+		final AtomicInteger leased = new AtomicInteger();
+
+		SizeClass(final int size) {
+			this.size = size;
+		}
+
+		/**
+		 * Adds buffers to the free list.
+		 */
+		synchronized void push(final PooledBuffer[] buffers, final int from,
+				final int count) {
+			if (this.freeCount + count > this.free.length) {
+				PooledBuffer[] larger = new PooledBuffer[Math.max(
+						this.free.length * 2, this.freeCount + count)];
+				System.arraycopy(this.free, 0, larger, 0, this.freeCount);
+				this.free = larger;
+			}
+			System.arraycopy(buffers, from, this.free, this.freeCount, count);
+			this.freeCount += count;
+		}
+
+		/**
+		 * Moves up to count buffers from the free list into the array,
+		 * returning the number moved.
+		 */
+		synchronized int pop(final PooledBuffer[] buffers, final int count) {
+			int moved = Math.min(count, this.freeCount);
+			this.freeCount -= moved;
+			System.arraycopy(this.free, this.freeCount, buffers, 0, moved);
+			for (int i = this.freeCount; i < this.freeCount + moved; ++i) {
+				this.free[i] = null;
+			}
+			return moved;
+		}
+	}
+
+	/**
+	 * Free buffers cached by one thread.
+	 */
+	protected static final class ThreadCache {
+		/**
+		 * Free buffers per size class.
+		 */
+		final PooledBuffer[][] free;
+
+		/**
+		 * Number of free buffers per size class.
+		 */
+		final int[] counts;
+
+		/**
+		 * Counts leases for leak sampling.
+		 */
+		int leases = 0;
+
+		ThreadCache(final int classes) {
+			this.free = new PooledBuffer[classes][THREAD_CACHE_SIZE];
+			this.counts = new int[classes];
+		}
+	}
+
+	/**
+	 * Remembers a sampled lease until it is released. If the buffer handle is
+	 * collected first, the tracker still holds the memory so it can be
+	 * recovered.
+	 */
+	static final class LeakTracker extends WeakReference<PooledBuffer> {
+		/**
+		 * The leased memory.
+		 */
+		final ByteBuffer buffer;
+
+		/**
+		 * Size class of the leased memory.
+		 */
+		final int sizeClass;
+
+		/**
+		 * Where the buffer was leased, or null.
+		 */
+		final Throwable leasedAt;
+
+		LeakTracker(final PooledBuffer handle,
+				final ReferenceQueue<PooledBuffer> queue) {
+			super(handle, queue);
+			this.buffer = handle.buffer;
+			this.sizeClass = handle.sizeClass;
+			this.leasedAt = leakStacks ? new Throwable("Leased here") : null;
+		}
+	}
+
+	/**
+	 * Size classes, smallest first.
+	 */
+	protected final SizeClass[] classes;
+
+	/**
+	 * Per-thread caches of free buffers.
+	 */
+	protected final ThreadLocal<ThreadCache> caches = new ThreadLocal<ThreadCache>() {
+		@Override
+		protected ThreadCache initialValue() {
+			return new ThreadCache(BufferPool.this.classes.length);
+		}
+	};
+
+	/**
+	 * Maximum number of bytes the pool will reserve in slabs.
+	 */
+	protected final long maxReservedBytes;
+
+	/**
+	 * Bytes reserved in slabs so far.
+	 */
+	protected final AtomicLong reservedBytes = new AtomicLong();
+
+	/**
+	 * Number of leases served by unpooled heap buffers.
+	 */
+	protected final AtomicLong unpooledLeases = new AtomicLong();
+
+	/**
+	 * Number of leaked buffers detected.
+	 */
+	protected final AtomicLong leaks = new AtomicLong();
+
+	/**
+	 * Collected handles of tracked leases.
+	 */
+	protected final ReferenceQueue<PooledBuffer> leakQueue = new ReferenceQueue<PooledBuffer>();
+
+	/**
+	 * Trackers for outstanding sampled leases.
+	 */
+	protected final Set<LeakTracker> trackers = Collections
+			.newSetFromMap(new ConcurrentHashMap<LeakTracker, Boolean>());
+
+	/**
+	 * Creates a pool with size classes up to 1 MiB and at most 64 MiB of
+	 * slabs.
+	 */
+	public BufferPool() {
+		this(1024 * 1024, 64L * 1024 * 1024);
+	}
+
+	/**
+	 * Creates a new pool.
+	 * 
+	 * @param maxClassSize
+	 *            the largest buffer size to pool, rounded up to a power of
+	 *            two.
+	 * @param maxReservedBytes
+	 *            the most memory the pool will reserve in slabs.
+	 */
+	public BufferPool(final int maxClassSize, final long maxReservedBytes) {
+		int count = 1;
+		while ((MIN_CLASS_SIZE << (count - 1)) < maxClassSize) {
+			++count;
+		}
+		this.classes = new SizeClass[count];
+		for (int i = 0; i < count; ++i) {
+			this.classes[i] = new SizeClass(MIN_CLASS_SIZE << i);
+		}
+		this.maxReservedBytes = maxReservedBytes;
+	}
+
+	/**
+	 * Wraps a buffer that doesn't come from a pool so it can be queued with
+	 * pooled buffers. Releasing it does nothing.
+	 * 
+	 * @param buffer
+	 *            the buffer to wrap.
+	 * @return a handle with a single reference.
+	 */
+	public static PooledBuffer wrap(final ByteBuffer buffer) {
+		PooledBuffer handle = new PooledBuffer(null, -1, buffer);
+		handle.references.set(1);
+		return handle;
+	}
+
+	/**
+	 * Leases a buffer of at least the requested size. The buffer is cleared
+	 * and its limit set to the requested size. The caller holds the only
+	 * reference.
+	 * 
+	 * @param size
+	 *            the number of bytes needed.
+	 * @return the leased buffer.
+	 */
+	public PooledBuffer lease(final int size) {
+		int index = this.classIndex(size);
+		if (index < 0) {
+			this.unpooledLeases.incrementAndGet();
+			return wrap(ByteBuffer.allocate(size));
+		}
+		this.collectLeaks();
+
+		ThreadCache cache = this.caches.get();
+		PooledBuffer handle = null;
+		if (cache.counts[index] == 0) {
+			cache.counts[index] = this.classes[index].pop(cache.free[index],
+					THREAD_CACHE_SIZE / 2);
+		}
+		if (cache.counts[index] > 0) {
+			handle = cache.free[index][--cache.counts[index]];
+			cache.free[index][cache.counts[index]] = null;
+		} else {
+			handle = this.allocate(index, cache);
+			if (handle == null) {
+				this.unpooledLeases.incrementAndGet();
+				return wrap(ByteBuffer.allocate(size));
+			}
+		}
+
+		handle.buffer.clear().limit(size);
+		handle.references.set(1);
+		this.classes[index].leased.incrementAndGet();
+		if (leakInterval > 0 && ++cache.leases % leakInterval == 0) {
+			handle.tracker = new LeakTracker(handle, this.leakQueue);
+			this.trackers.add(handle.tracker);
+		}
+		return handle;
+	}
+
+	/**
+	 * Returns a buffer to the pool once its last reference is released.
+	 * 
+	 * @param handle
+	 *            the released buffer.
+	 */
+	void free(final PooledBuffer handle) {
+		if (handle.tracker != null) {
+			this.trackers.remove(handle.tracker);
+			handle.tracker.clear();
+			handle.tracker = null;
+		}
+		this.classes[handle.sizeClass].leased.decrementAndGet();
+		this.recycle(handle);
+	}
+
+	/**
+	 * Puts a free buffer in the calling thread's cache, spilling half of the
+	 * cache to the shared free list if it is full.
+	 * 
+	 * @param handle
+	 *            the free buffer.
+	 */
+	protected void recycle(final PooledBuffer handle) {
+		ThreadCache cache = this.caches.get();
+		int index = handle.sizeClass;
+		if (cache.counts[index] == THREAD_CACHE_SIZE) {
+			int spill = THREAD_CACHE_SIZE / 2;
+			cache.counts[index] -= spill;
+			this.classes[index].push(cache.free[index], cache.counts[index],
+					spill);
+			for (int i = cache.counts[index]; i < THREAD_CACHE_SIZE; ++i) {
+				cache.free[index][i] = null;
+			}
+		}
+		cache.free[index][cache.counts[index]++] = handle;
+	}
+
+	/**
+	 * Reserves a new slab for a size class, keeping one buffer for the caller
+	 * and filling the thread cache with the rest.
+	 * 
+	 * @param index
+	 *            the size class index.
+	 * @param cache
+	 *            the calling thread's cache, which is empty for this class.
+	 * @return a buffer, or null if the pool is at its reservation limit.
+	 */
+	protected PooledBuffer allocate(final int index, final ThreadCache cache) {
+		int size = this.classes[index].size;
+		int slabSize = Math.max(SLAB_SIZE, size);
+		if (this.reservedBytes.addAndGet(slabSize) > this.maxReservedBytes) {
+			this.reservedBytes.addAndGet(-slabSize);
+			return null;
+		}
+		ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+		int chunks = slabSize / size;
+		PooledBuffer[] handles = new PooledBuffer[chunks];
+		for (int i = 0; i < chunks; ++i) {
+			slab.limit((i + 1) * size).position(i * size);
+			handles[i] = new PooledBuffer(this, index, slab.slice());
+		}
+		// Keep the first, cache what fits and share the rest
+		int cached = Math.min(chunks - 1, THREAD_CACHE_SIZE);
+		System.arraycopy(handles, 1, cache.free[index], 0, cached);
+		cache.counts[index] = cached;
+		if (chunks - 1 > cached) {
+			this.classes[index].push(handles, 1 + cached, chunks - 1 - cached);
+		}
+		return handles[0];
+	}
+
+	/**
+	 * Logs and recovers any tracked buffers that were collected without being
+	 * released.
+	 */
+	protected void collectLeaks() {
+		LeakTracker tracker;
+		while ((tracker = (LeakTracker) this.leakQueue.poll()) != null) {
+			if (!this.trackers.remove(tracker)) {
+				continue;
+			}
+			this.leaks.incrementAndGet();
+			if (tracker.leasedAt != null) {
+				log.log(Level.WARNING, "Buffer of " + tracker.buffer.capacity()
+						+ " bytes was never released.", tracker.leasedAt);
+			} else {
+				log.warning("Buffer of " + tracker.buffer.capacity()
+						+ " bytes was never released. Set"
+						+ " edu.rutgers.cs.chat.leakDetection=paranoid"
+						+ " to see where it was leased.");
+			}
+			this.classes[tracker.sizeClass].leased.decrementAndGet();
+			this.recycle(new PooledBuffer(this, tracker.sizeClass,
+					tracker.buffer));
+		}
+	}
+
+	/**
+	 * Returns the index of the smallest size class that fits, or -1 if the
+	 * size is too large to pool.
+	 * 
+	 * @param size
+	 *            the number of bytes needed.
+	 * @return the size class index, or -1.
+	 */
+	protected int classIndex(final int size) {
+		for (int i = 0; i < this.classes.length; ++i) {
+			if (this.classes[i].size >= size) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of bytes reserved in slabs.
+	 * 
+	 * @return the number of bytes reserved in slabs.
+	 */
+	public long getReservedBytes() {
+		return this.reservedBytes.get();
+	}
+
+	/**
+	 * Returns the capacity of all buffers currently leased from slabs.
+	 * 
+	 * @return the number of bytes currently leased.
+	 */
+	public long getLeasedBytes() {
+		long bytes = 0;
+		for (SizeClass sizeClass : this.classes) {
+			bytes += (long) sizeClass.leased.get() * sizeClass.size;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns the number of buffers currently leased from slabs.
+	 * 
+	 * @return the number of buffers currently leased.
+	 */
+	public int getLeasedBuffers() {
+		int count = 0;
+		for (SizeClass sizeClass : this.classes) {
+			count += sizeClass.leased.get();
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of leases served by unpooled heap buffers.
+	 * 
+	 * @return the number of unpooled leases.
+	 */
+	public long getUnpooledLeases() {
+		return this.unpooledLeases.get();
+	}
+
+	/**
+	 * Returns the number of leaked buffers detected so far.
+	 * 
+	 * @return the number of leaked buffers.
+	 */
+	public long getLeaks() {
+		return this.leaks.get();
+	}
+
+	/**
+	 * Returns a single-line summary of the pool's occupancy.
+	 * 
+	 * @return the summary.
+	 */
+	public String report() {
+		long reserved = this.getReservedBytes();
+		long leased = this.getLeasedBytes();
+		return "pool-leased=" + this.getLeasedBuffers() + "/" + leased
+				+ "B pool-reserved=" + reserved + "B pool-occupancy="
+				+ (reserved == 0 ? 0 : Math.round(100.0 * leased / reserved))
+				+ "% pool-unpooled=" + this.getUnpooledLeases()
+				+ " pool-leaks=" + this.getLeaks();
+	}
+}
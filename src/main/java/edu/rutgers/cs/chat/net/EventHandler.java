@@ -0,0 +1,41 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.net;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Interface for objects attached to a channel registered with an
+ * {@link EventLoop}. The handler is called on the loop's thread whenever the
+ * channel is ready for any of its interest operations.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public interface EventHandler {
+
+	/**
+	 * Called when the channel is ready.
+	 * 
+	 * @param key
+	 *            the selection key of the ready channel.
+	 */
+	public void handleEvent(SelectionKey key);
+}
@@ -0,0 +1,315 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.net;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A single-threaded event loop. Each loop owns a selector, a queue of tasks
+ * submitted by other threads, and a set of timers. Channels registered with a
+ * loop are only ever touched by the loop's thread, so per-channel state needs
+ * no locking.
+ * 
+ * Other threads hand work to a loop with {@link #execute(Runnable)}. The task
+ * queue is a lock-free linked queue with many producers and the loop as its
+ * only consumer, and the selector is only woken once per batch of tasks.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class EventLoop extends Thread {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(EventLoop.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Tasks submitted by other threads.
+	 */
+	protected final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+
+	/**
+	 * True if the selector has already been woken for pending tasks.
+	 */
+	protected final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+
+	/**
+	 * Pending timers, ordered by deadline. Only used by the loop thread.
+	 */
+	protected final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+
+	/**
+	 * Sequence number used to order timers with the same deadline.
+	 */
+	protected final AtomicLong timerSequence = new AtomicLong();
+
+	/**
+	 * The selector for this loop's channels.
+	 */
+	protected final Selector selector;
+
+	/**
+	 * Flag to keep the loop running.
+	 */
+	protected volatile boolean keepRunning = true;
+
+	/**
+	 * A task scheduled to run at a specific time.
+	 */
+	protected static final class Timer implements Comparable<Timer> {
+		/**
+		 * When the task should run.
+		 */
+		final long deadline;
+
+		/**
+		 * Order of scheduling, for tasks with the same deadline.
+		 */
+		final long sequence;
+
+		/**
+		 * The task to run.
+		 */
+		final Runnable task;
+
+		Timer(final long deadline, final long sequence, final Runnable task) {
+			this.deadline = deadline;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(final Timer other) {
+			if (this.deadline != other.deadline) {
+				return this.deadline < other.deadline ? -1 : 1;
+			}
+			return this.sequence < other.sequence ? -1
+					: (this.sequence == other.sequence ? 0 : 1);
+		}
+	}
+
+	/**
+	 * Creates a new event loop with its own selector. The loop is not started.
+	 * 
+	 * @param name
+	 *            the name of the loop's thread.
+	 * @throws IOException
+	 *             if the selector cannot be opened.
+	 */
+	public EventLoop(final String name) throws IOException {
+		super(name);
+		this.setDaemon(true);
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Returns true if the calling thread is this loop's thread.
+	 * 
+	 * @return true if called from this loop.
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread() == this;
+	}
+
+	/**
+	 * Runs the task on this loop's thread. If called from the loop itself the
+	 * task runs after the current event has been handled.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 */
+	public void execute(final Runnable task) {
+		this.tasks.offer(task);
+		if (!this.inEventLoop() && this.wakeupPending.compareAndSet(false, true)) {
+			this.selector.wakeup();
+		}
+	}
+
+	/**
+	 * Runs the task on this loop's thread after the specified delay.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 * @param delayMillis
+	 *            the delay in milliseconds.
+	 */
+	public void schedule(final Runnable task, final long delayMillis) {
+		final Timer timer = new Timer(System.currentTimeMillis() + delayMillis,
+				this.timerSequence.getAndIncrement(), task);
+		if (this.inEventLoop()) {
+			this.timers.add(timer);
+		} else {
+			this.execute(new Runnable() {
+				@Override
+				public void run() {
+					EventLoop.this.timers.add(timer);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Registers a channel with this loop. Must be called from the loop's
+	 * thread; other threads should wrap the call in {@link #execute(Runnable)}.
+	 * 
+	 * @param channel
+	 *            the channel to register, already in non-blocking mode.
+	 * @param ops
+	 *            the initial interest operations.
+	 * @param handler
+	 *            the handler to call when the channel is ready.
+	 * @return the channel's selection key.
+	 * @throws ClosedChannelException
+	 *             if the channel is closed.
+	 */
+	public SelectionKey register(final SelectableChannel channel,
+			final int ops, final EventHandler handler)
+			throws ClosedChannelException {
+		return channel.register(this.selector, ops, handler);
+	}
+
+	/**
+	 * Asks the loop to exit after the current iteration. Tasks submitted
+	 * before this call are still run.
+	 */
+	public void shutdown() {
+		this.keepRunning = false;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Waits for ready channels, submitted tasks and timers, and handles them
+	 * until {@link #shutdown()} is called.
+	 */
+	@Override
+	public void run() {
+		while (this.keepRunning) {
+			try {
+				long timeout = 0;
+				Timer next = this.timers.peek();
+				if (next != null) {
+					timeout = Math.max(1,
+							next.deadline - System.currentTimeMillis());
+				}
+				if (this.tasks.isEmpty()) {
+					this.selector.select(timeout);
+				} else {
+					this.selector.selectNow();
+				}
+				this.wakeupPending.set(false);
+			} catch (IOException ioe) {
+				log.severe(this.getName() + ": selector failed: "
+						+ ioe.getMessage());
+				break;
+			}
+
+			for (Iterator<SelectionKey> keys = this.selector.selectedKeys()
+					.iterator(); keys.hasNext();) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				if (!key.isValid()) {
+					continue;
+				}
+				this.runSafely((EventHandler) key.attachment(), key);
+			}
+
+			this.runTasks();
+			this.runTimers();
+		}
+
+		// Anything submitted before shutdown() still gets to run
+		this.runTasks();
+		try {
+			this.selector.close();
+		} catch (IOException ioe) {
+			// Ignored, we're shutting down
+		}
+	}
+
+	/**
+	 * Runs every task currently in the queue.
+	 */
+	protected void runTasks() {
+		Runnable task;
+		while ((task = this.tasks.poll()) != null) {
+			this.runSafely(task);
+		}
+	}
+
+	/**
+	 * Runs every timer whose deadline has passed.
+	 */
+	protected void runTimers() {
+		long now = System.currentTimeMillis();
+		while (!this.timers.isEmpty() && this.timers.peek().deadline <= now) {
+			this.runSafely(this.timers.poll().task);
+		}
+	}
+
+	/**
+	 * Runs a task, logging anything it throws so one bad task can't stop the
+	 * loop.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 */
+	protected void runSafely(final Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException re) {
+			log.log(Level.WARNING, this.getName() + ": task failed", re);
+		}
+	}
+
+	/**
+	 * Calls a handler, logging anything it throws so one bad channel can't
+	 * stop the loop.
+	 * 
+	 * @param handler
+	 *            the channel's handler.
+	 * @param key
+	 *            the ready key.
+	 */
+	protected void runSafely(final EventHandler handler, final SelectionKey key) {
+		try {
+			handler.handleEvent(key);
+		} catch (RuntimeException re) {
+			log.log(Level.WARNING, this.getName() + ": handler failed", re);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.net;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of {@link EventLoop}s. Each new channel is assigned to one loop
+ * with {@link #next()} and stays on that loop for its whole life.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class EventLoopGroup {
+
+	/**
+	 * The loops in this group.
+	 */
+	protected final EventLoop[] loops;
+
+	/**
+	 * Index of the loop to hand out next.
+	 */
+	protected final AtomicInteger nextLoop = new AtomicInteger();
+
+	/**
+	 * Returns the default number of loops, one per available processor.
+	 * 
+	 * @return the default number of loops.
+	 */
+	public static int defaultLoopCount() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	/**
+	 * Creates and starts a group of loops.
+	 * 
+	 * @param name
+	 *            prefix for the loop thread names.
+	 * @param loopCount
+	 *            the number of loops, or 0 for one per processor.
+	 * @throws IOException
+	 *             if a selector cannot be opened.
+	 */
+	public EventLoopGroup(final String name, final int loopCount)
+			throws IOException {
+		int count = loopCount > 0 ? loopCount : defaultLoopCount();
+		this.loops = new EventLoop[count];
+		for (int i = 0; i < count; ++i) {
+			this.loops[i] = new EventLoop(name + "-" + i);
+		}
+		for (EventLoop loop : this.loops) {
+			loop.start();
+		}
+	}
+
+	/**
+	 * Returns the loop that should own the next channel. Loops are handed out
+	 * in round-robin order.
+	 * 
+	 * @return the next loop.
+	 */
+	public EventLoop next() {
+		return this.loops[this.nextIndex()];
+	}
+
+	/**
+	 * Returns the index of the loop that should own the next channel, for
+	 * callers that keep their own per-loop state.
+	 * 
+	 * @return the index of the next loop.
+	 */
+	public int nextIndex() {
+		return (this.nextLoop.getAndIncrement() & Integer.MAX_VALUE)
+				% this.loops.length;
+	}
+
+	/**
+	 * Returns the loop at the specified index.
+	 * 
+	 * @param index
+	 *            the index of the loop.
+	 * @return the loop.
+	 */
+	public EventLoop get(final int index) {
+		return this.loops[index];
+	}
+
+	/**
+	 * Returns the number of loops in this group.
+	 * 
+	 * @return the number of loops.
+	 */
+	public int size() {
+		return this.loops.length;
+	}
+
+	/**
+	 * Shuts down every loop in the group.
+	 */
+	public void shutdown() {
+		for (EventLoop loop : this.loops) {
+			loop.shutdown();
+		}
+	}
+}
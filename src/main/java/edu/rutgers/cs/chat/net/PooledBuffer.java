@@ -0,0 +1,194 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.net;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted buffer leased from a {@link BufferPool}. The buffer is
+ * returned to its pool when the last reference is released. Every holder of a
+ * reference, such as each outbound queue a shared frame sits on, calls
+ * {@link #retain()} when it takes the buffer and {@link #release()} when it is
+ * done with it.
+ * 
+ * Buffers that don't come from a pool can be wrapped with
+ * {@link BufferPool#wrap(ByteBuffer)} so they can share the same queues. A
+ * part of a buffer can be handed out on its own with
+ * {@link #slice(int, int)}; slices share their parent's reference count.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class PooledBuffer {
+
+	/**
+	 * The pool this buffer returns to, or null if it is not pooled.
+	 */
+	final BufferPool pool;
+
+	/**
+	 * Index of the buffer's size class in the pool.
+	 */
+	final int sizeClass;
+
+	/**
+	 * The underlying buffer.
+	 */
+	final ByteBuffer buffer;
+
+	/**
+	 * Number of outstanding references. Only used by root buffers.
+	 */
+	final AtomicInteger references = new AtomicInteger();
+
+	/**
+	 * The buffer that owns the memory and the reference count: this buffer,
+	 * or the buffer a slice was taken from.
+	 */
+	final PooledBuffer root;
+
+	/**
+	 * Leak tracker for this lease, or null if the lease is not sampled.
+	 */
+	BufferPool.LeakTracker tracker;
+
+	/**
+	 * Creates a new buffer handle.
+	 * 
+	 * @param pool
+	 *            the owning pool, or null.
+	 * @param sizeClass
+	 *            the size class index, or -1.
+	 * @param buffer
+	 *            the underlying buffer.
+	 */
+	PooledBuffer(final BufferPool pool, final int sizeClass,
+			final ByteBuffer buffer) {
+		this.pool = pool;
+		this.sizeClass = sizeClass;
+		this.buffer = buffer;
+		this.root = this;
+	}
+
+	/**
+	 * Creates a slice of a root buffer.
+	 * 
+	 * @param root
+	 *            the buffer the slice was taken from.
+	 * @param buffer
+	 *            the sliced part of the root's buffer.
+	 */
+	private PooledBuffer(final PooledBuffer root, final ByteBuffer buffer) {
+		this.pool = null;
+		this.sizeClass = -1;
+		this.buffer = buffer;
+		this.root = root;
+	}
+
+	/**
+	 * Returns a new buffer for part of this one, without copying. The slice
+	 * holds one new reference to this buffer's memory, which is released by
+	 * releasing the slice.
+	 * 
+	 * @param offset
+	 *            the offset of the slice in the underlying buffer.
+	 * @param length
+	 *            the length of the slice.
+	 * @return the slice.
+	 */
+	public PooledBuffer slice(final int offset, final int length) {
+		this.retain();
+		ByteBuffer part = this.buffer.duplicate();
+		part.limit(offset + length).position(offset);
+		return new PooledBuffer(this.root, part.slice());
+	}
+
+	/**
+	 * Returns the number of outstanding references, including those held by
+	 * slices.
+	 * 
+	 * @return the number of references.
+	 */
+	public int referenceCount() {
+		return this.root.references.get();
+	}
+
+	/**
+	 * Returns the underlying buffer. Its limit is the size that was leased,
+	 * which may be less than its capacity.
+	 * 
+	 * @return the underlying buffer.
+	 */
+	public ByteBuffer buffer() {
+		return this.buffer;
+	}
+
+	/**
+	 * Returns true if this buffer came from a pool.
+	 * 
+	 * @return true if this buffer came from a pool.
+	 */
+	public boolean isPooled() {
+		return this.root.pool != null;
+	}
+
+	/**
+	 * Adds a reference to this buffer.
+	 * 
+	 * @return this buffer.
+	 * @throws IllegalStateException
+	 *             if the buffer has already been released.
+	 */
+	public PooledBuffer retain() {
+		int previous = this.root.references.getAndIncrement();
+		if (previous <= 0) {
+			this.root.references.getAndDecrement();
+			throw new IllegalStateException("Buffer already released.");
+		}
+		return this;
+	}
+
+	/**
+	 * Drops a reference to this buffer, returning it to its pool when no
+	 * references remain.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the buffer has already been released.
+	 */
+	public void release() {
+		int remaining = this.root.references.decrementAndGet();
+		if (remaining == 0) {
+			if (this.root.pool != null) {
+				this.root.pool.free(this.root);
+			}
+		} else if (remaining < 0) {
+			this.root.references.incrementAndGet();
+			throw new IllegalStateException("Buffer released too many times.");
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "PooledBuffer(" + this.buffer.limit() + "/"
+				+ this.buffer.capacity() + ", refs=" + this.referenceCount()
+				+ ")";
+	}
+}
@@ -0,0 +1,205 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.relay;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.rutgers.cs.chat.messaging.AbstractMessage;
+import edu.rutgers.cs.chat.messaging.ChatMessage;
+import edu.rutgers.cs.chat.messaging.HandshakeMessage;
+import edu.rutgers.cs.chat.messaging.SessionMessage;
+import edu.rutgers.cs.chat.messaging.MessageIds;
+
+/**
+ * A load generator for a {@link RelayServer}. Connects a number of fake peers
+ * to the relay, has every peer send chat messages as fast as it can, and
+ * reports how many messages per second the relay delivered. Running it
+ * against relays started with different <code>--loops</code> values shows how
+ * the relay scales with the number of event loops.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RelayBenchmark {
+
+	/**
+	 * Chat messages sent by all peers.
+	 */
+	protected static final AtomicLong sent = new AtomicLong();
+
+	/**
+	 * Chat messages received by all peers.
+	 */
+	protected static final AtomicLong received = new AtomicLong();
+
+	/**
+	 * Flag to stop the peers.
+	 */
+	protected static volatile boolean keepRunning = true;
+
+	/**
+	 * Runs the benchmark.
+	 * 
+	 * @param args
+	 *            the relay host and port, the number of peers, the duration in
+	 *            seconds and, optionally, the message length in characters.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err
+					.println("Usage: <Relay Host> <Relay Port> <Peers> <Seconds> [Message Length]");
+			return;
+		}
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		int peers = Integer.parseInt(args[2]);
+		int seconds = Integer.parseInt(args[3]);
+		int messageLength = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+		StringBuffer text = new StringBuffer();
+		while (text.length() < messageLength) {
+			text.append('x');
+		}
+		final String message = text.toString();
+
+		List<Socket> sockets = new ArrayList<Socket>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < peers; ++i) {
+			final Socket socket = new Socket(host, port);
+			socket.setTcpNoDelay(true);
+			sockets.add(socket);
+			final String username = "bench-" + i;
+			final OutputStream out = new BufferedOutputStream(
+					socket.getOutputStream());
+			AbstractMessage.encodeMessage(new HandshakeMessage(username, 0),
+					out);
+			// No stream to resume and no acknowledgements
+			AbstractMessage.encodeMessage(new SessionMessage(
+					SessionMessage.NO_SESSION, 0), out);
+			out.flush();
+
+			threads.add(new Thread("Bench-Reader-" + i) {
+				@Override
+				public void run() {
+					read(socket);
+				}
+			});
+			threads.add(new Thread("Bench-Writer-" + i) {
+				@Override
+				public void run() {
+					write(out, username, message);
+				}
+			});
+		}
+		// Let the relay finish the handshakes before sending anything
+		Thread.sleep(500);
+		long start = System.currentTimeMillis();
+		for (Thread t : threads) {
+			t.setDaemon(true);
+			t.start();
+		}
+
+		long lastSent = 0, lastReceived = 0;
+		for (int i = 0; i < seconds; ++i) {
+			Thread.sleep(1000);
+			long s = sent.get(), r = received.get();
+			System.out.println("sent=" + (s - lastSent) + "/s delivered="
+					+ (r - lastReceived) + "/s");
+			lastSent = s;
+			lastReceived = r;
+		}
+		keepRunning = false;
+		double elapsed = (System.currentTimeMillis() - start) / 1000.0;
+		System.out.println("peers=" + peers + " seconds=" + seconds
+				+ " avg-sent=" + Math.round(sent.get() / elapsed)
+				+ "/s avg-delivered=" + Math.round(received.get() / elapsed)
+				+ "/s");
+		for (Socket socket : sockets) {
+			try {
+				socket.close();
+			} catch (IOException ioe) {
+				// Ignored, we're done
+			}
+		}
+	}
+
+	/**
+	 * Sends chat messages until the benchmark ends.
+	 * 
+	 * @param out
+	 *            the peer's output stream.
+	 * @param username
+	 *            the peer's username.
+	 * @param message
+	 *            the message text.
+	 */
+	protected static void write(final OutputStream out, final String username,
+			final String message) {
+		try {
+			while (keepRunning) {
+				AbstractMessage.encodeMessage(
+						new ChatMessage(System.currentTimeMillis(), MessageIds
+								.next(), username, message), out);
+				sent.incrementAndGet();
+			}
+		} catch (IOException ioe) {
+			// Closed at the end of the benchmark
+		}
+	}
+
+	/**
+	 * Counts received chat frames until the benchmark ends. Frames are skipped
+	 * without decoding.
+	 * 
+	 * @param socket
+	 *            the peer's socket.
+	 */
+	protected static void read(final Socket socket) {
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					socket.getInputStream()));
+			byte[] skip = new byte[4096];
+			while (keepRunning) {
+				int length = in.readInt();
+				byte type = in.readByte();
+				for (int remaining = length - 1; remaining > 0;) {
+					int n = in.read(skip, 0, Math.min(skip.length, remaining));
+					if (n < 0) {
+						return;
+					}
+					remaining -= n;
+				}
+				if (type == AbstractMessage.TYPE_CHAT_MESSAGE) {
+					received.incrementAndGet();
+				}
+			}
+		} catch (IOException ioe) {
+			// Closed at the end of the benchmark
+		}
+	}
+}
@@ -0,0 +1,462 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.relay;
+
+/**
+ * Tuning options for a {@link RelayServer}. Every option can be set on the
+ * command line; see {@link #parse(String[])}.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RelayConfig {
+
+	/**
+	 * Port number for incoming connections.
+	 */
+	protected int listenPort;
+
+	/**
+	 * Username sent in the relay's handshake.
+	 */
+	protected String username = "Relay";
+
+	/**
+	 * Initial size of each connection's receive buffer, in bytes.
+	 */
+	protected int bufferSize = 64 * 1024;
+
+	/**
+	 * Largest frame the relay will read into memory, in bytes. Smaller limits
+	 * apply to most message types; see
+	 * {@link edu.rutgers.cs.chat.messaging.FrameLimits}. Frames over their
+	 * limit are skipped, or end the connection if they are too large to skip.
+	 */
+	protected int maxFrameSize = 1024 * 1024;
+
+	/**
+	 * Most memory used by all connections' receive buffers, in bytes. Peers
+	 * that would need more are closed.
+	 */
+	protected long inboundBytes = 256L * 1024 * 1024;
+
+	/**
+	 * Maximum number of bytes waiting to be written to a single connection.
+	 * Frames that would exceed this are dropped for that connection.
+	 */
+	protected int maxQueuedBytes = 4 * 1024 * 1024;
+
+	/**
+	 * Most rooms the relay keeps track of across all peers.
+	 */
+	protected int maxRooms = 4096;
+
+	/**
+	 * Most rooms a single peer may be subscribed to. Joins beyond this are
+	 * dropped.
+	 */
+	protected int peerRooms = 256;
+
+	/**
+	 * Most messages forwarded to a peer that are kept until it acknowledges
+	 * them.
+	 */
+	protected int keepFrames = 1024;
+
+	/**
+	 * Most bytes of messages forwarded to a peer that are kept until it
+	 * acknowledges them.
+	 */
+	protected long keepBytes = 1024 * 1024;
+
+	/**
+	 * Number of messages read from a peer before the relay acknowledges them.
+	 */
+	protected int ackFrames = 32;
+
+	/**
+	 * Most time the relay waits to acknowledge a message, in milliseconds.
+	 */
+	protected long ackMillis = 100;
+
+	/**
+	 * How long a peer's session is kept after its connection is lost, in
+	 * seconds.
+	 */
+	protected int sessionLinger = 60;
+
+	/**
+	 * Most frames per second read from a single peer, or 0 for no limit.
+	 */
+	protected long frameRate = 5000;
+
+	/**
+	 * Most bytes per second read from a single peer, or 0 for no limit.
+	 */
+	protected long byteRate = 16L * 1024 * 1024;
+
+	/**
+	 * Most frames handled from one peer before the other ready peers get a
+	 * turn.
+	 */
+	protected int readBudget = 64;
+
+	/**
+	 * How often statistics are printed, in seconds. 0 disables statistics.
+	 */
+	protected int statsInterval = 10;
+
+	/**
+	 * Most memory reserved for pooled direct buffers, in bytes.
+	 */
+	protected long poolBytes = 64L * 1024 * 1024;
+
+	/**
+	 * Number of event loops, or 0 for one per available processor.
+	 */
+	protected int loops = 0;
+
+	/**
+	 * Whether new peers are advertised to existing peers with client exchange
+	 * messages.
+	 */
+	protected boolean advertise = true;
+
+	/**
+	 * Parses the command-line arguments for the relay.
+	 * 
+	 * @param args
+	 *            the listen port, followed by any options.
+	 * @return the parsed configuration.
+	 * @throws IllegalArgumentException
+	 *             if the arguments are invalid.
+	 */
+	public static RelayConfig parse(final String[] args) {
+		if (args == null || args.length < 1) {
+			throw new IllegalArgumentException("Missing listen port.");
+		}
+		RelayConfig config = new RelayConfig();
+		try {
+			config.listenPort = Integer.parseInt(args[0]);
+			for (int i = 1; i < args.length; ++i) {
+				String option = args[i];
+				if ("--no-advertise".equals(option)) {
+					config.advertise = false;
+				} else if (i + 1 >= args.length) {
+					throw new IllegalArgumentException("Missing value for "
+							+ option);
+				} else if ("--name".equals(option)) {
+					config.username = args[++i];
+				} else if ("--buffer".equals(option)) {
+					config.bufferSize = Integer.parseInt(args[++i]);
+				} else if ("--max-frame".equals(option)) {
+					config.maxFrameSize = Integer.parseInt(args[++i]);
+				} else if ("--inbound".equals(option)) {
+					config.inboundBytes = Long.parseLong(args[++i]);
+				} else if ("--max-queue".equals(option)) {
+					config.maxQueuedBytes = Integer.parseInt(args[++i]);
+				} else if ("--max-rooms".equals(option)) {
+					config.maxRooms = Integer.parseInt(args[++i]);
+				} else if ("--peer-rooms".equals(option)) {
+					config.peerRooms = Integer.parseInt(args[++i]);
+				} else if ("--keep-frames".equals(option)) {
+					config.keepFrames = Integer.parseInt(args[++i]);
+				} else if ("--keep-bytes".equals(option)) {
+					config.keepBytes = Long.parseLong(args[++i]);
+				} else if ("--ack-frames".equals(option)) {
+					config.ackFrames = Integer.parseInt(args[++i]);
+				} else if ("--ack-millis".equals(option)) {
+					config.ackMillis = Long.parseLong(args[++i]);
+				} else if ("--session-linger".equals(option)) {
+					config.sessionLinger = Integer.parseInt(args[++i]);
+				} else if ("--rate-frames".equals(option)) {
+					config.frameRate = Long.parseLong(args[++i]);
+				} else if ("--rate-bytes".equals(option)) {
+					config.byteRate = Long.parseLong(args[++i]);
+				} else if ("--read-budget".equals(option)) {
+					config.readBudget = Integer.parseInt(args[++i]);
+				} else if ("--stats".equals(option)) {
+					config.statsInterval = Integer.parseInt(args[++i]);
+				} else if ("--pool".equals(option)) {
+					config.poolBytes = Long.parseLong(args[++i]);
+				} else if ("--loops".equals(option)) {
+					config.loops = Integer.parseInt(args[++i]);
+				} else {
+					throw new IllegalArgumentException("Unknown option "
+							+ option);
+				}
+			}
+		} catch (NumberFormatException nfe) {
+			throw new IllegalArgumentException("Invalid number: "
+					+ nfe.getMessage());
+		}
+		if (config.listenPort <= 1024 || config.listenPort > 65535) {
+			throw new IllegalArgumentException(
+					"Port number is outside the valid range: 1024 < port < 65535");
+		}
+		if (config.bufferSize < 64 || config.maxFrameSize < config.bufferSize) {
+			throw new IllegalArgumentException(
+					"Buffer size must be at least 64 bytes and no larger than the maximum frame size.");
+		}
+		if (config.inboundBytes < config.bufferSize) {
+			throw new IllegalArgumentException(
+					"Inbound memory must be at least the buffer size.");
+		}
+		if (config.maxRooms < 1 || config.peerRooms < 1) {
+			throw new IllegalArgumentException(
+					"Room limits must be at least 1 room.");
+		}
+		if (config.keepFrames < 1 || config.keepBytes < 1
+				|| config.ackFrames < 1 || config.ackMillis < 1) {
+			throw new IllegalArgumentException(
+					"Kept messages and acknowledgement limits must be at least 1.");
+		}
+		if (config.sessionLinger < 0) {
+			throw new IllegalArgumentException(
+					"Session linger must not be negative.");
+		}
+		if (config.frameRate < 0 || config.byteRate < 0) {
+			throw new IllegalArgumentException("Rates must not be negative.");
+		}
+		if (config.readBudget < 1) {
+			throw new IllegalArgumentException(
+					"Read budget must be at least 1 frame.");
+		}
+		if (config.loops < 0) {
+			throw new IllegalArgumentException(
+					"Number of loops must not be negative.");
+		}
+		return config;
+	}
+
+	/**
+	 * Returns the usage string for the relay options.
+	 * 
+	 * @return the usage string.
+	 */
+	public static String getUsage() {
+		return "Usage: <Listen Port> [--name NAME] [--buffer BYTES] [--max-frame BYTES]"
+				+ " [--inbound BYTES] [--max-queue BYTES] [--max-rooms COUNT]"
+				+ " [--peer-rooms COUNT] [--keep-frames COUNT] [--keep-bytes BYTES]"
+				+ " [--ack-frames COUNT] [--ack-millis MILLIS] [--session-linger SECONDS]"
+				+ " [--rate-frames COUNT]"
+				+ " [--rate-bytes BYTES] [--read-budget FRAMES] [--stats SECONDS] [--loops COUNT] [--pool BYTES] [--no-advertise]";
+	}
+
+	/**
+	 * Returns the port number for incoming connections.
+	 * 
+	 * @return the port number for incoming connections.
+	 */
+	public int getListenPort() {
+		return this.listenPort;
+	}
+
+	/**
+	 * Returns the username sent in the relay's handshake.
+	 * 
+	 * @return the username sent in the relay's handshake.
+	 */
+	public String getUsername() {
+		return this.username;
+	}
+
+	/**
+	 * Returns the initial size of each receive buffer, in bytes.
+	 * 
+	 * @return the initial size of each receive buffer, in bytes.
+	 */
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	/**
+	 * Returns the largest frame the relay will accept, in bytes.
+	 * 
+	 * @return the largest frame the relay will accept, in bytes.
+	 */
+	public int getMaxFrameSize() {
+		return this.maxFrameSize;
+	}
+
+	/**
+	 * Returns the most memory used by all receive buffers, in bytes.
+	 * 
+	 * @return the most memory used by all receive buffers, in bytes.
+	 */
+	public long getInboundBytes() {
+		return this.inboundBytes;
+	}
+
+	/**
+	 * Returns the maximum number of bytes queued for a single connection.
+	 * 
+	 * @return the maximum number of bytes queued for a single connection.
+	 */
+	public int getMaxQueuedBytes() {
+		return this.maxQueuedBytes;
+	}
+
+	/**
+	 * Returns the most rooms the relay keeps track of.
+	 * 
+	 * @return the most rooms the relay keeps track of.
+	 */
+	public int getMaxRooms() {
+		return this.maxRooms;
+	}
+
+	/**
+	 * Returns the most rooms a single peer may be subscribed to.
+	 * 
+	 * @return the most rooms a single peer may be subscribed to.
+	 */
+	public int getPeerRooms() {
+		return this.peerRooms;
+	}
+
+	/**
+	 * Returns the most messages kept for a peer until it acknowledges them.
+	 * 
+	 * @return the most messages kept for a peer.
+	 */
+	public int getKeepFrames() {
+		return this.keepFrames;
+	}
+
+	/**
+	 * Returns the most bytes kept for a peer until it acknowledges them.
+	 * 
+	 * @return the most bytes kept for a peer.
+	 */
+	public long getKeepBytes() {
+		return this.keepBytes;
+	}
+
+	/**
+	 * Returns the number of messages read before the relay acknowledges them.
+	 * 
+	 * @return the number of messages per acknowledgement.
+	 */
+	public int getAckFrames() {
+		return this.ackFrames;
+	}
+
+	/**
+	 * Returns the most time the relay waits to acknowledge a message.
+	 * 
+	 * @return the most time before an acknowledgement, in milliseconds.
+	 */
+	public long getAckMillis() {
+		return this.ackMillis;
+	}
+
+	/**
+	 * Returns how long a lost peer's session is kept, in seconds.
+	 * 
+	 * @return how long a lost peer's session is kept, in seconds.
+	 */
+	public int getSessionLinger() {
+		return this.sessionLinger;
+	}
+
+	/**
+	 * Returns the most frames per second read from a single peer.
+	 * 
+	 * @return the most frames per second, or 0 for no limit.
+	 */
+	public long getFrameRate() {
+		return this.frameRate;
+	}
+
+	/**
+	 * Returns the most bytes per second read from a single peer.
+	 * 
+	 * @return the most bytes per second, or 0 for no limit.
+	 */
+	public long getByteRate() {
+		return this.byteRate;
+	}
+
+	/**
+	 * Returns the most frames handled from one peer per turn.
+	 * 
+	 * @return the most frames handled per turn.
+	 */
+	public int getReadBudget() {
+		return this.readBudget;
+	}
+
+	/**
+	 * Returns how often statistics are printed, in seconds.
+	 * 
+	 * @return how often statistics are printed, in seconds.
+	 */
+	public int getStatsInterval() {
+		return this.statsInterval;
+	}
+
+	/**
+	 * Returns the most memory reserved for pooled direct buffers, in bytes.
+	 * 
+	 * @return the most memory reserved for pooled buffers, in bytes.
+	 */
+	public long getPoolBytes() {
+		return this.poolBytes;
+	}
+
+	/**
+	 * Returns the number of event loops, or 0 for one per processor.
+	 * 
+	 * @return the number of event loops, or 0 for one per processor.
+	 */
+	public int getLoops() {
+		return this.loops;
+	}
+
+	/**
+	 * Returns true if new peers are advertised to existing peers.
+	 * 
+	 * @return true if new peers are advertised to existing peers.
+	 */
+	public boolean isAdvertise() {
+		return this.advertise;
+	}
+
+	@Override
+	public String toString() {
+		return "port=" + this.listenPort + ", name=" + this.username
+				+ ", buffer=" + this.bufferSize + ", max-frame="
+				+ this.maxFrameSize + ", inbound=" + this.inboundBytes
+				+ ", max-queue=" + this.maxQueuedBytes + ", max-rooms="
+				+ this.maxRooms + ", peer-rooms=" + this.peerRooms
+				+ ", keep-frames=" + this.keepFrames + ", keep-bytes="
+				+ this.keepBytes + ", ack-frames=" + this.ackFrames
+				+ ", ack-millis=" + this.ackMillis + ", session-linger="
+				+ this.sessionLinger + ", rate-frames="
+				+ this.frameRate + ", rate-bytes=" + this.byteRate
+				+ ", read-budget=" + this.readBudget
+				+ ", stats=" + this.statsInterval + "s, pool="
+				+ this.poolBytes + ", loops="
+				+ (this.loops > 0 ? String.valueOf(this.loops) : "auto")
+				+ ", advertise="
+				+ this.advertise;
+	}
+}
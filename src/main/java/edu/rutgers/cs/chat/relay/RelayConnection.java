@@ -0,0 +1,471 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.rutgers.cs.chat.net.BufferPool;
+import edu.rutgers.cs.chat.net.EventHandler;
+import edu.rutgers.cs.chat.net.PooledBuffer;
+import edu.rutgers.cs.chat.util.MemoryBudget;
+import edu.rutgers.cs.chat.util.RateLimiter;
+
+/**
+ * A peer connected to a {@link RelayServer}. Holds the peer's receive buffer,
+ * the queue of frames waiting to be written, and what the relay learned from
+ * the peer's handshake and subscriptions. Only the event loop of the
+ * connection's {@link RelayShard} uses a connection.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RelayConnection implements EventHandler {
+
+	/**
+	 * The channel connected to the peer.
+	 */
+	protected final SocketChannel channel;
+
+	/**
+	 * The shard that owns this connection.
+	 */
+	protected final RelayShard shard;
+
+	/**
+	 * The selection key for the channel.
+	 */
+	protected SelectionKey key;
+
+	/**
+	 * The textual IP address of the peer.
+	 */
+	protected final String ipAddress;
+
+	/**
+	 * The pool the receive buffer is leased from.
+	 */
+	protected final BufferPool pool;
+
+	/**
+	 * The lease backing {@link #readBuffer}.
+	 */
+	protected PooledBuffer readLease;
+
+	/**
+	 * Bytes received from the peer that have not been processed yet.
+	 */
+	protected ByteBuffer readBuffer;
+
+	/**
+	 * Memory charged for {@link #readBuffer}.
+	 */
+	protected final MemoryBudget.Account inbound;
+
+	/**
+	 * Size the receive buffer returns to once it no longer holds a large
+	 * frame.
+	 */
+	protected final int bufferSize;
+
+	/**
+	 * Bytes of a rejected frame that have yet to be received and thrown away.
+	 */
+	protected int discard = 0;
+
+	/**
+	 * Limits the rate of frames read from the peer.
+	 */
+	protected final RateLimiter limiter;
+
+	/**
+	 * True while the connection is not being read from, because the peer has
+	 * used up its rate or its share of a readiness round. Frames already in
+	 * {@link #readBuffer} are handled by {@link #resume} instead.
+	 */
+	protected boolean readPaused = false;
+
+	/**
+	 * True while reads are paused because the peer is over its rate limits.
+	 */
+	protected boolean throttled = false;
+
+	/**
+	 * Handles the frames left in the receive buffer once a pause is over.
+	 */
+	protected final Runnable resume = new Runnable() {
+		@Override
+		public void run() {
+			RelayConnection.this.shard.resume(RelayConnection.this);
+		}
+	};
+
+	/**
+	 * Most frames written by a single gathering write.
+	 */
+	protected static final int MAX_GATHER = 64;
+
+	/**
+	 * Frames waiting to be written to the peer, as a ring starting at
+	 * {@link #first}. Each frame is an optional header only this connection
+	 * uses, followed by a payload that may be shared with other connections.
+	 * The connection holds one reference to each.
+	 */
+	protected PooledBuffer[] headers = new PooledBuffer[16],
+			payloads = new PooledBuffer[16];
+
+	/**
+	 * This connection's views of each queued header and payload. Payloads are
+	 * shared, so each connection keeps its own position.
+	 */
+	protected ByteBuffer[] headerViews = new ByteBuffer[16],
+			payloadViews = new ByteBuffer[16];
+
+	/**
+	 * Index of the oldest queued frame.
+	 */
+	protected int first = 0;
+
+	/**
+	 * Number of queued frames.
+	 */
+	protected int queued = 0;
+
+	/**
+	 * Buffers passed to each gathering write.
+	 */
+	protected final ByteBuffer[] gather = new ByteBuffer[2 * MAX_GATHER];
+
+	/**
+	 * Number of bytes in {@link #outbound}.
+	 */
+	protected int queuedBytes = 0;
+
+	/**
+	 * The peer's username, or null until the handshake is received.
+	 */
+	protected String username = null;
+
+	/**
+	 * The peer's listen port, or -1 until the handshake is received.
+	 */
+	protected int listenPort = -1;
+
+	/**
+	 * The peer's session, or null until its first session message is
+	 * received.
+	 */
+	protected RelaySession session = null;
+
+	/**
+	 * Rooms the peer has joined, indexed by the relay's room identifiers.
+	 */
+	protected final BitSet rooms = new BitSet();
+
+	/**
+	 * Where the rest of each fragmented message from the peer is sent, keyed
+	 * by fragment identifier, oldest first.
+	 */
+	protected final Map<Long, RelayShard.FragmentRoute> fragmentRoutes = new LinkedHashMap<Long, RelayShard.FragmentRoute>();
+
+	/**
+	 * Creates a new connection for the channel.
+	 * 
+	 * @param channel
+	 *            the accepted channel.
+	 * @param shard
+	 *            the shard that owns the connection.
+	 * @param pool
+	 *            the pool to lease the receive buffer from.
+	 * @param bufferSize
+	 *            the initial size of the receive buffer.
+	 * @param inbound
+	 *            the account charged for the receive buffer.
+	 * @param limiter
+	 *            limits the rate of frames read from the peer.
+	 * @throws IOException
+	 *             if the account has no room for the receive buffer.
+	 */
+	public RelayConnection(final SocketChannel channel,
+			final RelayShard shard, final BufferPool pool,
+			final int bufferSize, final MemoryBudget.Account inbound,
+			final RateLimiter limiter) throws IOException {
+		this.channel = channel;
+		this.shard = shard;
+		this.ipAddress = channel.socket().getInetAddress().getHostAddress();
+		this.pool = pool;
+		this.bufferSize = bufferSize;
+		this.inbound = inbound;
+		this.limiter = limiter;
+		if (!inbound.tryReserve(bufferSize)) {
+			throw new IOException("No inbound memory left.");
+		}
+		this.readLease = pool.lease(bufferSize);
+		this.readBuffer = this.readLease.buffer();
+	}
+
+	/**
+	 * Replaces the receive buffer with a new one, keeping its unread contents.
+	 * The account is charged for the difference in size.
+	 * 
+	 * @param size
+	 *            the new size of the receive buffer.
+	 * @throws IOException
+	 *             if the account has no room for a larger buffer.
+	 */
+	public void replaceReadBuffer(final int size) throws IOException {
+		int growth = size - this.readBuffer.capacity();
+		if (growth > 0 && !this.inbound.tryReserve(growth)) {
+			throw new IOException("No inbound memory left for a " + size
+					+ "-byte frame.");
+		}
+		PooledBuffer replacement = this.pool.lease(size);
+		replacement.buffer().put(this.readBuffer);
+		this.readLease.release();
+		this.readLease = replacement;
+		this.readBuffer = replacement.buffer();
+		if (growth < 0) {
+			this.inbound.release(-growth);
+		}
+	}
+
+	/**
+	 * Returns true once the peer's handshake and first session message have
+	 * been received. Nothing is forwarded to the peer before then.
+	 * 
+	 * @return true if the peer is attached to its session.
+	 */
+	public boolean isEstablished() {
+		return this.session != null;
+	}
+
+	/**
+	 * Queues a frame for writing and tries to write it immediately. The
+	 * connection takes over one reference to the frame, which is released once
+	 * the frame has been written or the connection is closed. The frame's
+	 * contents must not be modified afterwards.
+	 * 
+	 * @param frame
+	 *            the complete frame, positioned at its first byte.
+	 * @throws IOException
+	 *             if the channel cannot be written.
+	 */
+	public void enqueue(final PooledBuffer frame) throws IOException {
+		this.enqueue(null, frame);
+	}
+
+	/**
+	 * Queues a frame made of a header for this connection and a payload that
+	 * may be shared with others, and tries to write it immediately. The two
+	 * are written back-to-back without being copied together. The connection
+	 * takes over one reference to each.
+	 * 
+	 * @param header
+	 *            the start of the frame, or null.
+	 * @param payload
+	 *            the rest of the frame.
+	 * @throws IOException
+	 *             if the channel cannot be written.
+	 */
+	public void enqueue(final PooledBuffer header, final PooledBuffer payload)
+			throws IOException {
+		if (this.queued == this.payloads.length) {
+			this.growQueue();
+		}
+		int slot = (this.first + this.queued) & (this.payloads.length - 1);
+		this.headers[slot] = header;
+		this.payloads[slot] = payload;
+		if (header != null) {
+			this.headerViews[slot] = header.buffer().duplicate();
+			this.queuedBytes += header.buffer().remaining();
+		}
+		this.payloadViews[slot] = payload.buffer().duplicate();
+		this.queuedBytes += payload.buffer().remaining();
+		if (++this.queued == 1) {
+			this.flush();
+		}
+	}
+
+	/**
+	 * Writes as many queued frames as the channel will accept, up to
+	 * {@link #MAX_GATHER} frames per system call, and updates the selection
+	 * key's interest in write readiness.
+	 * 
+	 * @throws IOException
+	 *             if the channel cannot be written.
+	 */
+	public void flush() throws IOException {
+		int mask = this.payloads.length - 1;
+		while (this.queued > 0) {
+			int count = 0;
+			long requested = 0;
+			for (int i = 0; i < this.queued && i < MAX_GATHER; ++i) {
+				int slot = (this.first + i) & mask;
+				if (this.headerViews[slot] != null) {
+					requested += this.headerViews[slot].remaining();
+					this.gather[count++] = this.headerViews[slot];
+				}
+				requested += this.payloadViews[slot].remaining();
+				this.gather[count++] = this.payloadViews[slot];
+			}
+			long written = this.channel.write(this.gather, 0, count);
+			Arrays.fill(this.gather, 0, count, null);
+			this.queuedBytes -= written;
+			++this.shard.stats.writes;
+
+			// Release everything that was completely written
+			while (this.queued > 0
+					&& !this.payloadViews[this.first].hasRemaining()) {
+				this.release(this.first);
+				this.first = (this.first + 1) & mask;
+				--this.queued;
+			}
+			if (written < requested) {
+				// The socket buffer is full
+				break;
+			}
+		}
+		this.updateInterest();
+	}
+
+	/**
+	 * Sets the selection key's interest to reading, unless reads are paused,
+	 * and writing while frames are queued.
+	 */
+	public void updateInterest() {
+		if (this.key != null && this.key.isValid()) {
+			int ops = (this.readPaused ? 0 : SelectionKey.OP_READ)
+					| (this.queued == 0 ? 0 : SelectionKey.OP_WRITE);
+			if (this.key.interestOps() != ops) {
+				this.key.interestOps(ops);
+			}
+		}
+	}
+
+	/**
+	 * Releases and forgets the frame in a slot of the ring.
+	 * 
+	 * @param slot
+	 *            the slot to clear.
+	 */
+	protected void release(final int slot) {
+		if (this.headers[slot] != null) {
+			this.headers[slot].release();
+		}
+		this.payloads[slot].release();
+		this.headers[slot] = this.payloads[slot] = null;
+		this.headerViews[slot] = this.payloadViews[slot] = null;
+	}
+
+	/**
+	 * Doubles the size of the outbound ring.
+	 */
+	protected void growQueue() {
+		int length = this.payloads.length;
+		PooledBuffer[] newHeaders = new PooledBuffer[length * 2];
+		PooledBuffer[] newPayloads = new PooledBuffer[length * 2];
+		ByteBuffer[] newHeaderViews = new ByteBuffer[length * 2];
+		ByteBuffer[] newPayloadViews = new ByteBuffer[length * 2];
+		for (int i = 0; i < this.queued; ++i) {
+			int slot = (this.first + i) & (length - 1);
+			newHeaders[i] = this.headers[slot];
+			newPayloads[i] = this.payloads[slot];
+			newHeaderViews[i] = this.headerViews[slot];
+			newPayloadViews[i] = this.payloadViews[slot];
+		}
+		this.headers = newHeaders;
+		this.payloads = newPayloads;
+		this.headerViews = newHeaderViews;
+		this.payloadViews = newPayloadViews;
+		this.first = 0;
+	}
+
+	/**
+	 * Prepares the receive buffer for the next read once every complete frame
+	 * in it has been handled. If none of the frames are still queued on other
+	 * connections the buffer is compacted in place; otherwise the unread bytes
+	 * are moved to a new buffer and this connection's reference to the old one
+	 * is dropped. A buffer that was grown for a large frame shrinks back to
+	 * its initial size once the next frame fits.
+	 * 
+	 * @throws IOException
+	 *             if the account has no room for a new buffer.
+	 */
+	public void compactReadBuffer() throws IOException {
+		if (this.readBuffer.capacity() > this.bufferSize) {
+			int next = this.readBuffer.remaining() < 4 ? 0 : this.readBuffer
+					.getInt(this.readBuffer.position()) + 4;
+			if (this.readBuffer.remaining() <= this.bufferSize
+					&& next <= this.bufferSize) {
+				this.replaceReadBuffer(this.bufferSize);
+				return;
+			}
+		}
+		if (this.readLease.referenceCount() == 1) {
+			this.readBuffer.compact();
+			return;
+		}
+		this.replaceReadBuffer(this.readBuffer.capacity());
+	}
+
+	@Override
+	public void handleEvent(final SelectionKey key) {
+		this.shard.ready(this, key);
+	}
+
+	/**
+	 * Closes the channel, ignoring any errors, and releases the connection's
+	 * buffers. Must only be called once.
+	 */
+	public void close() {
+		if (this.key != null) {
+			this.key.cancel();
+		}
+		try {
+			this.channel.close();
+		} catch (IOException ioe) {
+			// Ignored, since we're closing anyways
+		}
+		// Return everything to the pool
+		for (; this.queued > 0; --this.queued) {
+			this.release(this.first);
+			this.first = (this.first + 1) & (this.payloads.length - 1);
+		}
+		this.queuedBytes = 0;
+		if (this.readLease != null) {
+			this.readLease.release();
+			this.readLease = null;
+			this.readBuffer = null;
+		}
+		this.inbound.close();
+	}
+
+	@Override
+	public String toString() {
+		return (this.username == null ? "Unknown client" : this.username) + "@"
+				+ this.ipAddress + ":" + this.listenPort;
+	}
+}
@@ -0,0 +1,747 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.relay;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.ChatClient;
+import edu.rutgers.cs.chat.RoomRegistry;
+import edu.rutgers.cs.chat.messaging.AbstractMessage;
+import edu.rutgers.cs.chat.messaging.AckMessage;
+import edu.rutgers.cs.chat.messaging.ClientExchangeMessage;
+import edu.rutgers.cs.chat.messaging.FrameLimits;
+import edu.rutgers.cs.chat.messaging.HandshakeMessage;
+import edu.rutgers.cs.chat.messaging.MessageView;
+import edu.rutgers.cs.chat.messaging.SessionMessage;
+import edu.rutgers.cs.chat.messaging.SubscriptionMessage;
+import edu.rutgers.cs.chat.net.BufferPool;
+import edu.rutgers.cs.chat.net.EventLoop;
+import edu.rutgers.cs.chat.net.EventLoopGroup;
+import edu.rutgers.cs.chat.net.PooledBuffer;
+import edu.rutgers.cs.chat.util.MemoryBudget;
+import edu.rutgers.cs.chat.util.SeenMessageCache;
+
+/**
+ * A headless chat hub. The relay accepts connections from ordinary chat
+ * clients, handshakes with them, and forwards their chat traffic to every other
+ * connected peer. It has no user interface and never decodes chat messages:
+ * only the frame header (and, where needed for routing, the message identifier,
+ * room or destination) is read, and the raw frame bytes are forwarded
+ * unchanged.
+ * 
+ * <ul>
+ * <li>Chat messages are forwarded to every other peer.</li>
+ * <li>Room Chat messages are forwarded to peers subscribed to the room. The
+ * relay joins a room on behalf of its peers while any of them is subscribed to
+ * it.</li>
+ * <li>Routed Private Chat messages are forwarded to the destination peer with
+ * the TTL decremented in place.</li>
+ * <li>New peers are advertised to existing peers with ClientExchange messages,
+ * like a normal chat client would.</li>
+ * <li>Chat messages are acknowledged and resumed on each hop through the
+ * relay, using a {@link RelaySession} with every peer.</li>
+ * </ul>
+ * 
+ * The relay's thread only accepts connections. Each accepted peer is assigned
+ * to one of several {@link RelayShard}s, one per {@link EventLoop}, and all of
+ * its reads, writes and timers run on that loop from then on. A frame that has
+ * to reach peers on other shards is handed to those shards' loops through
+ * their task queues rather than written from the receiving loop.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RelayServer extends Thread {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(RelayServer.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Frames at least this large are forwarded straight out of the receive
+	 * buffer they arrived in. Smaller frames are copied, since copying a few
+	 * bytes is cheaper than holding on to the whole receive buffer.
+	 */
+	protected static final int SHARE_THRESHOLD = 1024;
+
+	/**
+	 * The relay's configuration.
+	 */
+	protected final RelayConfig config;
+
+	/**
+	 * Sum of every shard's counters, for the statistics output.
+	 */
+	protected final RelayStats stats = new RelayStats();
+
+	/**
+	 * Number of open connections across all shards.
+	 */
+	protected final AtomicInteger peerCount = new AtomicInteger();
+
+	/**
+	 * Established connections on every shard, keyed by username.
+	 */
+	protected final ConcurrentHashMap<String, RelayConnection> byUsername = new ConcurrentHashMap<String, RelayConnection>();
+
+	/**
+	 * Interned room names.
+	 */
+	protected final RoomRegistry roomRegistry;
+
+	/**
+	 * Number of peers subscribed to each room, indexed by room identifier.
+	 * Guarded by {@link #roomLock}.
+	 */
+	protected int[] roomCounts = new int[16];
+
+	/**
+	 * Lock for {@link #roomCounts}. Subscriptions change rarely, so a single
+	 * lock shared by every shard is fine.
+	 */
+	protected final Object roomLock = new Object();
+
+	/**
+	 * Identifiers of recently-forwarded messages, to break loops between
+	 * relays. Split into stripes by identifier so that shards seldom contend
+	 * for the same cache.
+	 */
+	protected final SeenMessageCache[] seenMessages;
+
+	/**
+	 * Direct buffers for receiving and forwarding frames.
+	 */
+	protected final BufferPool pool;
+
+	/**
+	 * Accepted lengths of each type of frame received from peers.
+	 */
+	protected final FrameLimits frameLimits;
+
+	/**
+	 * Memory available for the receive buffers of all peers.
+	 */
+	protected final MemoryBudget inbound;
+
+	/**
+	 * The relay's own handshake, encoded once. Its first session message is
+	 * sent once the peer's handshake says which session to offer.
+	 */
+	protected final byte[] handshakeFrame;
+
+	/**
+	 * Sessions with current and recently-lost peers, keyed by username.
+	 */
+	protected final ConcurrentHashMap<String, RelaySession> sessions = new ConcurrentHashMap<String, RelaySession>();
+
+	/**
+	 * Source of stream tokens.
+	 */
+	protected final Random random = new Random();
+
+	/**
+	 * The loops that run the shards.
+	 */
+	protected EventLoopGroup loops;
+
+	/**
+	 * One shard per loop, in the same order as the loops.
+	 */
+	protected RelayShard[] shards;
+
+	/**
+	 * The listening channel.
+	 */
+	protected ServerSocketChannel server;
+
+	/**
+	 * Flag to shut down the relay.
+	 */
+	protected volatile boolean keepRunning = true;
+
+	/**
+	 * Parses the command-line arguments and starts a relay.
+	 * 
+	 * @param args
+	 *            the listen port followed by any options.
+	 */
+	public static void main(String[] args) {
+		System.out.println();
+		System.out.println(ChatClient.LICENSE_NOTIFICATION);
+		System.out.println();
+
+		RelayConfig config;
+		try {
+			config = RelayConfig.parse(args);
+		} catch (IllegalArgumentException iae) {
+			System.err.println(iae.getMessage());
+			System.err.println(RelayConfig.getUsage());
+			return;
+		}
+
+		final RelayServer relay;
+		try {
+			relay = new RelayServer(config);
+		} catch (UnsupportedEncodingException uee) {
+			log.severe("Unable to encode handshake: " + uee.getMessage());
+			return;
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				relay.shutdown();
+				try {
+					relay.join(1000 + RelayShard.CLOSE_FLUSH_MILLIS);
+				} catch (InterruptedException ie) {
+					// Ignored, we're exiting anyways
+				}
+			}
+		});
+		relay.start();
+	}
+
+	/**
+	 * Creates a new relay with the specified configuration.
+	 * 
+	 * @param config
+	 *            the relay configuration.
+	 * @throws UnsupportedEncodingException
+	 *             if the relay's handshake cannot be encoded.
+	 */
+	public RelayServer(final RelayConfig config)
+			throws UnsupportedEncodingException {
+		super("Relay-" + config.getListenPort());
+		this.config = config;
+		this.handshakeFrame = encode(new HandshakeMessage(config.getUsername(),
+				config.getListenPort()));
+		this.pool = new BufferPool(config.getMaxFrameSize(),
+				config.getPoolBytes());
+		this.frameLimits = FrameLimits.fromProperties();
+		this.frameLimits.capMaxLength(config.getMaxFrameSize() - 4);
+		this.inbound = new MemoryBudget(config.getInboundBytes());
+		this.roomRegistry = new RoomRegistry(config.getMaxRooms());
+
+		int loopCount = config.getLoops() > 0 ? config.getLoops()
+				: EventLoopGroup.defaultLoopCount();
+		int stripes = Integer.highestOneBit(loopCount * 2 - 1);
+		this.seenMessages = new SeenMessageCache[stripes];
+		for (int i = 0; i < stripes; ++i) {
+			this.seenMessages[i] = new SeenMessageCache(Math.max(1024,
+					ChatClient.SEEN_CACHE_CAPACITY / stripes),
+					ChatClient.SEEN_CACHE_MILLIS);
+		}
+	}
+
+	/**
+	 * Asks the relay to close all connections and exit.
+	 */
+	public void shutdown() {
+		this.keepRunning = false;
+		ServerSocketChannel channel = this.server;
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException ioe) {
+				// Ignored, we're shutting down
+			}
+		}
+	}
+
+	/**
+	 * Accepts connections and assigns them to shards until {@link #shutdown()}
+	 * is called.
+	 */
+	@Override
+	public void run() {
+		try {
+			this.loops = new EventLoopGroup("Relay-" + this.config.getListenPort(),
+					this.config.getLoops());
+			this.server = ServerSocketChannel.open();
+			this.server.socket().setReuseAddress(true);
+			this.server.socket().bind(
+					new InetSocketAddress(this.config.getListenPort()));
+		} catch (IOException e) {
+			// An exception here is likely to be a bind failure.
+			log.severe("Unable to start relay: " + e.getMessage());
+			if (this.loops != null) {
+				this.loops.shutdown();
+			}
+			return;
+		}
+		this.shards = new RelayShard[this.loops.size()];
+		for (int i = 0; i < this.shards.length; ++i) {
+			this.shards[i] = new RelayShard(this, this.loops.get(i));
+		}
+		log.config("Relay listening with " + this.config);
+		System.out.println("Relay listening with " + this.config + " on "
+				+ this.shards.length + " loops");
+
+		final long statsMillis = this.config.getStatsInterval() * 1000L;
+		if (statsMillis > 0) {
+			final EventLoop statsLoop = this.loops.get(0);
+			statsLoop.schedule(new Runnable() {
+				@Override
+				public void run() {
+					System.out.println(RelayServer.this.report());
+					statsLoop.schedule(this, statsMillis);
+				}
+			}, statsMillis);
+		}
+
+		final long lingerMillis = Math.max(1000L,
+				this.config.getSessionLinger() * 1000L);
+		final EventLoop sessionLoop = this.loops.get(0);
+		sessionLoop.schedule(new Runnable() {
+			@Override
+			public void run() {
+				RelayServer.this.expireSessions();
+				sessionLoop.schedule(this, lingerMillis);
+			}
+		}, lingerMillis);
+
+		while (this.keepRunning) {
+			SocketChannel channel;
+			try {
+				channel = this.server.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+			} catch (IOException ioe) {
+				if (this.keepRunning) {
+					log.warning("Unable to accept connection: "
+							+ ioe.getMessage());
+				}
+				continue;
+			}
+			this.shards[this.loops.nextIndex()].adopt(channel);
+		}
+
+		try {
+			this.server.close();
+		} catch (IOException ioe) {
+			// Ignored, we're shutting down
+		}
+
+		// Say goodbye to everyone
+		final byte[] disconnect = encodeQuietly(AbstractMessage.DISCONNECT_MESSAGE);
+		for (final RelayShard shard : this.shards) {
+			shard.loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					shard.closeAll(disconnect);
+				}
+			});
+		}
+		this.loops.shutdown();
+		// Wait for the shards to finish writing their goodbyes
+		for (int i = 0; i < this.loops.size(); ++i) {
+			try {
+				this.loops.get(i).join(RelayShard.CLOSE_FLUSH_MILLIS + 500);
+			} catch (InterruptedException ie) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Sums every shard's counters and returns a single-line report.
+	 * 
+	 * @return the report.
+	 */
+	protected String report() {
+		synchronized (this.stats) {
+			this.stats.clear();
+			for (RelayShard shard : this.shards) {
+				this.stats.add(shard.stats);
+			}
+			return this.stats.report(this.peerCount.get(),
+					System.currentTimeMillis())
+					+ " " + this.pool.report() + " " + this.inbound.report();
+		}
+	}
+
+	/**
+	 * Records a message identifier, returning true if it has not been seen
+	 * recently.
+	 * 
+	 * @param messageId
+	 *            the message identifier.
+	 * @return true if the message is new.
+	 */
+	protected boolean markSeen(final long messageId) {
+		int stripe = (int) (messageId ^ (messageId >>> 32))
+				& (this.seenMessages.length - 1);
+		return this.seenMessages[stripe].markSeen(messageId);
+	}
+
+	/**
+	 * Returns the session with a peer, creating it if there is none.
+	 * 
+	 * @param username
+	 *            the username of the peer.
+	 * @return the session.
+	 */
+	protected RelaySession session(final String username) {
+		RelaySession session = this.sessions.get(username);
+		if (session == null) {
+			RelaySession created = new RelaySession(username, this);
+			session = this.sessions.putIfAbsent(username, created);
+			if (session == null) {
+				session = created;
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Drops the sessions of peers that have been gone for longer than
+	 * {@link RelayConfig#getSessionLinger()}, releasing their kept messages.
+	 */
+	protected void expireSessions() {
+		long now = System.currentTimeMillis();
+		for (Iterator<RelaySession> iter = this.sessions.values().iterator(); iter
+				.hasNext();) {
+			RelaySession session = iter.next();
+			if (session.isExpired(now)) {
+				iter.remove();
+				session.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns a new, non-zero stream token.
+	 * 
+	 * @return the token.
+	 */
+	protected long newToken() {
+		long token;
+		synchronized (this.random) {
+			do {
+				token = this.random.nextLong();
+			} while (token == SessionMessage.NO_SESSION);
+		}
+		return token;
+	}
+
+	/**
+	 * Sends an acknowledgement to a peer on any shard, even if the peer's
+	 * queue is full, and closes the peer if it cannot be written. Must not be
+	 * called while the peer's shard is handling a frame.
+	 * 
+	 * @param conn
+	 *            the destination.
+	 * @param ack
+	 *            the acknowledgement.
+	 */
+	protected void sendAck(final RelayConnection conn, final AckMessage ack) {
+		final PooledBuffer frame = BufferPool.wrap(ByteBuffer
+				.wrap(encodeQuietly(ack)));
+		final RelayShard shard = conn.shard;
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				if (shard.connections.contains(conn)) {
+					shard.sendAck(conn, frame);
+					shard.closeFailed();
+				} else {
+					frame.release();
+				}
+			}
+		};
+		if (shard.loop.inEventLoop()) {
+			task.run();
+		} else {
+			shard.loop.execute(task);
+		}
+	}
+
+	/**
+	 * Called on a peer's loop once its handshake and first session message
+	 * have been received. Advertises the peer to the others and tells it which
+	 * rooms the relay has joined.
+	 * 
+	 * @param conn
+	 *            the new peer.
+	 * @throws UnsupportedEncodingException
+	 *             if a message cannot be encoded.
+	 */
+	protected void established(final RelayConnection conn)
+			throws UnsupportedEncodingException {
+		RelayConnection old = this.byUsername.put(conn.username, conn);
+		if (old != null) {
+			log.info("Replacing " + old + " with " + conn);
+		}
+
+		if (this.config.isAdvertise()) {
+			PooledBuffer exchange = BufferPool.wrap(ByteBuffer
+					.wrap(encode(new ClientExchangeMessage(conn.ipAddress,
+							conn.listenPort, conn.username))));
+			this.forward(conn, exchange, -1);
+			exchange.release();
+		}
+
+		synchronized (this.roomLock) {
+			for (int roomId = 0; roomId < this.roomCounts.length; ++roomId) {
+				if (this.roomCounts[roomId] > 0) {
+					conn.shard.send(conn, BufferPool.wrap(ByteBuffer
+							.wrap(encode(new SubscriptionMessage(true,
+									this.roomRegistry.getName(roomId))))));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records a change in one peer's subscriptions. The relay joins a room when
+	 * its first peer joins, and leaves it when its last peer leaves.
+	 * 
+	 * @param room
+	 *            the name of the room.
+	 * @param roomId
+	 *            the identifier of the room.
+	 * @param joined
+	 *            true if a peer joined, false if one left.
+	 * @throws UnsupportedEncodingException
+	 *             if the subscription cannot be encoded.
+	 */
+	protected void subscribe(final String room, final int roomId,
+			final boolean joined) throws UnsupportedEncodingException {
+		// Announce while holding the lock so every shard sees joins and leaves
+		// for the same room in the order they happened.
+		synchronized (this.roomLock) {
+			if (roomId >= this.roomCounts.length) {
+				int[] larger = new int[Math.max(roomId + 1,
+						this.roomCounts.length * 2)];
+				System.arraycopy(this.roomCounts, 0, larger, 0,
+						this.roomCounts.length);
+				this.roomCounts = larger;
+			}
+			this.roomCounts[roomId] += joined ? 1 : -1;
+			if ((joined && this.roomCounts[roomId] == 1)
+					|| (!joined && this.roomCounts[roomId] == 0)) {
+				PooledBuffer frame = BufferPool.wrap(ByteBuffer
+						.wrap(encode(new SubscriptionMessage(joined, room))));
+				this.forward(null, frame, -1);
+				frame.release();
+			}
+		}
+	}
+
+	/**
+	 * Sends a frame to every established peer other than the sender. Peers on
+	 * the calling loop's shard are sent the frame directly; every other shard
+	 * is handed the frame through its loop's task queue. Chat messages for
+	 * every peer are also kept for peers that lost their connection and may
+	 * come back, before any shard sees the frame, so a peer that comes back in
+	 * the meantime gets the message at least once.
+	 * 
+	 * @param sender
+	 *            the peer the frame came from, or null.
+	 * @param frame
+	 *            the frame to send. It must not be modified afterwards.
+	 *            Recipients take their own references, so the caller still
+	 *            releases its own.
+	 * @param roomId
+	 *            the room identifier, or -1 to send to every peer.
+	 */
+	protected void forward(final RelayConnection sender,
+			final PooledBuffer frame, final int roomId) {
+		if (roomId < 0) {
+			ByteBuffer buffer = frame.buffer();
+			byte type = buffer.get(buffer.position() + 4);
+			if (type == AbstractMessage.TYPE_CHAT_MESSAGE) {
+				for (RelaySession session : this.sessions.values()) {
+					session.keep(frame);
+				}
+			}
+		}
+		for (final RelayShard shard : this.shards) {
+			if (shard.loop.inEventLoop()) {
+				shard.forwardLocal(sender, frame, roomId);
+				continue;
+			}
+			// The task holds a reference until the other shard is done
+			frame.retain();
+			shard.loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					shard.forwardLocal(sender, frame, roomId);
+					frame.release();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Sends a frame to a single peer on any shard.
+	 * 
+	 * @param conn
+	 *            the destination.
+	 * @param header
+	 *            the start of the frame, or null. The caller's reference is
+	 *            handed over.
+	 * @param frame
+	 *            the rest of the frame. It must not be modified afterwards. The
+	 *            caller's reference is handed over.
+	 */
+	protected void sendTo(final RelayConnection conn,
+			final PooledBuffer header, final PooledBuffer frame) {
+		final RelayShard shard = conn.shard;
+		if (shard.loop.inEventLoop()) {
+			shard.send(conn, header, frame);
+			return;
+		}
+		shard.loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				// The peer may have gone away in the meantime
+				if (shard.connections.contains(conn)) {
+					shard.send(conn, header, frame);
+				} else {
+					if (header != null) {
+						header.release();
+					}
+					frame.release();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Returns a buffer holding a received frame that can be queued on other
+	 * connections. Large frames are shared with the receive buffer without
+	 * copying; small ones are copied.
+	 * 
+	 * @param conn
+	 *            the connection the frame was received on.
+	 * @param frame
+	 *            a view of the frame in the connection's receive buffer.
+	 * @return a buffer containing only the frame, with one reference.
+	 */
+	protected PooledBuffer share(final RelayConnection conn,
+			final MessageView frame) {
+		if (frame.getFrameSize() >= SHARE_THRESHOLD) {
+			return conn.readLease.slice(frame.getOffset(), frame.getFrameSize());
+		}
+		return this.copy(frame);
+	}
+
+	/**
+	 * Copies a frame out of a receive buffer into a buffer leased from the
+	 * pool, so it can be queued on other connections.
+	 * 
+	 * @param frame
+	 *            a view of the frame in the receive buffer.
+	 * @return a new buffer containing only the frame, with one reference.
+	 */
+	protected PooledBuffer copy(final MessageView frame) {
+		int size = frame.getFrameSize();
+		PooledBuffer copy = this.pool.lease(size);
+		// The receive buffer belongs to the calling loop, so borrow its
+		// position and limit rather than allocating a duplicate
+		ByteBuffer source = frame.getBuffer();
+		int position = source.position();
+		int limit = source.limit();
+		source.limit(frame.getOffset() + size).position(frame.getOffset());
+		copy.buffer().put(source).flip();
+		source.limit(limit).position(position);
+		return copy;
+	}
+
+	/**
+	 * Decodes a UTF-16BE string from a receive buffer.
+	 * 
+	 * @param buffer
+	 *            the receive buffer.
+	 * @param offset
+	 *            the offset of the string.
+	 * @param length
+	 *            the length of the string in bytes.
+	 * @return the decoded string.
+	 * @throws UnsupportedEncodingException
+	 *             if UTF-16BE is not supported.
+	 */
+	protected static String decodeString(final ByteBuffer buffer,
+			final int offset, final int length)
+			throws UnsupportedEncodingException {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; ++i) {
+			bytes[i] = buffer.get(offset + i);
+		}
+		return new String(bytes, "UTF-16BE");
+	}
+
+	/**
+	 * Encodes a message into a byte array.
+	 * 
+	 * @param message
+	 *            the message to encode.
+	 * @return the encoded frame.
+	 * @throws UnsupportedEncodingException
+	 *             if the message cannot be encoded.
+	 */
+	protected static byte[] encode(final AbstractMessage message)
+			throws UnsupportedEncodingException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					message.getLength() + 4);
+			AbstractMessage.encodeMessage(message, out);
+			return out.toByteArray();
+		} catch (UnsupportedEncodingException uee) {
+			throw uee;
+		} catch (IOException ioe) {
+			// Can't happen with a ByteArrayOutputStream
+			throw new IllegalStateException(ioe);
+		}
+	}
+
+	/**
+	 * Encodes a message that is known to be encodable.
+	 * 
+	 * @param message
+	 *            the message to encode.
+	 * @return the encoded frame.
+	 */
+	protected static byte[] encodeQuietly(final AbstractMessage message) {
+		try {
+			return encode(message);
+		} catch (UnsupportedEncodingException uee) {
+			throw new IllegalStateException(uee);
+		}
+	}
+}
@@ -0,0 +1,535 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.messaging.AckMessage;
+import edu.rutgers.cs.chat.messaging.MessageView;
+import edu.rutgers.cs.chat.messaging.SessionMessage;
+import edu.rutgers.cs.chat.net.BufferPool;
+import edu.rutgers.cs.chat.net.PooledBuffer;
+
+/**
+ * The relay's session with one peer, kept across connections so that a lost
+ * connection can be resumed, the same way two clients keep a session with
+ * each other. The relay takes part in each hop rather than passing sessions
+ * through:
+ * 
+ * <ul>
+ * <li>The relay acknowledges the chat messages it reads from the peer, so
+ * the peer's results complete once the relay has taken a message and handed
+ * it on, rather than once it was written to the peer's socket. After a lost
+ * connection the peer sends again what the relay had not read.</li>
+ * <li>If the peer acknowledges what it reads, the chat messages forwarded to
+ * it are numbered and kept until it has read them, and are sent again if it
+ * comes back on a new connection. A peer that does not acknowledge is sent an
+ * unnumbered stream.</li>
+ * </ul>
+ * 
+ * Messages dropped because the peer's outbound queue is full are never
+ * numbered, so they are lost as before. A session is used from the loops of
+ * its old and new connections, so every method holds the session's lock.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RelaySession {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(RelaySession.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * The username of the peer.
+	 */
+	protected final String username;
+
+	/**
+	 * The relay, for its limits and buffer pool.
+	 */
+	protected final RelayServer relay;
+
+	/**
+	 * The connection the session is attached to, or null.
+	 */
+	protected RelayConnection owner = null;
+
+	/**
+	 * When the session was last detached from a connection.
+	 */
+	protected long detachedAt = System.currentTimeMillis();
+
+	/**
+	 * Set if the peer acknowledges the messages it receives.
+	 */
+	protected boolean peerAcks = false;
+
+	/**
+	 * Set while chat messages are kept for the peer because it lost its
+	 * connection, so other loops can skip the session without its lock.
+	 */
+	protected volatile boolean keeping = false;
+
+	/**
+	 * Token of the stream of messages sent to the peer.
+	 */
+	protected long outToken = SessionMessage.NO_SESSION;
+
+	/**
+	 * Number of the last message sent.
+	 */
+	protected long last = 0;
+
+	/**
+	 * The last messages sent that the peer has not acknowledged, up to and
+	 * including {@link #last}.
+	 */
+	protected final ArrayDeque<Kept> kept = new ArrayDeque<Kept>();
+
+	/**
+	 * Size of the kept messages.
+	 */
+	protected long keptBytes = 0;
+
+	/**
+	 * Token of the stream of messages received from the peer.
+	 */
+	protected long inToken = SessionMessage.NO_SESSION;
+
+	/**
+	 * Number of the last message received.
+	 */
+	protected long received = 0;
+
+	/**
+	 * Number of messages received since the last acknowledgement was sent.
+	 */
+	protected int unacked = 0;
+
+	/**
+	 * Set while an acknowledgement is scheduled.
+	 */
+	protected boolean ackScheduled = false;
+
+	/**
+	 * Sends an acknowledgement a short time after the first message that was
+	 * not acknowledged.
+	 */
+	protected final Runnable flushAck = new Runnable() {
+		@Override
+		public void run() {
+			RelaySession.this.flushAck();
+		}
+	};
+
+	/**
+	 * A kept message. Large frames are copied out of the receive buffer they
+	 * arrived in, so that keeping them doesn't hold on to the whole buffer.
+	 */
+	protected static final class Kept {
+		/**
+		 * The start of the frame, or null.
+		 */
+		final PooledBuffer header;
+
+		/**
+		 * The rest of the frame.
+		 */
+		final PooledBuffer payload;
+
+		/**
+		 * Size of the frame.
+		 */
+		final int size;
+
+		/**
+		 * Keeps a frame, taking a reference to each part.
+		 * 
+		 * @param header
+		 *            the start of the frame, or null.
+		 * @param payload
+		 *            the rest of the frame.
+		 * @param pool
+		 *            the pool to copy large payloads into.
+		 */
+		Kept(final PooledBuffer header, final PooledBuffer payload,
+				final BufferPool pool) {
+			int payloadSize = payload.buffer().remaining();
+			this.header = header == null ? null : header.retain();
+			if (payloadSize < RelayServer.SHARE_THRESHOLD) {
+				this.payload = payload.retain();
+			} else {
+				this.payload = pool.lease(payloadSize);
+				this.payload.buffer().put(payload.buffer().duplicate()).flip();
+			}
+			this.size = payloadSize
+					+ (header == null ? 0 : header.buffer().remaining());
+		}
+
+		/**
+		 * Releases the kept frame.
+		 */
+		void release() {
+			if (this.header != null) {
+				this.header.release();
+			}
+			this.payload.release();
+		}
+	}
+
+	/**
+	 * Creates an empty session.
+	 * 
+	 * @param username
+	 *            the username of the peer.
+	 * @param relay
+	 *            the relay.
+	 */
+	public RelaySession(final String username, final RelayServer relay) {
+		this.username = username;
+		this.relay = relay;
+	}
+
+	/**
+	 * Returns true if a frame of this type is numbered.
+	 * 
+	 * @param frame
+	 *            the frame, or its header.
+	 * @return true for chat, private, routed and room messages.
+	 */
+	static boolean isSequenced(final PooledBuffer frame) {
+		ByteBuffer buffer = frame.buffer();
+		return MessageView.isChat(buffer.get(buffer.position() + 4));
+	}
+
+	/**
+	 * Returns the relay's first session message for a new connection, naming
+	 * the last message received from the peer.
+	 * 
+	 * @return the message to send after the handshake.
+	 */
+	public synchronized SessionMessage offer() {
+		return new SessionMessage(this.inToken, this.received,
+				SessionMessage.FLAG_ACKS);
+	}
+
+	/**
+	 * Attaches the session to a connection once the peer's first session
+	 * message arrives, and queues the relay's second session message on it,
+	 * followed by the kept messages after the last one the peer received. If
+	 * the peer asked for messages that are no longer kept, or for another
+	 * stream, a new stream is started instead. Must be called on the
+	 * connection's loop.
+	 * 
+	 * @param conn
+	 *            the new connection.
+	 * @param token
+	 *            the stream the peer was receiving.
+	 * @param sequence
+	 *            the last message it received.
+	 * @param acks
+	 *            true if the peer acknowledges the messages it receives.
+	 * @throws IOException
+	 *             if the connection cannot be written.
+	 */
+	public synchronized void attach(final RelayConnection conn,
+			final long token, final long sequence, final boolean acks)
+			throws IOException {
+		this.owner = conn;
+		this.keeping = false;
+		this.unacked = 0;
+		this.peerAcks = acks;
+		if (!acks) {
+			this.outToken = SessionMessage.NO_SESSION;
+			this.last = 0;
+			this.clear();
+			return;
+		}
+		long first = this.last - this.kept.size() + 1;
+		if (token != SessionMessage.NO_SESSION && token == this.outToken
+				&& sequence <= this.last && sequence >= first - 1) {
+			this.trim(sequence);
+			conn.enqueue(BufferPool.wrap(ByteBuffer.wrap(RelayServer
+					.encodeQuietly(new SessionMessage(this.outToken,
+							sequence)))));
+			for (Kept entry : this.kept) {
+				conn.enqueue(entry.header == null ? null : entry.header
+						.retain(), entry.payload.retain());
+			}
+			if (!this.kept.isEmpty()) {
+				log.info("Resuming " + conn + " after message " + sequence
+						+ ", sending " + this.kept.size() + " again.");
+			}
+			conn.shard.stats.resent += this.kept.size();
+			return;
+		}
+		if (token != SessionMessage.NO_SESSION && token == this.outToken) {
+			log.warning("Unable to resume " + conn + " after message "
+					+ sequence + ", only " + first + " to " + this.last
+					+ " are kept.");
+		}
+		this.outToken = this.relay.newToken();
+		this.last = 0;
+		this.clear();
+		conn.enqueue(BufferPool.wrap(ByteBuffer.wrap(RelayServer
+				.encodeQuietly(new SessionMessage(this.outToken, 0)))));
+	}
+
+	/**
+	 * Detaches the session from a connection that was closed.
+	 * 
+	 * @param conn
+	 *            the closed connection.
+	 */
+	public synchronized void detach(final RelayConnection conn) {
+		if (conn == this.owner) {
+			this.owner = null;
+			this.detachedAt = System.currentTimeMillis();
+			this.keeping = this.outToken != SessionMessage.NO_SESSION;
+		}
+	}
+
+	/**
+	 * Returns true if the session has been detached for longer than the
+	 * relay keeps sessions.
+	 * 
+	 * @param now
+	 *            the current time.
+	 * @return true if the session can be dropped.
+	 */
+	public synchronized boolean isExpired(final long now) {
+		return this.owner == null
+				&& now - this.detachedAt >= this.relay.config
+						.getSessionLinger() * 1000L;
+	}
+
+	/**
+	 * Numbers a chat message about to be queued on a connection and keeps it
+	 * until the peer acknowledges it, dropping the oldest kept messages once
+	 * the relay's limits are reached. Does nothing unless the session is
+	 * attached to the connection and the peer acknowledges messages.
+	 * 
+	 * @param conn
+	 *            the connection.
+	 * @param header
+	 *            the start of the frame, or null.
+	 * @param payload
+	 *            the rest of the frame.
+	 */
+	public synchronized void sent(final RelayConnection conn,
+			final PooledBuffer header, final PooledBuffer payload) {
+		if (conn != this.owner || this.outToken == SessionMessage.NO_SESSION) {
+			return;
+		}
+		this.add(header, payload);
+	}
+
+	/**
+	 * Numbers and keeps a chat message for every peer while the peer is not
+	 * connected, so it is sent if the peer comes back.
+	 * 
+	 * @param frame
+	 *            the message.
+	 */
+	public void keep(final PooledBuffer frame) {
+		if (!this.keeping) {
+			return;
+		}
+		synchronized (this) {
+			if (this.keeping) {
+				this.add(null, frame);
+			}
+		}
+	}
+
+	/**
+	 * Numbers a message and keeps it, dropping the oldest kept messages once
+	 * the relay's limits are reached.
+	 * 
+	 * @param header
+	 *            the start of the frame, or null.
+	 * @param payload
+	 *            the rest of the frame.
+	 */
+	protected void add(final PooledBuffer header, final PooledBuffer payload) {
+		++this.last;
+		Kept added = new Kept(header, payload, this.relay.pool);
+		this.kept.addLast(added);
+		this.keptBytes += added.size;
+		RelayConfig config = this.relay.config;
+		while (this.kept.size() > config.getKeepFrames()
+				|| (this.keptBytes > config.getKeepBytes() && this.kept.size() > 1)) {
+			Kept oldest = this.kept.removeFirst();
+			this.keptBytes -= oldest.size;
+			oldest.release();
+		}
+	}
+
+	/**
+	 * Drops the kept messages the peer has read.
+	 * 
+	 * @param conn
+	 *            the connection the acknowledgement arrived on.
+	 * @param token
+	 *            the stream being acknowledged.
+	 * @param sequence
+	 *            the last message read.
+	 */
+	public synchronized void acknowledged(final RelayConnection conn,
+			final long token, final long sequence) {
+		if (conn != this.owner || token != this.outToken) {
+			return;
+		}
+		this.trim(Math.min(sequence, this.last));
+	}
+
+	/**
+	 * Handles the peer's second session message, which says where its
+	 * numbering continues on this connection.
+	 * 
+	 * @param conn
+	 *            the connection the message arrived on.
+	 * @param token
+	 *            the peer's stream.
+	 * @param sequence
+	 *            the number of the last message before the new ones.
+	 */
+	public synchronized void started(final RelayConnection conn,
+			final long token, final long sequence) {
+		if (conn != this.owner) {
+			return;
+		}
+		this.inToken = token;
+		this.received = sequence;
+		this.unacked = 0;
+	}
+
+	/**
+	 * Counts a chat message read from the peer. Returns an acknowledgement
+	 * once enough messages have arrived since the last one, and otherwise
+	 * makes sure one is scheduled on the connection's loop.
+	 * 
+	 * @param conn
+	 *            the connection the message arrived on.
+	 * @return the acknowledgement to send now, or null.
+	 */
+	public synchronized AckMessage received(final RelayConnection conn) {
+		if (conn != this.owner || this.inToken == SessionMessage.NO_SESSION) {
+			return null;
+		}
+		++this.received;
+		if (++this.unacked >= this.relay.config.getAckFrames()) {
+			return this.ack();
+		}
+		if (!this.ackScheduled) {
+			this.ackScheduled = true;
+			conn.shard.loop.schedule(this.flushAck, this.relay.config
+					.getAckMillis());
+		}
+		return null;
+	}
+
+	/**
+	 * Returns an acknowledgement of the messages received so far.
+	 * 
+	 * @return the acknowledgement.
+	 */
+	protected AckMessage ack() {
+		this.unacked = 0;
+		return new AckMessage(this.inToken, this.received);
+	}
+
+	/**
+	 * Sends an acknowledgement if messages arrived since the last one.
+	 */
+	protected void flushAck() {
+		AckMessage ack;
+		RelayConnection conn;
+		synchronized (this) {
+			this.ackScheduled = false;
+			if (this.unacked == 0 || this.owner == null) {
+				return;
+			}
+			ack = this.ack();
+			conn = this.owner;
+		}
+		this.relay.sendAck(conn, ack);
+	}
+
+	/**
+	 * Drops the kept messages up to one the peer has read.
+	 * 
+	 * @param sequence
+	 *            the number of the last message read.
+	 */
+	protected void trim(final long sequence) {
+		long first = this.last - this.kept.size() + 1;
+		for (; first <= sequence && !this.kept.isEmpty(); ++first) {
+			Kept oldest = this.kept.removeFirst();
+			this.keptBytes -= oldest.size;
+			oldest.release();
+		}
+	}
+
+	/**
+	 * Releases every kept message.
+	 */
+	protected void clear() {
+		for (Kept entry : this.kept) {
+			entry.release();
+		}
+		this.kept.clear();
+		this.keptBytes = 0;
+	}
+
+	/**
+	 * Releases the kept messages once the session is dropped.
+	 */
+	public synchronized void close() {
+		this.keeping = false;
+		this.clear();
+	}
+
+	/**
+	 * Returns the number of messages waiting for the peer's acknowledgement.
+	 * 
+	 * @return the number of kept messages.
+	 */
+	public synchronized int getKeptCount() {
+		return this.kept.size();
+	}
+
+	@Override
+	public synchronized String toString() {
+		return this.username + " sent=" + this.last + " kept="
+				+ this.kept.size() + " received=" + this.received;
+	}
+}
@@ -0,0 +1,949 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.relay;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.rutgers.cs.chat.messaging.AbstractMessage;
+import edu.rutgers.cs.chat.messaging.AckMessage;
+import edu.rutgers.cs.chat.messaging.FragmentMessage;
+import edu.rutgers.cs.chat.messaging.FrameLimits;
+import edu.rutgers.cs.chat.messaging.HandshakeMessage;
+import edu.rutgers.cs.chat.messaging.MessageView;
+import edu.rutgers.cs.chat.messaging.Reassembler;
+import edu.rutgers.cs.chat.messaging.SessionMessage;
+import edu.rutgers.cs.chat.net.BufferPool;
+import edu.rutgers.cs.chat.net.EventLoop;
+import edu.rutgers.cs.chat.net.PooledBuffer;
+import edu.rutgers.cs.chat.util.RateLimiter;
+
+/**
+ * The part of a {@link RelayServer} owned by a single {@link EventLoop}. Each
+ * peer is assigned to one shard when it is accepted and stays there, so the
+ * shard's connections, buffers and counters are only ever used by the shard's
+ * loop thread and need no locking. Frames for peers on other shards are handed
+ * to those shards' loops through the relay.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RelayShard {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(RelayShard.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Size of the length and type fields at the start of every frame.
+	 */
+	protected static final int HEADER_LENGTH = MessageView.HEADER_LENGTH;
+
+	/**
+	 * How long peers with unsent frames are given to take them when the relay
+	 * shuts down, in milliseconds.
+	 */
+	protected static final long CLOSE_FLUSH_MILLIS = 500;
+
+	/**
+	 * Where the fragments of one large message are forwarded. Decided from
+	 * the first fragment, which holds the start of the original message.
+	 */
+	protected static final class FragmentRoute {
+		/**
+		 * Room the message was sent to, or -1 for all peers.
+		 */
+		final int roomId;
+
+		/**
+		 * Destination of a routed private message, or null.
+		 */
+		final RelayConnection target;
+
+		/**
+		 * TTL of a routed private message as received.
+		 */
+		final int ttl;
+
+		/**
+		 * Creates a new route.
+		 * 
+		 * @param roomId
+		 *            the room, or -1 for all peers.
+		 * @param target
+		 *            the destination of a routed message, or null.
+		 * @param ttl
+		 *            the TTL of a routed message.
+		 */
+		FragmentRoute(final int roomId, final RelayConnection target,
+				final int ttl) {
+			this.roomId = roomId;
+			this.target = target;
+			this.ttl = ttl;
+		}
+	}
+
+	/**
+	 * The relay this shard belongs to.
+	 */
+	protected final RelayServer relay;
+
+	/**
+	 * The loop that runs this shard.
+	 */
+	protected final EventLoop loop;
+
+	/**
+	 * Counters for this shard, summed by the relay for its statistics output.
+	 */
+	protected final RelayStats stats = new RelayStats();
+
+	/**
+	 * Every open connection on this shard.
+	 */
+	protected final List<RelayConnection> connections = new ArrayList<RelayConnection>();
+
+	/**
+	 * Connections that failed while processing the current event, closed once
+	 * the event has been handled.
+	 */
+	protected final List<RelayConnection> failed = new ArrayList<RelayConnection>();
+
+	/**
+	 * View reused for every received frame.
+	 */
+	protected final MessageView view = new MessageView();
+
+	/**
+	 * Creates a new shard.
+	 * 
+	 * @param relay
+	 *            the relay the shard belongs to.
+	 * @param loop
+	 *            the loop that runs the shard.
+	 */
+	public RelayShard(final RelayServer relay, final EventLoop loop) {
+		this.relay = relay;
+		this.loop = loop;
+	}
+
+	/**
+	 * Hands a newly-accepted channel to this shard. May be called from any
+	 * thread; the channel is registered on the shard's loop.
+	 * 
+	 * @param channel
+	 *            the accepted channel, in non-blocking mode.
+	 */
+	public void adopt(final SocketChannel channel) {
+		final RelayConnection conn;
+		try {
+			conn = new RelayConnection(channel, this, this.relay.pool,
+					this.relay.config.getBufferSize(), this.relay.inbound
+							.newAccount(channel.socket().getInetAddress()
+									.getHostAddress(), Math.max(
+									this.relay.config.getBufferSize(),
+									this.relay.config.getMaxFrameSize())),
+					new RateLimiter(this.relay.config.getFrameRate(),
+							this.relay.config.getByteRate()));
+		} catch (IOException ioe) {
+			log.warning("Refusing " + channel.socket().getInetAddress()
+					+ ": " + ioe.getMessage());
+			try {
+				channel.close();
+			} catch (IOException ioe2) {
+				// Ignored, since we're closing anyways
+			}
+			return;
+		}
+		this.loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				RelayShard.this.register(conn);
+			}
+		});
+	}
+
+	/**
+	 * Registers a connection with the loop and sends the relay's handshake.
+	 * 
+	 * @param conn
+	 *            the new connection.
+	 */
+	protected void register(final RelayConnection conn) {
+		try {
+			conn.key = this.loop.register(conn.channel, SelectionKey.OP_READ,
+					conn);
+			conn.enqueue(BufferPool.wrap(ByteBuffer
+					.wrap(this.relay.handshakeFrame)));
+		} catch (IOException ioe) {
+			log.warning("Unable to handshake with " + conn + ": "
+					+ ioe.getMessage());
+			conn.close();
+			return;
+		}
+		this.connections.add(conn);
+		this.relay.peerCount.incrementAndGet();
+		++this.stats.accepted;
+		log.fine("Accepted " + conn + " on " + this.loop.getName());
+	}
+
+	/**
+	 * Handles a ready connection.
+	 * 
+	 * @param conn
+	 *            the connection.
+	 * @param key
+	 *            the connection's selection key.
+	 */
+	protected void ready(final RelayConnection conn, final SelectionKey key) {
+		try {
+			if (key.isWritable()) {
+				conn.flush();
+			}
+			if (key.isReadable()) {
+				this.read(conn);
+			}
+		} catch (IOException ioe) {
+			log.fine(conn + ": " + ioe.getMessage());
+			this.failed.add(conn);
+		}
+		this.closeFailed();
+	}
+
+	/**
+	 * Reads from the connection and handles the complete frames received.
+	 * 
+	 * @param conn
+	 *            the readable connection.
+	 * @throws IOException
+	 *             if the channel is closed or the peer sends an invalid frame.
+	 */
+	protected void read(final RelayConnection conn) throws IOException {
+		int read = conn.channel.read(conn.readBuffer);
+		if (read < 0) {
+			throw new IOException("Connection closed.");
+		}
+		this.stats.bytesIn += read;
+		conn.readBuffer.flip();
+		this.process(conn);
+	}
+
+	/**
+	 * Handles the complete frames in the connection's receive buffer, which
+	 * must be ready for reading. Frames outside their type's length limits are
+	 * thrown away as they arrive, without being buffered.
+	 * 
+	 * At most {@link RelayConfig#getReadBudget()} frames are handled at a time.
+	 * If more are waiting, reading from the peer is paused and the rest are
+	 * handled after every other ready peer has had its turn. Reading is also
+	 * paused while the peer is over its rate limits, for as long as it takes
+	 * to earn the next frame.
+	 * 
+	 * @param conn
+	 *            the connection.
+	 * @throws IOException
+	 *             if the peer sent an invalid frame.
+	 */
+	protected void process(final RelayConnection conn) throws IOException {
+		ByteBuffer buffer = conn.readBuffer;
+		FrameLimits limits = this.relay.frameLimits;
+		int budget = this.relay.config.getReadBudget();
+		long now = System.nanoTime();
+		while (true) {
+			if (conn.discard > 0) {
+				int skipped = Math.min(conn.discard, buffer.remaining());
+				buffer.position(buffer.position() + skipped);
+				conn.discard -= skipped;
+				if (conn.discard > 0) {
+					break;
+				}
+			}
+			if (buffer.remaining() < HEADER_LENGTH) {
+				break;
+			}
+			int start = buffer.position();
+			int length = buffer.getInt(start);
+			byte type = buffer.get(start + 4);
+			boolean accepted = limits.accepts(type, length);
+			if (!accepted
+					&& (length < 1 || length > limits.getMaxSkip() - 4)) {
+				throw new IOException("Invalid frame length " + length
+						+ " for type " + type);
+			}
+			int frameSize = length + 4;
+			if (accepted && buffer.remaining() < frameSize) {
+				if (frameSize > buffer.capacity()) {
+					// Grow the buffer to fit this frame
+					conn.replaceReadBuffer(frameSize);
+					return;
+				}
+				break;
+			}
+			if (budget == 0) {
+				// Let the other peers have a turn
+				++this.stats.deferred;
+				this.pause(conn, 0);
+				break;
+			}
+			long delay = conn.limiter.admit(frameSize, now);
+			if (delay > 0) {
+				++this.stats.throttled;
+				if (!conn.throttled) {
+					conn.throttled = true;
+					++this.stats.throttledPeers;
+				}
+				this.pause(conn, delay);
+				break;
+			}
+			--budget;
+			if (!accepted) {
+				++this.stats.rejected;
+				conn.discard = frameSize;
+				continue;
+			}
+			++this.stats.framesIn;
+			this.handleFrame(conn, buffer, start, frameSize);
+			buffer.position(start + frameSize);
+			if (this.failed.contains(conn)) {
+				return;
+			}
+		}
+		conn.compactReadBuffer();
+	}
+
+	/**
+	 * Stops reading from a connection for a while. Frames already received
+	 * are handled once the pause is over.
+	 * 
+	 * @param conn
+	 *            the connection.
+	 * @param delayMillis
+	 *            how long to pause, or 0 to resume once the current readiness
+	 *            round is finished.
+	 */
+	protected void pause(final RelayConnection conn, final long delayMillis) {
+		conn.readPaused = true;
+		conn.updateInterest();
+		if (delayMillis == 0) {
+			this.loop.execute(conn.resume);
+		} else {
+			this.loop.schedule(conn.resume, delayMillis);
+		}
+	}
+
+	/**
+	 * Handles the frames a paused connection has already received and starts
+	 * reading from it again, unless it has to be paused again.
+	 * 
+	 * @param conn
+	 *            the paused connection.
+	 */
+	protected void resume(final RelayConnection conn) {
+		if (conn.readBuffer == null) {
+			// Closed while paused
+			return;
+		}
+		conn.readPaused = false;
+		if (conn.throttled) {
+			conn.throttled = false;
+			--this.stats.throttledPeers;
+		}
+		try {
+			conn.readBuffer.flip();
+			this.process(conn);
+			conn.updateInterest();
+		} catch (IOException ioe) {
+			log.fine(conn + ": " + ioe.getMessage());
+			this.failed.add(conn);
+		}
+		this.closeFailed();
+	}
+
+	/**
+	 * Handles a single complete frame.
+	 * 
+	 * @param conn
+	 *            the connection the frame was received on.
+	 * @param buffer
+	 *            the receive buffer.
+	 * @param start
+	 *            the offset of the frame in the buffer.
+	 * @param frameSize
+	 *            the size of the frame including the length field.
+	 * @throws IOException
+	 *             if the frame is invalid.
+	 */
+	protected void handleFrame(final RelayConnection conn,
+			final ByteBuffer buffer, final int start, final int frameSize)
+			throws IOException {
+		MessageView frame = this.view.wrap(buffer, start);
+		byte type = frame.getType();
+
+		if (!conn.isEstablished()) {
+			if (conn.username == null) {
+				if (type != AbstractMessage.TYPE_HANDSHAKE_MESSAGE) {
+					throw new IOException(
+							"Received non-handshake message type " + type);
+				}
+				this.handshake(conn, buffer, start, frameSize);
+				return;
+			}
+			if (type != AbstractMessage.TYPE_SESSION_MESSAGE) {
+				throw new IOException(
+						"Received non-session message after handshake, type "
+								+ type);
+			}
+			this.attach(conn, buffer, frame.getPayloadOffset());
+			return;
+		}
+
+		if (frame.isChat()) {
+			if (!frame.isWellFormed()) {
+				throw new IOException("Malformed message type " + type);
+			}
+			// Duplicates are counted too, since the peer numbered them
+			AckMessage ack = conn.session.received(conn);
+			if (ack != null) {
+				this.sendAck(conn, BufferPool.wrap(ByteBuffer
+						.wrap(RelayServer.encodeQuietly(ack))));
+			}
+			if (!this.relay.markSeen(frame.getMessageId())) {
+				++this.stats.duplicates;
+				return;
+			}
+		}
+
+		switch (type) {
+		case AbstractMessage.TYPE_CHAT_MESSAGE: {
+			PooledBuffer payload = this.relay.share(conn, frame);
+			this.relay.forward(conn, payload, -1);
+			payload.release();
+			break;
+		}
+		case AbstractMessage.TYPE_ROOM_CHAT_MESSAGE: {
+			int roomId = this.relay.roomRegistry.lookup(frame.getRoom());
+			if (roomId < 0) {
+				// Nobody has ever joined the room
+				return;
+			}
+			PooledBuffer payload = this.relay.share(conn, frame);
+			this.relay.forward(conn, payload, roomId);
+			payload.release();
+			break;
+		}
+		case AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE: {
+			int ttl = frame.getTtl();
+			String destination = frame.getDestinationUsername();
+			RelayConnection target = this.relay.byUsername.get(destination);
+			if (target == null || target == conn || ttl <= 1) {
+				log.fine("Dropping routed message for " + destination);
+				return;
+			}
+			if (frame.getFrameSize() < RelayServer.SHARE_THRESHOLD) {
+				PooledBuffer forwarded = this.relay.copy(frame);
+				this.view.wrap(forwarded.buffer(), 0).setTtl(ttl - 1);
+				this.relay.sendTo(target, null, forwarded);
+				return;
+			}
+			// Only the fixed fields are copied to carry the new TTL
+			int headerLength = MessageView.ROUTED_HEADER_LENGTH;
+			PooledBuffer header = this.relay.pool.lease(headerLength);
+			for (int i = 0; i < headerLength; ++i) {
+				header.buffer().put(i, buffer.get(start + i));
+			}
+			this.view.wrap(header.buffer(), 0).setTtl(ttl - 1);
+			PooledBuffer payload = conn.readLease.slice(start + headerLength,
+					frameSize - headerLength);
+			this.relay.sendTo(target, header, payload);
+			break;
+		}
+		case AbstractMessage.TYPE_SUBSCRIPTION_MESSAGE: {
+			boolean joined = buffer.get(frame.getPayloadOffset()) != 0;
+			String room = RelayServer.decodeString(buffer,
+					frame.getPayloadOffset() + 1, frame.getPayloadLength() - 1);
+			this.subscribe(conn, room, joined);
+			break;
+		}
+		case AbstractMessage.TYPE_FRAGMENT_MESSAGE:
+			this.fragment(conn, buffer, start, frameSize);
+			break;
+		case AbstractMessage.TYPE_DISCONNECT_MESSAGE:
+			log.fine(conn + " quit.");
+			this.failed.add(conn);
+			break;
+		case AbstractMessage.TYPE_SESSION_MESSAGE: {
+			int offset = frame.getPayloadOffset();
+			conn.session.started(conn, buffer.getLong(offset), buffer
+					.getLong(offset + 8));
+			break;
+		}
+		case AbstractMessage.TYPE_ACK_MESSAGE: {
+			int offset = frame.getPayloadOffset();
+			conn.session.acknowledged(conn, buffer.getLong(offset), buffer
+					.getLong(offset + 8));
+			++this.stats.acksReceived;
+			break;
+		}
+		case AbstractMessage.TYPE_KEEPALIVE_MESSAGE:
+		case AbstractMessage.TYPE_CLIENT_EXCHANGE_MESSAGE:
+		case AbstractMessage.TYPE_PRIVATE_CHAT_MESSAGE:
+		case AbstractMessage.TYPE_FILE_OFFER_MESSAGE:
+		case AbstractMessage.TYPE_FILE_ACCEPT_MESSAGE:
+		case AbstractMessage.TYPE_FILE_CHUNK_MESSAGE:
+		case AbstractMessage.TYPE_HISTORY_REQUEST_MESSAGE:
+		case AbstractMessage.TYPE_HISTORY_BATCH_MESSAGE:
+			// Nothing for a relay to do with these; files are only exchanged
+			// between directly-connected clients, and a relay keeps no history
+			break;
+		default:
+			log.warning("Unexpected message type from " + conn + ": " + type);
+			break;
+		}
+	}
+
+	/**
+	 * Forwards one fragment of a large message. The first fragment decides
+	 * where the message goes, the same way a whole chat, room chat or routed
+	 * private message would be forwarded, and the rest follow it. Fragments
+	 * are forwarded as they arrive rather than reassembled, so the relay never
+	 * holds more than one fragment of a message.
+	 * 
+	 * @param conn
+	 *            the connection the fragment arrived on.
+	 * @param buffer
+	 *            the receive buffer.
+	 * @param start
+	 *            the offset of the frame in the buffer.
+	 * @param frameSize
+	 *            the size of the frame, including the length field.
+	 * @throws IOException
+	 *             if the fragment is malformed.
+	 */
+	protected void fragment(final RelayConnection conn,
+			final ByteBuffer buffer, final int start, final int frameSize)
+			throws IOException {
+		int fieldsStart = start + HEADER_LENGTH;
+		int chunkStart = fieldsStart + FragmentMessage.FIELDS_LENGTH;
+		int chunkLength = start + frameSize - chunkStart;
+		if (chunkLength < 0) {
+			throw new IOException("Malformed fragment from " + conn);
+		}
+		Long fragmentId = Long.valueOf(buffer.getLong(fieldsStart));
+		int totalLength = buffer.getInt(fieldsStart + 8);
+		int offset = buffer.getInt(fieldsStart + 12);
+		boolean last = offset + chunkLength >= totalLength;
+
+		FragmentRoute route;
+		if (offset == 0) {
+			route = this.routeFragments(conn, buffer, chunkStart, chunkLength,
+					totalLength);
+			if (route != null && !last) {
+				if (conn.fragmentRoutes.size() >= Reassembler.MAX_PENDING) {
+					Iterator<FragmentRoute> oldest = conn.fragmentRoutes
+							.values().iterator();
+					oldest.next();
+					oldest.remove();
+				}
+				conn.fragmentRoutes.put(fragmentId, route);
+			}
+		} else if (last) {
+			route = conn.fragmentRoutes.remove(fragmentId);
+		} else {
+			route = conn.fragmentRoutes.get(fragmentId);
+		}
+		if (route == null) {
+			return;
+		}
+
+		MessageView frame = this.view.wrap(buffer, start);
+		if (route.target == null) {
+			PooledBuffer payload = this.relay.share(conn, frame);
+			this.relay.forward(conn, payload, route.roomId);
+			payload.release();
+		} else if (offset == 0) {
+			// The first fragment carries the TTL of the routed message
+			PooledBuffer forwarded = this.relay.copy(frame);
+			this.view.wrap(forwarded.buffer(), chunkStart - start).setTtl(
+					route.ttl - 1);
+			this.relay.sendTo(route.target, null, forwarded);
+		} else {
+			this.relay.sendTo(route.target, null, this.relay.share(conn, frame));
+		}
+	}
+
+	/**
+	 * Decides where a fragmented message goes from the start of the original
+	 * message, which is at the beginning of the first fragment.
+	 * 
+	 * @param conn
+	 *            the connection the fragment arrived on.
+	 * @param buffer
+	 *            the receive buffer.
+	 * @param chunkStart
+	 *            the offset of the original message in the buffer.
+	 * @param chunkLength
+	 *            the number of bytes of the original message in the fragment.
+	 * @param totalLength
+	 *            the size of the original message.
+	 * @return the route for the message's fragments, or null if they should
+	 *         be dropped.
+	 */
+	protected FragmentRoute routeFragments(final RelayConnection conn,
+			final ByteBuffer buffer, final int chunkStart,
+			final int chunkLength, final int totalLength) {
+		MessageView inner = this.view.wrap(buffer, chunkStart);
+		if (chunkLength < HEADER_LENGTH || inner.getFrameSize() != totalLength
+				|| !inner.isChat() || !inner.isWellFormed(chunkLength)) {
+			log.warning("Dropping unroutable fragmented message from " + conn);
+			return null;
+		}
+		if (!this.relay.markSeen(inner.getMessageId())) {
+			++this.stats.duplicates;
+			return null;
+		}
+		switch (inner.getType()) {
+		case AbstractMessage.TYPE_CHAT_MESSAGE:
+			return new FragmentRoute(-1, null, 0);
+		case AbstractMessage.TYPE_ROOM_CHAT_MESSAGE: {
+			int roomId = this.relay.roomRegistry.lookup(inner.getRoom());
+			return roomId < 0 ? null : new FragmentRoute(roomId, null, 0);
+		}
+		case AbstractMessage.TYPE_ROUTED_PRIVATE_MESSAGE: {
+			int ttl = inner.getTtl();
+			String destination = inner.getDestinationUsername();
+			RelayConnection target = this.relay.byUsername.get(destination);
+			if (target == null || target == conn || ttl <= 1) {
+				log.fine("Dropping routed message for " + destination);
+				return null;
+			}
+			return new FragmentRoute(-1, target, ttl);
+		}
+		default:
+			// Private chat is not meant for a relay
+			return null;
+		}
+	}
+
+	/**
+	 * Handles the handshake from a new peer.
+	 * 
+	 * @param conn
+	 *            the new peer.
+	 * @param buffer
+	 *            the receive buffer.
+	 * @param start
+	 *            the offset of the handshake frame.
+	 * @param frameSize
+	 *            the size of the handshake frame.
+	 * @throws IOException
+	 *             if the handshake cannot be decoded.
+	 */
+	protected void handshake(final RelayConnection conn,
+			final ByteBuffer buffer, final int start, final int frameSize)
+			throws IOException {
+		// Handshakes are rare, so just use the normal decoder
+		AbstractMessage message = AbstractMessage
+				.decodeMessage(new ByteArrayInputStream(this.view.wrap(buffer,
+						start).toByteArray()));
+		if (!(message instanceof HandshakeMessage)) {
+			throw new IOException("Invalid handshake.");
+		}
+		HandshakeMessage handshake = (HandshakeMessage) message;
+		conn.username = handshake.getUsername();
+		conn.listenPort = handshake.getListenPort();
+		log.info("Handshake from " + conn);
+		conn.enqueue(BufferPool.wrap(ByteBuffer.wrap(RelayServer
+				.encodeQuietly(this.relay.session(conn.username).offer()))));
+	}
+
+	/**
+	 * Handles the peer's first session message, which names the last message
+	 * it received from the relay. Attaches the peer to its session, which
+	 * resumes or restarts the stream sent to it, and only then lets the rest
+	 * of the relay send it anything.
+	 * 
+	 * @param conn
+	 *            the peer.
+	 * @param buffer
+	 *            the receive buffer.
+	 * @param offset
+	 *            the offset of the session message's payload.
+	 * @throws IOException
+	 *             if the peer cannot be written.
+	 */
+	protected void attach(final RelayConnection conn, final ByteBuffer buffer,
+			final int offset) throws IOException {
+		long token = buffer.getLong(offset);
+		long sequence = buffer.getLong(offset + 8);
+		boolean acks = (buffer.get(offset + 16) & SessionMessage.FLAG_ACKS) != 0;
+		RelaySession session = this.relay.session(conn.username);
+		// Set first so the session is detached if the peer can't be written
+		conn.session = session;
+		session.attach(conn, token, sequence, acks);
+		this.relay.established(conn);
+	}
+
+	/**
+	 * Records a peer's subscription change. Joins are dropped if the peer is
+	 * already subscribed to as many rooms as it may be, or if the relay cannot
+	 * keep track of any more rooms.
+	 * 
+	 * @param conn
+	 *            the peer.
+	 * @param room
+	 *            the name of the room.
+	 * @param joined
+	 *            true if the peer joined, false if it left.
+	 * @throws UnsupportedEncodingException
+	 *             if the relay's own subscription cannot be encoded.
+	 */
+	protected void subscribe(final RelayConnection conn, final String room,
+			final boolean joined) throws UnsupportedEncodingException {
+		int roomId = this.relay.roomRegistry.lookup(room);
+		if (roomId < 0 ? !joined : conn.rooms.get(roomId) == joined) {
+			return;
+		}
+		if (joined) {
+			if (conn.rooms.cardinality() >= this.relay.config.getPeerRooms()) {
+				log.warning(conn + " is subscribed to too many rooms, dropping #"
+						+ room);
+				return;
+			}
+			if (roomId < 0) {
+				roomId = this.relay.roomRegistry.intern(room);
+				if (roomId < 0) {
+					log.warning("Too many rooms, dropping #" + room + " from "
+							+ conn);
+					return;
+				}
+			}
+		}
+		conn.rooms.set(roomId, joined);
+		this.relay.subscribe(room, roomId, joined);
+	}
+
+	/**
+	 * Sends a frame to every established peer on this shard other than the
+	 * sender. If a room is specified, only peers subscribed to the room receive
+	 * the frame. Must be called on this shard's loop.
+	 * 
+	 * @param sender
+	 *            the peer the frame came from, or null.
+	 * @param frame
+	 *            the frame to send. Each recipient takes its own reference, so
+	 *            the caller keeps its own.
+	 * @param roomId
+	 *            the room identifier, or -1 to send to every peer.
+	 */
+	protected void forwardLocal(final RelayConnection sender,
+			final PooledBuffer frame, final int roomId) {
+		for (RelayConnection conn : this.connections) {
+			if (conn == sender || !conn.isEstablished()) {
+				continue;
+			}
+			if (roomId >= 0 && !conn.rooms.get(roomId)) {
+				continue;
+			}
+			this.send(conn, frame.retain());
+		}
+	}
+
+	/**
+	 * Queues a frame on a connection owned by this shard. If the connection
+	 * already has too much data queued, the frame is dropped. Must be called
+	 * on this shard's loop.
+	 * 
+	 * @param conn
+	 *            the destination.
+	 * @param frame
+	 *            the frame to send. The caller's reference is handed to the
+	 *            connection, or released if the frame is dropped.
+	 */
+	protected void send(final RelayConnection conn, final PooledBuffer frame) {
+		this.send(conn, null, frame);
+	}
+
+	/**
+	 * Queues a frame made of a header for this connection and a shared
+	 * payload. If the connection already has too much data queued, the frame
+	 * is dropped. Must be called on this shard's loop.
+	 * 
+	 * @param conn
+	 *            the destination.
+	 * @param header
+	 *            the start of the frame, or null.
+	 * @param payload
+	 *            the rest of the frame.
+	 */
+	protected void send(final RelayConnection conn, final PooledBuffer header,
+			final PooledBuffer payload) {
+		int size = payload.buffer().remaining()
+				+ (header == null ? 0 : header.buffer().remaining());
+		if (conn.queuedBytes + size > this.relay.config.getMaxQueuedBytes()) {
+			++this.stats.dropped;
+			if (header != null) {
+				header.release();
+			}
+			payload.release();
+			return;
+		}
+		// Number the message before the queue can write and release it
+		if (RelaySession.isSequenced(header == null ? payload : header)) {
+			conn.session.sent(conn, header, payload);
+		}
+		try {
+			conn.enqueue(header, payload);
+			++this.stats.framesOut;
+			this.stats.bytesOut += size;
+		} catch (IOException ioe) {
+			log.fine(conn + ": " + ioe.getMessage());
+			this.failed.add(conn);
+		}
+	}
+
+	/**
+	 * Queues an acknowledgement for a peer, even if the peer's queue is full.
+	 * Must be called on this shard's loop.
+	 * 
+	 * @param conn
+	 *            the destination.
+	 * @param frame
+	 *            the encoded acknowledgement. The caller's reference is
+	 *            handed over.
+	 */
+	protected void sendAck(final RelayConnection conn, final PooledBuffer frame) {
+		try {
+			conn.enqueue(frame);
+			++this.stats.acksSent;
+		} catch (IOException ioe) {
+			log.fine(conn + ": " + ioe.getMessage());
+			this.failed.add(conn);
+		}
+	}
+
+	/**
+	 * Closes every connection that failed while handling the last event.
+	 */
+	protected void closeFailed() {
+		while (!this.failed.isEmpty()) {
+			RelayConnection conn = this.failed.remove(this.failed.size() - 1);
+			if (!this.connections.remove(conn)) {
+				continue;
+			}
+			conn.close();
+			this.relay.peerCount.decrementAndGet();
+			++this.stats.closed;
+			if (conn.throttled) {
+				--this.stats.throttledPeers;
+			}
+			if (conn.username != null) {
+				this.relay.byUsername.remove(conn.username, conn);
+			}
+			if (conn.session != null) {
+				conn.session.detach(conn);
+			}
+			// Leave any rooms only this peer was keeping us in
+			for (int roomId = conn.rooms.nextSetBit(0); roomId >= 0; roomId = conn.rooms
+					.nextSetBit(roomId + 1)) {
+				try {
+					this.subscribe(conn,
+							this.relay.roomRegistry.getName(roomId), false);
+				} catch (UnsupportedEncodingException uee) {
+					log.warning("Unable to encode subscription: "
+							+ uee.getMessage());
+				}
+			}
+			log.info("Closed " + conn);
+		}
+	}
+
+	/**
+	 * Sends the frame to every connection on this shard and closes them. A
+	 * connection is only closed once everything queued for it has been
+	 * written, so that peers with a backlog still get the frame, or after
+	 * {@link #CLOSE_FLUSH_MILLIS} if it stops taking data. Must be called on
+	 * this shard's loop.
+	 * 
+	 * @param goodbye
+	 *            the frame to send before closing.
+	 */
+	protected void closeAll(final byte[] goodbye) {
+		List<RelayConnection> backlogged = new ArrayList<RelayConnection>();
+		for (RelayConnection conn : this.connections) {
+			try {
+				conn.enqueue(BufferPool.wrap(ByteBuffer.wrap(goodbye)));
+				conn.flush();
+				if (conn.queued > 0) {
+					backlogged.add(conn);
+					continue;
+				}
+			} catch (IOException ioe) {
+				// Ignored, we're shutting down
+			}
+			conn.close();
+		}
+		// The loop is stopping, so poll the rest rather than waiting to be
+		// told they can be written
+		long deadline = System.currentTimeMillis() + CLOSE_FLUSH_MILLIS;
+		while (!backlogged.isEmpty() && System.currentTimeMillis() < deadline) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException ie) {
+				break;
+			}
+			for (Iterator<RelayConnection> iter = backlogged.iterator(); iter
+					.hasNext();) {
+				RelayConnection conn = iter.next();
+				try {
+					conn.flush();
+					if (conn.queued > 0) {
+						continue;
+					}
+				} catch (IOException ioe) {
+					// Ignored, we're shutting down
+				}
+				conn.close();
+				iter.remove();
+			}
+		}
+		for (RelayConnection conn : backlogged) {
+			log.info("Closing " + conn + " with " + conn.queuedBytes
+					+ " bytes unsent");
+			conn.close();
+		}
+		this.relay.peerCount.addAndGet(-this.connections.size());
+		this.connections.clear();
+	}
+}
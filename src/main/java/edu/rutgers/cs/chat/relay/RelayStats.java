@@ -0,0 +1,183 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.relay;
+
+/**
+ * Counters kept by a {@link RelayShard}. Only the shard's event loop updates
+ * its counters, so they are plain fields; the relay sums them into its own
+ * instance for reporting.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RelayStats {
+
+	/**
+	 * Frames and bytes read from peers.
+	 */
+	protected long framesIn = 0, bytesIn = 0;
+
+	/**
+	 * Frames and bytes queued for peers.
+	 */
+	protected long framesOut = 0, bytesOut = 0;
+
+	/**
+	 * Gathering writes made to peers' channels.
+	 */
+	protected long writes = 0;
+
+	/**
+	 * Frames dropped because a peer's outbound queue was full.
+	 */
+	protected long dropped = 0;
+
+	/**
+	 * Frames dropped because they had already been forwarded.
+	 */
+	protected long duplicates = 0;
+
+	/**
+	 * Frames skipped because they were outside their type's length limits.
+	 */
+	protected long rejected = 0;
+
+	/**
+	 * Times a peer had to wait because it was over its rate limits.
+	 */
+	protected long throttled = 0;
+
+	/**
+	 * Peers currently waiting because they are over their rate limits.
+	 */
+	protected long throttledPeers = 0;
+
+	/**
+	 * Times a peer with more frames waiting gave up the rest of its turn.
+	 */
+	protected long deferred = 0;
+
+	/**
+	 * Peers accepted and closed.
+	 */
+	protected long accepted = 0, closed = 0;
+
+	/**
+	 * Acknowledgements sent to and received from peers.
+	 */
+	protected long acksSent = 0, acksReceived = 0;
+
+	/**
+	 * Kept messages sent again to peers that resumed their sessions.
+	 */
+	protected long resent = 0;
+
+	/**
+	 * Values at the last call to {@link #report(int, long)}.
+	 */
+	private long lastFramesIn = 0, lastBytesIn = 0, lastFramesOut = 0,
+			lastBytesOut = 0, lastReport = System.currentTimeMillis();
+
+	/**
+	 * Resets the counters to zero, but not the values used for rates.
+	 */
+	public void clear() {
+		this.framesIn = this.bytesIn = 0;
+		this.framesOut = this.bytesOut = this.writes = 0;
+		this.dropped = this.duplicates = this.rejected = 0;
+		this.throttled = this.throttledPeers = this.deferred = 0;
+		this.accepted = this.closed = 0;
+		this.acksSent = this.acksReceived = this.resent = 0;
+	}
+
+	/**
+	 * Adds another set of counters to this one.
+	 * 
+	 * @param other
+	 *            the counters to add.
+	 */
+	public void add(final RelayStats other) {
+		this.framesIn += other.framesIn;
+		this.bytesIn += other.bytesIn;
+		this.framesOut += other.framesOut;
+		this.bytesOut += other.bytesOut;
+		this.writes += other.writes;
+		this.dropped += other.dropped;
+		this.duplicates += other.duplicates;
+		this.rejected += other.rejected;
+		this.throttled += other.throttled;
+		this.throttledPeers += other.throttledPeers;
+		this.deferred += other.deferred;
+		this.accepted += other.accepted;
+		this.closed += other.closed;
+		this.acksSent += other.acksSent;
+		this.acksReceived += other.acksReceived;
+		this.resent += other.resent;
+	}
+
+	/**
+	 * Returns a single-line report of the counters and the rates since the
+	 * last report.
+	 * 
+	 * @param peers
+	 *            the number of connected peers.
+	 * @param now
+	 *            the current time.
+	 * @return the report.
+	 */
+	public String report(final int peers, final long now) {
+		double seconds = Math.max(1, now - this.lastReport) / 1000.0;
+		StringBuffer sb = new StringBuffer();
+		sb.append("peers=").append(peers);
+		sb.append(" in=").append(this.framesIn).append('/')
+				.append(this.bytesIn).append('B');
+		sb.append(" out=").append(this.framesOut).append('/')
+				.append(this.bytesOut).append('B');
+		sb.append(" rate-in=")
+				.append(Math.round((this.framesIn - this.lastFramesIn) / seconds))
+				.append("f/s,")
+				.append(Math.round((this.bytesIn - this.lastBytesIn) / seconds))
+				.append("B/s");
+		sb.append(" rate-out=")
+				.append(Math.round((this.framesOut - this.lastFramesOut)
+						/ seconds))
+				.append("f/s,")
+				.append(Math.round((this.bytesOut - this.lastBytesOut)
+						/ seconds)).append("B/s");
+		sb.append(" writes=").append(this.writes);
+		sb.append(" dropped=").append(this.dropped);
+		sb.append(" duplicates=").append(this.duplicates);
+		sb.append(" rejected=").append(this.rejected);
+		sb.append(" throttled=").append(this.throttled);
+		sb.append(" throttled-peers=").append(this.throttledPeers);
+		sb.append(" deferred=").append(this.deferred);
+		sb.append(" accepted=").append(this.accepted);
+		sb.append(" closed=").append(this.closed);
+		sb.append(" acks-sent=").append(this.acksSent);
+		sb.append(" acks-received=").append(this.acksReceived);
+		sb.append(" resent=").append(this.resent);
+		this.lastFramesIn = this.framesIn;
+		this.lastBytesIn = this.bytesIn;
+		this.lastFramesOut = this.framesOut;
+		this.lastBytesOut = this.bytesOut;
+		this.lastReport = now;
+		return sb.toString();
+	}
+}
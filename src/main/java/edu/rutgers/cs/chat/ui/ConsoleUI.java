@@ -22,17 +22,26 @@ package edu.rutgers.cs.chat.ui;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.math.BigInteger;
+import java.text.SimpleDateFormat;
 import java.util.Collection;
+import java.util.Date;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import edu.rutgers.cs.chat.Client;
+import edu.rutgers.cs.chat.history.HistoryRecord;
 
 /**
  * A simple user interface for the chat client. General chat messages are sent
  * by typing and pressing &lt;Enter&gt;. Private chat messages are specified by
  * providing the username preceded by the at sign (@) followed by a space and
- * the message. The user can terminate the chat client by typing entering
- * "quit".
+ * the message. Room chat messages are specified the same way with the room
+ * name preceded by a hash sign (#), and rooms are joined and left with
+ * "/join room" and "/leave room". Files are offered with "/send username
+ * path" and accepted with "/accept id", "/stats" shows how busy each stage
+ * of the client is, and "/search words" finds earlier messages in the
+ * history. The user can terminate the chat client by
+ * typing entering "quit".
  * 
  * @author Robert Moore
  * 
@@ -116,6 +125,13 @@ public class ConsoleUI extends Thread implements UIAdapter {
         .println("Send broadcast messages by typing and hitting <Enter>.");
     System.out
         .println("Send private messages like this: @username message to send.");
+    System.out
+        .println("Join rooms with /join room, leave with /leave room, and send to a room like this: #room message to send.");
+    System.out
+        .println("Send files with /send username path, and accept them with /accept id.");
+    System.out.println("Type /stats to see how busy each stage of the client is.");
+    System.out
+        .println("Search earlier messages with /search words, prefix*, from:user, after:2h or before:2012-05-01.");
     System.out.println("Type \"quit\" to exit.");
 
     // Keep awiting user input until the user wants to quit.
@@ -140,26 +156,89 @@ public class ConsoleUI extends Thread implements UIAdapter {
         if (line == null || line.length() == 0) {
           continue;
         }
+        // Room subscription commands
+        if (line.startsWith("/join ") || line.startsWith("/leave ")) {
+          String room = line.substring(line.indexOf(' ') + 1).trim();
+          if (room.length() == 0) {
+            continue;
+          }
+          for (UserInputListener listener : this.listeners) {
+            if (line.startsWith("/join ")) {
+              listener.joinRoom(room);
+            } else {
+              listener.leaveRoom(room);
+            }
+          }
+        }
+        // File transfer commands
+        else if (line.startsWith("/send ")) {
+          String[] parts = line.split("\\s+", 3);
+          if (parts.length < 3) {
+            continue;
+          }
+          Client theClient = this.findClient(parts[1]);
+          if (theClient == null) {
+            System.out.println("Could not find user \"" + parts[1] + "\".");
+            continue;
+          }
+          for (UserInputListener listener : this.listeners) {
+            listener.sendFile(theClient, parts[2]);
+          }
+        } else if ("/stats".equals(line)) {
+          for (UserInputListener listener : this.listeners) {
+            System.out.println(listener.getStatistics());
+          }
+        } else if (line.startsWith("/search ")) {
+          for (UserInputListener listener : this.listeners) {
+            try {
+              for (HistoryRecord record : listener.searchHistory(line
+                  .substring(8))) {
+                System.out.println(ConsoleUI.describe(record));
+              }
+            } catch (IllegalArgumentException iae) {
+              System.out.println(iae.getMessage());
+            }
+          }
+        } else if (line.startsWith("/accept ")) {
+          long transferId;
+          try {
+            transferId = new BigInteger(line.substring(8).trim(), 16).longValue();
+          } catch (NumberFormatException nfe) {
+            System.out.println("Not a file offer: " + line.substring(8).trim());
+            continue;
+          }
+          for (UserInputListener listener : this.listeners) {
+            listener.acceptFile(transferId);
+          }
+        }
+        // Check for room message
+        else if (line.startsWith("#")) {
+          int roomBreak = line.indexOf(' ');
+          if (roomBreak <= 1) {
+            continue;
+          }
+          String room = line.substring(1, roomBreak);
+          String message = line.substring(roomBreak + 1, line.length());
+          for (UserInputListener listener : this.listeners) {
+            listener.roomChatMessage(room, message);
+          }
+        }
         // Check for private message
-        if (line.startsWith("@")) {
+        else if (line.startsWith("@")) {
           int usernameBreak = line.indexOf(' ');
           if(usernameBreak == -1 || usernameBreak == line.length()){
         	  continue;
           }
           String username = line.substring(1, usernameBreak);
           String message = line.substring(usernameBreak + 1, line.length());
-          Client theClient = null;
-          // Find the client based on the username
-          for (Client client : this.knownClients) {
-            if (client.getUsername().equals(username)) {
-              theClient = client;
-              break;
-            }
-          }
-          // If the client wasn't found, print an error message and
-          // await next input
+          Client theClient = this.findClient(username);
+          // If the client wasn't found, keep the message until they connect
           if (theClient == null) {
-            System.out.println("Could not find user \"" + username + "\".");
+            for (UserInputListener listener : this.listeners) {
+              System.out.println(listener.offlineChatMessage(username, message) ? username
+                  + " is not connected, the message will be sent when they connect."
+                  : "Too many messages are waiting for " + username + ".");
+            }
             continue;
           }
 
@@ -187,6 +266,22 @@ public class ConsoleUI extends Thread implements UIAdapter {
     this.listeners.clear();
   }
 
+  /**
+   * Returns the known client with the specified username.
+   * 
+   * @param username
+   *          the username to look for.
+   * @return the client, or null if no known client has the username.
+   */
+  protected Client findClient(final String username) {
+    for (Client client : this.knownClients) {
+      if (client.getUsername().equals(username)) {
+        return client;
+      }
+    }
+    return null;
+  }
+
   /**
    * Does nothing, as the console already echoes the user's input.
    */
@@ -205,6 +300,24 @@ public class ConsoleUI extends Thread implements UIAdapter {
     this.knownClients.add(connectedClient);
   }
 
+  /**
+   * Adds the routed client to the collection of known clients so private
+   * messages can be addressed to it.
+   */
+  @Override
+  public void clientReachable(Client client) {
+    System.out.println("Can reach " + client);
+    this.knownClients.add(client);
+  }
+
+  /**
+   * Removes the routed client from the collection of known clients.
+   */
+  @Override
+  public void clientUnreachable(Client client) {
+    this.knownClients.remove(client);
+  }
+
   /**
    * Removes the client from the collection of known clients. Prints a
    */
@@ -225,6 +338,20 @@ public class ConsoleUI extends Thread implements UIAdapter {
         + ":\n" + message + (reason == null ? "\n" : "\n\nReason: " + reason));
   }
 
+  /**
+   * Prints out the room message to the system out as "#room username: message"
+   */
+  @Override
+  public void roomMessageReceived(long timestamp, String room, String message,
+      Client client) {
+    System.out.println("#" + room + " " + client.getUsername() + ": " + message);
+  }
+
+  @Override
+  public void roomMessageSent(long timestamp, String room, String message) {
+    // Ignored
+  }
+
   @Override
   public void privateMessageSent(long timestamp, String message, Client client) {
     // Ignored
@@ -236,4 +363,52 @@ public class ConsoleUI extends Thread implements UIAdapter {
     System.out.println("(" + client.getUsername() + "): " + message);
   }
 
+  /**
+   * Prints the offer along with the command to accept it.
+   */
+  @Override
+  public void fileOffered(long transferId, String name, long size,
+      Client client) {
+    System.out.println(client.getUsername() + " offers " + name + " (" + size
+        + " bytes). Type \"/accept " + Long.toHexString(transferId)
+        + "\" to receive it.");
+  }
+
+  @Override
+  public void fileTransferred(String path, boolean received, Client client) {
+    System.out.println((received ? "Received " : "Sent ") + path
+        + (received ? " from " : " to ") + client.getUsername() + ".");
+  }
+
+  @Override
+  public void historyMessageReceived(long timestamp, String room,
+      String username, String message) {
+    System.out.println("(earlier) " + (room == null ? "" : "#" + room + " ")
+        + username + ": " + message);
+  }
+
+  /**
+   * Formats a message found in the history as one line, with the time it was
+   * stored.
+   * 
+   * @param record
+   *          the message.
+   * @return the line to show the user.
+   */
+  public static String describe(final HistoryRecord record) {
+    String who;
+    if (record.isSent()) {
+      who = record.getKind() == HistoryRecord.Kind.PRIVATE ? "me to @"
+          + record.getPeer() : "me";
+    } else {
+      who = record.getKind() == HistoryRecord.Kind.PRIVATE ? "@"
+          + record.getPeer() : record.getPeer();
+    }
+    return new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(record
+        .getStoredAt()))
+        + " "
+        + (record.getRoom() == null ? "" : "#" + record.getRoom() + " ")
+        + who + ": " + record.getText();
+  }
+
 }
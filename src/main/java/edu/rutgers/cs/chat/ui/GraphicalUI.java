@@ -32,11 +32,13 @@ import java.awt.event.KeyListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.math.BigInteger;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 import java.util.logging.Logger;
 
 import javax.swing.BorderFactory;
@@ -62,6 +64,7 @@ import javax.swing.text.StyledDocument;
 import javax.swing.text.html.HTMLEditorKit;
 
 import edu.rutgers.cs.chat.Client;
+import edu.rutgers.cs.chat.history.HistoryRecord;
 
 public class GraphicalUI extends JFrame implements UIAdapter, ActionListener,
 		KeyListener {
@@ -79,7 +82,10 @@ public class GraphicalUI extends JFrame implements UIAdapter, ActionListener,
 
 	private final JTextPane chatDisplay = new JTextPane();
 
+	// Raw types, since the list classes are only generic from Java 7 on
+	@SuppressWarnings("rawtypes")
 	private final DefaultListModel userListModel = new DefaultListModel();
+	@SuppressWarnings({ "rawtypes", "unchecked" })
 	private final JList userList = new JList(this.userListModel);
 
 	private final Collection<UserInputListener> listeners = new ArrayList<UserInputListener>();
@@ -226,6 +232,7 @@ public class GraphicalUI extends JFrame implements UIAdapter, ActionListener,
 	}
 
 	@Override
+	@SuppressWarnings("unchecked")
 	public void clientConnected(Client connectedClient) {
 		log.fine(connectedClient + " connected.");
 		this.userListModel.addElement(connectedClient);
@@ -258,6 +265,70 @@ public class GraphicalUI extends JFrame implements UIAdapter, ActionListener,
 
 	}
 
+	@Override
+	public void fileOffered(long transferId, String name, long size,
+			Client client) {
+		this.showInfo(client + " offers " + name + " (" + size
+				+ " bytes). Send \"/accept " + Long.toHexString(transferId)
+				+ "\" to receive it.");
+	}
+
+	@Override
+	public void fileTransferred(String path, boolean received, Client client) {
+		this.showInfo((received ? "Received " : "Sent ") + path
+				+ (received ? " from " : " to ") + client + ".");
+	}
+
+	@Override
+	public void historyMessageReceived(long timestamp, String room,
+			String username, String message) {
+		StyledDocument doc = this.chatDisplay.getStyledDocument();
+		String prefix = "["
+				+ new SimpleDateFormat().format(new Date(timestamp)) + "] "
+				+ (room == null ? "" : "#" + room + " ") + username + ":";
+		String text = " " + message + "\n";
+		try {
+			doc.insertString(doc.getLength(), prefix,
+					doc.getStyle(STYLENAME_INFO));
+			doc.insertString(doc.getLength(), text,
+					doc.getStyle(STYLENAME_INFO));
+			SwingUtilities.invokeLater(this.autoScroller);
+		} catch (BadLocationException e) {
+			log.warning("Couldn't update chat with earlier message. Cause: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Appends a timestamped notice to the chat log.
+	 * 
+	 * @param message
+	 *            the notice to show.
+	 */
+	private void showInfo(final String message) {
+		StyledDocument doc = this.chatDisplay.getStyledDocument();
+		String text = "[" + new SimpleDateFormat().format(new Date()) + "] "
+				+ message + "\n";
+		try {
+			doc.insertString(doc.getLength(), text,
+					doc.getStyle(STYLENAME_INFO));
+			SwingUtilities.invokeLater(this.autoScroller);
+		} catch (BadLocationException e) {
+			log.warning("Couldn't update chat with notice. Cause: " + e.getMessage());
+		}
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public void clientReachable(Client client) {
+		log.fine(client + " reachable.");
+		this.userListModel.addElement(client);
+	}
+
+	@Override
+	public void clientUnreachable(Client client) {
+		this.userListModel.removeElement(client);
+	}
+
 	@Override
 	public void addUserInputListener(UserInputListener listener) {
 		this.listeners.add(listener);
@@ -278,8 +349,71 @@ public class GraphicalUI extends JFrame implements UIAdapter, ActionListener,
 			Client selectedUser = (Client) this.userList.getSelectedValue();
 			this.userList.clearSelection();
 			this.textInput.setText("");
+			// Files are sent to the selected user with /send path
+			if (msg.startsWith("/send ") && selectedUser != null) {
+				for (UserInputListener listener : this.listeners) {
+					listener.sendFile(selectedUser, msg.substring(6).trim());
+				}
+				return;
+			} else if ("/stats".equals(msg) && selectedUser == null) {
+				for (UserInputListener listener : this.listeners) {
+					for (String line : listener.getStatistics().split("\n")) {
+						this.showInfo(line);
+					}
+				}
+				return;
+			} else if (msg.startsWith("/search ") && selectedUser == null) {
+				for (UserInputListener listener : this.listeners) {
+					try {
+						List<HistoryRecord> found = listener.searchHistory(msg
+								.substring(8));
+						this.showInfo(found.size() + " messages found for \""
+								+ msg.substring(8).trim() + "\"");
+						for (HistoryRecord record : found) {
+							this.showInfo(ConsoleUI.describe(record));
+						}
+					} catch (IllegalArgumentException iae) {
+						this.showInfo(iae.getMessage());
+					}
+				}
+				return;
+			} else if (msg.startsWith("/accept ") && selectedUser == null) {
+				try {
+					long transferId = new BigInteger(msg.substring(8).trim(), 16).longValue();
+					for (UserInputListener listener : this.listeners) {
+						listener.acceptFile(transferId);
+					}
+				} catch (NumberFormatException nfe) {
+					this.showInfo("Not a file offer: " + msg.substring(8).trim());
+				}
+				return;
+			}
+			// Same room commands as the console: /join, /leave and #room
+			String room = null;
+			int roomBreak = msg.indexOf(' ');
+			if (selectedUser == null && roomBreak > 1) {
+				room = msg.substring(roomBreak + 1).trim();
+				if (msg.startsWith("/join ")) {
+					for (UserInputListener listener : this.listeners) {
+						listener.joinRoom(room);
+					}
+					return;
+				} else if (msg.startsWith("/leave ")) {
+					for (UserInputListener listener : this.listeners) {
+						listener.leaveRoom(room);
+					}
+					return;
+				} else if (msg.startsWith("#")) {
+					room = msg.substring(1, roomBreak);
+					msg = msg.substring(roomBreak + 1);
+				} else {
+					room = null;
+				}
+			}
 			for (UserInputListener listener : this.listeners) {
-				if (selectedUser != null) {
+				if (room != null) {
+					listener.roomChatMessage(room, msg);
+				} else if (selectedUser != null) {
 					listener.privateChatMessage(selectedUser, msg);
 				} else {
 					listener.broadcastChatMessage(msg);
@@ -312,6 +446,41 @@ public class GraphicalUI extends JFrame implements UIAdapter, ActionListener,
 		}
 	}
 
+	@Override
+	public void roomMessageReceived(long timestamp, String room,
+			String message, Client client) {
+		StyledDocument doc = this.chatDisplay.getStyledDocument();
+		String prefix = "["
+				+ new SimpleDateFormat().format(new Date(timestamp)) + "] #"
+				+ room + " " + client + ":";
+		String text = " " + message + "\n";
+		try {
+			doc.insertString(doc.getLength(), prefix,
+					doc.getStyle(STYLENAME_USER));
+			doc.insertString(doc.getLength(), text, null);
+			SwingUtilities.invokeLater(this.autoScroller);
+		} catch (BadLocationException e) {
+			log.warning("Couldn't update chat with received room message. Cause: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void roomMessageSent(long timestamp, String room, String message) {
+		StyledDocument doc = this.chatDisplay.getStyledDocument();
+		String prefix = "["
+				+ new SimpleDateFormat().format(new Date(timestamp))
+				+ "] #" + room + " I said:";
+		String text = " " + message + "\n";
+		try {
+			doc.insertString(doc.getLength(), prefix,
+					doc.getStyle(STYLENAME_USER));
+			doc.insertString(doc.getLength(), text, null);
+			SwingUtilities.invokeLater(this.autoScroller);
+		} catch (BadLocationException e) {
+			log.warning("Couldn't update chat with sent room message. Cause: " + e.getMessage());
+		}
+	}
+
 	@Override
 	public void privateMessageSent(long timestamp, String message, Client client) {
 		StyledDocument doc = this.chatDisplay.getStyledDocument();
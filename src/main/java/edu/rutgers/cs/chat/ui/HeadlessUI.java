@@ -0,0 +1,106 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.ui;
+
+import edu.rutgers.cs.chat.Client;
+
+/**
+ * A user interface that shows nothing and never produces input, for
+ * programs that embed the chat client. Every method does nothing, so a bot
+ * only needs to override the events it cares about. Methods are called by
+ * the client's stage threads and must be thread-safe.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class HeadlessUI implements UIAdapter {
+
+	@Override
+	public void broadcastMessageReceived(final long timestamp,
+			final String message, final Client client) {
+	}
+
+	@Override
+	public void broadcastMessageSent(final long timestamp, final String message) {
+	}
+
+	@Override
+	public void privateMessageSent(final long timestamp, final String message,
+			final Client client) {
+	}
+
+	@Override
+	public void privateMessageReceived(final long timestamp,
+			final String message, final Client client) {
+	}
+
+	@Override
+	public void roomMessageReceived(final long timestamp, final String room,
+			final String message, final Client client) {
+	}
+
+	@Override
+	public void roomMessageSent(final long timestamp, final String room,
+			final String message) {
+	}
+
+	@Override
+	public void messageNotSent(final String message, final String reason,
+			final Client client) {
+	}
+
+	@Override
+	public void clientConnected(final Client client) {
+	}
+
+	@Override
+	public void clientDisconnected(final String reason, final Client client) {
+	}
+
+	@Override
+	public void clientReachable(final Client client) {
+	}
+
+	@Override
+	public void clientUnreachable(final Client client) {
+	}
+
+	@Override
+	public void fileOffered(final long transferId, final String name,
+			final long size, final Client client) {
+	}
+
+	@Override
+	public void fileTransferred(final String path, final boolean received,
+			final Client client) {
+	}
+
+	@Override
+	public void historyMessageReceived(final long timestamp,
+			final String room, final String username, final String message) {
+	}
+
+	/**
+	 * Does nothing, since there is no user to produce input.
+	 */
+	@Override
+	public void addUserInputListener(final UserInputListener listener) {
+	}
+}
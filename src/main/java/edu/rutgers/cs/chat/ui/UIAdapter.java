@@ -87,6 +87,35 @@ public interface UIAdapter {
   public void privateMessageReceived(long timestamp, String message,
       Client client);
 
+  /**
+   * Called when a room chat message is received for a room the local user has
+   * joined.
+   * 
+   * @param timestamp
+   *          the time the message was created.
+   * @param room
+   *          the name of the room.
+   * @param message
+   *          the message that was sent.
+   * @param client
+   *          the client that sent the message.
+   */
+  public void roomMessageReceived(long timestamp, String room, String message,
+      Client client);
+
+  /**
+   * Called when a room chat message from the local instance has been sent to
+   * every client subscribed to the room.
+   * 
+   * @param timestamp
+   *          the timestamp on the sent message
+   * @param room
+   *          the name of the room.
+   * @param message
+   *          the message that was sent.
+   */
+  public void roomMessageSent(long timestamp, String room, String message);
+
   /**
    * Called when a chat message could not be sent to a remote client.
    * 
@@ -120,6 +149,71 @@ public interface UIAdapter {
    */
   public void clientDisconnected(String reason, Client client);
 
+  /**
+   * Called when a client that is not directly connected becomes reachable
+   * through another client. Private messages may be sent to the client as
+   * usual; they will be routed through its next hop.
+   * 
+   * @param client
+   *          the newly-reachable client.
+   */
+  public void clientReachable(Client client);
+
+  /**
+   * Called when a client that was reachable through another client can no
+   * longer be reached, or is now directly connected.
+   * 
+   * @param client
+   *          the client that is no longer reachable.
+   */
+  public void clientUnreachable(Client client);
+
+  /**
+   * Called when another user offers a file. The user may accept it by its
+   * transfer identifier.
+   * 
+   * @param transferId
+   *          the identifier used to accept the file.
+   * @param name
+   *          the name of the file.
+   * @param size
+   *          the size of the file in bytes.
+   * @param client
+   *          the client offering the file.
+   */
+  public void fileOffered(long transferId, String name, long size,
+      Client client);
+
+  /**
+   * Called when a file has been completely sent or received.
+   * 
+   * @param path
+   *          the path of the file.
+   * @param received
+   *          true if the file was received, false if it was sent.
+   * @param client
+   *          the client the file was exchanged with.
+   */
+  public void fileTransferred(String path, boolean received, Client client);
+
+  /**
+   * Called for each message sent before the local client joined, as other
+   * clients catch it up on the conversation. The user who sent the message
+   * may no longer be connected.
+   * 
+   * @param timestamp
+   *          the time the message was created.
+   * @param room
+   *          the room the message was sent to, or null for a broadcast
+   *          message.
+   * @param username
+   *          the user who sent the message.
+   * @param message
+   *          the message that was sent.
+   */
+  public void historyMessageReceived(long timestamp, String room,
+      String username, String message);
+
   /**
    * Adds a user input listener to this UIAdapter. User Input listeners should
    * be notified of user input events (chat messages, join requests, etc.).
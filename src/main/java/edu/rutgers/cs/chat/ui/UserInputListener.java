@@ -19,7 +19,10 @@
 
 package edu.rutgers.cs.chat.ui;
 
+import java.util.List;
+
 import edu.rutgers.cs.chat.Client;
+import edu.rutgers.cs.chat.history.HistoryRecord;
 
 /**
  * Interface for classes that want to respond to user interface events. Includes
@@ -44,6 +47,62 @@ public interface UserInputListener {
 	 */
 	public void privateChatMessage(Client client, String message);
 	
+	/**
+	 * Called when a chat message for a room has been entered by the user.
+	 * @param room the name of the room.
+	 * @param message the message to send.
+	 */
+	public void roomChatMessage(String room, String message);
+
+	/**
+	 * Called when the user wants to join a room.
+	 * @param room the name of the room.
+	 */
+	public void joinRoom(String room);
+
+	/**
+	 * Called when the user wants to leave a room.
+	 * @param room the name of the room.
+	 */
+	public void leaveRoom(String room);
+
+	/**
+	 * Called when the user wants to send a file to another user.
+	 * @param client the user to offer the file to.
+	 * @param path the path of the file.
+	 */
+	public void sendFile(Client client, String path);
+
+	/**
+	 * Called when the user accepts a file offered by another user.
+	 * @param transferId the identifier shown with the offer.
+	 */
+	public void acceptFile(long transferId);
+
+	/**
+	 * Called when the user sends a private message to a user who is not
+	 * connected.  The message is kept until that user connects.
+	 * @param username the user to send the message to.
+	 * @param message the message to send.
+	 * @return true if the message was kept, false if too many messages are
+	 * already waiting for the user.
+	 */
+	public boolean offlineChatMessage(String username, String message);
+
+	/**
+	 * Called when the user asks how the local client is performing.
+	 * @return a report to show the user, one item per line.
+	 */
+	public String getStatistics();
+
+	/**
+	 * Called when the user searches the chat history.
+	 * @param query the search, as described by {@link edu.rutgers.cs.chat.history.SearchQuery#parse(String)}.
+	 * @return the matching messages, newest first.
+	 * @throws IllegalArgumentException if the search can't be understood.
+	 */
+	public List<HistoryRecord> searchHistory(String query);
+
 	/**
 	 * Called when the user has requested that the local client shut down
 	 * gracefully.  Remote clients should be notified of the shutdown.
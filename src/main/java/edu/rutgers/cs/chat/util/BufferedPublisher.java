@@ -0,0 +1,391 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A publisher that keeps a small buffer of items for each subscriber. Items
+ * are delivered as the subscriber requests them, either by the publishing
+ * thread or by the thread calling {@link Subscription#request(long)}. When a
+ * subscriber's buffer is full, {@link #publish(Object)} waits until the
+ * subscriber catches up, so a slow subscriber slows down whoever is
+ * publishing rather than letting items pile up in memory. The client
+ * publishes from the threads that read each peer's socket, so a slow
+ * subscriber stops the reads and the peers' sends are held back by TCP.
+ * 
+ * @author Robert Moore
+ * 
+ * @param <T>
+ *            the type of items published.
+ */
+public class BufferedPublisher<T> implements Publisher<T> {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(BufferedPublisher.class
+			.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Default number of items buffered for each subscriber.
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 256;
+
+	/**
+	 * Number of items buffered for each subscriber before publishing waits.
+	 */
+	protected final int bufferSize;
+
+	/**
+	 * The current subscriptions.
+	 */
+	protected final CopyOnWriteArrayList<Link> links = new CopyOnWriteArrayList<Link>();
+
+	/**
+	 * Number of times publishing had to wait for a subscriber.
+	 */
+	protected final AtomicLong stalls = new AtomicLong();
+
+	/**
+	 * Set once no more items will be published.
+	 */
+	protected volatile boolean closed = false;
+
+	/**
+	 * Creates a new publisher with the default buffer size.
+	 */
+	public BufferedPublisher() {
+		this(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Creates a new publisher.
+	 * 
+	 * @param bufferSize
+	 *            the number of items buffered for each subscriber.
+	 */
+	public BufferedPublisher(final int bufferSize) {
+		if (bufferSize < 1) {
+			throw new IllegalArgumentException("Buffer size must be positive: "
+					+ bufferSize);
+		}
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	public void subscribe(final Subscriber<? super T> subscriber) {
+		Link link = new Link(subscriber);
+		this.links.add(link);
+		subscriber.onSubscribe(link);
+		if (this.closed) {
+			link.complete();
+		}
+	}
+
+	/**
+	 * Returns true if anyone is subscribed. Callers can use this to avoid
+	 * building items nobody will receive.
+	 * 
+	 * @return true if there is at least one subscription.
+	 */
+	public boolean hasSubscribers() {
+		return !this.links.isEmpty();
+	}
+
+	/**
+	 * Delivers an item to every subscriber, waiting while any subscriber's
+	 * buffer is full. If the thread is interrupted while waiting, the item is
+	 * not delivered to the remaining subscribers and the interrupt status is
+	 * kept.
+	 * 
+	 * @param item
+	 *            the item to publish.
+	 */
+	public void publish(final T item) {
+		this.publish(item, true);
+	}
+
+	/**
+	 * Delivers an item to every subscriber, optionally going over a full
+	 * buffer instead of waiting. Rare items that must not hold up the
+	 * publishing thread, such as peers connecting, are published without
+	 * waiting.
+	 * 
+	 * @param item
+	 *            the item to publish.
+	 * @param wait
+	 *            true to wait while a buffer is full, false to buffer the item
+	 *            anyway.
+	 */
+	public void publish(final T item, final boolean wait) {
+		if (this.closed) {
+			return;
+		}
+		for (Link link : this.links) {
+			if (!link.offer(item, wait)) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Completes every subscription once its buffered items are delivered.
+	 * Threads waiting to publish give up.
+	 */
+	public void close() {
+		this.closed = true;
+		for (Link link : this.links) {
+			link.complete();
+		}
+	}
+
+	/**
+	 * Returns the number of subscribers and how often publishing waited for
+	 * one.
+	 * 
+	 * @return a one-line summary.
+	 */
+	public String report() {
+		return "subscribers=" + this.links.size() + " stalled="
+				+ this.stalls.get();
+	}
+
+	/**
+	 * One subscriber's buffer and demand.
+	 */
+	protected class Link implements Subscription {
+
+		/**
+		 * The subscriber.
+		 */
+		protected final Subscriber<? super T> subscriber;
+
+		/**
+		 * Guards the buffer and demand. A lock is used so that a virtual
+		 * reader thread waiting for the subscriber does not pin its carrier.
+		 */
+		protected final ReentrantLock lock = new ReentrantLock();
+
+		/**
+		 * Signalled when an item is taken from the buffer or the link ends.
+		 */
+		protected final Condition notFull = this.lock.newCondition();
+
+		/**
+		 * Items waiting for demand.
+		 */
+		protected final Queue<T> buffer = new ArrayDeque<T>();
+
+		/**
+		 * Number of items requested but not yet delivered.
+		 */
+		protected long demand = 0;
+
+		/**
+		 * Set when the subscriber cancels or fails.
+		 */
+		protected boolean cancelled = false;
+
+		/**
+		 * Set when the publisher closes.
+		 */
+		protected boolean completed = false;
+
+		/**
+		 * Set while a thread is delivering items, so that delivery to this
+		 * subscriber is never done by two threads at once.
+		 */
+		protected boolean draining = false;
+
+		/**
+		 * Creates a new link for a subscriber.
+		 * 
+		 * @param subscriber
+		 *            the subscriber.
+		 */
+		protected Link(final Subscriber<? super T> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		/**
+		 * Buffers an item and delivers what the subscriber has asked for.
+		 * 
+		 * @param item
+		 *            the item.
+		 * @param wait
+		 *            true to wait while the buffer is full.
+		 * @return false if the thread was interrupted while waiting.
+		 */
+		protected boolean offer(final T item, final boolean wait) {
+			this.lock.lock();
+			try {
+				if (wait && this.buffer.size() >= BufferedPublisher.this.bufferSize
+						&& !this.cancelled && !this.completed) {
+					BufferedPublisher.this.stalls.incrementAndGet();
+					log.finer("Waiting for " + this.subscriber);
+					while (this.buffer.size() >= BufferedPublisher.this.bufferSize
+							&& !this.cancelled && !this.completed) {
+						try {
+							this.notFull.await();
+						} catch (InterruptedException ie) {
+							Thread.currentThread().interrupt();
+							return false;
+						}
+					}
+				}
+				if (this.cancelled || this.completed) {
+					return true;
+				}
+				this.buffer.add(item);
+			} finally {
+				this.lock.unlock();
+			}
+			this.drain();
+			return true;
+		}
+
+		@Override
+		public void request(final long n) {
+			if (n <= 0) {
+				this.fail(new IllegalArgumentException(
+						"Requested a non-positive number of items: " + n));
+				return;
+			}
+			this.lock.lock();
+			try {
+				this.demand += n;
+				if (this.demand < 0) {
+					// Overflowed, so treat as unbounded
+					this.demand = Long.MAX_VALUE;
+				}
+			} finally {
+				this.lock.unlock();
+			}
+			this.drain();
+		}
+
+		@Override
+		public void cancel() {
+			this.lock.lock();
+			try {
+				this.cancelled = true;
+				this.buffer.clear();
+				this.notFull.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+			BufferedPublisher.this.links.remove(this);
+		}
+
+		/**
+		 * Ends the link once its buffered items have been delivered.
+		 */
+		protected void complete() {
+			this.lock.lock();
+			try {
+				this.completed = true;
+				this.notFull.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+			this.drain();
+		}
+
+		/**
+		 * Cancels the link and tells the subscriber why.
+		 * 
+		 * @param cause
+		 *            the reason.
+		 */
+		protected void fail(final Throwable cause) {
+			this.cancel();
+			this.subscriber.onError(cause);
+		}
+
+		/**
+		 * Delivers buffered items while the subscriber has demand, then the
+		 * completion signal if the publisher has closed. Returns at once if
+		 * another thread is already delivering; that thread checks for new
+		 * items and demand before it stops.
+		 */
+		protected void drain() {
+			this.lock.lock();
+			try {
+				if (this.draining) {
+					return;
+				}
+				this.draining = true;
+			} finally {
+				this.lock.unlock();
+			}
+			while (true) {
+				T item;
+				this.lock.lock();
+				try {
+					if (this.cancelled) {
+						this.draining = false;
+						return;
+					}
+					if (this.demand > 0 && !this.buffer.isEmpty()) {
+						item = this.buffer.poll();
+						if (this.demand != Long.MAX_VALUE) {
+							--this.demand;
+						}
+						this.notFull.signal();
+					} else if (this.completed && this.buffer.isEmpty()) {
+						// Stays "draining" so nothing is delivered after this
+						this.cancelled = true;
+						item = null;
+					} else {
+						this.draining = false;
+						return;
+					}
+				} finally {
+					this.lock.unlock();
+				}
+				if (item == null) {
+					BufferedPublisher.this.links.remove(this);
+					this.subscriber.onComplete();
+					return;
+				}
+				try {
+					this.subscriber.onNext(item);
+				} catch (RuntimeException re) {
+					log.log(Level.WARNING, "Subscriber " + this.subscriber
+							+ " failed, cancelling its subscription.", re);
+					this.fail(re);
+					return;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stops connection attempts to addresses that keep failing. Each address has
+ * its own breaker, which starts closed: attempts are allowed. After a number
+ * of failures in a row it opens, and attempts are refused until it has been
+ * open for a while. It then lets one attempt through; if that succeeds the
+ * breaker closes again, and if it fails the breaker opens for twice as long,
+ * up to a limit.
+ * 
+ * Breakers are thread-safe and forget an address once it succeeds.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class CircuitBreaker {
+
+	/**
+	 * The state of one address.
+	 */
+	protected static class State {
+		/**
+		 * Failures since the last success.
+		 */
+		int failures;
+
+		/**
+		 * How long the breaker stays open next time it opens, or 0 while it
+		 * is closed.
+		 */
+		long openMillis;
+
+		/**
+		 * Time until which attempts are refused, or 0 while it is closed.
+		 */
+		long openUntil;
+
+		/**
+		 * True while the one attempt let through an open breaker is in
+		 * progress.
+		 */
+		boolean trying;
+	}
+
+	/**
+	 * Failures in a row that open the breaker.
+	 */
+	protected final int threshold;
+
+	/**
+	 * How long the breaker stays open the first time.
+	 */
+	protected final long openMillis;
+
+	/**
+	 * Longest time the breaker stays open.
+	 */
+	protected final long maxOpenMillis;
+
+	/**
+	 * The addresses that have failed since they last succeeded.
+	 */
+	protected final Map<String, State> states = new HashMap<String, State>();
+
+	/**
+	 * Number of times a breaker opened.
+	 */
+	protected long opened = 0;
+
+	/**
+	 * Number of attempts refused.
+	 */
+	protected long refused = 0;
+
+	/**
+	 * Creates a new set of breakers.
+	 * 
+	 * @param threshold
+	 *            the failures in a row that open a breaker, at least 1.
+	 * @param openMillis
+	 *            how long a breaker stays open the first time.
+	 * @param maxOpenMillis
+	 *            the longest a breaker stays open.
+	 */
+	public CircuitBreaker(final int threshold, final long openMillis,
+			final long maxOpenMillis) {
+		if (threshold < 1 || openMillis < 0 || maxOpenMillis < openMillis) {
+			throw new IllegalArgumentException("Invalid breaker: " + threshold
+					+ " failures, " + openMillis + "-" + maxOpenMillis + "ms");
+		}
+		this.threshold = threshold;
+		this.openMillis = openMillis;
+		this.maxOpenMillis = maxOpenMillis;
+	}
+
+	/**
+	 * Returns true if an attempt to connect to an address may be made now.
+	 * Once an open breaker's time is up, one caller is allowed through and the
+	 * rest are refused until it reports how the attempt went.
+	 * 
+	 * @param address
+	 *            the address.
+	 * @return true if the attempt may be made.
+	 */
+	public synchronized boolean allow(final String address) {
+		State state = this.states.get(address);
+		if (state == null || state.openUntil == 0) {
+			return true;
+		}
+		if (state.trying || System.currentTimeMillis() < state.openUntil) {
+			++this.refused;
+			return false;
+		}
+		state.trying = true;
+		return true;
+	}
+
+	/**
+	 * Records a successful attempt, closing the address's breaker.
+	 * 
+	 * @param address
+	 *            the address.
+	 */
+	public synchronized void succeeded(final String address) {
+		this.states.remove(address);
+	}
+
+	/**
+	 * Records a failed attempt, opening the address's breaker if it failed
+	 * too many times in a row or the attempt was the one let through an open
+	 * breaker.
+	 * 
+	 * @param address
+	 *            the address.
+	 */
+	public synchronized void failed(final String address) {
+		State state = this.states.get(address);
+		if (state == null) {
+			state = new State();
+			this.states.put(address, state);
+		}
+		++state.failures;
+		if (state.trying || state.failures == this.threshold) {
+			state.trying = false;
+			state.openMillis = state.openMillis == 0 ? this.openMillis : Math
+					.min(this.maxOpenMillis, state.openMillis * 2);
+			state.openUntil = System.currentTimeMillis() + state.openMillis;
+			++this.opened;
+		}
+	}
+
+	/**
+	 * Returns the time after which an attempt to an address will be allowed.
+	 * 
+	 * @param address
+	 *            the address.
+	 * @return the time, or 0 if attempts are allowed now.
+	 */
+	public synchronized long retryAt(final String address) {
+		State state = this.states.get(address);
+		if (state == null || state.openUntil <= System.currentTimeMillis()) {
+			return 0;
+		}
+		return state.openUntil;
+	}
+
+	/**
+	 * Returns the number of addresses whose breakers are open.
+	 * 
+	 * @return the number of open breakers.
+	 */
+	public synchronized int getOpenCount() {
+		int open = 0;
+		long now = System.currentTimeMillis();
+		for (State state : this.states.values()) {
+			if (state.trying || state.openUntil > now) {
+				++open;
+			}
+		}
+		return open;
+	}
+
+	/**
+	 * Returns a one-line summary of the breakers.
+	 * 
+	 * @return the summary.
+	 */
+	public synchronized String report() {
+		return "open=" + this.getOpenCount() + " opened=" + this.opened
+				+ " refused=" + this.refused;
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how much memory is used for received data, both in total and per
+ * peer. Each peer gets an {@link Account} with its own limit; a reservation
+ * succeeds only if it fits within both the account's limit and the budget's
+ * capacity. Nothing is allocated to make or return a reservation, so the
+ * budget can be checked for every received frame.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class MemoryBudget {
+
+	/**
+	 * Most bytes that may be reserved across all accounts.
+	 */
+	protected final long capacity;
+
+	/**
+	 * Bytes currently reserved across all accounts.
+	 */
+	protected final AtomicLong used = new AtomicLong();
+
+	/**
+	 * Number of reservations that were refused.
+	 */
+	protected final AtomicLong refused = new AtomicLong();
+
+	/**
+	 * Creates a new budget.
+	 * 
+	 * @param capacity
+	 *            the most bytes that may be reserved at once.
+	 */
+	public MemoryBudget(final long capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * The memory reserved for a single peer.
+	 */
+	public final class Account {
+
+		/**
+		 * Name of the peer, for log messages.
+		 */
+		protected final String name;
+
+		/**
+		 * Most bytes this account may reserve.
+		 */
+		protected final long limit;
+
+		/**
+		 * Bytes currently reserved by this account.
+		 */
+		protected final AtomicLong used = new AtomicLong();
+
+		/**
+		 * Number of reservations by this account that were refused.
+		 */
+		protected final AtomicLong refused = new AtomicLong();
+
+		/**
+		 * Creates a new account.
+		 * 
+		 * @param name
+		 *            the name of the peer.
+		 * @param limit
+		 *            the most bytes the account may reserve.
+		 */
+		protected Account(final String name, final long limit) {
+			this.name = name;
+			this.limit = limit;
+		}
+
+		/**
+		 * Reserves memory if both this account and the budget have room.
+		 * 
+		 * @param bytes
+		 *            the number of bytes to reserve.
+		 * @return true if the memory was reserved, false if it was refused.
+		 */
+		public boolean tryReserve(final long bytes) {
+			if (bytes <= 0) {
+				return true;
+			}
+			if (this.used.addAndGet(bytes) > this.limit) {
+				this.used.addAndGet(-bytes);
+				this.refused.incrementAndGet();
+				MemoryBudget.this.refused.incrementAndGet();
+				return false;
+			}
+			if (!MemoryBudget.this.reserve(bytes)) {
+				this.used.addAndGet(-bytes);
+				this.refused.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * Returns memory reserved by this account.
+		 * 
+		 * @param bytes
+		 *            the number of bytes to return.
+		 */
+		public void release(final long bytes) {
+			if (bytes <= 0) {
+				return;
+			}
+			this.used.addAndGet(-bytes);
+			MemoryBudget.this.used.addAndGet(-bytes);
+		}
+
+		/**
+		 * Returns everything this account has reserved. Used when the peer is
+		 * gone.
+		 */
+		public void close() {
+			long remaining = this.used.getAndSet(0);
+			if (remaining > 0) {
+				MemoryBudget.this.used.addAndGet(-remaining);
+			}
+		}
+
+		/**
+		 * Returns the number of bytes this account has reserved.
+		 * 
+		 * @return the number of bytes reserved.
+		 */
+		public long getUsed() {
+			return this.used.get();
+		}
+
+		/**
+		 * Returns the most bytes this account may reserve.
+		 * 
+		 * @return the account's limit.
+		 */
+		public long getLimit() {
+			return this.limit;
+		}
+
+		/**
+		 * Returns the number of reservations that were refused.
+		 * 
+		 * @return the number of refused reservations.
+		 */
+		public long getRefused() {
+			return this.refused.get();
+		}
+
+		@Override
+		public String toString() {
+			return this.name + " " + this.used.get() + '/' + this.limit + 'B';
+		}
+	}
+
+	/**
+	 * Opens an account for a peer.
+	 * 
+	 * @param name
+	 *            the name of the peer, for log messages.
+	 * @param limit
+	 *            the most bytes the peer may reserve.
+	 * @return the new account.
+	 */
+	public Account newAccount(final String name, final long limit) {
+		return new Account(name, limit);
+	}
+
+	/**
+	 * Reserves memory from the budget if there is room.
+	 * 
+	 * @param bytes
+	 *            the number of bytes to reserve.
+	 * @return true if the memory was reserved.
+	 */
+	protected boolean reserve(final long bytes) {
+		while (true) {
+			long current = this.used.get();
+			if (current + bytes > this.capacity) {
+				this.refused.incrementAndGet();
+				return false;
+			}
+			if (this.used.compareAndSet(current, current + bytes)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the most bytes that may be reserved at once.
+	 * 
+	 * @return the capacity of the budget.
+	 */
+	public long getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * Returns the number of bytes currently reserved.
+	 * 
+	 * @return the number of bytes reserved.
+	 */
+	public long getUsed() {
+		return this.used.get();
+	}
+
+	/**
+	 * Returns the number of reservations that were refused.
+	 * 
+	 * @return the number of refused reservations.
+	 */
+	public long getRefused() {
+		return this.refused.get();
+	}
+
+	/**
+	 * Returns a short summary for statistics output.
+	 * 
+	 * @return the bytes used, capacity and refusals.
+	 */
+	public String report() {
+		return "inbound=" + this.used.get() + '/' + this.capacity
+				+ "B inbound-refused=" + this.refused.get();
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+/**
+ * A source of items that are delivered to subscribers only as fast as each
+ * subscriber asks for them. Mirrors {@code java.util.concurrent.Flow.Publisher}
+ * from Java 9, which the client cannot use while it supports older JVMs.
+ * 
+ * @author Robert Moore
+ * 
+ * @param <T>
+ *            the type of items published.
+ */
+public interface Publisher<T> {
+
+	/**
+	 * Adds a subscriber. The subscriber's {@link Subscriber#onSubscribe}
+	 * method is called before any other, and no items are delivered until it
+	 * requests some.
+	 * 
+	 * @param subscriber
+	 *            the subscriber to add.
+	 */
+	public void subscribe(Subscriber<? super T> subscriber);
+}
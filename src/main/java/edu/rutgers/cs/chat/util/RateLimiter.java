@@ -0,0 +1,114 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+/**
+ * Limits the number of frames and bytes received from a single peer, using a
+ * {@link TokenBucket} for each. Each bucket holds one second's worth of
+ * tokens, so a quiet peer may send a short burst at twice the rate. A rate of
+ * 0 means no limit.
+ * 
+ * When a frame is not admitted the caller should stop reading from the peer
+ * for the returned delay, which pushes back on the sender through TCP flow
+ * control instead of dropping anything.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class RateLimiter {
+
+	/**
+	 * Limits frames per second, or null for no limit.
+	 */
+	protected final TokenBucket frames;
+
+	/**
+	 * Limits bytes per second, or null for no limit.
+	 */
+	protected final TokenBucket bytes;
+
+	/**
+	 * Number of frames that had to wait.
+	 */
+	protected long throttled = 0;
+
+	/**
+	 * Creates a new limiter.
+	 * 
+	 * @param frameRate
+	 *            the most frames per second, or 0 for no limit.
+	 * @param byteRate
+	 *            the most bytes per second, or 0 for no limit.
+	 */
+	public RateLimiter(final long frameRate, final long byteRate) {
+		this.frames = frameRate > 0 ? new TokenBucket(frameRate, frameRate)
+				: null;
+		this.bytes = byteRate > 0 ? new TokenBucket(byteRate, byteRate) : null;
+	}
+
+	/**
+	 * Charges a frame to the limiter if both rates allow it.
+	 * 
+	 * @param size
+	 *            the size of the frame in bytes.
+	 * @param now
+	 *            the current time from {@link System#nanoTime()}.
+	 * @return 0 if the frame was admitted, otherwise how many milliseconds to
+	 *         wait before trying again.
+	 */
+	public long admit(final int size, final long now) {
+		long delay = 0;
+		if (this.frames != null) {
+			delay = this.frames.delayMillis(now);
+		}
+		if (this.bytes != null) {
+			delay = Math.max(delay, this.bytes.delayMillis(now));
+		}
+		if (delay > 0) {
+			++this.throttled;
+			return delay;
+		}
+		if (this.frames != null) {
+			this.frames.tryTake(1, now);
+		}
+		if (this.bytes != null) {
+			this.bytes.tryTake(size, now);
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns true if either rate is limited.
+	 * 
+	 * @return true if frames may be delayed.
+	 */
+	public boolean isLimited() {
+		return this.frames != null || this.bytes != null;
+	}
+
+	/**
+	 * Returns the number of frames that had to wait.
+	 * 
+	 * @return the number of delayed frames.
+	 */
+	public long getThrottledCount() {
+		return this.throttled;
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+import java.util.Arrays;
+
+/**
+ * A memory-bounded set of recently-seen message identifiers. Identifiers are
+ * stored in two open-addressing tables of primitive longs: the current
+ * generation and the previous one. When the current generation fills up or
+ * becomes older than the configured bucket time, the previous generation is
+ * cleared and the two are swapped. An identifier is therefore remembered for
+ * at least one bucket interval. The tables start small and double as
+ * identifiers arrive, up to the size needed for the capacity given at
+ * construction, so a quiet client uses about a kilobyte.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class SeenMessageCache {
+
+	/**
+	 * Marker for an empty slot. Identifiers of 0 are tracked separately.
+	 */
+	private static final long EMPTY = 0L;
+
+	/**
+	 * Number of slots in a new table.
+	 */
+	private static final int MIN_TABLE_SIZE = 64;
+
+	/**
+	 * Identifiers seen during the current generation.
+	 */
+	private long[] current;
+
+	/**
+	 * Identifiers seen during the previous generation.
+	 */
+	private long[] previous;
+
+	/**
+	 * Number of identifiers in the current generation.
+	 */
+	private int currentCount = 0;
+
+	/**
+	 * Maximum number of identifiers per generation before rotating.
+	 */
+	private final int maxPerGeneration;
+
+	/**
+	 * Largest number of slots in a table.
+	 */
+	private final int maxTableSize;
+
+	/**
+	 * How long a generation lasts before it is rotated, in milliseconds.
+	 */
+	private final long bucketMillis;
+
+	/**
+	 * When the current generation was started.
+	 */
+	private long generationStart;
+
+	/**
+	 * Whether an identifier of 0 was seen in the current or previous
+	 * generation.
+	 */
+	private boolean zeroCurrent = false, zeroPrevious = false;
+
+	/**
+	 * Creates a new cache that remembers up to {@code capacity} identifiers per
+	 * generation, with each generation lasting at most {@code bucketMillis}.
+	 * 
+	 * @param capacity
+	 *            the number of identifiers to remember per generation.
+	 * @param bucketMillis
+	 *            the maximum age of a generation, in milliseconds.
+	 */
+	public SeenMessageCache(final int capacity, final long bucketMillis) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Capacity must be positive: "
+					+ capacity);
+		}
+		// Keep the load factor at or below 1/2 for short probe chains
+		this.maxTableSize = Integer.highestOneBit(capacity) << 2;
+		int tableSize = Math.min(MIN_TABLE_SIZE, this.maxTableSize);
+		this.current = new long[tableSize];
+		this.previous = new long[tableSize];
+		this.maxPerGeneration = capacity;
+		this.bucketMillis = bucketMillis;
+		this.generationStart = System.currentTimeMillis();
+	}
+
+	/**
+	 * Records the identifier as seen.
+	 * 
+	 * @param id
+	 *            the message identifier.
+	 * @return true if the identifier had not been seen recently, false if it is
+	 *         a duplicate.
+	 */
+	public synchronized boolean markSeen(final long id) {
+		long now = System.currentTimeMillis();
+		if (this.currentCount >= this.maxPerGeneration
+				|| now - this.generationStart >= this.bucketMillis) {
+			this.rotate(now);
+		}
+
+		if (id == EMPTY) {
+			if (this.zeroCurrent || this.zeroPrevious) {
+				return false;
+			}
+			this.zeroCurrent = true;
+			return true;
+		}
+
+		if (contains(this.previous, id)) {
+			return false;
+		}
+
+		int mask = this.current.length - 1;
+		int index = indexOf(id, mask);
+		while (true) {
+			long slot = this.current[index];
+			if (slot == EMPTY) {
+				this.current[index] = id;
+				if (++this.currentCount * 2 > this.current.length
+						&& this.current.length < this.maxTableSize) {
+					this.current = grow(this.current);
+				}
+				return true;
+			}
+			if (slot == id) {
+				return false;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	/**
+	 * Copies a table into one twice its size.
+	 * 
+	 * @param table
+	 *            the table to copy.
+	 * @return the larger table.
+	 */
+	private static long[] grow(final long[] table) {
+		long[] larger = new long[table.length << 1];
+		int mask = larger.length - 1;
+		for (long id : table) {
+			if (id == EMPTY) {
+				continue;
+			}
+			int index = indexOf(id, mask);
+			while (larger[index] != EMPTY) {
+				index = (index + 1) & mask;
+			}
+			larger[index] = id;
+		}
+		return larger;
+	}
+
+	/**
+	 * Returns true if the identifier has been seen recently.
+	 * 
+	 * @param id
+	 *            the message identifier.
+	 * @return true if the identifier has been seen recently.
+	 */
+	public synchronized boolean isSeen(final long id) {
+		if (id == EMPTY) {
+			return this.zeroCurrent || this.zeroPrevious;
+		}
+		return contains(this.current, id) || contains(this.previous, id);
+	}
+
+	/**
+	 * Checks a single table for the identifier.
+	 * 
+	 * @param table
+	 *            the table to search.
+	 * @param id
+	 *            the non-zero identifier to find.
+	 * @return true if the table contains the identifier.
+	 */
+	private static boolean contains(final long[] table, final long id) {
+		int mask = table.length - 1;
+		int index = indexOf(id, mask);
+		while (true) {
+			long slot = table[index];
+			if (slot == EMPTY) {
+				return false;
+			}
+			if (slot == id) {
+				return true;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	/**
+	 * Drops the previous generation and starts a new one. The new generation
+	 * starts at the size the current one reached, since it is likely to see
+	 * as many identifiers.
+	 * 
+	 * @param now
+	 *            the current time.
+	 */
+	private void rotate(final long now) {
+		long[] oldest = this.previous;
+		if (oldest.length == this.current.length) {
+			Arrays.fill(oldest, EMPTY);
+		} else {
+			oldest = new long[this.current.length];
+		}
+		this.previous = this.current;
+		this.current = oldest;
+		this.zeroPrevious = this.zeroCurrent;
+		this.zeroCurrent = false;
+		this.currentCount = 0;
+		this.generationStart = now;
+	}
+
+	/**
+	 * Computes the starting table index for an identifier.
+	 * 
+	 * @param id
+	 *            the identifier.
+	 * @param mask
+	 *            the table size minus one.
+	 * @return the starting index for the identifier.
+	 */
+	private static int indexOf(final long id, final int mask) {
+		// Mix the bits since the prefix is shared by every id from one client
+		long h = id * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+}
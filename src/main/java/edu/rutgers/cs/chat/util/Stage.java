@@ -0,0 +1,386 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+
+/**
+ * One step of a staged pipeline: a bounded queue of tasks and a fixed number
+ * of threads that run them. Each stage counts the tasks it queues, finishes
+ * and refuses, and times how long tasks wait and run, so that the stage where
+ * latency builds up can be found from its numbers. The counters are
+ * available through {@link #report()} and, once {@link #register(String)} is
+ * called, through JMX.
+ * 
+ * When the queue is full a stage either makes the caller wait or refuses the
+ * task, depending on its {@link Overflow} policy. Waiting pushes back on the
+ * stage before it, and ultimately on the peer sending the messages. A task
+ * must never be queued on its own stage with the {@link Overflow#BLOCK}
+ * policy, since every thread of the stage could end up waiting on itself.
+ * 
+ * The number of threads and size of the queue can be changed with the system
+ * properties {@code edu.rutgers.cs.chat.stage.NAME.threads} and
+ * {@code edu.rutgers.cs.chat.stage.NAME.queue}.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class Stage implements StageMBean {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(Stage.class.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * What to do with a task when the queue is full.
+	 */
+	public static enum Overflow {
+		/**
+		 * Wait until there is room.
+		 */
+		BLOCK,
+		/**
+		 * Refuse the task.
+		 */
+		DROP
+	}
+
+	/**
+	 * A queued task and when it was queued.
+	 */
+	protected static final class Entry {
+		/**
+		 * The task to run.
+		 */
+		final Runnable task;
+
+		/**
+		 * When the task was queued, from {@link System#nanoTime()}.
+		 */
+		final long queued;
+
+		Entry(final Runnable task, final long queued) {
+			this.task = task;
+			this.queued = queued;
+		}
+	}
+
+	/**
+	 * Name of the stage.
+	 */
+	protected final String name;
+
+	/**
+	 * What to do when the queue is full.
+	 */
+	protected final Overflow overflow;
+
+	/**
+	 * Tasks waiting to run.
+	 */
+	protected final BlockingQueue<Entry> queue;
+
+	/**
+	 * Most tasks the queue can hold.
+	 */
+	protected final int capacity;
+
+	/**
+	 * Threads running the tasks.
+	 */
+	protected final Thread[] threads;
+
+	/**
+	 * Flag to stop accepting tasks and exit once the queue is empty.
+	 */
+	protected volatile boolean keepRunning = true;
+
+	/**
+	 * Counters for queued, finished, refused and failed tasks.
+	 */
+	protected final AtomicLong submitted = new AtomicLong(),
+			completed = new AtomicLong(), dropped = new AtomicLong(),
+			failed = new AtomicLong();
+
+	/**
+	 * Total time tasks spent waiting and running, and the longest run, in
+	 * nanoseconds.
+	 */
+	protected final AtomicLong waitNanos = new AtomicLong(),
+			serviceNanos = new AtomicLong(), maxServiceNanos = new AtomicLong();
+
+	/**
+	 * Name the stage is registered under with JMX, or null.
+	 */
+	protected ObjectName objectName = null;
+
+	/**
+	 * Creates and starts a new stage.
+	 * 
+	 * @param name
+	 *            the name of the stage, also used for its threads.
+	 * @param threadCount
+	 *            the number of threads running tasks.
+	 * @param capacity
+	 *            the most tasks that may wait in the queue.
+	 * @param overflow
+	 *            what to do when the queue is full.
+	 */
+	public Stage(final String name, final int threadCount, final int capacity,
+			final Overflow overflow) {
+		this.name = name;
+		this.overflow = overflow;
+		this.capacity = Math.max(1, capacity);
+		this.queue = new ArrayBlockingQueue<Entry>(this.capacity);
+		this.threads = new Thread[Math.max(1, threadCount)];
+		for (int i = 0; i < this.threads.length; ++i) {
+			this.threads[i] = Threads.newThread(new Runnable() {
+				@Override
+				public void run() {
+					Stage.this.work();
+				}
+			}, name + "-" + (i + 1));
+			this.threads[i].start();
+		}
+	}
+
+	/**
+	 * Creates a stage, using the system properties for its number of threads
+	 * and queue size if they are set.
+	 * 
+	 * @param name
+	 *            the name of the stage.
+	 * @param threadCount
+	 *            the default number of threads.
+	 * @param capacity
+	 *            the default size of the queue.
+	 * @param overflow
+	 *            what to do when the queue is full.
+	 * @return the new, started stage.
+	 */
+	public static Stage fromProperties(final String name,
+			final int threadCount, final int capacity, final Overflow overflow) {
+		String prefix = "edu.rutgers.cs.chat.stage." + name + ".";
+		return new Stage(name, Integer.getInteger(prefix + "threads",
+				threadCount).intValue(), Integer.getInteger(prefix + "queue",
+				capacity).intValue(), overflow);
+	}
+
+	/**
+	 * Queues a task. With the {@link Overflow#BLOCK} policy this waits for
+	 * room in the queue; with {@link Overflow#DROP} the task is refused if
+	 * the queue is full.
+	 * 
+	 * @param task
+	 *            the task to run.
+	 * @return true if the task was queued, false if it was refused.
+	 */
+	public boolean execute(final Runnable task) {
+		if (!this.keepRunning) {
+			this.dropped.incrementAndGet();
+			return false;
+		}
+		Entry entry = new Entry(task, System.nanoTime());
+		boolean queued;
+		if (this.overflow == Overflow.BLOCK) {
+			try {
+				this.queue.put(entry);
+				queued = true;
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				queued = false;
+			}
+		} else {
+			queued = this.queue.offer(entry);
+		}
+		if (!queued) {
+			this.dropped.incrementAndGet();
+			log.fine(this.name + " is full, dropped a task.");
+			return false;
+		}
+		this.submitted.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Runs queued tasks until the stage is shut down and the queue is empty.
+	 */
+	protected void work() {
+		while (this.keepRunning || !this.queue.isEmpty()) {
+			Entry entry;
+			try {
+				entry = this.queue.poll(250, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException ie) {
+				continue;
+			}
+			if (entry == null) {
+				continue;
+			}
+			long start = System.nanoTime();
+			this.waitNanos.addAndGet(start - entry.queued);
+			try {
+				entry.task.run();
+			} catch (Throwable t) {
+				// Even an error such as running out of memory must not stop the
+				// stage, or its queue would never drain
+				this.failed.incrementAndGet();
+				log.log(Level.WARNING, this.name + ": task failed", t);
+			}
+			long elapsed = System.nanoTime() - start;
+			this.serviceNanos.addAndGet(elapsed);
+			for (long max = this.maxServiceNanos.get(); elapsed > max
+					&& !this.maxServiceNanos.compareAndSet(max, elapsed); max = this.maxServiceNanos
+					.get()) {
+				// Retry until the maximum is updated or no longer smaller
+			}
+			this.completed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stops accepting tasks. Tasks already queued still run.
+	 */
+	public void shutdown() {
+		this.keepRunning = false;
+		this.unregister();
+	}
+
+	/**
+	 * Publishes the stage's counters through JMX.
+	 * 
+	 * @param scope
+	 *            distinguishes this stage from stages of the same name in
+	 *            other clients, such as the local username.
+	 */
+	public void register(final String scope) {
+		try {
+			this.objectName = new ObjectName("edu.rutgers.cs.chat:type=Stage,scope="
+					+ ObjectName.quote(scope) + ",name=" + this.name);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					this.objectName);
+		} catch (Exception e) {
+			log.warning("Unable to register " + this.name + " with JMX: "
+					+ e.getMessage());
+			this.objectName = null;
+		}
+	}
+
+	/**
+	 * Removes the stage from JMX if it was registered.
+	 */
+	protected void unregister() {
+		if (this.objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					this.objectName);
+		} catch (Exception e) {
+			log.fine("Unable to unregister " + this.name + ": "
+					+ e.getMessage());
+		}
+		this.objectName = null;
+	}
+
+	@Override
+	public String getName() {
+		return this.name;
+	}
+
+	@Override
+	public int getThreadCount() {
+		return this.threads.length;
+	}
+
+	@Override
+	public int getQueueLength() {
+		return this.queue.size();
+	}
+
+	@Override
+	public int getQueueCapacity() {
+		return this.capacity;
+	}
+
+	@Override
+	public long getSubmittedCount() {
+		return this.submitted.get();
+	}
+
+	@Override
+	public long getCompletedCount() {
+		return this.completed.get();
+	}
+
+	@Override
+	public long getDroppedCount() {
+		return this.dropped.get();
+	}
+
+	@Override
+	public long getFailedCount() {
+		return this.failed.get();
+	}
+
+	@Override
+	public double getAverageWaitMillis() {
+		long count = this.completed.get();
+		return count == 0 ? 0 : this.waitNanos.get() / 1e6 / count;
+	}
+
+	@Override
+	public double getAverageServiceMillis() {
+		long count = this.completed.get();
+		return count == 0 ? 0 : this.serviceNanos.get() / 1e6 / count;
+	}
+
+	@Override
+	public double getMaxServiceMillis() {
+		return this.maxServiceNanos.get() / 1e6;
+	}
+
+	/**
+	 * Returns a single-line summary of the stage's counters.
+	 * 
+	 * @return the summary.
+	 */
+	public String report() {
+		return String.format(
+				"%s: threads=%d queue=%d/%d done=%d dropped=%d failed=%d"
+						+ " wait=%.2fms service=%.2fms max=%.2fms", this.name,
+				this.getThreadCount(), this.getQueueLength(), this.capacity,
+				this.getCompletedCount(), this.getDroppedCount(),
+				this.getFailedCount(), this.getAverageWaitMillis(),
+				this.getAverageServiceMillis(), this.getMaxServiceMillis());
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+/**
+ * Management interface of a {@link Stage}, so that its queue and timings can
+ * be watched with JConsole or any other JMX client.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public interface StageMBean {
+
+	/**
+	 * Returns the name of the stage.
+	 * 
+	 * @return the name of the stage.
+	 */
+	public String getName();
+
+	/**
+	 * Returns the number of threads running the stage's tasks.
+	 * 
+	 * @return the number of threads.
+	 */
+	public int getThreadCount();
+
+	/**
+	 * Returns the number of tasks waiting in the queue.
+	 * 
+	 * @return the number of queued tasks.
+	 */
+	public int getQueueLength();
+
+	/**
+	 * Returns the most tasks the queue can hold.
+	 * 
+	 * @return the capacity of the queue.
+	 */
+	public int getQueueCapacity();
+
+	/**
+	 * Returns the number of tasks that have been queued.
+	 * 
+	 * @return the number of queued tasks since the stage started.
+	 */
+	public long getSubmittedCount();
+
+	/**
+	 * Returns the number of tasks that have finished running.
+	 * 
+	 * @return the number of finished tasks.
+	 */
+	public long getCompletedCount();
+
+	/**
+	 * Returns the number of tasks refused because the queue was full or the
+	 * stage had stopped.
+	 * 
+	 * @return the number of refused tasks.
+	 */
+	public long getDroppedCount();
+
+	/**
+	 * Returns the number of tasks that threw an exception.
+	 * 
+	 * @return the number of failed tasks.
+	 */
+	public long getFailedCount();
+
+	/**
+	 * Returns the average time tasks waited in the queue.
+	 * 
+	 * @return the average wait in milliseconds.
+	 */
+	public double getAverageWaitMillis();
+
+	/**
+	 * Returns the average time tasks took to run.
+	 * 
+	 * @return the average service time in milliseconds.
+	 */
+	public double getAverageServiceMillis();
+
+	/**
+	 * Returns the longest time a task took to run.
+	 * 
+	 * @return the longest service time in milliseconds.
+	 */
+	public double getMaxServiceMillis();
+}
@@ -0,0 +1,64 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+/**
+ * Receives the items of a {@link Publisher}. Mirrors
+ * {@code java.util.concurrent.Flow.Subscriber}. Calls to one subscriber are
+ * never made at the same time, but may come from different threads.
+ * 
+ * @author Robert Moore
+ * 
+ * @param <T>
+ *            the type of items received.
+ */
+public interface Subscriber<T> {
+
+	/**
+	 * Called once, before any other method, with the subscription used to
+	 * request items.
+	 * 
+	 * @param subscription
+	 *            the new subscription.
+	 */
+	public void onSubscribe(Subscription subscription);
+
+	/**
+	 * Called with the next item, only after it has been requested.
+	 * 
+	 * @param item
+	 *            the item.
+	 */
+	public void onNext(T item);
+
+	/**
+	 * Called if the subscription fails. No further calls are made.
+	 * 
+	 * @param throwable
+	 *            the cause of the failure.
+	 */
+	public void onError(Throwable throwable);
+
+	/**
+	 * Called once the publisher has no more items. No further calls are
+	 * made.
+	 */
+	public void onComplete();
+}
@@ -0,0 +1,44 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+/**
+ * Links a {@link Subscriber} to a {@link Publisher}. Mirrors
+ * {@code java.util.concurrent.Flow.Subscription}.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public interface Subscription {
+
+	/**
+	 * Asks for up to {@code n} more items. Requests add up, so requesting
+	 * {@link Long#MAX_VALUE} turns off backpressure.
+	 * 
+	 * @param n
+	 *            the number of items, which must be positive.
+	 */
+	public void request(long n);
+
+	/**
+	 * Stops delivery. Items may still arrive for a short time afterward.
+	 */
+	public void cancel();
+}
@@ -0,0 +1,199 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Creates the threads and thread pools used for peer connections. By default
+ * ordinary platform threads are used. When virtual threads are enabled with
+ * {@link #setVirtual(boolean)} and the JVM supports them (Java 21 or later),
+ * every thread created here is a virtual thread instead, so thousands of idle
+ * peers cost little more than their sockets.
+ * 
+ * Virtual threads are created through reflection so the client still builds
+ * and runs on older JVMs.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public final class Threads {
+
+	/**
+	 * Logger for this class.
+	 */
+	private static final Logger log = Logger.getLogger(Threads.class.getName());
+
+	static {
+		log.setLevel(Level.ALL);
+	}
+
+	/**
+	 * Thread.ofVirtual(), or null if this JVM has no virtual threads.
+	 */
+	private static final Method OF_VIRTUAL;
+
+	/**
+	 * Thread.Builder.name(String).
+	 */
+	private static final Method BUILDER_NAME;
+
+	/**
+	 * Thread.Builder.unstarted(Runnable).
+	 */
+	private static final Method BUILDER_UNSTARTED;
+
+	/**
+	 * Executors.newVirtualThreadPerTaskExecutor().
+	 */
+	private static final Method NEW_VIRTUAL_EXECUTOR;
+
+	static {
+		Method ofVirtual = null, name = null, unstarted = null, executor = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+			executor = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			// Fails here on JVMs where virtual threads are a preview feature
+			ofVirtual.invoke(null);
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_UNSTARTED = unstarted;
+		NEW_VIRTUAL_EXECUTOR = executor;
+	}
+
+	/**
+	 * Whether new threads should be virtual.
+	 */
+	private static volatile boolean virtual = false;
+
+	/**
+	 * Numbers the threads of platform pools.
+	 */
+	private static final AtomicInteger poolNumber = new AtomicInteger();
+
+	private Threads() {
+		// Static methods only
+	}
+
+	/**
+	 * Returns true if this JVM supports virtual threads.
+	 * 
+	 * @return true if virtual threads are supported.
+	 */
+	public static boolean isVirtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Enables or disables virtual threads for threads created after this call.
+	 * If virtual threads are requested but not supported, a warning is logged
+	 * and platform threads are used.
+	 * 
+	 * @param enabled
+	 *            true to use virtual threads.
+	 * @return true if virtual threads will be used.
+	 */
+	public static boolean setVirtual(final boolean enabled) {
+		if (enabled && !isVirtualSupported()) {
+			log.warning("Virtual threads need Java 21 or later, using platform threads.");
+			virtual = false;
+		} else {
+			virtual = enabled;
+		}
+		return virtual;
+	}
+
+	/**
+	 * Returns true if new threads will be virtual.
+	 * 
+	 * @return true if new threads will be virtual.
+	 */
+	public static boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * Creates an unstarted thread for the task. Platform threads are created
+	 * as daemon threads.
+	 * 
+	 * @param task
+	 *            the task for the thread to run.
+	 * @param name
+	 *            the name of the thread.
+	 * @return the new thread.
+	 */
+	public static Thread newThread(final Runnable task, final String name) {
+		if (virtual) {
+			try {
+				Object builder = OF_VIRTUAL.invoke(null);
+				builder = BUILDER_NAME.invoke(builder, name);
+				return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Unable to create virtual thread.", e);
+			}
+		}
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Creates a thread pool for short tasks. With virtual threads every task
+	 * gets its own new thread; otherwise a cached pool of platform threads is
+	 * used.
+	 * 
+	 * @param name
+	 *            prefix for the names of platform pool threads.
+	 * @return the new pool.
+	 */
+	public static ExecutorService newExecutor(final String name) {
+		if (virtual) {
+			try {
+				return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+			} catch (Exception e) {
+				log.log(Level.WARNING,
+						"Unable to create virtual thread executor.", e);
+			}
+		}
+		final String prefix = name + "-" + poolNumber.incrementAndGet() + "-";
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable task) {
+				return new Thread(task, prefix
+						+ this.threadNumber.incrementAndGet());
+			}
+		});
+	}
+}
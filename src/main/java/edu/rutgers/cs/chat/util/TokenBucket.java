@@ -0,0 +1,145 @@
+/*
+ * CS352 Example Chat Client
+ * Copyright (C) 2011-2012 Rutgers University and Robert Moore
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *  
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+package edu.rutgers.cs.chat.util;
+
+/**
+ * A token bucket for limiting the rate of an activity. Tokens are added at a
+ * fixed rate up to the size of the bucket, and each use takes some tokens
+ * away. A use is allowed whenever the bucket is not empty, even if it takes
+ * more tokens than are left; the bucket then goes into debt, and later uses
+ * wait until the debt has been paid off. Uses larger than the bucket, such as
+ * a single large frame, are therefore delayed rather than refused forever.
+ * 
+ * A bucket is not thread-safe; each is used by the single thread reading from
+ * one peer.
+ * 
+ * @author Robert Moore
+ * 
+ */
+public class TokenBucket {
+
+	/**
+	 * Tokens added per second.
+	 */
+	protected final long rate;
+
+	/**
+	 * Most tokens the bucket can hold.
+	 */
+	protected final long capacity;
+
+	/**
+	 * Tokens currently in the bucket. Negative while in debt.
+	 */
+	protected long tokens;
+
+	/**
+	 * Time at which tokens were last added, in nanoseconds.
+	 */
+	protected long lastRefill;
+
+	/**
+	 * Creates a new, full bucket.
+	 * 
+	 * @param rate
+	 *            the tokens added per second, at least 1.
+	 * @param capacity
+	 *            the most tokens the bucket can hold, at least 1.
+	 */
+	public TokenBucket(final long rate, final long capacity) {
+		if (rate < 1 || capacity < 1) {
+			throw new IllegalArgumentException(
+					"Rate and capacity must be positive.");
+		}
+		this.rate = rate;
+		this.capacity = capacity;
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	/**
+	 * Adds the tokens earned since the last refill.
+	 * 
+	 * @param now
+	 *            the current time from {@link System#nanoTime()}.
+	 */
+	protected void refill(final long now) {
+		long elapsed = now - this.lastRefill;
+		if (elapsed <= 0) {
+			return;
+		}
+		long earned = elapsed / 1000000000L * this.rate
+				+ (elapsed % 1000000000L) * this.rate / 1000000000L;
+		if (earned <= 0) {
+			return;
+		}
+		if (this.tokens + earned >= this.capacity) {
+			this.tokens = this.capacity;
+			this.lastRefill = now;
+		} else {
+			this.tokens += earned;
+			// Keep the fraction of a token that hasn't been earned yet
+			this.lastRefill += earned * 1000000000L / this.rate;
+		}
+	}
+
+	/**
+	 * Takes tokens from the bucket if it isn't empty.
+	 * 
+	 * @param count
+	 *            the number of tokens to take.
+	 * @param now
+	 *            the current time from {@link System#nanoTime()}.
+	 * @return true if the tokens were taken, false if the bucket is empty.
+	 */
+	public boolean tryTake(final long count, final long now) {
+		this.refill(now);
+		if (this.tokens <= 0) {
+			return false;
+		}
+		this.tokens -= count;
+		return true;
+	}
+
+	/**
+	 * Returns how long until the bucket will no longer be empty.
+	 * 
+	 * @param now
+	 *            the current time from {@link System#nanoTime()}.
+	 * @return the wait in milliseconds, 0 if tokens can be taken now.
+	 */
+	public long delayMillis(final long now) {
+		this.refill(now);
+		if (this.tokens > 0) {
+			return 0;
+		}
+		long needed = 1 - this.tokens;
+		return Math.max(1, (needed * 1000 + this.rate - 1) / this.rate);
+	}
+
+	/**
+	 * Returns the tokens added per second.
+	 * 
+	 * @return the rate of the bucket.
+	 */
+	public long getRate() {
+		return this.rate;
+	}
+}
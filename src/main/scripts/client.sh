@@ -14,16 +14,19 @@ BASE_PORT=2048
 MAX_PORT=$((32768-2048))
 # GUI option
 GUI=""
+# Virtual thread option
+VIRTUAL=""
 
 usage() {
-  echo "Usage: `basename $0` [-g] [-s HOST] [-p PORT] USERNAME"
+  echo "Usage: `basename $0` [-g] [-v] [-s HOST] [-p PORT] USERNAME"
   echo "  -g : Use graphical interface"
+  echo "  -v : Use virtual threads (Java 21 or later)"
   echo "  -h HOST : Use alternate server hostname"
   echo "  -p PORT : User alternate server port"
 }
 
 parseopts() {
-  while getopts ":gh:p:" optname 
+  while getopts ":gvh:p:" optname 
     do
       case "$optname" in
         "h")
@@ -38,6 +41,10 @@ parseopts() {
           GUI="--gui"
           echo "Using gui"
           ;;
+        "v")
+          VIRTUAL="--virtual"
+          echo "Using virtual threads"
+          ;;
         "?")
           echo "Unknown option $OPTARG"
           ;;
@@ -69,5 +76,5 @@ echo "Connecting to Chat Server @ $SERVER_HOST:$SERVER_PORT with username \
 # Pick a random port
 PORT=$((RANDOM%$MAX_PORT+$BASE_PORT))
 
-java -jar $JAR_FILE $PORT $LOCALUSER $SERVER_HOST $SERVER_PORT $GUI \
+java -jar $JAR_FILE $PORT $LOCALUSER $SERVER_HOST $SERVER_PORT $GUI $VIRTUAL \
   || echo "Try again, you probably got a bad port number!"
@@ -5,20 +5,27 @@ JAR_FILE=cs352-chat-1.0.8.jar
 
 # Host for main server
 LISTEN_PORT=8765
+# Run the headless relay instead of a chat client
+RELAY=""
 
 usage() {
-  echo "Usage: `basename $0` [-p PORT]"
+  echo "Usage: `basename $0` [-r] [-p PORT] [RELAY OPTIONS]"
   echo "  -p PORT : Use alternate listen port"
+  echo "  -r : Run the headless relay (options are passed to the relay)"
 }
 
 parseopts() {
-  while getopts ":p:" optname 
+  while getopts ":rp:" optname 
     do
       case "$optname" in
         "p")
           LISTEN_PORT="$OPTARG"
           echo "Setting port to $LISTEN_PORT"
           ;;
+        "r")
+          RELAY="yes"
+          echo "Running relay"
+          ;;
         "?")
           echo "Unknown option $OPTARG"
           ;;
@@ -36,6 +43,14 @@ parseopts "$@"
 argstart=$?
 shift $(($argstart-1))
 
+if [ -n "$RELAY" ]
+then
+  echo "Launching Chat Relay on port $LISTEN_PORT"
+  java -cp $JAR_FILE edu.rutgers.cs.chat.relay.RelayServer $LISTEN_PORT \
+    --name ChanHost "$@"
+  exit $?
+fi
+
 if [ $# -ne 0 ]
 then
   usage